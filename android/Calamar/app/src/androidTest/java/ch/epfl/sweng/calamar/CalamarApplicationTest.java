@@ -10,7 +10,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 
 import ch.epfl.sweng.calamar.item.Item;
 import ch.epfl.sweng.calamar.item.SimpleTextItem;
@@ -47,6 +49,33 @@ public class CalamarApplicationTest extends ApplicationTestCase<CalamarApplicati
     }
 
 
+    @Test
+    public void testDatabaseOpenedInBackground() {
+        assertTrue(app.isDatabaseOpen());
+        assertEquals(dbHandler, SQLiteDatabaseHandler.getInstance());
+        DatabaseOpener opener = DatabaseOpener.start(app, System.nanoTime());
+        assertEquals(opener.get(), dbHandler);
+        assertTrue(opener.isDone());
+    }
+
+    @Test
+    public void testRetentionPolicyIsStored() {
+        RetentionPolicy policy = new RetentionPolicy(1000, 10, 100);
+        app.setRetentionPolicy(policy);
+        assertEquals(app.getRetentionPolicy(), policy);
+    }
+
+    @Test
+    public void testPendingWritesAreStored() {
+        assertTrue(app.getPendingWrites().isEmpty());
+        app.addPendingWrite(3);
+        app.addPendingWrite(5);
+        app.removePendingWrite(3);
+        assertEquals(app.getPendingWrites(), new HashSet<>(Arrays.asList(5)));
+        app.resetPreferences();
+        assertTrue(app.getPendingWrites().isEmpty());
+    }
+
     @Test
     public void testDefaultValues() {
         assertEquals(defaultID, app.getCurrentUserID());
@@ -13,6 +13,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import ch.epfl.sweng.calamar.condition.Condition;
+import ch.epfl.sweng.calamar.condition.LazyCondition;
 import ch.epfl.sweng.calamar.condition.PositionCondition;
 import ch.epfl.sweng.calamar.map.GPSProvider;
 
@@ -213,6 +214,41 @@ public class ConditionTest {
         o2.assertAll(true, 1);
     }
 
+    @Test
+    public void testUnlockedConditionIsRebuiltFulfilled() throws JSONException {
+        GPSProvider.getInstance().setMockLocation(makeLocation(46.518568, 6.561926));
+        Condition c = Condition.and(new PositionCondition(46.518388, 6.568313, 20), Condition.trueCondition());
+        assertFalse(c.getValue());
+        assertFalse(Condition.fromJSON(c.toJSON()).getValue());
+        assertTrue(Condition.fromJSON(c.toJSON(), true).getValue());
+    }
+
+    @Test
+    public void testLazyConditionIsParsedWhenObserved() throws JSONException {
+        GPSProvider gps = GPSProvider.getInstance();
+        gps.setMockLocation(makeLocation(46.518568, 6.561926));
+        String json = new PositionCondition(46.518388, 6.568313, 20).toJSON().toString();
+        LazyCondition c = new LazyCondition(json, Condition.Type.POSITIONCONDITION, false, true, 46.518388, 6.568313);
+        assertEquals(c.getType(), Condition.Type.POSITIONCONDITION);
+        assertTrue(c.hasLocation());
+        assertEquals(c.getLocation().getLatitude(), 46.518388, 0);
+        assertEquals(c.toJSON().toString(), json);
+        TO o = new TO(c);
+        o.assertAll(false, 0);
+        gps.setMockLocation(makeLocation(46.518388, 6.568313));
+        o.assertAll(true, 1);
+    }
+
+    @Test
+    public void testUnlockedLazyConditionStaysUnlocked() throws JSONException {
+        String json = Condition.trueCondition().toJSON().toString();
+        LazyCondition c = new LazyCondition(json, null, true, false, 0, 0);
+        assertTrue(c.getValue());
+        assertFalse(c.hasLocation());
+        assertEquals(c.getType(), Condition.Type.TRUECONDITION);
+        assertTrue(c.getCondition().getValue());
+    }
+
     @Test
     public void testGetLocation() {
         // setup
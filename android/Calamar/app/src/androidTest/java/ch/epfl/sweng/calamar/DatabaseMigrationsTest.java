@@ -0,0 +1,246 @@
+package ch.epfl.sweng.calamar;
+
+import android.test.ApplicationTestCase;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests each migration step on a database created with the schema of its version.
+ */
+@RunWith(JUnit4.class)
+public class DatabaseMigrationsTest extends ApplicationTestCase<CalamarApplication> {
+
+    private static final String PASSWORD = "password";
+
+    private SQLiteDatabase db;
+
+    public DatabaseMigrationsTest() {
+        super(CalamarApplication.class);
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        SQLiteDatabase.loadLibs(CalamarApplication.getInstance());
+        db = SQLiteDatabase.create(null, PASSWORD);
+    }
+
+    @Test
+    public void testCanMigrateToCurrentVersion() {
+        assertTrue(DatabaseMigrations.canMigrate(DatabaseMigrations.OLDEST_MIGRATABLE_VERSION, SQLiteDatabaseHandler.DATABASE_VERSION));
+        assertTrue(DatabaseMigrations.canMigrate(SQLiteDatabaseHandler.DATABASE_VERSION, SQLiteDatabaseHandler.DATABASE_VERSION));
+    }
+
+    @Test
+    public void testCantMigrateTooOldVersion() {
+        assertFalse(DatabaseMigrations.canMigrate(DatabaseMigrations.OLDEST_MIGRATABLE_VERSION - 1, SQLiteDatabaseHandler.DATABASE_VERSION));
+    }
+
+    @Test
+    public void testCantDowngrade() {
+        assertFalse(DatabaseMigrations.canMigrate(SQLiteDatabaseHandler.DATABASE_VERSION, DatabaseMigrations.OLDEST_MIGRATABLE_VERSION - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMigrateWithoutPathThrows() {
+        DatabaseMigrations.migrate(db, DatabaseMigrations.OLDEST_MIGRATABLE_VERSION - 1, SQLiteDatabaseHandler.DATABASE_VERSION);
+    }
+
+    @Test
+    public void testMigrateToSameVersionKeepsData() {
+        createVersion5();
+        DatabaseMigrations.migrate(db, 5, 5);
+        assertEquals(count("tb_Items"), 3);
+        assertEquals(count("tb_Recipients"), 3);
+    }
+
+    @Test
+    public void testMigrate5To6() {
+        createVersion5();
+        DatabaseMigrations.migrate(db, 5, 6);
+        assertEquals(count("tb_Items"), 3);
+        assertEquals(count("tb_Recipients"), 3);
+        Cursor cursor = db.rawQuery("SELECT id FROM tb_Items WHERE low_id = 0 AND high_id = 1 ORDER BY id", null);
+        assertEquals(cursor.getCount(), 2);
+        cursor.moveToFirst();
+        assertEquals(cursor.getInt(0), 0);
+        cursor.moveToNext();
+        assertEquals(cursor.getInt(0), 1);
+        cursor.close();
+        assertTrue(indexExists("idx_Items_conversation"));
+    }
+
+    @Test
+    public void testMigrate6To7() {
+        createVersion5();
+        DatabaseMigrations.migrate(db, 5, 6);
+        db.execSQL("INSERT INTO tb_Items VALUES ('SIMPLETEXTITEM', 3, 0, 1, 3, '{\"type\":\"NOTCONDITION\",\"metadata\":[],"
+                + "\"val\":{\"type\":\"ANDCONDITION\",\"metadata\":[],\"a\":{\"type\":\"TRUECONDITION\",\"metadata\":[]},"
+                + "\"b\":{\"type\":\"POSITIONCONDITION\",\"metadata\":[],\"latitude\":46.5,\"longitude\":6.5,\"radius\":20}}}', 'Here', NULL, NULL, 0, 1)");
+        DatabaseMigrations.migrate(db, 6, 7);
+        assertEquals(count("tb_Items"), 4);
+        Cursor cursor = db.rawQuery("SELECT id, latitude, longitude, radius FROM tb_Items WHERE latitude IS NOT NULL", null);
+        assertEquals(cursor.getCount(), 1);
+        cursor.moveToFirst();
+        assertEquals(cursor.getInt(0), 3);
+        assertEquals(cursor.getDouble(1), 46.5);
+        assertEquals(cursor.getDouble(2), 6.5);
+        assertEquals(cursor.getDouble(3), 20.0);
+        cursor.close();
+        assertTrue(indexExists("idx_Items_location"));
+    }
+
+    @Test
+    public void testMigrate7To8() {
+        createVersion5();
+        DatabaseMigrations.migrate(db, 5, 8);
+        assertEquals(count("tb_Conversations"), 2);
+        Cursor cursor = db.rawQuery("SELECT item_count, unread_low, unread_high, last_id, last_text FROM tb_Conversations "
+                + "WHERE low_id = 0 AND high_id = 1", null);
+        cursor.moveToFirst();
+        assertEquals(cursor.getInt(0), 2);
+        assertEquals(cursor.getInt(1), 1);
+        assertEquals(cursor.getInt(2), 1);
+        assertEquals(cursor.getInt(3), 1);
+        assertEquals(cursor.getString(4), "Hi");
+        cursor.close();
+
+        //The triggers keep the summaries up to date
+        db.execSQL("INSERT INTO tb_Items VALUES ('SIMPLETEXTITEM', 5, 2, 0, 5, '{\"type\":\"TRUECONDITION\",\"metadata\":[]}', 'Yo', NULL, NULL, 0, 2, NULL, NULL, NULL)");
+        db.execSQL("DELETE FROM tb_Items WHERE id = 1");
+        cursor = db.rawQuery("SELECT low_id, high_id, item_count, last_id, last_text FROM tb_Conversations ORDER BY high_id", null);
+        assertEquals(cursor.getCount(), 2);
+        cursor.moveToFirst();
+        assertEquals(cursor.getInt(2), 1);
+        assertEquals(cursor.getInt(3), 0);
+        assertEquals(cursor.getString(4), "Hello");
+        cursor.moveToNext();
+        assertEquals(cursor.getInt(2), 2);
+        assertEquals(cursor.getInt(3), 5);
+        assertEquals(cursor.getString(4), "Yo");
+        cursor.close();
+    }
+
+    @Test
+    public void testMigrate8To9() {
+        createVersion5();
+        DatabaseMigrations.migrate(db, 5, 9);
+        assertEquals(searchCount("Hello"), 1);
+        assertEquals(searchCount("H*"), 3);
+
+        //The triggers keep the index up to date
+        db.execSQL("UPDATE tb_Items SET text = 'Bye' WHERE id = 0");
+        db.execSQL("DELETE FROM tb_Items WHERE id = 1");
+        assertEquals(searchCount("Hello"), 0);
+        assertEquals(searchCount("Bye"), 1);
+        assertEquals(searchCount("H*"), 1);
+    }
+
+    @Test
+    public void testMigrate9To10() {
+        createVersion5();
+        DatabaseMigrations.migrate(db, 5, 10);
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM tb_Items WHERE unlocked = 0", null);
+        cursor.moveToFirst();
+        assertEquals(cursor.getInt(0), 3);
+        cursor.close();
+    }
+
+    @Test
+    public void testMigrate10To11() {
+        createVersion5();
+        DatabaseMigrations.migrate(db, 5, 10);
+        db.execSQL("INSERT INTO tb_Items (type, id, from_id, to_id, time, condition, low_id, high_id) VALUES ('SIMPLETEXTITEM', 3, 0, 1, 3, "
+                + "'{\"type\":\"POSITIONCONDITION\",\"latitude\":4.5,\"longitude\":4.5,\"radius\":20,\"metadata\":[]}', 0, 1)");
+        db.execSQL("INSERT INTO tb_Items (type, id, from_id, to_id, time, condition, low_id, high_id) VALUES ('SIMPLETEXTITEM', 4, 0, 1, 4, "
+                + "'{\"type\":\"NOTCONDITION\",\"val\":{\"type\":\"FALSECONDITION\",\"metadata\":[]},\"metadata\":[]}', 0, 1)");
+        DatabaseMigrations.migrate(db, 10, 11);
+        Cursor cursor = db.rawQuery("SELECT condition_type, unlocked FROM tb_Items ORDER BY id", null);
+        assertEquals(cursor.getCount(), 5);
+        cursor.moveToFirst();
+        assertEquals(cursor.getString(0), "TRUECONDITION");
+        assertEquals(cursor.getInt(1), 1);
+        cursor.moveToPosition(3);
+        assertEquals(cursor.getString(0), "POSITIONCONDITION");
+        assertEquals(cursor.getInt(1), 0);
+        cursor.moveToNext();
+        assertEquals(cursor.getString(0), "NOTCONDITION");
+        assertEquals(cursor.getInt(1), 1);
+        cursor.close();
+    }
+
+    @Test
+    public void testMigrate11To12() {
+        createVersion5();
+        DatabaseMigrations.migrate(db, 5, 11);
+        assertFalse(indexExists("idx_Items_path"));
+        DatabaseMigrations.migrate(db, 11, 12);
+        assertTrue(indexExists("idx_Items_path"));
+    }
+
+    @Test
+    public void testMigrate12To13() {
+        createVersion5();
+        DatabaseMigrations.migrate(db, 5, 12);
+        DatabaseMigrations.migrate(db, 12, 13);
+        //Applied by the VACUUM run when the handler opens the database
+        db.rawExecSQL("VACUUM");
+        Cursor cursor = db.rawQuery("PRAGMA auto_vacuum", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(cursor.getInt(0), 2);
+        cursor.close();
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Ignore
+    private void createVersion5() {
+        db.execSQL("CREATE TABLE tb_Items (type TEXT NOT NULL,id INTEGER PRIMARY KEY NOT NULL,"
+                + "from_id INTEGER NOT NULL,to_id INTEGER NOT NULL,time INTEGER NOT NULL,"
+                + "condition TEXT NOT NULL, text TEXT, data BLOB, path TEXT)");
+        db.execSQL("CREATE TABLE tb_Recipients (id INTEGER PRIMARY KEY NOT NULL,name TEXT NOT NULL)");
+        db.execSQL("INSERT INTO tb_Recipients VALUES (0, 'Me'), (1, 'You'), (2, 'Him')");
+        db.execSQL("INSERT INTO tb_Items VALUES ('SIMPLETEXTITEM', 0, 0, 1, 0, '{\"type\":\"TRUECONDITION\",\"metadata\":[]}', 'Hello', NULL, NULL)");
+        db.execSQL("INSERT INTO tb_Items VALUES ('SIMPLETEXTITEM', 1, 1, 0, 1, '{\"type\":\"TRUECONDITION\",\"metadata\":[]}', 'Hi', NULL, NULL)");
+        db.execSQL("INSERT INTO tb_Items VALUES ('SIMPLETEXTITEM', 2, 0, 2, 2, '{\"type\":\"TRUECONDITION\",\"metadata\":[]}', 'Hey', NULL, NULL)");
+    }
+
+    @Ignore
+    private boolean indexExists(String name) {
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?", new String[]{name});
+        boolean exists = cursor.getCount() == 1;
+        cursor.close();
+        return exists;
+    }
+
+    @Ignore
+    private int searchCount(String query) {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM tb_ItemsSearch WHERE tb_ItemsSearch MATCH ?", new String[]{query});
+        cursor.moveToFirst();
+        int count = cursor.getInt(0);
+        cursor.close();
+        return count;
+    }
+
+    @Ignore
+    private int count(String table) {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + table, null);
+        cursor.moveToFirst();
+        int count = cursor.getInt(0);
+        cursor.close();
+        return count;
+    }
+}
@@ -20,6 +20,7 @@ import ch.epfl.sweng.calamar.recipient.Group;
 import ch.epfl.sweng.calamar.recipient.User;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.mockito.Mockito.mock;
 
@@ -121,11 +122,30 @@ public class EqualsAndHashcodeTest {
         helperVerifyEqualsAndHashcode(f, f2);
         helperVerifyEqualsAndHashcode(f, i);
         helperVerifyEqualsAndHashcode(i, f);
-        helperVerifyNotEqualsAndHashcode(f, f3);
+        //The hash doesn't depend on the data, which may not be loaded
+        assertNotEquals(f, f3);
+        assertNotEquals(f3, f);
         helperVerifyNotEqualsAndHashcode(f, f4);
         helperVerifyNotEqualsAndHashcode(f3, f4);
     }
 
+    @Test
+    public void testFileItemIsComparedWithoutLoadingItsData() {
+        final int[] loads = {0};
+        FileItem.DataLoader loader = new FileItem.DataLoader() {
+            @Override
+            public byte[] load(int itemID) {
+                ++loads[0];
+                return testContent;
+            }
+        };
+        FileItem f = new FileItem(12, testUser1, testUser2, testDate, tc, testContent, path + "FileItem");
+        FileItem lazy = new FileItem(12, testUser1, testUser2, testDate, tc, loader, path + "FileItem", "");
+        helperVerifyEqualsAndHashcode(f, lazy);
+        assertFalse(lazy.isDataLoaded());
+        assertEquals(loads[0], 0);
+    }
+
     @Test
     public void testImageItem() {
         // just a random 5x5 pgn pictures to test
@@ -0,0 +1,125 @@
+package ch.epfl.sweng.calamar;
+
+import android.test.ApplicationTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import ch.epfl.sweng.calamar.PendingOperations.Operation;
+import ch.epfl.sweng.calamar.condition.PositionCondition;
+import ch.epfl.sweng.calamar.item.Item;
+import ch.epfl.sweng.calamar.item.SimpleTextItem;
+import ch.epfl.sweng.calamar.recipient.User;
+import ch.epfl.sweng.calamar.utils.Pair;
+
+@RunWith(JUnit4.class)
+public class PendingItemsTest extends ApplicationTestCase<CalamarApplication> {
+
+    private final User alice = new User(1, "Alice");
+    private final User bob = new User(2, "Bob");
+    private final User carol = new User(3, "Carol");
+
+    private PendingItems pending;
+
+    public PendingItemsTest() {
+        super(CalamarApplication.class);
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        pending = new PendingItems();
+    }
+
+    @Test
+    public void testAddedAreIndexedByConversationInOrder() {
+        Item third = new SimpleTextItem(3, bob, alice, new Date(3), "3");
+        Item first = new SimpleTextItem(1, alice, bob, new Date(1), "1");
+        Item other = new SimpleTextItem(2, alice, carol, new Date(2), "2");
+        pending.put(3, Operation.ADD, third);
+        pending.put(1, Operation.ADD, first);
+        pending.put(2, Operation.ADD, other);
+        assertEquals(new ArrayList<>(pending.getAddedInConversation(alice.getID(), bob.getID()).values()), Arrays.asList(first, third));
+        assertEquals(new ArrayList<>(pending.getAddedInConversation(bob.getID(), alice.getID()).values()), Arrays.asList(first, third));
+        assertEquals(new ArrayList<>(pending.getAddedInConversation(alice.getID(), carol.getID()).values()), Arrays.asList(other));
+        assertTrue(pending.getAddedInConversation(bob.getID(), carol.getID()).isEmpty());
+        assertEquals(pending.getAdded().size(), 3);
+        assertEquals(pending.getHidingCount(), 3);
+    }
+
+    @Test
+    public void testReplacedOperationLeavesTheIndexes() {
+        Item item = new SimpleTextItem(1, alice, bob, new Date(1), "1");
+        pending.put(1, Operation.ADD, item);
+        pending.put(1, Operation.DELETE, null);
+        assertTrue(pending.getAddedInConversation(alice.getID(), bob.getID()).isEmpty());
+        assertTrue(pending.getAdded().isEmpty());
+        assertEquals(pending.getHidingCount(), 1);
+        pending.put(1, Operation.UPDATE, item);
+        assertEquals(pending.getHidingCount(), 0);
+        assertEquals(pending.size(), 1);
+    }
+
+    @Test
+    public void testLocalizedIndex() {
+        Item localized = new SimpleTextItem(1, alice, bob, new Date(1), new PositionCondition(46.5, 6.5, 20), "1");
+        Item notLocalized = new SimpleTextItem(2, alice, bob, new Date(2), "2");
+        pending.put(1, Operation.UPDATE, localized);
+        pending.put(2, Operation.ADD, notLocalized);
+        assertEquals(pending.getLocalized().size(), 1);
+        assertEquals(pending.getLocalized().get(1).getRight(), localized);
+        pending.put(1, Operation.DELETE, null);
+        assertTrue(pending.getLocalized().isEmpty());
+    }
+
+    @Test
+    public void testRemoveIfSameKeepsNewerOperation() {
+        Item item = new SimpleTextItem(1, alice, bob, new Date(1), "1");
+        pending.put(1, Operation.ADD, item);
+        Map<Integer, Pair<Operation, Item>> snapshot = pending.snapshot();
+        pending.put(1, Operation.ADD, new SimpleTextItem(1, alice, bob, new Date(1), "changed"));
+        pending.removeIfSame(1, snapshot.get(1));
+        assertEquals(pending.get(1).getRight().getMessage(), "changed");
+        pending.removeIfSame(1, pending.get(1));
+        assertTrue(pending.isEmpty());
+        assertTrue(pending.getAddedInConversation(alice.getID(), bob.getID()).isEmpty());
+        assertEquals(pending.getHidingCount(), 0);
+    }
+
+    @Test
+    public void testSnapshotDoesntSeeLaterChanges() {
+        Item first = new SimpleTextItem(1, alice, bob, new Date(1), "1");
+        Item big = new SimpleTextItem(100000, alice, bob, new Date(2), "2");
+        pending.put(1, Operation.ADD, first);
+        pending.put(100000, Operation.UPDATE, big);
+        Map<Integer, Pair<Operation, Item>> snapshot = pending.snapshot();
+        pending.put(1, Operation.DELETE, null);
+        pending.removeIfSame(100000, pending.get(100000));
+        pending.put(7, Operation.ADD, new SimpleTextItem(7, alice, bob, new Date(7), "7"));
+        assertEquals(snapshot.size(), 2);
+        assertEquals(snapshot.get(1).getRight(), first);
+        assertEquals(snapshot.get(100000).getRight(), big);
+        assertEquals(snapshot.get(7), null);
+        assertEquals(new ArrayList<>(snapshot.keySet()), Arrays.asList(1, 100000));
+        assertEquals(new ArrayList<>(pending.snapshot().keySet()), Arrays.asList(1, 7));
+    }
+
+    @Test
+    public void testClear() {
+        pending.put(1, Operation.ADD, new SimpleTextItem(1, alice, bob, new Date(1), new PositionCondition(46.5, 6.5, 20), "1"));
+        pending.clear();
+        assertTrue(pending.isEmpty());
+        assertTrue(pending.getAdded().isEmpty());
+        assertTrue(pending.getLocalized().isEmpty());
+        assertTrue(pending.getAddedInConversation(alice.getID(), bob.getID()).isEmpty());
+        assertEquals(pending.getHidingCount(), 0);
+    }
+}
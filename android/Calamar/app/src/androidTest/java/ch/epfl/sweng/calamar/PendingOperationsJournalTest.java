@@ -0,0 +1,129 @@
+package ch.epfl.sweng.calamar;
+
+import android.test.ApplicationTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class PendingOperationsJournalTest extends ApplicationTestCase<CalamarApplication> {
+
+    private static final byte[] KEY = {0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+            0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f, 0x10};
+
+    private File file;
+    private PendingOperationsJournal journal;
+
+    public PendingOperationsJournalTest() {
+        super(CalamarApplication.class);
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = new File(CalamarApplication.getInstance().getCacheDir(), "test.journal");
+        file.delete();
+        journal = new PendingOperationsJournal(file, KEY);
+    }
+
+    @Test
+    public void testEmptyJournal() {
+        assertTrue(journal.readAll().isEmpty());
+    }
+
+    @Test
+    public void testAppendAndRead() throws JSONException {
+        for (int i = 0; i < 10; ++i) {
+            journal.append(record(i));
+        }
+        journal.sync();
+        List<JSONObject> records = journal.readAll();
+        assertEquals(records.size(), 10);
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(records.get(i).getInt("id"), i);
+        }
+    }
+
+    @Test
+    public void testReadAfterReopen() throws JSONException {
+        journal.append(record(1));
+        journal.sync();
+        List<JSONObject> records = new PendingOperationsJournal(file, KEY).readAll();
+        assertEquals(records.size(), 1);
+        assertEquals(records.get(0).getInt("id"), 1);
+    }
+
+    @Test
+    public void testTruncate() throws JSONException {
+        journal.append(record(1));
+        journal.sync();
+        journal.append(record(2));
+        journal.truncate();
+        journal.sync();
+        assertTrue(journal.readAll().isEmpty());
+        journal.append(record(3));
+        journal.sync();
+        assertEquals(journal.readAll().size(), 1);
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws JSONException, IOException {
+        journal.append(record(1));
+        journal.append(record(2));
+        journal.sync();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        List<JSONObject> records = journal.readAll();
+        assertEquals(records.size(), 1);
+        assertEquals(records.get(0).getInt("id"), 1);
+    }
+
+    @Test
+    public void testCorruptedRecordIsIgnored() throws JSONException, IOException {
+        journal.append(record(1));
+        journal.append(record(2));
+        journal.sync();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 1);
+        int last = raf.read();
+        raf.seek(raf.length() - 1);
+        raf.write(last ^ 0xff);
+        raf.close();
+        assertEquals(journal.readAll().size(), 1);
+    }
+
+    @Test
+    public void testContentIsEncrypted() throws JSONException, IOException {
+        journal.append(record(1).put("text", "secret message"));
+        journal.sync();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] content = new byte[(int) raf.length()];
+        raf.readFully(content);
+        raf.close();
+        assertFalse(new String(content, "ISO-8859-1").contains("secret"));
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private JSONObject record(int id) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put("id", id);
+        return record;
+    }
+}
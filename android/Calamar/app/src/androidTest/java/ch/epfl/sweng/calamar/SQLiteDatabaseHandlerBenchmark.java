@@ -0,0 +1,703 @@
+package ch.epfl.sweng.calamar;
+
+import android.content.ContentValues;
+import android.test.ApplicationTestCase;
+import android.util.Log;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.epfl.sweng.calamar.item.Item;
+import ch.epfl.sweng.calamar.item.SimpleTextItem;
+import ch.epfl.sweng.calamar.recipient.User;
+import ch.epfl.sweng.calamar.utils.MetricsRegistry;
+
+/**
+ * Measures the queries of the {@link SQLiteDatabaseHandler} on big tables.<br>
+ * The timings are written in the log (tag SQLiteDatabaseHandlerBenchmark), the tests only check
+ * that the compared queries return the same rows. The benchmarks are ignored, to run them by hand
+ * remove their @Ignore ; the checks of the query plans always run.
+ */
+@RunWith(JUnit4.class)
+public class SQLiteDatabaseHandlerBenchmark extends ApplicationTestCase<CalamarApplication> {
+
+    private static final String TAG = SQLiteDatabaseHandlerBenchmark.class.getSimpleName();
+    private static final String PASSWORD = "password";
+
+    private static final int USERS = 200;
+    private static final int QUERIES = 50;
+    private static final int CURRENT_USER = 0;
+
+    private static final String SCAN_QUERY = "SELECT * FROM tb_Items WHERE ( from_id = ? AND to_id = ? ) OR ( to_id = ? AND from_id = ? ) ORDER BY id ASC";
+    private static final String INDEX_QUERY = "SELECT * FROM tb_Items WHERE low_id = ? AND high_id = ? ORDER BY id ASC";
+
+    private static final String CONDITION_SCAN_QUERY = "SELECT id, condition FROM tb_Items";
+    private static final String LOCATION_QUERY = "SELECT * FROM tb_Items WHERE latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?";
+    private static final String TRUE_CONDITION = "{\"type\":\"TRUECONDITION\",\"metadata\":[]}";
+    //One item out of LOCALIZED_RATIO has a position condition, somewhere in a 1 degree square
+    private static final int LOCALIZED_RATIO = 10;
+    private static final double REGION_SIZE = 0.1;
+
+    private static final String RECIPIENT_QUERY = "SELECT id, name FROM tb_Recipients WHERE id = ?";
+    private static final String JOIN_SELECT = "SELECT tb_Items.*, sender.name, receiver.name FROM tb_Items "
+            + "LEFT JOIN tb_Recipients sender ON sender.id = tb_Items.from_id "
+            + "LEFT JOIN tb_Recipients receiver ON receiver.id = tb_Items.to_id";
+
+    //Same statement and chunk size as SQLiteDatabaseHandler.applyPendingOperations
+    private static final String ITEMS_REPLACE = "INSERT OR REPLACE INTO tb_Items (type, id, from_id, to_id, low_id, high_id, time, "
+            + "condition, text, path, latitude, longitude, radius, data) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final int WRITE_CHUNK_SIZE = 500;
+
+    //Same bulk lookup as SQLiteDatabaseHandler.getItems and the deletes of applyPendingOperations
+    private static final int MAX_PLACEHOLDERS = 99;
+    private static final String LOOKUP_SELECT = "SELECT id FROM temp.tb_Lookup";
+
+    private static final int PRODUCED_ITEMS = 5000;
+
+    private SQLiteDatabase db;
+    private Random random;
+
+    public SQLiteDatabaseHandlerBenchmark() {
+        super(CalamarApplication.class);
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        SQLiteDatabase.loadLibs(CalamarApplication.getInstance());
+        db = SQLiteDatabase.create(null, PASSWORD);
+        random = new Random(42);
+    }
+
+    @Test
+    public void testConversationQueryUsesIndex() {
+        createItemsTable();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + INDEX_QUERY, new String[]{"0", "1"});
+        StringBuilder plan = new StringBuilder();
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(cursor.getColumnCount() - 1));
+        }
+        cursor.close();
+        assertTrue(plan.toString(), plan.toString().contains("idx_Items_conversation"));
+        assertFalse(plan.toString(), plan.toString().contains("TEMP B-TREE"));
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testConversationQuery10k() {
+        benchmarkConversationQuery(10000);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testConversationQuery100k() {
+        benchmarkConversationQuery(100000);
+    }
+
+    @Test
+    public void testLocationQueryUsesIndex() {
+        createItemsTable();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + LOCATION_QUERY, new String[]{"0", "1", "0", "1"});
+        StringBuilder plan = new StringBuilder();
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(cursor.getColumnCount() - 1));
+        }
+        cursor.close();
+        assertTrue(plan.toString(), plan.toString().contains("idx_Items_location"));
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testLocalizedItemsInRegion10k() {
+        benchmarkLocalizedItems(10000);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testLocalizedItemsInRegion100k() {
+        benchmarkLocalizedItems(100000);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testRecipientsJoin1k() {
+        benchmarkRecipientsJoin(1000);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testRecipientsJoin10k() {
+        benchmarkRecipientsJoin(10000);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testBulkWrite1k() {
+        benchmarkBulkWrite(1000);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testBulkWrite10k() {
+        benchmarkBulkWrite(10000);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testIdLookup100() {
+        benchmarkIdLookup(100);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testIdLookup1k() {
+        benchmarkIdLookup(1000);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testIdLookup10k() {
+        benchmarkIdLookup(10000);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testSearch10k() {
+        benchmarkSearch(10000);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testSearch100k() {
+        benchmarkSearch(100000);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testConcurrentProducers1() throws InterruptedException {
+        benchmarkConcurrentProducers(1);
+    }
+
+    @Ignore //Benchmark, too long for every run
+    @Test
+    public void testConcurrentProducers4() throws InterruptedException {
+        benchmarkConcurrentProducers(4);
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    private void benchmarkConversationQuery(int rows) {
+        createItemsTable(rows);
+        String[][] args = new String[QUERIES][];
+        for (int i = 0; i < QUERIES; ++i) {
+            args[i] = new String[]{Integer.toString(1 + random.nextInt(USERS - 1))};
+        }
+        final String u = Integer.toString(CURRENT_USER);
+        compareQueries("getItemsForContact", rows, args, "scan", new Query() {
+            @Override
+            public int run(String[] contact) {
+                return readAll(db.rawQuery(SCAN_QUERY, new String[]{u, contact[0], u, contact[0]}));
+            }
+        }, "index", new Query() {
+            @Override
+            public int run(String[] contact) {
+                int c = Integer.parseInt(contact[0]);
+                return readAll(db.rawQuery(INDEX_QUERY, new String[]{Integer.toString(Math.min(CURRENT_USER, c)), Integer.toString(Math.max(CURRENT_USER, c))}));
+            }
+        });
+    }
+
+    /**
+     * Compares the old way (parse every condition, keep the ones with a location in the region)
+     * with the location index
+     */
+    private void benchmarkLocalizedItems(int rows) {
+        createItemsTable(rows);
+        String[][] args = new String[QUERIES][];
+        for (int i = 0; i < QUERIES; ++i) {
+            args[i] = new String[]{Double.toString(random.nextDouble() * (1 - REGION_SIZE)), Double.toString(random.nextDouble() * (1 - REGION_SIZE))};
+        }
+        compareQueries("getLocalizedItemsInRegion", rows, args, "parse all conditions", new Query() {
+            @Override
+            public int run(String[] southWest) {
+                double south = Double.parseDouble(southWest[0]);
+                double west = Double.parseDouble(southWest[1]);
+                int count = 0;
+                Cursor cursor = db.rawQuery(CONDITION_SCAN_QUERY, null);
+                while (cursor.moveToNext()) {
+                    try {
+                        JSONObject condition = new JSONObject(cursor.getString(1));
+                        if (condition.getString("type").equals("POSITIONCONDITION")) {
+                            double latitude = condition.getDouble("latitude");
+                            double longitude = condition.getDouble("longitude");
+                            if (south <= latitude && latitude <= south + REGION_SIZE && west <= longitude && longitude <= west + REGION_SIZE) {
+                                ++count;
+                            }
+                        }
+                    } catch (JSONException e) {
+                        fail(e.getMessage());
+                    }
+                }
+                cursor.close();
+                return count;
+            }
+        }, "index", new Query() {
+            @Override
+            public int run(String[] southWest) {
+                double south = Double.parseDouble(southWest[0]);
+                double west = Double.parseDouble(southWest[1]);
+                return readAll(db.rawQuery(LOCATION_QUERY, new String[]{southWest[0], Double.toString(south + REGION_SIZE),
+                        southWest[1], Double.toString(west + REGION_SIZE)}));
+            }
+        });
+    }
+
+    private void benchmarkRecipientsJoin(int rows) {
+        createItemsTable(rows);
+        createRecipientsTable();
+        String[][] all = {{}};
+        compareQueries("getAllItems", rows, all, "2 recipient queries per row", new Query() {
+            @Override
+            public int run(String[] args) {
+                return readWithRecipientQueries(db.rawQuery("SELECT * FROM tb_Items ORDER BY id", args));
+            }
+        }, "join", new Query() {
+            @Override
+            public int run(String[] args) {
+                return readWithJoin(db.rawQuery(JOIN_SELECT + " ORDER BY tb_Items.id", args));
+            }
+        });
+        String[][] conversation = {{Integer.toString(CURRENT_USER), "1"}};
+        compareQueries("getItemsForContact", rows, conversation, "2 recipient queries per row", new Query() {
+            @Override
+            public int run(String[] args) {
+                return readWithRecipientQueries(db.rawQuery(INDEX_QUERY, args));
+            }
+        }, "join", new Query() {
+            @Override
+            public int run(String[] args) {
+                return readWithJoin(db.rawQuery(JOIN_SELECT + " WHERE low_id = ? AND high_id = ? ORDER BY tb_Items.id ASC", args));
+            }
+        });
+    }
+
+    private void benchmarkBulkWrite(int rows) {
+        createItemsTable();
+
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (int id = 0; id < rows; ++id) {
+                ContentValues values = new ContentValues();
+                values.put("type", "SIMPLETEXTITEM");
+                values.put("id", id);
+                values.put("from_id", CURRENT_USER);
+                values.put("to_id", id % USERS);
+                values.put("low_id", Math.min(CURRENT_USER, id % USERS));
+                values.put("high_id", Math.max(CURRENT_USER, id % USERS));
+                values.put("time", id);
+                values.put("condition", TRUE_CONDITION);
+                values.put("text", "Message number " + id);
+                values.putNull("latitude");
+                values.putNull("longitude");
+                values.putNull("radius");
+                db.replace("tb_Items", null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long perRow = System.nanoTime() - start;
+        assertEquals(count(), rows);
+        db.delete("tb_Items", null, null);
+
+        start = System.nanoTime();
+        SQLiteStatement replace = db.compileStatement(ITEMS_REPLACE);
+        db.beginTransaction();
+        try {
+            for (int id = 0; id < rows; ++id) {
+                replace.bindString(1, "SIMPLETEXTITEM");
+                replace.bindLong(2, id);
+                replace.bindLong(3, CURRENT_USER);
+                replace.bindLong(4, id % USERS);
+                replace.bindLong(5, Math.min(CURRENT_USER, id % USERS));
+                replace.bindLong(6, Math.max(CURRENT_USER, id % USERS));
+                replace.bindLong(7, id);
+                replace.bindString(8, TRUE_CONDITION);
+                replace.bindString(9, "Message number " + id);
+                for (int column = 10; column <= 14; ++column) {
+                    replace.bindNull(column);
+                }
+                replace.execute();
+                if ((id + 1) % WRITE_CHUNK_SIZE == 0) {
+                    db.setTransactionSuccessful();
+                    db.endTransaction();
+                    db.beginTransaction();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        replace.close();
+        long compiled = System.nanoTime() - start;
+        assertEquals(count(), rows);
+
+        Log.i(TAG, "applyPendingOperations, " + rows + " items : ContentValues " + rows * 1000000000L / perRow
+                + " rows/s, compiled statement " + rows * 1000000000L / compiled + " rows/s");
+    }
+
+    private void benchmarkIdLookup(final int ids) {
+        createItemsTable(2 * ids);
+        final Integer[] lookup = new Integer[ids];
+        for (int i = 0; i < ids; ++i) {
+            lookup[i] = 2 * i;
+        }
+        String[][] once = {{}};
+        compareQueries("getItems, " + ids + " ids", 2 * ids, once, "chunks of " + MAX_PLACEHOLDERS + " placeholders", new Query() {
+            @Override
+            public int run(String[] args) {
+                int count = 0;
+                for (int first = 0; first < ids; first += MAX_PLACEHOLDERS) {
+                    String[] chunk = chunk(lookup, first);
+                    count += readAll(db.rawQuery("SELECT * FROM tb_Items WHERE id IN (" + placeholders(chunk.length) + ") ORDER BY id", chunk));
+                }
+                assertEquals(count, ids);
+                return count;
+            }
+        }, "temporary table", new Query() {
+            @Override
+            public int run(String[] args) {
+                stageIds(lookup);
+                return readAll(db.rawQuery("SELECT * FROM tb_Items WHERE id IN (" + LOOKUP_SELECT + ") ORDER BY id", null));
+            }
+        });
+
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (int first = 0; first < ids / 2; first += MAX_PLACEHOLDERS) {
+                String[] args = chunk(lookup, first);
+                db.delete("tb_Items", "id IN (" + placeholders(args.length) + ")", args);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long chunkedDelete = System.nanoTime() - start;
+
+        Integer[] rest = new Integer[ids - ids / 2];
+        System.arraycopy(lookup, ids / 2, rest, 0, rest.length);
+        start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            stageIds(rest);
+            db.rawExecSQL("DELETE FROM tb_Items WHERE id IN (" + LOOKUP_SELECT + ")");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long stagedDelete = System.nanoTime() - start;
+        assertEquals(count(), ids);
+
+        Log.i(TAG, "delete, " + ids + " ids : chunks of " + MAX_PLACEHOLDERS + " placeholders " + chunkedDelete / 1000
+                + " us, temporary table " + stagedDelete / 1000 + " us (half of the ids each)");
+    }
+
+    /**
+     * Compares a scan of the texts with the full-text index of SQLiteDatabaseHandler.searchItems
+     */
+    private void benchmarkSearch(int rows) {
+        createItemsTable(rows);
+        db.execSQL("CREATE VIRTUAL TABLE tb_ItemsSearch USING fts4(content=\"tb_Items\", text)");
+        db.execSQL("INSERT INTO tb_ItemsSearch (tb_ItemsSearch) VALUES ('rebuild')");
+        String[][] args = new String[QUERIES][];
+        for (int i = 0; i < QUERIES; ++i) {
+            args[i] = new String[]{Integer.toString(random.nextInt(rows))};
+        }
+        compareQueries("searchItems", rows, args, "scan", new Query() {
+            @Override
+            public int run(String[] word) {
+                return readIds(db.rawQuery("SELECT id FROM tb_Items WHERE text LIKE ?", new String[]{"% " + word[0]}));
+            }
+        }, "full-text index", new Query() {
+            @Override
+            public int run(String[] word) {
+                return readIds(db.rawQuery("SELECT docid, matchinfo(tb_ItemsSearch, 'pcx') FROM tb_ItemsSearch WHERE tb_ItemsSearch MATCH ?", word));
+            }
+        });
+    }
+
+    /**
+     * Adds items to the handler from several threads while another thread reads and flushes them :
+     * the producers only stage the operations, so they shouldn't wait for the reads and the flushes.
+     */
+    private void benchmarkConcurrentProducers(int producers) throws InterruptedException {
+        final SQLiteDatabaseHandler handler = CalamarApplication.getInstance().getDatabaseHandler();
+        handler.deleteAllItems();
+        handler.deleteAllRecipients();
+        final MetricsRegistry.Histogram addLatency = MetricsRegistry.getInstance().histogram(TAG + ".addItem_us");
+        final User me = new User(CURRENT_USER, "Me");
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (producing.get()) {
+                    handler.getItemsForContact(1, Integer.MAX_VALUE, QUERIES);
+                    handler.applyPendingOperations();
+                }
+            }
+        });
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; ++i) {
+            final int first = i * PRODUCED_ITEMS;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int id = first; id < first + PRODUCED_ITEMS; ++id) {
+                        Item item = new SimpleTextItem(id, me, new User(1 + id % USERS, "User"), new Date(id), "Message number " + id);
+                        long start = System.nanoTime();
+                        handler.addItem(item);
+                        addLatency.record((System.nanoTime() - start) / 1000);
+                    }
+                }
+            });
+        }
+        consumer.start();
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long time = System.nanoTime() - start;
+        producing.set(false);
+        consumer.join();
+        handler.applyPendingOperations();
+        assertEquals(handler.getAllItems().size(), producers * PRODUCED_ITEMS);
+        handler.deleteAllItems();
+        handler.deleteAllRecipients();
+
+        Log.i(TAG, "addItem, " + producers + " producers : " + producers * PRODUCED_ITEMS * 1000000000L / time
+                + " items/s, latency " + addLatency);
+    }
+
+    /**
+     * A read compared by {@link #compareQueries}
+     */
+    private interface Query {
+        /**
+         * @param args the arguments of the read
+         * @return the number of rows read
+         */
+        int run(String[] args);
+    }
+
+    /**
+     * Runs the old and the new way of a read with each arguments, checks that they read the same
+     * number of rows and logs their mean time
+     *
+     * @param read    the read of the handler compared, e.g. "getItemsForContact"
+     * @param rows    the number of items in the table
+     * @param args    the arguments of each run
+     * @param oldName the name of the old way
+     * @param old     the old way
+     * @param newName the name of the new way
+     * @param fast    the new way
+     */
+    private void compareQueries(String read, int rows, String[][] args, String oldName, Query old, String newName, Query fast) {
+        long oldTime = 0;
+        long newTime = 0;
+        for (String[] arg : args) {
+            long start = System.nanoTime();
+            int oldCount = old.run(arg);
+            oldTime += System.nanoTime() - start;
+            start = System.nanoTime();
+            int newCount = fast.run(arg);
+            newTime += System.nanoTime() - start;
+            assertEquals(oldCount, newCount);
+        }
+        Log.i(TAG, read + ", " + rows + " items : " + oldName + " " + oldTime / args.length / 1000
+                + " us/query, " + newName + " " + newTime / args.length / 1000 + " us/query");
+    }
+
+    private String[] chunk(Integer[] ids, int first) {
+        String[] args = new String[Math.min(MAX_PLACEHOLDERS, ids.length - first)];
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = Integer.toString(ids[first + i]);
+        }
+        return args;
+    }
+
+    private String placeholders(int count) {
+        StringBuilder builder = new StringBuilder("?");
+        for (int i = 1; i < count; ++i) {
+            builder.append(",?");
+        }
+        return builder.toString();
+    }
+
+    private void stageIds(Integer[] ids) {
+        db.rawExecSQL("CREATE TEMP TABLE IF NOT EXISTS tb_Lookup (id INTEGER PRIMARY KEY)");
+        boolean ownTransaction = !db.inTransaction();
+        if (ownTransaction) {
+            db.rawExecSQL("BEGIN DEFERRED");
+        }
+        db.rawExecSQL("DELETE FROM temp.tb_Lookup");
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO temp.tb_Lookup VALUES (?)");
+        for (int id : ids) {
+            insert.bindLong(1, id);
+            insert.execute();
+        }
+        insert.close();
+        if (ownTransaction) {
+            db.rawExecSQL("COMMIT");
+        }
+    }
+
+    private int count() {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM tb_Items", null);
+        cursor.moveToFirst();
+        int count = cursor.getInt(0);
+        cursor.close();
+        return count;
+    }
+
+    private int readWithRecipientQueries(Cursor cursor) {
+        int count = 0;
+        while (cursor.moveToNext()) {
+            for (int column = 2; column <= 3; ++column) {
+                Cursor recipient = db.rawQuery(RECIPIENT_QUERY, new String[]{Integer.toString(cursor.getInt(column))});
+                if (recipient.moveToFirst()) {
+                    recipient.getString(1);
+                }
+                recipient.close();
+            }
+            ++count;
+        }
+        cursor.close();
+        return count;
+    }
+
+    private int readWithJoin(Cursor cursor) {
+        int count = 0;
+        int nameColumn = cursor.getColumnCount() - 2;
+        while (cursor.moveToNext()) {
+            cursor.getString(nameColumn);
+            cursor.getString(nameColumn + 1);
+            ++count;
+        }
+        cursor.close();
+        return count;
+    }
+
+    private void createRecipientsTable() {
+        db.execSQL("CREATE TABLE tb_Recipients (id INTEGER PRIMARY KEY NOT NULL,name TEXT NOT NULL)");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO tb_Recipients VALUES (?, ?)");
+        db.beginTransaction();
+        try {
+            for (int id = 0; id < USERS; ++id) {
+                insert.bindLong(1, id);
+                insert.bindString(2, "User " + id);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        insert.close();
+    }
+
+    private void createItemsTable() {
+        //Same schema as SQLiteDatabaseHandler.onCreate
+        db.execSQL("CREATE TABLE tb_Items (type TEXT NOT NULL,id INTEGER PRIMARY KEY NOT NULL,"
+                + "from_id INTEGER NOT NULL,to_id INTEGER NOT NULL,time INTEGER NOT NULL,"
+                + "condition TEXT NOT NULL, text TEXT, data BLOB, path TEXT, "
+                + "low_id INTEGER NOT NULL, high_id INTEGER NOT NULL, "
+                + "latitude REAL, longitude REAL, radius REAL)");
+        db.execSQL("CREATE INDEX idx_Items_conversation ON tb_Items (low_id, high_id, id)");
+        db.execSQL("CREATE INDEX idx_Items_location ON tb_Items (latitude, longitude) WHERE latitude IS NOT NULL");
+    }
+
+    private void createItemsTable(int rows) {
+        createItemsTable();
+        fillItemsTable(rows);
+    }
+
+    private void fillItemsTable(int rows) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO tb_Items VALUES ('SIMPLETEXTITEM', ?, ?, ?, ?, ?, ?, NULL, NULL, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int id = 0; id < rows; ++id) {
+                int from = random.nextInt(USERS);
+                int to = random.nextInt(USERS);
+                insert.bindLong(1, id);
+                insert.bindLong(2, from);
+                insert.bindLong(3, to);
+                insert.bindLong(4, id);
+                insert.bindString(6, "Message number " + id);
+                insert.bindLong(7, Math.min(from, to));
+                insert.bindLong(8, Math.max(from, to));
+                if (id % LOCALIZED_RATIO == 0) {
+                    double latitude = random.nextDouble();
+                    double longitude = random.nextDouble();
+                    insert.bindString(5, "{\"type\":\"POSITIONCONDITION\",\"metadata\":[],\"latitude\":" + latitude
+                            + ",\"longitude\":" + longitude + ",\"radius\":20}");
+                    insert.bindDouble(9, latitude);
+                    insert.bindDouble(10, longitude);
+                    insert.bindDouble(11, 20);
+                } else {
+                    insert.bindString(5, TRUE_CONDITION);
+                    insert.bindNull(9);
+                    insert.bindNull(10);
+                    insert.bindNull(11);
+                }
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        insert.close();
+    }
+
+    private int readIds(Cursor cursor) {
+        int count = 0;
+        while (cursor.moveToNext()) {
+            cursor.getInt(0);
+            ++count;
+        }
+        cursor.close();
+        return count;
+    }
+
+    private int readAll(Cursor cursor) {
+        int count = 0;
+        while (cursor.moveToNext()) {
+            cursor.getString(6);
+            ++count;
+        }
+        cursor.close();
+        return count;
+    }
+}
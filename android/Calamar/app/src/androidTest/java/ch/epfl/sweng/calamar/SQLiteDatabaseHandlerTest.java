@@ -2,6 +2,11 @@ package ch.epfl.sweng.calamar;
 
 import android.test.ApplicationTestCase;
 
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -9,18 +14,25 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
 import ch.epfl.sweng.calamar.condition.Condition;
+import ch.epfl.sweng.calamar.condition.LazyCondition;
 import ch.epfl.sweng.calamar.condition.PositionCondition;
 import ch.epfl.sweng.calamar.item.FileItem;
 import ch.epfl.sweng.calamar.item.ImageItem;
 import ch.epfl.sweng.calamar.item.Item;
 import ch.epfl.sweng.calamar.item.SimpleTextItem;
+import ch.epfl.sweng.calamar.map.GPSProvider;
 import ch.epfl.sweng.calamar.recipient.Recipient;
 import ch.epfl.sweng.calamar.recipient.User;
+import ch.epfl.sweng.calamar.utils.MetricsRegistry;
 
 @RunWith(JUnit4.class)
 public class SQLiteDatabaseHandlerTest extends ApplicationTestCase<CalamarApplication> {
@@ -885,6 +897,75 @@ public class SQLiteDatabaseHandlerTest extends ApplicationTestCase<CalamarApplic
         checkLastTime(0, item3.getDate().getTime());
     }
 
+    @Test
+    public void testUnlockedStateIsPersisted() {
+        dbHandler.addItem(posItem);
+        dbHandler.applyPendingOperations();
+        Item item = dbHandler.getItem(posItem.getID());
+        assertTrue(item.isLocked());
+        GPSProvider.getInstance().setMockLocation(ConditionTest.makeLocation(4.5, 4.5));
+        assertFalse(item.isLocked());
+        //The unlock is staged like an update, then written by the next flush
+        dbHandler.applyPendingOperations();
+        assertFalse(dbHandler.getItem(posItem.getID()).isLocked());
+    }
+
+    @Test
+    public void testUnlockIsObservedOncePerItem() {
+        dbHandler.addItem(posItem);
+        dbHandler.applyPendingOperations();
+        Item first = dbHandler.getItem(posItem.getID());
+        Item second = dbHandler.getItem(posItem.getID());
+        assertTrue(first.isLocked());
+        assertTrue(second.isLocked());
+        GPSProvider.getInstance().setMockLocation(ConditionTest.makeLocation(4.5, 4.5));
+        assertFalse(first.isLocked());
+        assertFalse(second.isLocked());
+        //The first copy staged the update, seen by the reads before the flush
+        assertTrue(dbHandler.areOperationsPending());
+        assertFalse(dbHandler.getItem(posItem.getID()).isLocked());
+        dbHandler.applyPendingOperations();
+        assertFalse(dbHandler.areOperationsPending());
+        assertFalse(dbHandler.getItem(posItem.getID()).isLocked());
+    }
+
+    @Test
+    public void testConditionIsReadFromItsColumns() throws JSONException {
+        dbHandler.addItem(posItem);
+        dbHandler.addItem(testItem);
+        dbHandler.applyPendingOperations();
+        Item item = dbHandler.getItem(posItem.getID());
+        assertTrue(item.getCondition() instanceof LazyCondition);
+        assertEquals(item.getCondition().getType(), Condition.Type.POSITIONCONDITION);
+        assertTrue(item.hasLocation());
+        assertEquals(item.getLocation().getLatitude(), 4.5, 0);
+        assertEquals(item.getLocation().getLongitude(), 4.5, 0);
+        assertTrue(item.isLocked());
+        assertEquals(item.getCondition().toJSON().toString(), posItem.getCondition().toJSON().toString());
+        Item unlocked = dbHandler.getItem(testItem.getID());
+        assertFalse(unlocked.hasLocation());
+        assertFalse(unlocked.isLocked());
+        assertEquals(unlocked.getCondition().getType(), Condition.Type.TRUECONDITION);
+    }
+
+    @Test
+    public void testReferencesToAFileAreCounted() {
+        FileItem shared = new FileItem(8, testUser, testUser2, new Date(8), Condition.trueCondition(), testContent, testFile.getPath());
+        dbHandler.addItem(testFile);
+        dbHandler.applyPendingOperations();
+        dbHandler.addItem(shared);
+        //Counted while pending, then once written
+        assertEquals(dbHandler.countReferences(testFile.getPath(), testFile.getID()), 1);
+        dbHandler.applyPendingOperations();
+        assertEquals(dbHandler.countReferences(testFile.getPath(), testFile.getID()), 1);
+        assertEquals(dbHandler.countReferences(testFile.getPath(), -1), 2);
+        dbHandler.deleteItem(shared);
+        assertEquals(dbHandler.countReferences(testFile.getPath(), testFile.getID()), 0);
+        dbHandler.applyPendingOperations();
+        assertEquals(dbHandler.countReferences(testFile.getPath(), testFile.getID()), 0);
+        assertEquals(dbHandler.countReferences(testImage.getPath(), -1), 0);
+    }
+
     @Ignore
     private void checkLastTime(long dbTime, long prefTime) {
         assertEquals(dbHandler.getLastItemTime(), dbTime);
@@ -932,6 +1013,55 @@ public class SQLiteDatabaseHandlerTest extends ApplicationTestCase<CalamarApplic
         clearDB();
     }
 
+    @Test
+    public void testGetLocalizedItemsInRegion() {
+        initDB();
+        SimpleTextItem farItem = new SimpleTextItem(8, testUser, testRecipient, new Date(8), new PositionCondition(40, 4.5, 20), "8");
+        SimpleTextItem hiddenItem = new SimpleTextItem(9, testUser, testRecipient, new Date(9), Condition.not(new PositionCondition(4.6, 4.4, 20)), "9");
+        dbHandler.addItem(posItem);
+        dbHandler.addItem(farItem);
+        dbHandler.addItem(hiddenItem);
+        LatLngBounds bounds = new LatLngBounds(new LatLng(4, 4), new LatLng(5, 5));
+        List<Item> inRegion = dbHandler.getLocalizedItemsInRegion(bounds);
+        assertEquals(inRegion.size(), 2);
+        assertEquals(inRegion.get(0), posItem);
+        assertEquals(inRegion.get(1), hiddenItem);
+        dbHandler.applyPendingOperations();
+        assertEquals(dbHandler.getLocalizedItemsInRegion(bounds), inRegion);
+        assertEquals(dbHandler.getAllLocalizedItems().size(), 3);
+
+        SimpleTextItem movedItem = new SimpleTextItem(6, testUser, testRecipient, new Date(6), new PositionCondition(40, 4.5, 20), "6");
+        dbHandler.updateItem(movedItem);
+        dbHandler.updateItem(new SimpleTextItem(10, testUser, testRecipient, new Date(10), new PositionCondition(4.5, 4.5, 20), "10"));
+        inRegion = dbHandler.getLocalizedItemsInRegion(bounds);
+        assertEquals(inRegion.size(), 1);
+        assertEquals(inRegion.get(0), hiddenItem);
+        dbHandler.applyPendingOperations();
+        assertEquals(dbHandler.getLocalizedItemsInRegion(bounds), inRegion);
+        assertEquals(dbHandler.getLocalizedItemsInRegion(new LatLngBounds(new LatLng(39, 4), new LatLng(41, 5))).size(), 2);
+        clearDB();
+    }
+
+    @Test
+    public void testGetLocalizedItemsInRegionAcrossAntimeridian() {
+        SimpleTextItem eastItem = new SimpleTextItem(8, testUser, testRecipient, new Date(8), new PositionCondition(0, 179.5, 20), "8");
+        SimpleTextItem westItem = new SimpleTextItem(9, testUser, testRecipient, new Date(9), new PositionCondition(0, -179.5, 20), "9");
+        dbHandler.addItem(posItem);
+        dbHandler.addItem(eastItem);
+        dbHandler.addItem(westItem);
+        dbHandler.applyPendingOperations();
+        List<Item> inRegion = dbHandler.getLocalizedItemsInRegion(new LatLngBounds(new LatLng(-1, 179), new LatLng(1, -179)));
+        assertEquals(inRegion.size(), 2);
+        assertEquals(inRegion.get(0), eastItem);
+        assertEquals(inRegion.get(1), westItem);
+        clearDB();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetLocalizedItemsInNullRegionThrows() {
+        dbHandler.getLocalizedItemsInRegion(null);
+    }
+
     @Test
     public void testDeleteItemsForContact() {
         initDB();
@@ -944,6 +1074,49 @@ public class SQLiteDatabaseHandlerTest extends ApplicationTestCase<CalamarApplic
         assertTrue(dbHandler.getItemsForContact(testUser).isEmpty());
     }
 
+    @Test
+    public void testDeleteItemsForContactDeletesPendingItems() {
+        initDB();
+        dbHandler.applyPendingOperations();
+        SimpleTextItem pending = new SimpleTextItem(30, testUser, testUser2, new Date(30), "pending");
+        dbHandler.addItem(pending);
+        dbHandler.deleteItemsForContact(testUser2);
+        assertTrue(dbHandler.getItemsForContact(testUser2).isEmpty());
+        assertNull(dbHandler.getItem(pending.getID()));
+        dbHandler.applyPendingOperations();
+        assertTrue(dbHandler.getItemsForContact(testUser2).isEmpty());
+    }
+
+    @Test
+    public void testTooManyPendingOperationsAreFlushedInTheBackground() throws InterruptedException {
+        List<Item> items = new ArrayList<>();
+        for (int id = 100; id < 1100; ++id) {
+            items.add(new SimpleTextItem(id, testUser, testUser2, new Date(id), Integer.toString(id)));
+        }
+        dbHandler.addItems(items);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dbHandler.areOperationsPending() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(dbHandler.areOperationsPending());
+        assertEquals(dbHandler.getAllItems().size(), items.size());
+    }
+
+    @Test
+    public void testProducersFlushWhenTooManyOperationsArePending() {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        long blocked = registry.counter(SQLiteDatabaseHandler.METRIC_PENDING_BLOCKED).get();
+        List<Item> items = new ArrayList<>();
+        for (int id = 100; id < 2600; ++id) {
+            items.add(new SimpleTextItem(id, testUser, testUser2, new Date(id), Integer.toString(id)));
+        }
+        //Written before addItems returns
+        dbHandler.addItems(items);
+        assertFalse(dbHandler.areOperationsPending());
+        assertEquals(registry.counter(SQLiteDatabaseHandler.METRIC_PENDING_BLOCKED).get(), blocked + 1);
+        assertEquals(dbHandler.getAllItems().size(), items.size());
+    }
+
     @Test
     public void testPublic() {
         dbHandler.addItem(testPublic);
@@ -966,6 +1139,422 @@ public class SQLiteDatabaseHandlerTest extends ApplicationTestCase<CalamarApplic
         dbHandler.addItem(testItem);
     }
 
+    @Test
+    public void testReplayJournal() {
+        initDB();
+        dbHandler.addItem(testFile);
+        dbHandler.addItem(testImage);
+        dbHandler.setLastItemTime(1000);
+        dbHandler.replayJournal();
+        assertFalse(dbHandler.areOperationsPending());
+        assertEquals(dbHandler.getAllItems().size(), 6);
+        assertEquals(dbHandler.getItem(testFile.getID()), testFile);
+        assertEquals(dbHandler.getItem(testImage.getID()), testImage);
+        assertEquals(dbHandler.getRecipient(testRecipient.getID()), testRecipient);
+        assertEquals(app.getLastItemsRefresh().getTime(), 1000);
+    }
+
+    @Test
+    public void testStagedOperationIsJournaledBeforeAnyRead() throws JSONException {
+        dbHandler.addItem(testItem);
+        dbHandler.syncJournal();
+        //Read as after a crash, without draining the staged operations
+        List<JSONObject> records = new PendingOperationsJournal(new File(app.getFilesDir(), "CalamarDB.journal"), app.getJournalKey()).readAll();
+        assertFalse(records.isEmpty());
+        assertEquals(records.get(records.size() - 1).getInt("id"), testItem.getID());
+        assertEquals(records.get(records.size() - 1).getString("operation"), "ADD");
+    }
+
+    @Test
+    public void testJournalIsEmptiedByApply() {
+        initDB();
+        dbHandler.applyPendingOperations();
+        dbHandler.deleteItem(testItem.getID());
+        dbHandler.applyPendingOperations();
+        dbHandler.replayJournal();
+        assertEquals(dbHandler.getItem(testItem.getID()), null);
+        assertEquals(dbHandler.getAllItems().size(), 3);
+    }
+
+    @Test
+    public void testReplayJournalAfterDeleteAll() {
+        initDB();
+        dbHandler.deleteAllItems();
+        dbHandler.addItem(testItem2);
+        dbHandler.replayJournal();
+        assertEquals(dbHandler.getAllItems().size(), 1);
+        assertEquals(dbHandler.getItem(testItem2.getID()), testItem2);
+    }
+
+    @Test
+    public void testOnUpgradeKeepsData() {
+        initDB();
+        dbHandler.setLastItemTime(1000);
+        dbHandler.applyPendingOperations();
+        dbHandler.onUpgrade(dbHandler.getWritableDatabase(testUser.getPassword()), SQLiteDatabaseHandler.DATABASE_VERSION, SQLiteDatabaseHandler.DATABASE_VERSION);
+        assertEquals(dbHandler.getLastItemTime(), 1000);
+        assertEquals(app.getLastItemsRefresh().getTime(), 1000);
+        assertEquals(dbHandler.getAllItems().size(), 4);
+        assertEquals(dbHandler.getAllRecipients().size(), 4);
+    }
+
+    @Test
+    public void testGetItemsForContactByPage() {
+        List<Item> conversation = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            conversation.add(new SimpleTextItem(i, i % 2 == 0 ? testUser : testUser2, i % 2 == 0 ? testUser2 : testUser, new Date(i), Integer.toString(i)));
+        }
+        dbHandler.addItems(conversation.subList(0, 15));
+        dbHandler.addItem(new SimpleTextItem(100, testUser, testUser3, new Date(100), "other"));
+        dbHandler.applyPendingOperations();
+        dbHandler.addItems(conversation.subList(15, 20));
+        dbHandler.deleteItem(13);
+        SimpleTextItem updated = new SimpleTextItem(12, testUser, testUser2, new Date(12), "updated");
+        dbHandler.updateItem(updated);
+
+        List<Item> page = dbHandler.getItemsForContact(testUser2.getID(), Integer.MAX_VALUE, 8);
+        assertEquals(page.size(), 8);
+        assertEquals(page.get(0).getID(), 11);
+        assertEquals(page.get(1), updated);
+        assertEquals(page.get(2).getID(), 14);
+        assertEquals(page.get(7).getID(), 19);
+
+        page = dbHandler.getItemsForContact(testUser2.getID(), 11, 8);
+        assertEquals(page.size(), 8);
+        assertEquals(page.get(0).getID(), 3);
+        assertEquals(page.get(7).getID(), 10);
+
+        page = dbHandler.getItemsForContact(testUser2.getID(), 3, 8);
+        assertEquals(page.size(), 3);
+        assertEquals(page.get(0).getID(), 0);
+        assertTrue(dbHandler.getItemsForContact(testUser2.getID(), 0, 8).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetItemsForContactWithEmptyPageThrows() {
+        dbHandler.getItemsForContact(testUser2.getID(), Integer.MAX_VALUE, 0);
+    }
+
+    @Test
+    public void testGetItemsWithDuplicateAndMissingIds() {
+        initDB();
+        dbHandler.applyPendingOperations();
+        dbHandler.addItem(testItem4);
+        dbHandler.deleteItem(testItem2);
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 3 * NUM_ITER; ++i) {
+            ids.add(i % 5 == 0 ? testItem3.getID() : 10 + i);
+        }
+        ids.add(testItem4.getID());
+        ids.add(testItem2.getID());
+        ids.add(testItem.getID());
+        List<Item> items = dbHandler.getItems(ids);
+        assertEquals(items.size(), 3);
+        assertEquals(items.get(0), testItem);
+        assertEquals(items.get(1), testItem3);
+        assertEquals(items.get(2), testItem4);
+        assertTrue(dbHandler.getItems(new ArrayList<Integer>()).isEmpty());
+    }
+
+    @Test
+    public void testConversationSummaries() {
+        initDB();
+        dbHandler.applyPendingOperations();
+        assertNull(dbHandler.getConversationSummary(testUser3.getID()));
+        ConversationSummary summary = dbHandler.getConversationSummary(testUser2.getID());
+        assertEquals(summary.getContactID(), testUser2.getID());
+        assertEquals(summary.getItemCount(), 3);
+        assertEquals(summary.getUnreadCount(), 1);
+        assertEquals(summary.getLastItemID(), testItem4.getID());
+        assertEquals(summary.getLastText(), testItem4.getMessage());
+        assertEquals(dbHandler.getConversationSummaries().size(), 2);
+
+        dbHandler.markConversationRead(testUser2.getID());
+        dbHandler.addItem(new SimpleTextItem(10, testUser2, testUser, new Date(10), "10"));
+        dbHandler.deleteItem(testItem4);
+        dbHandler.applyPendingOperations();
+        summary = dbHandler.getConversationSummary(testUser2.getID());
+        assertEquals(summary.getItemCount(), 3);
+        assertEquals(summary.getUnreadCount(), 1);
+        assertEquals(summary.getLastItemID(), 10);
+
+        dbHandler.updateItem(new SimpleTextItem(10, testUser2, testUser, new Date(10), "updated"));
+        dbHandler.applyPendingOperations();
+        assertEquals(dbHandler.getConversationSummary(testUser2.getID()).getLastText(), "updated");
+        dbHandler.rebuildConversations();
+        summary = dbHandler.getConversationSummary(testUser2.getID());
+        assertEquals(summary.getItemCount(), 3);
+        assertEquals(summary.getUnreadCount(), 1);
+        assertEquals(summary.getLastText(), "updated");
+    }
+
+    @Test
+    public void testSearchItems() {
+        dbHandler.addRecipient(testUser);
+        dbHandler.addRecipient(testUser2);
+        SimpleTextItem once = new SimpleTextItem(10, testUser, testUser2, new Date(10), "hello world");
+        SimpleTextItem twice = new SimpleTextItem(11, testUser2, testUser, new Date(11), "hello hello");
+        SimpleTextItem other = new SimpleTextItem(12, testUser, testUser2, new Date(12), "goodbye");
+        SimpleTextItem sameScore = new SimpleTextItem(13, testUser2, testUser, new Date(13), "world hello");
+        dbHandler.addItem(once);
+        dbHandler.addItem(twice);
+        dbHandler.addItem(other);
+        dbHandler.addItem(sameScore);
+        assertTrue(dbHandler.searchItems("hello", 10).isEmpty());
+        dbHandler.applyPendingOperations();
+
+        List<Item> found = dbHandler.searchItems("hello", 10);
+        assertEquals(found, Arrays.<Item>asList(twice, sameScore, once));
+        assertEquals(dbHandler.searchItems("hello", 1, 1), Arrays.<Item>asList(sameScore));
+        assertEquals(dbHandler.searchItems("good*", 10), Arrays.<Item>asList(other));
+        assertTrue(dbHandler.searchItems("  ", 10).isEmpty());
+
+        dbHandler.deleteItem(twice);
+        SimpleTextItem updated = new SimpleTextItem(10, testUser, testUser2, new Date(10), "hello updated");
+        dbHandler.updateItem(updated);
+        assertEquals(dbHandler.searchItems("hello", 10), Arrays.<Item>asList(sameScore, updated));
+        dbHandler.applyPendingOperations();
+        assertEquals(dbHandler.searchItems("hello", 10), Arrays.<Item>asList(sameScore, updated));
+        assertTrue(dbHandler.searchItems("world", 10).contains(sameScore));
+        assertEquals(dbHandler.searchItems("world", 10).size(), 1);
+    }
+
+    @Test
+    public void testSearchItemsFiltersPendingUpdatesWithTheQuery() {
+        dbHandler.addRecipient(testUser);
+        dbHandler.addRecipient(testUser2);
+        SimpleTextItem first = new SimpleTextItem(10, testUser, testUser2, new Date(10), "hello world");
+        SimpleTextItem second = new SimpleTextItem(11, testUser2, testUser, new Date(11), "hello there");
+        dbHandler.addItem(first);
+        dbHandler.addItem(second);
+        dbHandler.applyPendingOperations();
+
+        dbHandler.updateItem(new SimpleTextItem(10, testUser, testUser2, new Date(10), "goodbye world"));
+        SimpleTextItem stillMatching = new SimpleTextItem(11, testUser2, testUser, new Date(11), "Hello-Again");
+        dbHandler.updateItem(stillMatching);
+        assertEquals(dbHandler.searchItems("hello", 10), Arrays.<Item>asList(stillMatching));
+        assertEquals(dbHandler.searchItems("hel* -world", 10), Arrays.<Item>asList(stillMatching));
+        assertTrue(dbHandler.searchItems("\"hello world\"", 10).isEmpty());
+        assertEquals(dbHandler.searchItems("world OR again", 10).size(), 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSearchItemsWithMalformedQueryThrows() {
+        dbHandler.searchItems("hello OR", 10);
+    }
+
+    @Test
+    public void testApplyRetentionPolicy() {
+        dbHandler.addRecipient(testUser);
+        dbHandler.addRecipient(testUser2);
+        dbHandler.addItem(testItem);
+        List<Item> conversation = new ArrayList<>();
+        for (int id = 20; id < 25; ++id) {
+            conversation.add(new SimpleTextItem(id, testUser, testUser2, new Date(id), Integer.toString(id)));
+        }
+        dbHandler.addItems(conversation);
+
+        List<RemovedItem> removed = dbHandler.applyRetentionPolicy(new RetentionPolicy(10, 0, 0), 15);
+        assertEquals(removedIDs(removed), Arrays.asList(testItem.getID()));
+        assertEquals(removed.get(0).getType(), testItem.getType());
+        assertNull(removed.get(0).getPath());
+        assertNull(dbHandler.getItem(testItem.getID()));
+
+        removed = dbHandler.applyRetentionPolicy(new RetentionPolicy(0, 2, 0), 15);
+        assertEquals(removedIDs(removed), Arrays.asList(20, 21, 22));
+        assertEquals(dbHandler.getItemsForContact(testUser2.getID()), conversation.subList(3, 5));
+        assertEquals(dbHandler.getConversationSummary(testUser2.getID()).getItemCount(), 2);
+
+        //The file always uses more than a byte
+        removed = dbHandler.applyRetentionPolicy(new RetentionPolicy(0, 0, 1), 15);
+        assertEquals(removedIDs(removed), Arrays.asList(23, 24));
+        assertTrue(dbHandler.getAllItems().isEmpty());
+        assertNull(dbHandler.getConversationSummary(testUser2.getID()));
+    }
+
+    @Test
+    public void testRetentionPolicyReturnsThePathsOfTheFiles() {
+        FileItem file = new FileItem(30, testUser, testUser2, new Date(1), new byte[]{1, 2, 3}, "/test/FILE_30");
+        dbHandler.addItem(file);
+
+        List<RemovedItem> removed = dbHandler.applyRetentionPolicy(new RetentionPolicy(10, 0, 0), 15);
+        assertEquals(removedIDs(removed), Arrays.asList(file.getID()));
+        assertEquals(removed.get(0).getType(), Item.Type.FILEITEM);
+        assertEquals(removed.get(0).getPath(), file.getPath());
+    }
+
+    @Ignore
+    private List<Integer> removedIDs(List<RemovedItem> removed) {
+        List<Integer> ids = new ArrayList<>();
+        for (RemovedItem item : removed) {
+            ids.add(item.getID());
+        }
+        return ids;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRetentionPolicyWithNegativeLimitThrows() {
+        new RetentionPolicy(-1, 0, 0);
+    }
+
+    @Test
+    public void testSnapshotIsExportedAndImported() {
+        dbHandler.addItem(testItem);
+        dbHandler.addItem(testItem2);
+        dbHandler.applyPendingOperations();
+        dbHandler.markConversationRead(testUser2.getID());
+        app.setLastItemsRefresh(10);
+        File snapshot = new File(app.getCacheDir(), "test_snapshot.db");
+        long time = dbHandler.exportSnapshot(snapshot);
+        assertEquals(time, 10);
+
+        dbHandler.deleteAllItems();
+        dbHandler.deleteAllRecipients();
+        dbHandler.addItem(testItem4);
+        dbHandler.importSnapshot(snapshot, time);
+        assertTrue(snapshot.delete());
+        assertEquals(dbHandler.getAllItems(), Arrays.<Item>asList(testItem, testItem2));
+        assertEquals(dbHandler.getAllRecipients().size(), 3);
+        assertEquals(dbHandler.searchItems("1", 10), Arrays.<Item>asList(testItem2));
+        assertEquals(dbHandler.getConversationSummary(testUser2.getID()).getUnreadCount(), 0);
+        assertEquals(app.getLastItemsRefresh().getTime(), 10);
+        assertFalse(dbHandler.areOperationsPending());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testImportOfInvalidSnapshotThrows() throws IOException {
+        File snapshot = new File(app.getCacheDir(), "test_invalid_snapshot.db");
+        FileOutputStream out = new FileOutputStream(snapshot);
+        out.write(testContent);
+        out.close();
+        try {
+            dbHandler.importSnapshot(snapshot, 0);
+        } finally {
+            assertTrue(snapshot.delete());
+        }
+    }
+
+    @Test
+    public void testReadsAndFlushesAreMeasured() {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        dbHandler.addItem(testItem);
+        dbHandler.addItem(testItem2);
+        assertEquals(registry.getGaugeValue(SQLiteDatabaseHandler.METRIC_PENDING_STAGED), 2);
+        dbHandler.applyPendingOperations();
+        assertEquals(registry.getGaugeValue(SQLiteDatabaseHandler.METRIC_PENDING_STAGED), 0);
+        assertEquals(registry.getGaugeValue(SQLiteDatabaseHandler.METRIC_PENDING_ITEMS), 0);
+        registry.reset();
+
+        dbHandler.addItem(testItem3);
+        dbHandler.getAllItems();
+        MetricsRegistry.Histogram rows = registry.histogram(SQLiteDatabaseHandler.METRIC_GET_ALL_ITEMS + SQLiteDatabaseHandler.METRIC_ROWS);
+        MetricsRegistry.Histogram scanned = registry.histogram(SQLiteDatabaseHandler.METRIC_GET_ALL_ITEMS + SQLiteDatabaseHandler.METRIC_SCANNED);
+        assertEquals(registry.histogram(SQLiteDatabaseHandler.METRIC_GET_ALL_ITEMS + SQLiteDatabaseHandler.METRIC_LATENCY).getCount(), 1);
+        assertEquals(rows.getMax(), 3);
+        assertEquals(scanned.getMax(), 2);
+        dbHandler.getItem(testItem4.getID());
+        assertEquals(registry.histogram(SQLiteDatabaseHandler.METRIC_GET_ITEM + SQLiteDatabaseHandler.METRIC_ROWS).getMax(), 0);
+        assertTrue(registry.histogram(SQLiteDatabaseHandler.METRIC_LOCK_WAIT).getCount() >= 2);
+
+        dbHandler.applyPendingOperations();
+        assertEquals(registry.histogram(SQLiteDatabaseHandler.METRIC_FLUSH_DURATION).getCount(), 1);
+        assertTrue(registry.histogram(SQLiteDatabaseHandler.METRIC_FLUSH_ROWS).getMax() >= 1);
+    }
+
+    @Test
+    public void testPendingOperationsAreMergedInOrder() {
+        dbHandler.addItem(testItem);
+        dbHandler.addItem(testItem3);
+        dbHandler.addRecipient(testUser);
+        dbHandler.addRecipient(testUser3);
+        dbHandler.applyPendingOperations();
+        dbHandler.addItem(testItem4);
+        dbHandler.addItem(testItem2);
+        dbHandler.deleteItem(testItem3);
+        dbHandler.addRecipient(testRecipient);
+        dbHandler.addRecipient(testUser2);
+        User renamed = new User(testUser3.getID(), "Renamed");
+        dbHandler.updateRecipient(renamed);
+
+        List<Item> items = dbHandler.getAllItems();
+        assertEquals(items.size(), 3);
+        assertEquals(items.get(0), testItem);
+        assertEquals(items.get(1), testItem2);
+        assertEquals(items.get(2), testItem4);
+        List<Recipient> recipients = dbHandler.getAllRecipients();
+        assertEquals(recipients.size(), 4);
+        assertEquals(recipients.get(0), testUser);
+        assertEquals(recipients.get(1), testUser2);
+        assertEquals(recipients.get(2), renamed);
+        assertEquals(recipients.get(3), testRecipient);
+    }
+
+    @Test
+    public void testItemsRecipientsFollowPendingRecipients() {
+        initDB();
+        dbHandler.applyPendingOperations();
+        User renamed = new User(testUser2.getID(), "Renamed");
+        dbHandler.updateRecipient(renamed);
+        assertEquals(dbHandler.getItem(testItem2.getID()).getFrom(), renamed);
+        assertEquals(dbHandler.getItem(testItem3.getID()).getTo(), renamed);
+        dbHandler.applyPendingOperations();
+        assertEquals(dbHandler.getItem(testItem2.getID()).getFrom(), renamed);
+        for (Item i : dbHandler.getItemsForContact(testUser2)) {
+            assertTrue(i.getFrom().equals(renamed) || i.getTo().equals(renamed));
+        }
+    }
+
+    @Test
+    public void testListsLoadFileDataLazily() {
+        initDB();
+        dbHandler.addItem(testFile);
+        dbHandler.addItem(testImage);
+        dbHandler.applyPendingOperations();
+        List<Item> items = dbHandler.getAllItems();
+        assertEquals(items.size(), 6);
+        FileItem file = (FileItem) items.get(4);
+        ImageItem image = (ImageItem) items.get(5);
+        assertFalse(file.isDataLoaded());
+        assertFalse(image.isDataLoaded());
+        //Compared without loading the data
+        assertEquals(file, testFile);
+        assertFalse(file.isDataLoaded());
+        assertTrue(Arrays.equals(image.getData(), testImage.getData()));
+
+        FileItem fromContact = (FileItem) dbHandler.getItemsForContact(testUser2).get(3);
+        assertFalse(fromContact.isDataLoaded());
+        assertEquals(fromContact.hashCode(), testFile.hashCode());
+        assertTrue(((FileItem) dbHandler.getItem(testFile.getID())).isDataLoaded());
+    }
+
+    @Test
+    public void testUpdateOfLazyFileItemKeepsItsData() {
+        initDB();
+        dbHandler.addItem(testFile);
+        dbHandler.applyPendingOperations();
+        FileItem file = (FileItem) dbHandler.getItemsForContact(testUser2).get(3);
+        dbHandler.updateItem(file);
+        dbHandler.applyPendingOperations();
+        assertFalse(file.isDataLoaded());
+        assertTrue(Arrays.equals(((FileItem) dbHandler.getItem(testFile.getID())).getData(), testFile.getData()));
+    }
+
+    @Test
+    public void testLazyFileItemIsJournaledWithoutItsData() throws JSONException {
+        initDB();
+        dbHandler.addItem(testFile);
+        dbHandler.applyPendingOperations();
+        FileItem file = (FileItem) dbHandler.getItemsForContact(testUser2).get(3);
+        dbHandler.updateItem(file);
+        dbHandler.syncJournal();
+        assertFalse(file.isDataLoaded());
+        List<JSONObject> records = new PendingOperationsJournal(new File(app.getFilesDir(), "CalamarDB.journal"), app.getJournalKey()).readAll();
+        JSONObject value = records.get(records.size() - 1).getJSONObject("value");
+        assertFalse(value.has(FileItem.JSON_DATA));
+        dbHandler.replayJournal();
+        assertTrue(Arrays.equals(((FileItem) dbHandler.getItem(testFile.getID())).getData(), testFile.getData()));
+    }
+
     @Test
     public void testPending() {
         initDB();
@@ -974,6 +1563,59 @@ public class SQLiteDatabaseHandlerTest extends ApplicationTestCase<CalamarApplic
         assertFalse(dbHandler.areOperationsPending());
     }
 
+    @Test
+    public void testApplyMoreItemsThanAWriteChunk() {
+        initDB();
+        dbHandler.applyPendingOperations();
+        MetricsRegistry.Histogram flushRows = MetricsRegistry.getInstance().histogram(SQLiteDatabaseHandler.METRIC_FLUSH_ROWS);
+        long written = flushRows.getSum();
+        for (int i = 0; i < 3 * NUM_ITER; ++i) {
+            dbHandler.addItem(new SimpleTextItem(i + 10, testUser, testUser2, new Date(i + 10), "" + i));
+        }
+        dbHandler.applyPendingOperations();
+        assertEquals(dbHandler.getAllItems().size(), 3 * NUM_ITER + 4);
+        assertEquals(dbHandler.getItem(3 * NUM_ITER + 9).getMessage(), "" + (3 * NUM_ITER - 1));
+        assertTrue(flushRows.getSum() >= written + 3 * NUM_ITER);
+    }
+
+    @Test
+    public void testContentionMetricsCountFlushesAndReads() {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        long flushes = registry.histogram(SQLiteDatabaseHandler.METRIC_FLUSH_DURATION).getCount();
+        long reads = registry.histogram(SQLiteDatabaseHandler.METRIC_READ).getCount();
+        initDB();
+        dbHandler.applyPendingOperations();
+        dbHandler.getAllItems();
+        dbHandler.getRecipient(testUser.getID());
+        assertEquals(registry.histogram(SQLiteDatabaseHandler.METRIC_FLUSH_DURATION).getCount(), flushes + 1);
+        assertEquals(registry.histogram(SQLiteDatabaseHandler.METRIC_READ).getCount(), reads + 2);
+        assertEquals(registry.getGaugeValue(SQLiteDatabaseHandler.METRIC_FLUSHING), 0);
+    }
+
+    @Test
+    public void testReadsDuringFlushSeeAllItems() throws InterruptedException {
+        initDB();
+        dbHandler.applyPendingOperations();
+        for (int i = 0; i < NUM_ITER; ++i) {
+            dbHandler.addItem(new SimpleTextItem(i + 10, testUser, testUser2, new Date(i + 10), "" + i));
+        }
+        Thread flush = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dbHandler.applyPendingOperations();
+            }
+        });
+        flush.start();
+        while (flush.isAlive()) {
+            assertEquals(dbHandler.getAllItems().size(), NUM_ITER + 4);
+            assertEquals(dbHandler.getRecipient(testUser.getID()), testUser);
+        }
+        flush.join();
+        assertFalse(dbHandler.areOperationsPending());
+        assertEquals(dbHandler.getAllItems().size(), NUM_ITER + 4);
+        MetricsRegistry.getInstance().log(SQLiteDatabaseHandlerTest.class.getSimpleName());
+    }
+
     @Override
     @After
     public void tearDown() {
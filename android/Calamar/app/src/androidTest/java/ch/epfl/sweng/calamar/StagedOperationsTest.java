@@ -0,0 +1,91 @@
+package ch.epfl.sweng.calamar;
+
+import android.test.ApplicationTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Date;
+
+import ch.epfl.sweng.calamar.PendingOperations.Operation;
+import ch.epfl.sweng.calamar.item.Item;
+import ch.epfl.sweng.calamar.item.SimpleTextItem;
+import ch.epfl.sweng.calamar.recipient.User;
+
+@RunWith(JUnit4.class)
+public class StagedOperationsTest extends ApplicationTestCase<CalamarApplication> {
+
+    private static final int PRODUCERS = 4;
+    private static final int OPERATIONS = 1000;
+
+    private final User alice = new User(1, "Alice");
+    private final User bob = new User(2, "Bob");
+
+    private StagedOperations staging;
+
+    public StagedOperationsTest() {
+        super(CalamarApplication.class);
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        staging = new StagedOperations();
+    }
+
+    @Test
+    public void testOperationsArePolledInOrder() {
+        Item item = new SimpleTextItem(1, alice, bob, new Date(1), "1");
+        staging.stageItem(Operation.ADD, 1, item);
+        staging.stageRecipient(Operation.DELETE, bob.getID(), null);
+        assertEquals(staging.size(), 2);
+
+        StagedOperations.Staged first = staging.poll();
+        assertTrue(first.isOnItem());
+        assertEquals(first.getOperation(), Operation.ADD);
+        assertEquals(first.getItem(), item);
+        StagedOperations.Staged second = staging.poll();
+        assertFalse(second.isOnItem());
+        assertEquals(second.getID(), bob.getID());
+        assertNull(second.getRecipient());
+        assertNull(staging.poll());
+        assertTrue(staging.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducersKeepTheirOrder() throws InterruptedException {
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; ++i) {
+            final int producer = i;
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int id = 0; id < OPERATIONS; ++id) {
+                        staging.stageRecipient(Operation.ADD, producer * OPERATIONS + id, alice);
+                    }
+                }
+            });
+            producers[i].start();
+        }
+        int[] last = new int[PRODUCERS];
+        int polled = 0;
+        while (polled < PRODUCERS * OPERATIONS) {
+            StagedOperations.Staged staged = staging.poll();
+            if (staged == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = staged.getID() / OPERATIONS;
+            assertEquals(staged.getID() % OPERATIONS, last[producer]);
+            ++last[producer];
+            ++polled;
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertEquals(staging.size(), 0);
+    }
+}
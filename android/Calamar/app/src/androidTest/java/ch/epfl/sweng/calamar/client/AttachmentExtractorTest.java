@@ -0,0 +1,94 @@
+package ch.epfl.sweng.calamar.client;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Date;
+
+import ch.epfl.sweng.calamar.item.FileItem;
+import ch.epfl.sweng.calamar.item.Item;
+import ch.epfl.sweng.calamar.item.SimpleTextItem;
+import ch.epfl.sweng.calamar.recipient.User;
+import ch.epfl.sweng.calamar.utils.Compresser;
+import ch.epfl.sweng.calamar.utils.StorageManager;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class AttachmentExtractorTest {
+
+    private final User alice = new User(1, "Alice");
+    private final User bob = new User(2, "Bob");
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testDataIsWrittenToFiles() throws IOException, JSONException {
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) (i % 7);
+        }
+        FileItem file = new FileItem(1, alice, bob, new Date(1), data, "/file.bin", "message");
+        Item text = new SimpleTextItem(2, alice, bob, new Date(2), "data");
+        String response = new JSONArray().put(file.toJSON()).put(text.toJSON()).toString();
+        File directory = temp.newFolder();
+
+        String extracted = AttachmentExtractor.extract(new StringReader(response), directory);
+        assertTrue(extracted.length() < response.length());
+        File[] files = directory.listFiles();
+        assertEquals(files.length, 1);
+        //Written decompressed
+        assertEquals(files[0].length(), (long) data.length);
+
+        JSONArray items = new JSONArray(extracted);
+        FileItem received = (FileItem) Item.fromJSON(items.getJSONObject(0));
+        assertEquals(received.getDataFile(), files[0]);
+        assertEquals(received.getPath(), files[0].getAbsolutePath());
+        assertFalse(received.isDataLoaded());
+        assertTrue(Arrays.equals(Compresser.decompress(received.getData()), data));
+        assertEquals(Item.fromJSON(items.getJSONObject(1)), text);
+    }
+
+    @Test
+    public void testSameContentIsStoredOnce() throws IOException, JSONException {
+        byte[] data = {1, 2, 3, 4};
+        FileItem first = new FileItem(1, alice, bob, new Date(1), data, "/first.bin", "message");
+        FileItem second = new FileItem(2, alice, bob, new Date(2), data, "/second.bin", "message");
+        String response = new JSONArray().put(first.toJSON()).put(second.toJSON()).toString();
+        File directory = temp.newFolder();
+
+        JSONArray items = new JSONArray(AttachmentExtractor.extract(new StringReader(response), directory));
+        assertEquals(directory.listFiles().length, 1);
+        FileItem firstReceived = (FileItem) Item.fromJSON(items.getJSONObject(0));
+        FileItem secondReceived = (FileItem) Item.fromJSON(items.getJSONObject(1));
+        assertEquals(firstReceived.getDataFile(), secondReceived.getDataFile());
+        assertEquals(firstReceived.getDataFile().getName(), "RCV_" + StorageManager.getContentHash(data));
+
+        //Received again after a resync
+        AttachmentExtractor.extract(new StringReader(response), directory);
+        assertEquals(directory.listFiles().length, 1);
+    }
+
+    @Test
+    public void testDataIsKeptWithoutDirectory() throws IOException, JSONException {
+        FileItem file = new FileItem(1, alice, bob, new Date(1), new byte[]{1, 2, 3}, "/file.bin", "message");
+        String response = new JSONArray().put(file.toJSON()).toString();
+        String extracted = AttachmentExtractor.extract(new StringReader(response), null);
+        assertEquals(extracted, response);
+        FileItem received = (FileItem) Item.fromJSON(new JSONArray(extracted).getJSONObject(0));
+        assertEquals(received.getDataFile(), null);
+        assertTrue(Arrays.equals(Compresser.decompress(received.getData()), new byte[]{1, 2, 3}));
+    }
+}
@@ -0,0 +1,75 @@
+package ch.epfl.sweng.calamar.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class MetricsRegistryTest {
+
+    private MetricsRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = MetricsRegistry.getInstance();
+        registry.reset();
+    }
+
+    @Test
+    public void testHistogramOfNameIsShared() {
+        assertTrue(registry.histogram("test.histogram") == registry.histogram("test.histogram"));
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        MetricsRegistry.Histogram histogram = registry.histogram("test.histogram");
+        assertEquals(histogram.getPercentile(50), 0);
+        for (int i = 1; i <= 100; ++i) {
+            histogram.record(i);
+        }
+        assertEquals(histogram.getCount(), 100);
+        assertEquals(histogram.getSum(), 5050);
+        assertEquals(histogram.getMean(), 50);
+        assertEquals(histogram.getMax(), 100);
+        //The percentiles are upper bounds, at most twice the actual value
+        long median = histogram.getPercentile(50);
+        assertTrue(median >= 50 && median <= 100);
+        assertEquals(histogram.getPercentile(100), 100);
+    }
+
+    @Test
+    public void testNegativeValueIsRecordedAsZero() {
+        MetricsRegistry.Histogram histogram = registry.histogram("test.histogram");
+        histogram.record(-5);
+        assertEquals(histogram.getCount(), 1);
+        assertEquals(histogram.getMax(), 0);
+        assertEquals(histogram.getPercentile(99), 0);
+    }
+
+    @Test
+    public void testCounterAndReset() {
+        registry.counter("test.counter").increment();
+        registry.counter("test.counter").add(4);
+        assertEquals(registry.counter("test.counter").get(), 5);
+        registry.reset();
+        assertEquals(registry.counter("test.counter").get(), 0);
+    }
+
+    @Test
+    public void testGaugeAndDump() {
+        registry.gauge("test.gauge", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return 42;
+            }
+        });
+        registry.counter("test.counter").add(3);
+        assertEquals(registry.getGaugeValue("test.gauge"), 42);
+        assertEquals(registry.getGaugeValue("test.missing"), 0);
+        String dump = registry.dump();
+        assertTrue(dump.contains("test.gauge : 42\n"));
+        assertTrue(dump.contains("test.counter : 3\n"));
+        assertTrue(dump.indexOf("test.counter") < dump.indexOf("test.gauge"));
+    }
+}
@@ -22,6 +22,7 @@ import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -30,7 +31,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -58,13 +58,12 @@ import static android.support.test.espresso.matcher.ViewMatchers.withId;
 public class StorageManagerTest extends ActivityInstrumentationTestCase2<ChatActivity> {
 
     private final StorageManager storageManager = StorageManager.getInstance();
-    private final SQLiteDatabaseHandler dbHandler = SQLiteDatabaseHandler.getInstance();
+    private final SQLiteDatabaseHandler dbHandler = CalamarApplication.getInstance().getDatabaseHandler();
     private final User testUser = new User(1, "Alice");
     private final User testRecipient = new User(2, "Bob");
     private final Condition tc = Condition.trueCondition();
     private final Condition fc = Condition.falseCondition();
     private final SimpleTextItem testSimple = new SimpleTextItem(0, testUser, testRecipient, new Date(), "bla");
-    private Calendar calendar;
 
     private static final String ROOT_FOLDER_NAME = "Calamar/";
     private static final String IMAGE_FOLDER_NAME = ROOT_FOLDER_NAME + "Calamar Images/";
@@ -72,7 +71,6 @@ public class StorageManagerTest extends ActivityInstrumentationTestCase2<ChatAct
     private static final String FILENAME = "FILE_";
     private static final String IMAGENAME = "IMG_";
     private static final String IMAGE_EXT = ".png";
-    private static final String NAME_SUFFIX = "_CAL";
 
     @Rule
     public final TemporaryFolder temp = new TemporaryFolder();
@@ -144,6 +142,32 @@ public class StorageManagerTest extends ActivityInstrumentationTestCase2<ChatAct
         assertEquals(dbHandler.getItem(testSimple.getID()), null);
     }
 
+    @Test
+    public void testSnapshotIsExportedAndImported() throws IOException {
+        app.setCurrentUserID(testUser.getID());
+        dbHandler.addItem(testSimple);
+        app.setLastItemsRefresh(42);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        storageManager.exportSnapshot(archive);
+
+        dbHandler.deleteAllItems();
+        dbHandler.deleteAllRecipients();
+        app.setLastItemsRefresh(0);
+        storageManager.importSnapshot(new ByteArrayInputStream(archive.toByteArray()));
+        assertEquals(dbHandler.getItem(testSimple.getID()), testSimple);
+        assertEquals(dbHandler.getRecipient(testRecipient.getID()), testRecipient);
+        assertEquals(app.getLastItemsRefresh().getTime(), 42);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSnapshotOfAnotherUserIsRejected() throws IOException {
+        app.setCurrentUserID(testUser.getID());
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        storageManager.exportSnapshot(archive);
+        app.setCurrentUserID(testRecipient.getID());
+        storageManager.importSnapshot(new ByteArrayInputStream(archive.toByteArray()));
+    }
+
     @Test
     public void testWritingTaskLoopsIfRequiredAndCancelWorks() throws Throwable {
         byte[] data = {0x33};
@@ -208,9 +232,82 @@ public class StorageManagerTest extends ActivityInstrumentationTestCase2<ChatAct
     }
 
 
+    @Test
+    public void testSharedFileIsDeletedWithItsLastItem() throws Throwable {
+        File f1 = temp.newFile();
+        writeFile(f1, new byte[]{0x33});
+        final FileItem item = new FileItem(0, testUser, testRecipient, new Date(), tc, null, f1.getAbsolutePath());
+        final FileItem item2 = new FileItem(1, testUser, testRecipient, new Date(), tc, null, f1.getAbsolutePath());
+        dbHandler.addItem(item);
+        dbHandler.addItem(item2);
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                storageManager.deleteItemWithDatabase(item);
+            }
+        });
+        waitFor(1000);
+        assertTrue(f1.exists());
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                storageManager.deleteItemWithDatabase(item2);
+            }
+        });
+        waitFor(1000);
+        assertFalse(f1.exists());
+    }
+
+    @Test
+    public void testLostWritingsAreFetchedAgain() throws Throwable {
+        byte[] data = {0x12, 0x34, 0x56};
+        File file = new File(temp.getRoot(), "lost");
+        FileItem onServer = new FileItem(7, testRecipient, testUser, new Date(7), tc, data, "/lost");
+        dbHandler.addItem(new FileItem(onServer.getID(), onServer.getFrom(), onServer.getTo(), onServer.getDate(), tc, null, file.getAbsolutePath()));
+        ConstantDatabaseClient client = new ConstantDatabaseClient();
+        client.addItem(onServer);
+        DatabaseClientLocator.setDatabaseClient(client);
+        //Written before the application was killed, the second item doesn't exist anymore
+        app.addPendingWrite(onServer.getID());
+        app.addPendingWrite(42);
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                storageManager.retryFailedWriting();
+            }
+        });
+        //Pending until its file is written
+        for (int i = 0; i < 20 && app.getPendingWrites().contains(onServer.getID()); ++i) {
+            waitFor(100);
+        }
+        assertFalse(app.getPendingWrites().contains(42));
+        assertFalse(app.getPendingWrites().contains(onServer.getID()));
+        assertTrue(file.exists());
+        assertTrue(Arrays.equals(FileUtils.toByteArray(file), data));
+    }
+
+    @Test
+    public void testReceivedFileSharesTheStoredFileOfItsContent() throws IOException {
+        byte[] data = {0x21, 0x43, 0x65};
+        File received = StorageManager.getReceivedFile(StorageManager.getReceivedDirectory(), StorageManager.getContentHash(data));
+        OutputStream out = new FileOutputStream(received);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        storageManager.storeItem(new FileItem(20, testRecipient, testUser, new Date(20), tc, new FileItem.FileDataLoader(received),
+                received.getAbsolutePath(), ""), null);
+        storageManager.storeItem(new FileItem(21, testRecipient, testUser, new Date(21), tc, data, "/written"), null);
+        File stored = new File(((FileItem) dbHandler.getItem(20)).getPath());
+        assertEquals(((FileItem) dbHandler.getItem(21)).getPath(), stored.getAbsolutePath());
+        assertFalse(received.exists());
+        assertTrue(Arrays.equals(FileUtils.toByteArray(stored), data));
+        assertTrue(stored.delete());
+    }
+
     @Test
     public void testFilesAreRenamed() throws Throwable {
-        calendar = Calendar.getInstance();
         File f1 = null;
         File f2 = null;
         File f3 = null;
@@ -263,9 +360,11 @@ public class StorageManagerTest extends ActivityInstrumentationTestCase2<ChatAct
         assertEquals(app.getTodayImageCount(), 2);
         List<Item> retrieved = activity.getHistory();
         assertEquals(retrieved.size(), 3);
-        assertEquals(((ImageItem) retrieved.get(0)).getPath(), imagePath.toString() + '/' + IMAGENAME + formatDate() + NAME_SUFFIX + '0' + IMAGE_EXT);
-        assertEquals(((ImageItem) retrieved.get(1)).getPath(), imagePath.toString() + '/' + IMAGENAME + formatDate() + NAME_SUFFIX + '1' + IMAGE_EXT);
-        assertEquals(((FileItem) retrieved.get(2)).getPath(), filePath.toString() + '/' + FILENAME + formatDate() + NAME_SUFFIX + '0');
+        //Named by their content : the two empty images share their file
+        final String emptyHash = StorageManager.getContentHash(new byte[0]);
+        assertEquals(((ImageItem) retrieved.get(0)).getPath(), imagePath.toString() + '/' + IMAGENAME + emptyHash + IMAGE_EXT);
+        assertEquals(((ImageItem) retrieved.get(1)).getPath(), imagePath.toString() + '/' + IMAGENAME + emptyHash + IMAGE_EXT);
+        assertEquals(((FileItem) retrieved.get(2)).getPath(), filePath.toString() + '/' + FILENAME + emptyHash);
         assertFalse(retrieved.get(0).equals(retrievedFirst.get(0)));
         assertFalse(retrieved.get(1).equals(retrievedFirst.get(1)));
         assertFalse(retrieved.get(2).equals(retrievedFirst.get(2)));
@@ -403,7 +502,6 @@ public class StorageManagerTest extends ActivityInstrumentationTestCase2<ChatAct
 
     @Test
     public void testOperationsAreRepercutedInDatabase() throws Throwable {
-        calendar = Calendar.getInstance();
         File f1;
         File f2;
         File f3;
@@ -434,13 +532,13 @@ public class StorageManagerTest extends ActivityInstrumentationTestCase2<ChatAct
         });
         List<Item> allItems = dbHandler.getAllItems();
         final ImageItem itemAfter = new ImageItem(item.getID(), item.getFrom(), item.getTo(),
-                item.getDate(), item.getCondition(), Compresser.getImageThumbnail(item), imagePath.toString() + '/' + IMAGENAME + formatDate() + NAME_SUFFIX + '0' + IMAGE_EXT);
+                item.getDate(), item.getCondition(), Compresser.getImageThumbnail(item), imagePath.toString() + '/' + IMAGENAME + StorageManager.getContentHash(bitmapData) + IMAGE_EXT);
         final ImageItem item2After = new ImageItem(item2.getID(), item2.getFrom(), item2.getTo(),
-                item2.getDate(), item2.getCondition(), null, imagePath.toString() + '/' + IMAGENAME + formatDate() + NAME_SUFFIX + '1' + IMAGE_EXT);
+                item2.getDate(), item2.getCondition(), null, imagePath.toString() + '/' + IMAGENAME + StorageManager.getContentHash(new byte[0]) + IMAGE_EXT);
         final FileItem item3After = new FileItem(item3.getID(), item3.getFrom(), item3.getTo(),
-                item3.getDate(), item3.getCondition(), null, filePath.toString() + '/' + FILENAME + formatDate() + NAME_SUFFIX + '0');
+                item3.getDate(), item3.getCondition(), null, filePath.toString() + '/' + FILENAME + StorageManager.getContentHash(dummyData));
         final FileItem item4After = new FileItem(item4.getID(), item4.getFrom(), item4.getTo(),
-                item4.getDate(), item4.getCondition(), null, filePath.toString() + '/' + FILENAME + formatDate() + NAME_SUFFIX + '1');
+                item4.getDate(), item4.getCondition(), null, filePath.toString() + '/' + FILENAME + StorageManager.getContentHash(new byte[0]));
         assertEquals(allItems.size(), 4);
         assertEquals(allItems.get(0), itemAfter);
         assertEquals(allItems.get(1), item2After);
@@ -679,8 +777,30 @@ public class StorageManagerTest extends ActivityInstrumentationTestCase2<ChatAct
     }
 
 
-    private String formatDate() {
-        return calendar.get(Calendar.DAY_OF_MONTH) + "" + (calendar.get(Calendar.MONTH) + 1) + "" + calendar.get(Calendar.YEAR);
+    @Test
+    public void testRangesAreReadWithoutTheRest() throws IOException {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        File file = temp.newFile();
+        writeFile(file, data);
+        assertTrue(Arrays.equals(StorageManager.readRange(file, 10, 20), Arrays.copyOfRange(data, 10, 30)));
+        //Truncated at the end of the file
+        assertTrue(Arrays.equals(StorageManager.readRange(file, 990, 20), Arrays.copyOfRange(data, 990, 1000)));
+        assertEquals(StorageManager.readRange(file, 2000, 20).length, 0);
+        FileItem stored = new FileItem(1, testUser, testRecipient, new Date(), data, file.getPath());
+        assertTrue(Arrays.equals(stored.readRange(100, 4), Arrays.copyOfRange(data, 100, 104)));
+    }
+
+    @Test
+    public void testMimeTypeIsSniffed() throws IOException {
+        File png = temp.newFile();
+        writeFile(png, new byte[]{(byte) 0x89, 'P', 'N', 'G', 13, 10});
+        assertEquals(StorageManager.sniffMimeType(png), "image/png");
+        File unknown = temp.newFile();
+        writeFile(unknown, new byte[]{1, 2});
+        assertEquals(StorageManager.sniffMimeType(unknown), null);
     }
 
     private void writeFile(File f, byte[] data) throws IOException {
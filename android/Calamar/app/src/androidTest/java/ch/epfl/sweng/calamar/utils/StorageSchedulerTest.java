@@ -0,0 +1,133 @@
+package ch.epfl.sweng.calamar.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.epfl.sweng.calamar.utils.StorageScheduler.Lane;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class StorageSchedulerTest {
+
+    private MetricsRegistry registry;
+    private StorageScheduler scheduler;
+    private CountDownLatch blocked;
+    private CountDownLatch released;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        registry = MetricsRegistry.getInstance();
+        registry.reset();
+        //The thread of the tasks changing files, busy until released, so that the next ones are queued
+        scheduler = new StorageScheduler(1);
+        blocked = new CountDownLatch(1);
+        released = new CountDownLatch(1);
+        scheduler.schedule(Lane.DELETE, new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testLanesRunByPriorityThenInOrder() throws InterruptedException {
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(4);
+        schedule(Lane.DELETE, "delete", ran, done);
+        schedule(Lane.BACKGROUND_WRITE, "background1", ran, done);
+        schedule(Lane.BACKGROUND_WRITE, "background2", ran, done);
+        schedule(Lane.USER_WRITE, "user", ran, done);
+        assertEquals(scheduler.getQueuedCount(), 4);
+        released.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(ran.toString(), "[user, background1, background2, delete]");
+        assertEquals(registry.histogram(Lane.BACKGROUND_WRITE.getWaitMetric()).getCount(), 2);
+    }
+
+    @Test
+    public void testReadDoesNotWaitBehindTheTasksChangingFiles() throws InterruptedException {
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        schedule(Lane.VISIBLE_READ, "read", ran, done);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(ran.toString(), "[read]");
+        assertEquals(registry.histogram(Lane.VISIBLE_READ.getWaitMetric()).getCount(), 1);
+        released.countDown();
+    }
+
+    @Test
+    public void testTasksChangingFilesRunOneAtATime() throws InterruptedException {
+        released.countDown();
+        StorageScheduler parallel = new StorageScheduler(4);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; ++i) {
+            parallel.schedule(i % 2 == 0 ? Lane.USER_WRITE : Lane.DELETE, new Runnable() {
+                @Override
+                public void run() {
+                    int now = running.incrementAndGet();
+                    if (now > maxRunning.get()) {
+                        maxRunning.set(now);
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(maxRunning.get(), 1);
+    }
+
+    @Test
+    public void testCancelledTaskIsPurged() throws InterruptedException {
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        FutureTask<Void> cancelled = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                ran.add("cancelled");
+            }
+        }, null);
+        scheduler.getExecutor(Lane.BACKGROUND_WRITE).execute(cancelled);
+        schedule(Lane.BACKGROUND_WRITE, "write", ran, done);
+        cancelled.cancel(false);
+        scheduler.purge();
+        assertEquals(scheduler.getQueuedCount(), 1);
+        assertEquals(registry.counter(StorageScheduler.METRIC_CANCELLED).get(), 1);
+        released.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(ran.toString(), "[write]");
+    }
+
+    private void schedule(Lane lane, final String name, final List<String> ran, final CountDownLatch done) {
+        scheduler.schedule(lane, new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+                done.countDown();
+            }
+        });
+    }
+}
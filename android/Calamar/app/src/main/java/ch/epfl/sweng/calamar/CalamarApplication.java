@@ -3,21 +3,31 @@ package ch.epfl.sweng.calamar;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.Application;
+import android.content.BroadcastReceiver;
 import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
+import android.util.Base64;
 import android.util.Log;
 
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.securepreferences.SecurePreferences;
 
+import java.security.SecureRandom;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 
 import ch.epfl.sweng.calamar.push.RegistrationIntentService;
 import ch.epfl.sweng.calamar.recipient.User;
+import ch.epfl.sweng.calamar.utils.MetricsRegistry;
 import ch.epfl.sweng.calamar.utils.StorageManager;
 
 public final class CalamarApplication extends Application implements Application.ActivityLifecycleCallbacks, ComponentCallbacks2 {
@@ -29,17 +39,31 @@ public final class CalamarApplication extends Application implements Application
     private static final String CURRENT_USER_NAME_SP = "currentUserName";
     private static final String TODAY_IMAGE_COUNT_SP = "todayImageCount";
     private static final String TODAY_FILE_COUNT_SP = "todayFileCount";
+    private static final String JOURNAL_KEY_SP = "journalKey";
+    private static final String LAST_RETENTION_RUN_SP = "lastRetentionRun";
+    private static final String RETENTION_MAX_AGE_SP = "retentionMaxAge";
+    private static final String RETENTION_MAX_ITEMS_SP = "retentionMaxItemsPerConversation";
+    private static final String RETENTION_MAX_BYTES_SP = "retentionMaxBytes";
+    //Ids of the items whose file isn't written yet, as a set of strings
+    private static final String PENDING_WRITES_SP = "pendingWriteIds";
     private static final String USER_PREF_NAME = "user_pref.xml";
+    private static final int JOURNAL_KEY_LENGTH = 16;
 
     private static final int UPDATE_DB_TIME = 600000;
+    //Longer than the usual opening, shorter than an "application not responding"
+
+    //Default retention : a year, 5000 items per conversation, 64 MB. Applied at most once a day.
+    private static final long DEFAULT_RETENTION_MAX_AGE = 365L * 24 * 3600 * 1000;
+    private static final int DEFAULT_RETENTION_MAX_ITEMS = 5000;
+    private static final long DEFAULT_RETENTION_MAX_BYTES = 64L * 1024 * 1024;
+    private static final long RETENTION_INTERVAL = 24L * 3600 * 1000;
 
     //TODO Why volatile?
     private static volatile CalamarApplication instance;
 
     private final int WAITING_TIME = 500;
 
-    private SQLiteDatabaseHandler dbHandler;
-    private StorageManager storageManager;
+    private DatabaseOpener databaseOpener;
     private SharedPreferences sp;
     private SharedPreferences.Editor editor;
     private Calendar calendar;
@@ -73,14 +97,21 @@ public final class CalamarApplication extends Application implements Application
     @Override
     //TODO Clean method once things are decided / tested
     public void onCreate() {
+        long startTime = System.nanoTime();
         super.onCreate();
         User test = new User(1, "Bob");
         instance = this;
         sp = new SecurePreferences(this, test.getPassword(), USER_PREF_NAME);
         editor = sp.edit();
         handler = new Handler();
-        dbHandler = SQLiteDatabaseHandler.getInstance();
-        storageManager = StorageManager.getInstance();
+        //Opening the database derives its keys, which is slow : it is done in the background
+        databaseOpener = DatabaseOpener.start(this, startTime);
+        databaseOpener.whenOpen(new Runnable() {
+            @Override
+            public void run() {
+                retryFailedWritings();
+            }
+        });
         calendar = Calendar.getInstance();
         day = calendar.get(Calendar.DAY_OF_MONTH);
         loopDatabaseUpdate();
@@ -88,12 +119,50 @@ public final class CalamarApplication extends Application implements Application
 
 
     /**
-     * Get the database handler containing the recipients and the items.
+     * Get the database handler containing the recipients and the items. Waits for the database to
+     * be opened in the background if it isn't yet, however long it takes : the main thread should
+     * rather use {@link #whenDatabaseOpen(Runnable)}.
      *
      * @return the database handler
+     * @throws IllegalStateException if the database couldn't be opened
      */
     public SQLiteDatabaseHandler getDatabaseHandler() {
-        return dbHandler;
+        return databaseOpener.get();
+    }
+
+    /**
+     * Runs a listener on the main thread once the database is open, at once if it already is
+     *
+     * @param listener the listener, e.g. filling a view with the content of the database
+     */
+    public void whenDatabaseOpen(Runnable listener) {
+        databaseOpener.whenOpen(listener);
+    }
+
+    /**
+     * Tells if the database is opened, i.e. if {@link #getDatabaseHandler()} won't wait
+     *
+     * @return true if it is
+     */
+    public boolean isDatabaseOpen() {
+        return databaseOpener.isDone();
+    }
+
+    /**
+     * Retries the writings of files which didn't finish before the application was killed, and
+     * retries the failed ones whenever the storage is mounted. Started once the database is open, so
+     * that creating the StorageManager doesn't wait for it.
+     */
+    private void retryFailedWritings() {
+        IntentFilter mounted = new IntentFilter(Intent.ACTION_MEDIA_MOUNTED);
+        mounted.addDataScheme("file");
+        registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                getStorageManager().retryFailedWriting();
+            }
+        }, mounted);
+        getStorageManager().retryFailedWriting();
     }
 
     /**
@@ -102,7 +171,7 @@ public final class CalamarApplication extends Application implements Application
      * @return the storage manager
      */
     public StorageManager getStorageManager() {
-        return storageManager;
+        return StorageManager.getInstance();
     }
 
     /**
@@ -240,6 +309,102 @@ public final class CalamarApplication extends Application implements Application
         return sp.getString(CURRENT_USER_NAME_SP, getString(R.string.empty_string));
     }
 
+    /**
+     * Returns the key used to encrypt the journal of pending database operations,
+     * generating it the first time.
+     *
+     * @return the key as an array of bytes
+     */
+    public byte[] getJournalKey() {
+        String key = sp.getString(JOURNAL_KEY_SP, null);
+        if (key == null) {
+            byte[] newKey = new byte[JOURNAL_KEY_LENGTH];
+            new SecureRandom().nextBytes(newKey);
+            key = Base64.encodeToString(newKey, Base64.NO_WRAP);
+            //commit, the key must be stored before anything is written with it
+            editor.putString(JOURNAL_KEY_SP, key).commit();
+        }
+        return Base64.decode(key, Base64.NO_WRAP);
+    }
+
+    /**
+     * Sets the retention policy of the local database
+     *
+     * @param policy the policy
+     */
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        editor.putLong(RETENTION_MAX_AGE_SP, policy.getMaxAge())
+                .putInt(RETENTION_MAX_ITEMS_SP, policy.getMaxItemsPerConversation())
+                .putLong(RETENTION_MAX_BYTES_SP, policy.getMaxBytes()).apply();
+    }
+
+    /**
+     * Returns the retention policy of the local database
+     *
+     * @return the policy set, or the default one
+     */
+    public RetentionPolicy getRetentionPolicy() {
+        return new RetentionPolicy(sp.getLong(RETENTION_MAX_AGE_SP, DEFAULT_RETENTION_MAX_AGE),
+                sp.getInt(RETENTION_MAX_ITEMS_SP, DEFAULT_RETENTION_MAX_ITEMS),
+                sp.getLong(RETENTION_MAX_BYTES_SP, DEFAULT_RETENTION_MAX_BYTES));
+    }
+
+    /**
+     * Sets the last time the retention policy was applied
+     *
+     * @param lastTime The date
+     */
+    public void setLastRetentionRun(Date lastTime) {
+        editor.putLong(LAST_RETENTION_RUN_SP, lastTime.getTime()).apply();
+    }
+
+    /**
+     * Returns the last time the retention policy was applied
+     *
+     * @return the date
+     */
+    public Date getLastRetentionRun() {
+        return new Date(sp.getLong(LAST_RETENTION_RUN_SP, 0));
+    }
+
+    /**
+     * Returns the ids of the items whose file isn't written yet, kept when the application is killed
+     *
+     * @return the ids
+     */
+    public synchronized Set<Integer> getPendingWrites() {
+        Set<Integer> ids = new HashSet<>();
+        for (String id : sp.getStringSet(PENDING_WRITES_SP, Collections.<String>emptySet())) {
+            ids.add(Integer.valueOf(id));
+        }
+        return ids;
+    }
+
+    /**
+     * Adds the id of an item whose file will be written
+     *
+     * @param id the id of the item
+     */
+    public synchronized void addPendingWrite(int id) {
+        //The set returned by the preferences must not be changed
+        Set<String> ids = new HashSet<>(sp.getStringSet(PENDING_WRITES_SP, Collections.<String>emptySet()));
+        if (ids.add(Integer.toString(id))) {
+            editor.putStringSet(PENDING_WRITES_SP, ids).apply();
+        }
+    }
+
+    /**
+     * Removes the id of an item whose file is written, or doesn't need to be anymore
+     *
+     * @param id the id of the item
+     */
+    public synchronized void removePendingWrite(int id) {
+        Set<String> ids = new HashSet<>(sp.getStringSet(PENDING_WRITES_SP, Collections.<String>emptySet()));
+        if (ids.remove(Integer.toString(id))) {
+            editor.putStringSet(PENDING_WRITES_SP, ids).apply();
+        }
+    }
+
     /**
      * Returns the current User
      *
@@ -323,10 +488,18 @@ public final class CalamarApplication extends Application implements Application
         setFileCount(0);
     }
 
+    /**
+     * Forgets the items whose file isn't written yet
+     */
+    public synchronized void resetPendingWrites() {
+        editor.remove(PENDING_WRITES_SP).apply();
+    }
+
     /**
      * Resets everything to its default value {@see resetUserID}
      * {@see resetUsername}{@see resetLastItemsRefresh}
      * {@see resetLastUsersRefresh}{@see resetImageCount}{@see resetFileCount}
+     * {@see resetPendingWrites}
      */
     public void resetPreferences() {
         resetUserID();
@@ -335,6 +508,7 @@ public final class CalamarApplication extends Application implements Application
         resetLastUsersRefresh();
         resetImageCount();
         resetFileCount();
+        resetPendingWrites();
     }
 
     /**
@@ -411,6 +585,7 @@ public final class CalamarApplication extends Application implements Application
             public void run() {
                 if (!isOnForeground()) {
                     new ApplyPendingDatabaseOperationsTask().execute();
+                    applyRetentionPolicyIfDue();
                 }
             }
         }, WAITING_TIME);
@@ -431,6 +606,16 @@ public final class CalamarApplication extends Application implements Application
 
     }
 
+    /**
+     * Applies the retention policy in the background if it wasn't applied for RETENTION_INTERVAL,
+     * called when the application goes in background so that the compaction doesn't slow it down
+     */
+    private void applyRetentionPolicyIfDue() {
+        if (System.currentTimeMillis() - getLastRetentionRun().getTime() >= RETENTION_INTERVAL) {
+            getStorageManager().applyRetentionPolicy(getRetentionPolicy());
+        }
+    }
+
     private boolean isOnForeground() {
         if (paused >= resumed && onForeground) {
             onForeground = false;
@@ -447,10 +632,12 @@ public final class CalamarApplication extends Application implements Application
 
         @Override
         protected Void doInBackground(Void... v) {
+            SQLiteDatabaseHandler dbHandler = getDatabaseHandler();
             if (dbHandler.areOperationsPending()) {
                 dbHandler.applyPendingOperations();
             }
             Log.i("Database", "Applied operations");
+            MetricsRegistry.getInstance().log("Database");
             return null;
         }
     }
@@ -471,6 +658,12 @@ public final class CalamarApplication extends Application implements Application
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
+        if (!isDatabaseOpen()) {
+            //Nothing can be pending before the database is opened
+            return;
+        }
+        SQLiteDatabaseHandler dbHandler = getDatabaseHandler();
+        StorageManager storageManager = getStorageManager();
         if (level >= TRIM_MEMORY_COMPLETE) {
             dbHandler.applyPendingOperations();
             storageManager.cancelWritingTasks(1);
@@ -0,0 +1,60 @@
+package ch.epfl.sweng.calamar;
+
+import java.util.Date;
+
+/**
+ * The summary of the conversation between the current user and a contact, read from the summary
+ * table of the {@link SQLiteDatabaseHandler} : it covers the items written in the database.
+ */
+public final class ConversationSummary {
+
+    private final int contactID;
+    private final int itemCount;
+    private final int unreadCount;
+    private final int lastItemID;
+    private final Date lastTime;
+    private final String lastText;
+
+    ConversationSummary(int contactID, int itemCount, int unreadCount, int lastItemID, Date lastTime, String lastText) {
+        this.contactID = contactID;
+        this.itemCount = itemCount;
+        this.unreadCount = unreadCount;
+        this.lastItemID = lastItemID;
+        this.lastTime = new Date(lastTime.getTime());
+        this.lastText = lastText;
+    }
+
+    public int getContactID() {
+        return contactID;
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Returns the number of items received from the contact since the conversation was last read
+     *
+     * @return the number of unread items
+     */
+    public int getUnreadCount() {
+        return unreadCount;
+    }
+
+    public int getLastItemID() {
+        return lastItemID;
+    }
+
+    public Date getLastTime() {
+        return new Date(lastTime.getTime());
+    }
+
+    /**
+     * Returns the text of the last item, e.g. to preview it in the list of contacts
+     *
+     * @return the text, or null if the last item has none
+     */
+    public String getLastText() {
+        return lastText;
+    }
+}
@@ -0,0 +1,249 @@
+package ch.epfl.sweng.calamar;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Ordered steps upgrading the schema of the local database from one version to the next one,
+ * without losing the stored items and recipients.<br>
+ * To change the schema, bump {@link SQLiteDatabaseHandler#DATABASE_VERSION}, update
+ * {@link SQLiteDatabaseHandler#onCreate(SQLiteDatabase)} and append the corresponding step to
+ * {@link #MIGRATIONS}. The steps use their own SQL on purpose : they must keep describing the schema
+ * of their time, whatever the handler becomes.
+ */
+final class DatabaseMigrations {
+
+    /**
+     * The oldest version which can be migrated, older databases are recreated.
+     */
+    static final int OLDEST_MIGRATABLE_VERSION = 5;
+
+    /**
+     * MIGRATIONS[i] upgrades a database from version OLDEST_MIGRATABLE_VERSION + i to the next one.
+     */
+    private static final Migration[] MIGRATIONS = {
+            //5 -> 6 : conversation columns and index
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE tb_Items ADD COLUMN low_id INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE tb_Items ADD COLUMN high_id INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("UPDATE tb_Items SET low_id = MIN(from_id, to_id), high_id = MAX(from_id, to_id)");
+                    db.execSQL("CREATE INDEX idx_Items_conversation ON tb_Items (low_id, high_id, id)");
+                }
+            },
+            //6 -> 7 : location columns, filled from the conditions, and location index
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE tb_Items ADD COLUMN latitude REAL");
+                    db.execSQL("ALTER TABLE tb_Items ADD COLUMN longitude REAL");
+                    db.execSQL("ALTER TABLE tb_Items ADD COLUMN radius REAL");
+                    SQLiteStatement update = db.compileStatement("UPDATE tb_Items SET latitude = ?, longitude = ?, radius = ? WHERE id = ?");
+                    Cursor cursor = db.rawQuery("SELECT id, condition FROM tb_Items", null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            try {
+                                JSONObject position = findPositionCondition(new JSONObject(cursor.getString(1)));
+                                if (position != null) {
+                                    update.bindDouble(1, position.getDouble("latitude"));
+                                    update.bindDouble(2, position.getDouble("longitude"));
+                                    update.bindDouble(3, position.getDouble("radius"));
+                                    update.bindLong(4, cursor.getInt(0));
+                                    update.execute();
+                                }
+                            } catch (JSONException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                        update.close();
+                    }
+                    db.execSQL("CREATE INDEX idx_Items_location ON tb_Items (latitude, longitude) WHERE latitude IS NOT NULL");
+                }
+
+                private JSONObject findPositionCondition(JSONObject condition) throws JSONException {
+                    switch (condition.getString("type")) {
+                        case "POSITIONCONDITION":
+                            return condition;
+                        case "ANDCONDITION":
+                        case "ORCONDITION":
+                            JSONObject left = findPositionCondition(condition.getJSONObject("a"));
+                            return left != null ? left : findPositionCondition(condition.getJSONObject("b"));
+                        case "NOTCONDITION":
+                            return findPositionCondition(condition.getJSONObject("val"));
+                        default:
+                            return null;
+                    }
+                }
+            },
+            //7 -> 8 : conversation summaries, kept up to date by triggers, filled from the items
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE tb_Conversations (low_id INTEGER NOT NULL, high_id INTEGER NOT NULL, "
+                            + "item_count INTEGER NOT NULL DEFAULT 0, unread_low INTEGER NOT NULL DEFAULT 0, "
+                            + "unread_high INTEGER NOT NULL DEFAULT 0, last_read_id INTEGER NOT NULL DEFAULT -1, "
+                            + "last_id INTEGER, last_time INTEGER, last_text TEXT, PRIMARY KEY (low_id, high_id))");
+                    db.execSQL("CREATE TRIGGER trg_Items_insert AFTER INSERT ON tb_Items BEGIN " + add("NEW") + " END");
+                    db.execSQL("CREATE TRIGGER trg_Items_delete AFTER DELETE ON tb_Items BEGIN " + remove("OLD") + " END");
+                    db.execSQL("CREATE TRIGGER trg_Items_update AFTER UPDATE ON tb_Items BEGIN " + add("NEW") + " " + remove("OLD") + " END");
+                    db.execSQL("INSERT INTO tb_Conversations (low_id, high_id) SELECT DISTINCT low_id, high_id FROM tb_Items");
+                    String match = " FROM tb_Items i WHERE i.low_id = tb_Conversations.low_id AND i.high_id = tb_Conversations.high_id";
+                    String last = " ORDER BY i.id DESC LIMIT 1)";
+                    //Nothing was read yet : every received item is unread
+                    db.execSQL("UPDATE tb_Conversations SET item_count = (SELECT COUNT(*)" + match + "), "
+                            + "unread_low = (SELECT COUNT(*)" + match + " AND i.from_id = i.low_id), "
+                            + "unread_high = (SELECT COUNT(*)" + match + " AND i.from_id = i.high_id), "
+                            + "last_id = (SELECT i.id" + match + last + ", "
+                            + "last_time = (SELECT i.time" + match + last + ", "
+                            + "last_text = (SELECT i.text" + match + last);
+                }
+
+                private String add(String row) {
+                    String where = " WHERE low_id = " + row + ".low_id AND high_id = " + row + ".high_id";
+                    return "INSERT OR IGNORE INTO tb_Conversations (low_id, high_id) VALUES (" + row + ".low_id, " + row + ".high_id); "
+                            + "UPDATE tb_Conversations SET item_count = item_count + 1, "
+                            + "unread_low = unread_low + (" + row + ".id > last_read_id AND " + row + ".from_id = " + row + ".low_id), "
+                            + "unread_high = unread_high + (" + row + ".id > last_read_id AND " + row + ".from_id = " + row + ".high_id)" + where + "; "
+                            + "UPDATE tb_Conversations SET last_id = " + row + ".id, last_time = " + row + ".time, last_text = " + row + ".text"
+                            + where + " AND (last_id IS NULL OR last_id <= " + row + ".id);";
+                }
+
+                private String remove(String row) {
+                    String where = " WHERE low_id = " + row + ".low_id AND high_id = " + row + ".high_id";
+                    String last = " FROM tb_Items WHERE low_id = " + row + ".low_id AND high_id = " + row + ".high_id ORDER BY id DESC LIMIT 1)";
+                    return "UPDATE tb_Conversations SET item_count = item_count - 1, "
+                            + "unread_low = unread_low - (" + row + ".id > last_read_id AND " + row + ".from_id = " + row + ".low_id), "
+                            + "unread_high = unread_high - (" + row + ".id > last_read_id AND " + row + ".from_id = " + row + ".high_id)" + where + "; "
+                            + "DELETE FROM tb_Conversations" + where + " AND item_count <= 0; "
+                            + "UPDATE tb_Conversations SET last_id = (SELECT id" + last + ", last_time = (SELECT time" + last
+                            + ", last_text = (SELECT text" + last + where + " AND last_id = " + row + ".id;";
+                }
+            },
+            //8 -> 9 : full-text index of the texts, kept up to date by triggers, filled from the items
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE VIRTUAL TABLE tb_ItemsSearch USING fts4(content=\"tb_Items\", text)");
+                    String add = "INSERT INTO tb_ItemsSearch (docid, text) VALUES (NEW.id, NEW.text);";
+                    String remove = "INSERT INTO tb_ItemsSearch (tb_ItemsSearch, docid, text) VALUES ('delete', OLD.id, OLD.text);";
+                    db.execSQL("CREATE TRIGGER trg_Search_insert AFTER INSERT ON tb_Items WHEN NEW.text IS NOT NULL BEGIN " + add + " END");
+                    db.execSQL("CREATE TRIGGER trg_Search_delete BEFORE DELETE ON tb_Items WHEN OLD.text IS NOT NULL BEGIN " + remove + " END");
+                    db.execSQL("CREATE TRIGGER trg_Search_before_update BEFORE UPDATE ON tb_Items "
+                            + "WHEN OLD.text IS NOT NEW.text AND OLD.text IS NOT NULL BEGIN " + remove + " END");
+                    db.execSQL("CREATE TRIGGER trg_Search_after_update AFTER UPDATE ON tb_Items "
+                            + "WHEN OLD.text IS NOT NEW.text AND NEW.text IS NOT NULL BEGIN " + add + " END");
+                    db.execSQL("INSERT INTO tb_ItemsSearch (tb_ItemsSearch) VALUES ('rebuild')");
+                }
+            },
+            //9 -> 10 : unlocked state of the items, all locked until their condition is evaluated again
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE tb_Items ADD COLUMN unlocked INTEGER NOT NULL DEFAULT 0");
+                }
+            },
+            //10 -> 11 : type of the conditions, filled from the conditions. The conditions without any
+            //position can't change : they are unlocked now if they are fulfilled, as they won't be parsed
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE tb_Items ADD COLUMN condition_type TEXT");
+                    SQLiteStatement update = db.compileStatement("UPDATE tb_Items SET condition_type = ?, unlocked = MAX(unlocked, ?) WHERE id = ?");
+                    Cursor cursor = db.rawQuery("SELECT id, condition FROM tb_Items", null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            try {
+                                JSONObject condition = new JSONObject(cursor.getString(1));
+                                update.bindString(1, condition.getString("type"));
+                                update.bindLong(2, isFulfilled(condition) ? 1 : 0);
+                                update.bindLong(3, cursor.getInt(0));
+                                update.execute();
+                            } catch (JSONException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                        update.close();
+                    }
+                }
+
+                //The value of a condition before any GPS update
+                private boolean isFulfilled(JSONObject condition) throws JSONException {
+                    switch (condition.getString("type")) {
+                        case "TRUECONDITION":
+                            return true;
+                        case "ANDCONDITION":
+                            return isFulfilled(condition.getJSONObject("a")) && isFulfilled(condition.getJSONObject("b"));
+                        case "ORCONDITION":
+                            return isFulfilled(condition.getJSONObject("a")) || isFulfilled(condition.getJSONObject("b"));
+                        case "NOTCONDITION":
+                            return !isFulfilled(condition.getJSONObject("val"));
+                        default:
+                            return false;
+                    }
+                }
+            },
+            //11 -> 12 : index of the paths, counting the items sharing a stored file
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX idx_Items_path ON tb_Items (path) WHERE path IS NOT NULL");
+                }
+            },
+            //12 -> 13 : incremental vacuum, applied by the VACUUM run when the handler opens the database
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.rawExecSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                }
+            }
+    };
+
+    private DatabaseMigrations() {
+    }
+
+    /**
+     * Tells if a database can be migrated between two versions
+     *
+     * @param oldVersion the version of the database on disk
+     * @param newVersion the version wanted
+     * @return true if every step between the two versions exists
+     */
+    static boolean canMigrate(int oldVersion, int newVersion) {
+        return oldVersion >= OLDEST_MIGRATABLE_VERSION && oldVersion <= newVersion
+                && newVersion - OLDEST_MIGRATABLE_VERSION <= MIGRATIONS.length;
+    }
+
+    /**
+     * Applies in order all the steps between two versions. Must be called in a transaction
+     * (onUpgrade already is).
+     *
+     * @param db         the database to migrate
+     * @param oldVersion the version of the database on disk
+     * @param newVersion the version wanted
+     * @throws IllegalArgumentException if the database can't be migrated between those versions
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (!canMigrate(oldVersion, newVersion)) {
+            throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.no_migration_path, oldVersion, newVersion));
+        }
+        for (int version = oldVersion; version < newVersion; ++version) {
+            MIGRATIONS[version - OLDEST_MIGRATABLE_VERSION].migrate(db);
+        }
+    }
+
+    /**
+     * A step upgrading the database from a version to the next one
+     */
+    private interface Migration {
+        void migrate(SQLiteDatabase db);
+    }
+}
@@ -0,0 +1,199 @@
+package ch.epfl.sweng.calamar;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import android.util.Log;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the {@link SQLiteDatabaseHandler} on a background thread, so that loading SQLCipher and
+ * deriving the keys of the connections don't slow down the start of the application.<br>
+ * The reader connections are opened during the warm-up too : once the handler is returned, no key
+ * is derived anymore in the session. The steps are traced (systrace sections and log) from the
+ * start of the application. The handler is waited for without a timeout, or listened to from the
+ * main thread.
+ */
+final class DatabaseOpener {
+
+    private static final String TAG = DatabaseOpener.class.getSimpleName();
+    //A wait longer than this on the main thread is logged as a warning
+    private static final long SLOW_WAIT = 100;
+
+    private final FutureTask<SQLiteDatabaseHandler> opening;
+    private final long startTime;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    //Run on the main thread once the database is open, null once it is
+    private List<Runnable> listeners = new ArrayList<>();
+
+    /**
+     * Starts opening the database
+     *
+     * @param app       the application
+     * @param startTime the start of the application (System.nanoTime), the steps are traced from it
+     * @return the handle of the database being opened
+     */
+    static DatabaseOpener start(final CalamarApplication app, long startTime) {
+        DatabaseOpener opener = new DatabaseOpener(app, startTime);
+        Thread thread = new Thread(opener.opening, TAG);
+        thread.start();
+        return opener;
+    }
+
+    private DatabaseOpener(final CalamarApplication app, long startTime) {
+        this.startTime = startTime;
+        this.opening = new FutureTask<SQLiteDatabaseHandler>(new Callable<SQLiteDatabaseHandler>() {
+            @Override
+            public SQLiteDatabaseHandler call() {
+                beginSection("loadLibs");
+                try {
+                    SQLiteDatabase.loadLibs(app);
+                } finally {
+                    endSection("loadLibs");
+                }
+                SQLiteDatabaseHandler handler;
+                beginSection("openWriter");
+                try {
+                    handler = SQLiteDatabaseHandler.getInstance();
+                } finally {
+                    endSection("openWriter");
+                }
+                beginSection("openReaders");
+                try {
+                    handler.warmUp();
+                } finally {
+                    endSection("openReaders");
+                }
+                return handler;
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (!isCancelled()) {
+                    notifyOpened();
+                }
+            }
+        };
+    }
+
+    /**
+     * Tells if the database is open, i.e. if {@link #get()} won't block
+     *
+     * @return true if it is open (or failed to open)
+     */
+    boolean isDone() {
+        return opening.isDone();
+    }
+
+    /**
+     * Runs a listener on the main thread once the database is open, e.g. to fill a view without
+     * blocking the main thread while the keys are derived. Run at once if the database is open,
+     * never if it failed to open.
+     *
+     * @param listener the listener
+     */
+    void whenOpen(Runnable listener) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        if (isOpened()) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                listener.run();
+            } else {
+                mainHandler.post(listener);
+            }
+        }
+    }
+
+    private void notifyOpened() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            toRun = listeners;
+            listeners = null;
+        }
+        if (isOpened()) {
+            for (Runnable listener : toRun) {
+                mainHandler.post(listener);
+            }
+        }
+    }
+
+    private boolean isOpened() {
+        try {
+            opening.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the handler, waiting for the database to be open however long it takes : the first
+     * opening derives the keys and migrates the database. The main thread should rather use
+     * {@link #whenOpen(Runnable)}.
+     *
+     * @return the handler
+     * @throws IllegalStateException if the database couldn't be opened
+     */
+    SQLiteDatabaseHandler get() {
+        boolean interrupted = false;
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                try {
+                    SQLiteDatabaseHandler handler = opening.get();
+                    long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    if (waited > 1) {
+                        String message = CalamarApplication.getInstance().getString(R.string.database_open_waited, waited);
+                        if (waited > SLOW_WAIT && Looper.myLooper() == Looper.getMainLooper()) {
+                            Log.w(TAG, message);
+                        } else {
+                            Log.i(TAG, message);
+                        }
+                    }
+                    return handler;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(TAG + "." + name);
+        }
+    }
+
+    private void endSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+        Log.i(TAG, CalamarApplication.getInstance().getString(R.string.database_open_step, name,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)));
+    }
+}
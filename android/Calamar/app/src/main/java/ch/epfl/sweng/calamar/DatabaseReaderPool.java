@@ -0,0 +1,180 @@
+package ch.epfl.sweng.calamar;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.epfl.sweng.calamar.utils.MetricsRegistry;
+
+/**
+ * A small pool of connections used only to read the database of the {@link SQLiteDatabaseHandler}.<br>
+ * The database is in write-ahead logging mode : the readers see the last committed state and
+ * are never blocked by the transaction of the writer.
+ * The connections are opened when first needed (opening a SQLCipher connection derives the key,
+ * which is slow).
+ */
+final class DatabaseReaderPool {
+
+    private final File file;
+    private final int size;
+    private final AtomicInteger flushesInProgress;
+    private final MetricsRegistry registry;
+
+    private final Deque<SQLiteDatabase> idle;
+    //Connections in use, with the time at which they were acquired
+    private final Map<SQLiteDatabase, Long> inUse;
+    private final Set<SQLiteDatabase> acquiredDuringFlush;
+    //Connections being opened outside the lock, their slot is reserved
+    private int opening;
+
+    /**
+     * Creates an empty pool
+     *
+     * @param file    the database file
+     * @param size    the maximum number of connections
+     * @param flushesInProgress the number of flushes running, to count the reads overlapping them
+     */
+    DatabaseReaderPool(File file, int size, AtomicInteger flushesInProgress) {
+        if (size < 1) {
+            throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.reader_pool_size_not_positive, size));
+        }
+        this.file = file;
+        this.size = size;
+        this.flushesInProgress = flushesInProgress;
+        this.registry = MetricsRegistry.getInstance();
+        this.idle = new ArrayDeque<>();
+        this.inUse = new HashMap<>();
+        this.acquiredDuringFlush = new HashSet<>();
+    }
+
+    /**
+     * Takes a connection, opening it if needed. Waits if all connections are in use.
+     * The connection must be given back with {@link #release(SQLiteDatabase)}.
+     * A connection is opened without holding the lock of the pool : the other threads don't wait
+     * for the derivation of its key.
+     *
+     * @param password the password of the database
+     * @return a connection
+     */
+    SQLiteDatabase acquire(String password) {
+        synchronized (this) {
+            long start = System.nanoTime();
+            boolean interrupted = false;
+            while (idle.isEmpty() && inUse.size() + opening >= size) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            registry.histogram(SQLiteDatabaseHandler.METRIC_READER_WAIT).record((System.nanoTime() - start) / 1000);
+            SQLiteDatabase reader = idle.pollFirst();
+            if (reader != null && reader.isOpen()) {
+                markInUse(reader);
+                return reader;
+            }
+            ++opening;
+        }
+        SQLiteDatabase reader = null;
+        try {
+            reader = open(password);
+        } finally {
+            synchronized (this) {
+                --opening;
+                if (reader != null) {
+                    markInUse(reader);
+                } else {
+                    notify();
+                }
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * Opens the missing connections in advance, e.g. in the background when the application starts
+     *
+     * @param password the password of the database
+     */
+    void warmUp(String password) {
+        while (true) {
+            synchronized (this) {
+                if (idle.size() + inUse.size() + opening >= size) {
+                    return;
+                }
+                ++opening;
+            }
+            SQLiteDatabase reader = null;
+            try {
+                reader = open(password);
+            } finally {
+                synchronized (this) {
+                    --opening;
+                    if (reader != null) {
+                        idle.addLast(reader);
+                    }
+                    notify();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives back a connection taken with {@link #acquire(String)}
+     *
+     * @param reader the connection
+     */
+    synchronized void release(SQLiteDatabase reader) {
+        Long start = inUse.remove(reader);
+        boolean duringFlush = acquiredDuringFlush.remove(reader) || flushesInProgress.get() > 0;
+        if (start != null) {
+            registry.histogram(SQLiteDatabaseHandler.METRIC_READ).record((System.nanoTime() - start) / 1000);
+            if (duringFlush) {
+                registry.counter(SQLiteDatabaseHandler.METRIC_READS_DURING_FLUSH).increment();
+            }
+            idle.addFirst(reader);
+        } else {
+            //The pool was closed while the connection was used
+            reader.close();
+        }
+        notify();
+    }
+
+    private void markInUse(SQLiteDatabase reader) {
+        inUse.put(reader, System.nanoTime());
+        if (flushesInProgress.get() > 0) {
+            acquiredDuringFlush.add(reader);
+        }
+    }
+
+    private SQLiteDatabase open(String password) {
+        //Opened read-write because a read-only connection can't create the shared memory index of the WAL
+        SQLiteDatabase reader = SQLiteDatabase.openDatabase(file.getPath(), password, null, SQLiteDatabase.OPEN_READWRITE);
+        //The ids of the bulk lookups are staged in temporary tables, kept in memory
+        reader.rawExecSQL("PRAGMA temp_store = MEMORY");
+        return reader;
+    }
+
+    /**
+     * Closes the idle connections, the ones in use are closed when they are released.
+     */
+    synchronized void close() {
+        for (SQLiteDatabase reader : idle) {
+            reader.close();
+        }
+        idle.clear();
+        inUse.clear();
+        acquiredDuringFlush.clear();
+        notifyAll();
+    }
+}
@@ -0,0 +1,96 @@
+package ch.epfl.sweng.calamar;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import ch.epfl.sweng.calamar.item.Item;
+import ch.epfl.sweng.calamar.utils.Pair;
+
+/**
+ * The pending operations on the items, also indexed by conversation and by location.
+ */
+final class PendingItems extends PendingOperations<Item> {
+
+    private final Map<Long, TreeMap<Integer, Item>> addedByConversation = new HashMap<>();
+    //Added and updated items having a location
+    private final TreeMap<Integer, Pair<Operation, Item>> localized = new TreeMap<>();
+
+    /**
+     * Returns the added items exchanged between two recipients, in ascending order of id
+     *
+     * @param firstID  the id of one of the recipients
+     * @param secondID the id of the other one
+     * @return a read-only view of the items by id
+     */
+    SortedMap<Integer, Item> getAddedInConversation(int firstID, int secondID) {
+        TreeMap<Integer, Item> conversation = addedByConversation.get(conversationKey(firstID, secondID));
+        if (conversation == null) {
+            return Collections.unmodifiableSortedMap(new TreeMap<Integer, Item>());
+        }
+        return Collections.unmodifiableSortedMap(conversation);
+    }
+
+    /**
+     * Returns the added and updated items having a location, in ascending order of id
+     *
+     * @return a read-only view of the operations by id
+     */
+    SortedMap<Integer, Pair<Operation, Item>> getLocalized() {
+        return Collections.unmodifiableSortedMap(localized);
+    }
+
+    @Override
+    void clear() {
+        super.clear();
+        addedByConversation.clear();
+        localized.clear();
+    }
+
+    @Override
+    protected void onPut(int id, Pair<Operation, Item> pending) {
+        super.onPut(id, pending);
+        Item item = pending.getRight();
+        if (item == null) {
+            return;
+        }
+        if (pending.getLeft() == Operation.ADD) {
+            long key = conversationKey(item.getFrom().getID(), item.getTo().getID());
+            TreeMap<Integer, Item> conversation = addedByConversation.get(key);
+            if (conversation == null) {
+                conversation = new TreeMap<>();
+                addedByConversation.put(key, conversation);
+            }
+            conversation.put(id, item);
+        }
+        if (pending.getLeft() != Operation.DELETE && item.hasLocation()) {
+            localized.put(id, pending);
+        }
+    }
+
+    @Override
+    protected void onRemoved(int id, Pair<Operation, Item> pending) {
+        super.onRemoved(id, pending);
+        Item item = pending.getRight();
+        if (item == null) {
+            return;
+        }
+        if (pending.getLeft() == Operation.ADD) {
+            long key = conversationKey(item.getFrom().getID(), item.getTo().getID());
+            TreeMap<Integer, Item> conversation = addedByConversation.get(key);
+            if (conversation != null) {
+                conversation.remove(id);
+                if (conversation.isEmpty()) {
+                    addedByConversation.remove(key);
+                }
+            }
+        }
+        localized.remove(id);
+    }
+
+    private static long conversationKey(int firstID, int secondID) {
+        return ((long) Math.min(firstID, secondID) << 32) | (Math.max(firstID, secondID) & 0xffffffffL);
+    }
+}
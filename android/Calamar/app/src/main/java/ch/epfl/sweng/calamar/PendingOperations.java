@@ -0,0 +1,128 @@
+package ch.epfl.sweng.calamar;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import ch.epfl.sweng.calamar.utils.Pair;
+
+/**
+ * The operations of the {@link SQLiteDatabaseHandler} not written in the database yet, by id.<br>
+ * The operations are kept in the order of the ids, like the rows read from the database, so that a
+ * read merges them with its cursor without sorting. The added values are indexed so that a read
+ * doesn't go through every pending operation.
+ *
+ * @param <T> the type of the values
+ */
+class PendingOperations<T> {
+
+    enum Operation {ADD, UPDATE, DELETE}
+
+    //Replaced at each change, so that a snapshot is the current map
+    private PersistentIntMap<Pair<Operation, T>> operations = PersistentIntMap.empty();
+    private final TreeMap<Integer, T> added = new TreeMap<>();
+    //Number of ADD and DELETE, which hide the row of the database
+    private int hiding;
+
+    /**
+     * Returns the pending operation on an id
+     *
+     * @param id the id
+     * @return the operation and the value, or null if there is no pending operation
+     */
+    Pair<Operation, T> get(int id) {
+        return operations.get(id);
+    }
+
+    void put(int id, Operation operation, T value) {
+        Pair<Operation, T> pending = new Pair<>(operation, value);
+        Pair<Operation, T> old = operations.get(id);
+        operations = operations.plus(id, pending);
+        if (old != null) {
+            onRemoved(id, old);
+        }
+        onPut(id, pending);
+    }
+
+    /**
+     * Removes the operation on an id if it didn't change since it was read
+     *
+     * @param id      the id
+     * @param pending the operation as it was read
+     */
+    void removeIfSame(int id, Pair<Operation, T> pending) {
+        if (operations.get(id) == pending) {
+            operations = operations.minus(id);
+            onRemoved(id, pending);
+        }
+    }
+
+    void clear() {
+        operations = PersistentIntMap.empty();
+        added.clear();
+        hiding = 0;
+    }
+
+    boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    int size() {
+        return operations.size();
+    }
+
+    /**
+     * Returns the pending operations as they are now, e.g. to write them or to merge them with a read
+     * without holding the lock of the handler. Nothing is copied : the snapshot doesn't see the
+     * later changes, which create new versions of the operations.
+     *
+     * @return a read-only snapshot of the operations by id
+     */
+    Map<Integer, Pair<Operation, T>> snapshot() {
+        return operations;
+    }
+
+    /**
+     * Returns the added values, in ascending order of id
+     *
+     * @return a read-only view of the added values by id
+     */
+    SortedMap<Integer, T> getAdded() {
+        return Collections.unmodifiableSortedMap(added);
+    }
+
+    /**
+     * Returns the number of ids whose row in the database is hidden by an ADD or a DELETE, which is
+     * the maximum number of rows a read may skip
+     *
+     * @return a number of pending operations
+     */
+    int getHidingCount() {
+        return hiding;
+    }
+
+    /**
+     * Called after an operation is put, to index it
+     */
+    protected void onPut(int id, Pair<Operation, T> pending) {
+        if (pending.getLeft() == Operation.ADD) {
+            added.put(id, pending.getRight());
+        }
+        if (pending.getLeft() != Operation.UPDATE) {
+            ++hiding;
+        }
+    }
+
+    /**
+     * Called after an operation is removed or replaced, to remove it from the indexes
+     */
+    protected void onRemoved(int id, Pair<Operation, T> pending) {
+        if (pending.getLeft() == Operation.ADD) {
+            added.remove(id);
+        }
+        if (pending.getLeft() != Operation.UPDATE) {
+            --hiding;
+        }
+    }
+}
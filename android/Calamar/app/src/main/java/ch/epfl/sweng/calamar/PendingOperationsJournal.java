@@ -0,0 +1,263 @@
+package ch.epfl.sweng.calamar;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Append-only journal of the operations waiting in the {@link SQLiteDatabaseHandler}.<br>
+ * Records are appended cheaply to an in-memory queue and written by a background thread, which
+ * groups every record appended during {@link #GROUP_COMMIT_DELAY} ms in a single write and fsync.
+ * Each record is encrypted (the database itself is encrypted, the journal must not leak its content)
+ * and checksummed, so that a record torn by a crash is detected and ends the replay.
+ */
+final class PendingOperationsJournal {
+
+    private static final String TAG = PendingOperationsJournal.class.getSimpleName();
+
+    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+    private static final String KEY_ALGORITHM = "AES";
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+    private static final int IV_LENGTH = 16;
+    private static final int MAX_RECORD_LENGTH = 32 * 1024 * 1024;
+    private static final long GROUP_COMMIT_DELAY = 50;
+
+    private final File file;
+    private final SecretKeySpec key;
+    private final SecureRandom random;
+    private final ScheduledExecutorService writer;
+
+    //fileLock is always taken before queueLock
+    private final Object fileLock = new Object();
+    private final Object queueLock = new Object();
+    private List<JSONObject> queue;
+    private boolean flushScheduled;
+
+    /**
+     * Creates a journal writing to the given file
+     *
+     * @param file the journal file, created if needed
+     * @param key  the AES key used to encrypt the records
+     */
+    PendingOperationsJournal(File file, byte[] key) {
+        this.file = file;
+        this.key = new SecretKeySpec(key, KEY_ALGORITHM);
+        this.random = new SecureRandom();
+        this.writer = Executors.newSingleThreadScheduledExecutor();
+        this.queue = new ArrayList<>();
+        this.flushScheduled = false;
+    }
+
+    /**
+     * Appends a record to the journal. The record is durable only once the next group commit is done.
+     *
+     * @param record the record to append
+     */
+    void append(JSONObject record) {
+        synchronized (queueLock) {
+            queue.add(record);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                writer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, GROUP_COMMIT_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Writes the queued records now and waits until they are on disk.
+     */
+    void sync() {
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, CalamarApplication.getInstance().getString(R.string.journal_write_failed), e);
+        }
+    }
+
+    /**
+     * Reads all valid records of the journal, in the order they were appended.
+     * The reading stops at the first truncated or corrupted record.
+     *
+     * @return the list of records
+     */
+    List<JSONObject> readAll() {
+        List<JSONObject> records = new ArrayList<>();
+        synchronized (fileLock) {
+            if (!file.exists()) {
+                return records;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                while (true) {
+                    int length = in.readInt();
+                    long checksum = in.readLong();
+                    if (length <= IV_LENGTH || length > MAX_RECORD_LENGTH) {
+                        Log.w(TAG, CalamarApplication.getInstance().getString(R.string.journal_corrupted_record, records.size()));
+                        break;
+                    }
+                    byte[] content = new byte[length];
+                    in.readFully(content);
+                    if (checksum(content) != checksum) {
+                        Log.w(TAG, CalamarApplication.getInstance().getString(R.string.journal_corrupted_record, records.size()));
+                        break;
+                    }
+                    records.add(new JSONObject(new String(decrypt(content), UTF8_CHARSET)));
+                }
+            } catch (EOFException e) {
+                //End of the journal, or record torn by a crash
+            } catch (IOException | GeneralSecurityException | JSONException e) {
+                Log.e(TAG, CalamarApplication.getInstance().getString(R.string.journal_read_failed), e);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Empties the journal, dropping the records still waiting to be written.
+     * Must be called once the operations it contains are committed in the database.
+     */
+    void truncate() {
+        synchronized (fileLock) {
+            synchronized (queueLock) {
+                queue.clear();
+            }
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(file, false);
+                out.getFD().sync();
+            } catch (IOException e) {
+                Log.e(TAG, CalamarApplication.getInstance().getString(R.string.journal_write_failed), e);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+    }
+
+    private void flush() {
+        synchronized (fileLock) {
+            List<JSONObject> toWrite;
+            synchronized (queueLock) {
+                toWrite = queue;
+                queue = new ArrayList<>();
+                flushScheduled = false;
+            }
+            if (toWrite.isEmpty()) {
+                return;
+            }
+            long validLength = file.length();
+            FileOutputStream fileOut = null;
+            try {
+                fileOut = new FileOutputStream(file, true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                for (JSONObject record : toWrite) {
+                    byte[] content = encrypt(record.toString().getBytes(UTF8_CHARSET));
+                    out.writeInt(content.length);
+                    out.writeLong(checksum(content));
+                    out.write(content);
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } catch (IOException | GeneralSecurityException e) {
+                Log.e(TAG, CalamarApplication.getInstance().getString(R.string.journal_write_failed), e);
+                //Removes the partially written records and keeps them for the next group commit
+                closeQuietly(fileOut);
+                fileOut = null;
+                restoreLength(validLength);
+                synchronized (queueLock) {
+                    toWrite.addAll(queue);
+                    queue = toWrite;
+                }
+            } finally {
+                closeQuietly(fileOut);
+            }
+        }
+    }
+
+    private void restoreLength(long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, CalamarApplication.getInstance().getString(R.string.journal_write_failed), e);
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private byte[] encrypt(byte[] plain) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        byte[] encrypted = cipher.doFinal(plain);
+        byte[] content = new byte[IV_LENGTH + encrypted.length];
+        System.arraycopy(iv, 0, content, 0, IV_LENGTH);
+        System.arraycopy(encrypted, 0, content, IV_LENGTH, encrypted.length);
+        return content;
+    }
+
+    private byte[] decrypt(byte[] content) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(content, 0, IV_LENGTH));
+        return cipher.doFinal(content, IV_LENGTH, content.length - IV_LENGTH);
+    }
+
+    private static long checksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
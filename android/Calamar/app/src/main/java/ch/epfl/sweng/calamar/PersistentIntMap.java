@@ -0,0 +1,210 @@
+package ch.epfl.sweng.calamar;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map whose keys are ints, changed by creating a new map sharing all its nodes but the
+ * ones on the path of the changed key : the map is a snapshot, taken without copying, which stays
+ * valid while the next versions are created.<br>
+ * The nodes form a trie of 16 children, indexed by 4 bits of the key, so that a change copies 8
+ * nodes whatever the size of the map. The null values aren't supported.
+ *
+ * @param <V> the type of the values
+ */
+final class PersistentIntMap<V> extends AbstractMap<Integer, V> {
+
+    private static final int BITS = 4;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final int LEVELS = Integer.SIZE / BITS;
+    private static final int TOP_SHIFT = Integer.SIZE - BITS;
+
+    private static final PersistentIntMap<Object> EMPTY = new PersistentIntMap<>(null, 0);
+
+    private final Object[] root;
+    private final int size;
+
+    private PersistentIntMap(Object[] root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the empty map
+     *
+     * @return a map without any key
+     */
+    @SuppressWarnings("unchecked")
+    static <V> PersistentIntMap<V> empty() {
+        return (PersistentIntMap<V>) EMPTY;
+    }
+
+    /**
+     * Returns the value of a key, without boxing it
+     *
+     * @param key the key
+     * @return the value, or null if the map doesn't contain the key
+     */
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        Object[] node = root;
+        for (int shift = TOP_SHIFT; node != null; shift -= BITS) {
+            Object child = node[(key >>> shift) & MASK];
+            if (shift == 0) {
+                return (V) child;
+            }
+            node = (Object[]) child;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a map with the given value for the key, this map doesn't change
+     *
+     * @param key   the key
+     * @param value the value, not null
+     * @return the new map
+     */
+    PersistentIntMap<V> plus(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.persistent_map_null_value));
+        }
+        return new PersistentIntMap<V>(set(root, key, value, TOP_SHIFT), get(key) == null ? size + 1 : size);
+    }
+
+    /**
+     * Returns a map without the key, this map doesn't change
+     *
+     * @param key the key
+     * @return the new map, or this one if it doesn't contain the key
+     */
+    PersistentIntMap<V> minus(int key) {
+        if (get(key) == null) {
+            return this;
+        }
+        return size == 1 ? PersistentIntMap.<V>empty() : new PersistentIntMap<V>(set(root, key, null, TOP_SHIFT), size - 1);
+    }
+
+    /**
+     * Copies the nodes on the path of a key, setting its value
+     *
+     * @return the copy of the node, or null if it has no child anymore
+     */
+    private static Object[] set(Object[] node, int key, Object value, int shift) {
+        Object[] copy = node == null ? new Object[WIDTH] : node.clone();
+        int index = (key >>> shift) & MASK;
+        copy[index] = shift == 0 ? value : set((Object[]) copy[index], key, value, shift - BITS);
+        if (copy[index] == null) {
+            for (Object child : copy) {
+                if (child != null) {
+                    return copy;
+                }
+            }
+            return null;
+        }
+        return copy;
+    }
+
+    @Override
+    public V get(Object key) {
+        return key instanceof Integer ? get(((Integer) key).intValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the entries, in ascending order of the keys taken as unsigned
+     *
+     * @return a read-only view of the entries
+     */
+    @Override
+    public Set<Entry<Integer, V>> entrySet() {
+        return new AbstractSet<Entry<Integer, V>>() {
+            @Override
+            public Iterator<Entry<Integer, V>> iterator() {
+                return new EntryIterator<V>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Goes through the trie depth first, keeping the path to the current leaf
+     */
+    private static final class EntryIterator<V> implements Iterator<Entry<Integer, V>> {
+
+        private final Object[][] nodes = new Object[LEVELS][];
+        //The index of the next child to visit in each node of the path
+        private final int[] indexes = new int[LEVELS];
+        private int depth;
+        private Entry<Integer, V> next;
+
+        EntryIterator(Object[] root) {
+            nodes[0] = root;
+            depth = root == null ? -1 : 0;
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                if (indexes[depth] == WIDTH) {
+                    --depth;
+                    continue;
+                }
+                Object child = nodes[depth][indexes[depth]++];
+                if (child == null) {
+                    continue;
+                }
+                if (depth == LEVELS - 1) {
+                    int key = 0;
+                    for (int level = 0; level < LEVELS; ++level) {
+                        key = (key << BITS) | (indexes[level] - 1);
+                    }
+                    next = new SimpleImmutableEntry<>(key, (V) child);
+                    return;
+                }
+                ++depth;
+                nodes[depth] = (Object[]) child;
+                indexes[depth] = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<Integer, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<Integer, V> entry = next;
+            advance();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package ch.epfl.sweng.calamar;
+
+import ch.epfl.sweng.calamar.item.Item;
+
+/**
+ * An item removed by {@link SQLiteDatabaseHandler#applyRetentionPolicy(RetentionPolicy, long)},
+ * with only what is needed to delete its file.
+ */
+public final class RemovedItem {
+
+    private final int id;
+    private final Item.Type type;
+    private final String path;
+
+    RemovedItem(int id, Item.Type type, String path) {
+        this.id = id;
+        this.type = type;
+        this.path = path;
+    }
+
+    public int getID() {
+        return id;
+    }
+
+    public Item.Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the path of the file of the item
+     *
+     * @return the path, or null if the item has no file
+     */
+    public String getPath() {
+        return path;
+    }
+}
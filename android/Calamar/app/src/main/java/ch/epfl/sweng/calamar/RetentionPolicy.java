@@ -0,0 +1,76 @@
+package ch.epfl.sweng.calamar;
+
+/**
+ * The limits on what the local database keeps, applied by
+ * {@link SQLiteDatabaseHandler#applyRetentionPolicy(RetentionPolicy, long)} : the items older than a
+ * maximum age, beyond a number of items per conversation or beyond a size of the database file are
+ * removed, the oldest first. A limit of {@link #NO_LIMIT} is not applied.
+ */
+public final class RetentionPolicy {
+
+    public static final long NO_LIMIT = 0;
+
+    private final long maxAge;
+    private final int maxItemsPerConversation;
+    private final long maxBytes;
+
+    /**
+     * Creates a retention policy
+     *
+     * @param maxAge                  the maximum age of an item in milliseconds, or NO_LIMIT
+     * @param maxItemsPerConversation the maximum number of items of a conversation, or NO_LIMIT
+     * @param maxBytes                the maximum size of the database file in bytes, or NO_LIMIT
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public RetentionPolicy(long maxAge, int maxItemsPerConversation, long maxBytes) {
+        if (maxAge < 0 || maxItemsPerConversation < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.retention_limit_negative));
+        }
+        this.maxAge = maxAge;
+        this.maxItemsPerConversation = maxItemsPerConversation;
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    public int getMaxItemsPerConversation() {
+        return maxItemsPerConversation;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean hasMaxAge() {
+        return maxAge != NO_LIMIT;
+    }
+
+    public boolean hasMaxItemsPerConversation() {
+        return maxItemsPerConversation != NO_LIMIT;
+    }
+
+    public boolean hasMaxBytes() {
+        return maxBytes != NO_LIMIT;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RetentionPolicy)) {
+            return false;
+        }
+        RetentionPolicy that = (RetentionPolicy) o;
+        return maxAge == that.maxAge && maxItemsPerConversation == that.maxItemsPerConversation && maxBytes == that.maxBytes;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (maxAge ^ (maxAge >>> 32));
+        result = 31 * result + maxItemsPerConversation;
+        return 31 * result + (int) (maxBytes ^ (maxBytes >>> 32));
+    }
+}
@@ -1,35 +1,61 @@
 package ch.epfl.sweng.calamar;
 
-import android.content.ContentValues;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 
 import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteException;
 import net.sqlcipher.database.SQLiteOpenHelper;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.epfl.sweng.calamar.PendingOperations.Operation;
 import ch.epfl.sweng.calamar.condition.Condition;
+import ch.epfl.sweng.calamar.condition.LazyCondition;
 import ch.epfl.sweng.calamar.item.FileItem;
 import ch.epfl.sweng.calamar.item.ImageItem;
 import ch.epfl.sweng.calamar.item.Item;
 import ch.epfl.sweng.calamar.item.SimpleTextItem;
 import ch.epfl.sweng.calamar.recipient.Recipient;
 import ch.epfl.sweng.calamar.recipient.User;
+import ch.epfl.sweng.calamar.utils.MetricsRegistry;
 import ch.epfl.sweng.calamar.utils.Pair;
-import ch.epfl.sweng.calamar.utils.Sorter;
 
 
 public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
 
+    private static final String TAG = SQLiteDatabaseHandler.class.getSimpleName();
+
     private static final String ITEMS_TABLE = "tb_Items";
     private static final String ITEMS_KEY_TYPE = "type";
     private static final String ITEMS_KEY_ID = "id";
@@ -40,40 +66,186 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
     private static final String ITEMS_KEY_TEXT = "text";
     private static final String ITEMS_KEY_DATA = "data";
     private static final String ITEMS_KEY_PATH = "path";
-    private static final String[] ITEMS_COLUMNS = {ITEMS_KEY_TYPE, ITEMS_KEY_ID, ITEMS_KEY_FROM, ITEMS_KEY_TO, ITEMS_KEY_TIME, ITEMS_KEY_CONDITION, ITEMS_KEY_TEXT, ITEMS_KEY_DATA, ITEMS_KEY_PATH};
+    //Smallest and biggest id of the two participants, the same for both directions of a conversation
+    private static final String ITEMS_KEY_LOW_ID = "low_id";
+    private static final String ITEMS_KEY_HIGH_ID = "high_id";
+    //Location of the position condition of the item, null if it has none
+    private static final String ITEMS_KEY_LATITUDE = "latitude";
+    private static final String ITEMS_KEY_LONGITUDE = "longitude";
+    private static final String ITEMS_KEY_RADIUS = "radius";
+    //1 once the condition of the item is fulfilled, so that it is rebuilt unlocked
+    private static final String ITEMS_KEY_UNLOCKED = "unlocked";
+    //Type of the root of the condition, so that the condition is only parsed when needed
+    private static final String ITEMS_KEY_CONDITION_TYPE = "condition_type";
+    //Every column but the data, which is read only when the item is displayed
+    private static final String[] ITEMS_HEADER_COLUMNS = {ITEMS_KEY_TYPE, ITEMS_KEY_ID, ITEMS_KEY_FROM, ITEMS_KEY_TO, ITEMS_KEY_TIME, ITEMS_KEY_CONDITION, ITEMS_KEY_TEXT, ITEMS_KEY_PATH, ITEMS_KEY_UNLOCKED, ITEMS_KEY_CONDITION_TYPE, ITEMS_KEY_LATITUDE, ITEMS_KEY_LONGITUDE};
+    private static final String ITEMS_CONVERSATION_INDEX = "idx_Items_conversation";
+    private static final String ITEMS_LOCATION_INDEX = "idx_Items_location";
+    //The files are stored once per content, the items sharing one are counted with this index
+    private static final String ITEMS_PATH_INDEX = "idx_Items_path";
+
+    private static final String CONDITION_KEY_TYPE = "type";
+    private static final String CONDITION_KEY_LEFT = "a";
+    private static final String CONDITION_KEY_RIGHT = "b";
+    private static final String CONDITION_KEY_VALUE = "val";
+    private static final String CONDITION_KEY_LATITUDE = "latitude";
+    private static final String CONDITION_KEY_LONGITUDE = "longitude";
+    private static final String CONDITION_KEY_RADIUS = "radius";
+
+    //One row per conversation, kept up to date by triggers on the items table
+    private static final String CONVERSATIONS_TABLE = "tb_Conversations";
+    private static final String CONVERSATIONS_KEY_LOW_ID = "low_id";
+    private static final String CONVERSATIONS_KEY_HIGH_ID = "high_id";
+    private static final String CONVERSATIONS_KEY_COUNT = "item_count";
+    //Items sent by the recipient low_id (resp. high_id) after the last read item
+    private static final String CONVERSATIONS_KEY_UNREAD_LOW = "unread_low";
+    private static final String CONVERSATIONS_KEY_UNREAD_HIGH = "unread_high";
+    private static final String CONVERSATIONS_KEY_LAST_READ_ID = "last_read_id";
+    private static final String CONVERSATIONS_KEY_LAST_ID = "last_id";
+    private static final String CONVERSATIONS_KEY_LAST_TIME = "last_time";
+    private static final String CONVERSATIONS_KEY_LAST_TEXT = "last_text";
+    private static final String[] CONVERSATIONS_COLUMNS = {CONVERSATIONS_KEY_LOW_ID, CONVERSATIONS_KEY_HIGH_ID, CONVERSATIONS_KEY_COUNT,
+            CONVERSATIONS_KEY_UNREAD_LOW, CONVERSATIONS_KEY_UNREAD_HIGH, CONVERSATIONS_KEY_LAST_ID, CONVERSATIONS_KEY_LAST_TIME, CONVERSATIONS_KEY_LAST_TEXT};
+
+    //Full-text index of the text of the items, reading the text from tb_Items (docid = id)
+    private static final String SEARCH_TABLE = "tb_ItemsSearch";
 
     private static final String RECIPIENTS_TABLE = "tb_Recipients";
     private static final String RECIPIENTS_KEY_ID = "id";
     private static final String RECIPIENTS_KEY_NAME = "name";
     private static final String[] RECIPIENTS_COLUMN = {RECIPIENTS_KEY_ID, RECIPIENTS_KEY_NAME};
 
-    protected static final int DATABASE_VERSION = 5;
+    //Items are read with the names of their sender and receiver, instead of two queries per row
+    private static final String ITEMS_QUALIFIED_ID = ITEMS_TABLE + "." + ITEMS_KEY_ID;
+    private static final String SENDERS_ALIAS = "sender";
+    private static final String RECEIVERS_ALIAS = "receiver";
+    private static final String ITEMS_SELECT = createItemsSelect(true);
+    //The pending operations are written with precompiled statements, the data is the last parameter
+    private static final String[] ITEMS_WRITE_COLUMNS = {ITEMS_KEY_TYPE, ITEMS_KEY_ID, ITEMS_KEY_FROM, ITEMS_KEY_TO, ITEMS_KEY_LOW_ID, ITEMS_KEY_HIGH_ID, ITEMS_KEY_TIME, ITEMS_KEY_CONDITION, ITEMS_KEY_TEXT, ITEMS_KEY_PATH, ITEMS_KEY_LATITUDE, ITEMS_KEY_LONGITUDE, ITEMS_KEY_RADIUS, ITEMS_KEY_UNLOCKED, ITEMS_KEY_CONDITION_TYPE};
+    private static final String ITEMS_HEADER_SELECT = createItemsSelect(false);
+
+    private static final String ITEMS_REPLACE = createReplace(ITEMS_TABLE, ITEMS_WRITE_COLUMNS, ITEMS_KEY_DATA);
+    private static final String ITEMS_UPDATE = createUpdate(ITEMS_TABLE, ITEMS_WRITE_COLUMNS, ITEMS_KEY_DATA, ITEMS_KEY_ID);
+    private static final String ITEMS_UPDATE_WITHOUT_DATA = createUpdate(ITEMS_TABLE, ITEMS_WRITE_COLUMNS, null, ITEMS_KEY_ID);
+    private static final String RECIPIENTS_REPLACE = createReplace(RECIPIENTS_TABLE, RECIPIENTS_COLUMN, null);
+    private static final String RECIPIENTS_UPDATE = createUpdate(RECIPIENTS_TABLE, RECIPIENTS_COLUMN, null, RECIPIENTS_KEY_ID);
+
+    //The ids of a bulk lookup or delete are staged in a temporary table instead of a list of placeholders
+    private static final String LOOKUP_TABLE = "tb_Lookup";
+    private static final String LOOKUP_KEY_ID = "id";
+    private static final String LOOKUP_SELECT = "SELECT " + LOOKUP_KEY_ID + " FROM temp." + LOOKUP_TABLE;
+
+    //Name of a snapshot file while it is attached to the writer connection
+    private static final String SNAPSHOT_SCHEMA = "snapshot";
+    private static final String SNAPSHOT_COPY_RECIPIENTS = createSnapshotCopy(RECIPIENTS_TABLE, RECIPIENTS_COLUMN, null);
+    private static final String SNAPSHOT_COPY_ITEMS = createSnapshotCopy(ITEMS_TABLE, ITEMS_WRITE_COLUMNS, ITEMS_KEY_DATA);
+    private static final String SNAPSHOT_COPY_CONVERSATIONS = createSnapshotCopy(CONVERSATIONS_TABLE, CONVERSATIONS_COLUMNS, CONVERSATIONS_KEY_LAST_READ_ID);
+
+    protected static final int DATABASE_VERSION = 13;
     private static final String DATABASE_NAME = "CalamarDB";
 
-    private static final int MAX_PLACEHOLDERS_COUNT = 99;
+    //Past MAX_PENDING_OPERATIONS a flush is queued in the background, past BLOCKING_PENDING_OPERATIONS the producers flush themselves
+    private static final int MAX_PENDING_OPERATIONS = 1000;
+    private static final int BLOCKING_PENDING_OPERATIONS = 2 * MAX_PENDING_OPERATIONS;
+    private static final int READER_CONNECTIONS = 2;
+    //Rows written between two commits of a flush
+    private static final int WRITE_CHUNK_SIZE = 500;
+    //Pages given back to the file system by a step of the compaction, 1 MB with the default page size
+    private static final int VACUUM_STEP_PAGES = 256;
+    //Steps of the compaction after a run of the retention policy
+    private static final int MAX_VACUUM_STEPS = 16;
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+    //Initial capacity of the queue of the best matches of a search, it grows for the deep pages
+    private static final int RANKED_MATCHES_CAPACITY = 256;
+    private static final long NANOS_PER_MICRO = 1000;
+
+    //Names of the metrics in the MetricsRegistry, a read records <name>.latency_us, <name>.rows and <name>.scanned
+    public static final String METRIC_GET_ITEM = "db.getItem";
+    public static final String METRIC_COUNT_REFERENCES = "db.countReferences";
+    public static final String METRIC_GET_ITEMS = "db.getItems";
+    public static final String METRIC_GET_ITEMS_FOR_CONTACT = "db.getItemsForContact";
+    public static final String METRIC_GET_ITEMS_PAGE = "db.getItemsForContactPage";
+    public static final String METRIC_GET_ALL_ITEMS = "db.getAllItems";
+    public static final String METRIC_GET_LOCALIZED_ITEMS = "db.getLocalizedItems";
+    public static final String METRIC_GET_RECIPIENT = "db.getRecipient";
+    public static final String METRIC_GET_RECIPIENTS = "db.getRecipients";
+    public static final String METRIC_GET_ALL_RECIPIENTS = "db.getAllRecipients";
+    public static final String METRIC_SEARCH_ITEMS = "db.searchItems";
+    public static final String METRIC_LATENCY = ".latency_us";
+    public static final String METRIC_ROWS = ".rows";
+    public static final String METRIC_SCANNED = ".scanned";
+    public static final String METRIC_LOCK_WAIT = "db.lock_wait_us";
+    public static final String METRIC_FLUSH_DURATION = "db.flush.duration_us";
+    public static final String METRIC_FLUSH_ROWS = "db.flush.rows";
+    public static final String METRIC_FLUSH_WRITE = "db.flush.write_us";
+    public static final String METRIC_FLUSHING = "db.flush.in_progress";
+    public static final String METRIC_READ = "db.reader.read_us";
+    public static final String METRIC_READS_DURING_FLUSH = "db.reader.during_flush";
+    public static final String METRIC_READER_WAIT = "db.reader.wait_us";
+    public static final String METRIC_PENDING_ITEMS = "db.pending.items";
+    public static final String METRIC_PENDING_RECIPIENTS = "db.pending.recipients";
+    public static final String METRIC_PENDING_STAGED = "db.pending.staged";
+    public static final String METRIC_PENDING_BLOCKED = "db.pending.blocked";
+
+    private static final String JOURNAL_NAME = "CalamarDB.journal";
+    private static final String JOURNAL_KEY_TARGET = "target";
+    private static final String JOURNAL_KEY_OPERATION = "operation";
+    private static final String JOURNAL_KEY_ID = "id";
+    private static final String JOURNAL_KEY_VALUE = "value";
+    private static final String JOURNAL_KEY_TYPE = "type";
+    private static final String JOURNAL_KEY_PATH = "path";
+    private static final String JOURNAL_KEY_TIME = "time";
+    private static final String JOURNAL_TARGET_ITEM = "item";
+    private static final String JOURNAL_TARGET_RECIPIENT = "recipient";
+    private static final String JOURNAL_TARGET_TIME = "time";
+    private static final String JOURNAL_CLEAR = "CLEAR";
 
     private static CalamarApplication app;
     private static SQLiteDatabaseHandler instance;
 
     private static long lastItemTime;
 
-    private final Map<Integer, Pair<Operation, Item>> pendingItems;
-    private final Map<Integer, Pair<Operation, Recipient>> pendingRecipients;
-    private final String FULL_PLACEHOLDERS;
+    private final PendingItems pendingItems;
+    private final PendingOperations<Recipient> pendingRecipients;
+    //Staged by any thread without the lock, drained to the pending operations by the reads and the flushes
+    private final StagedOperations staging;
+    //Held only to stage an operation with its journal record, so that the journal is in the order of the staging
+    private final Object stagingLock = new Object();
+    //Size of the pending operations after the last drain or flush, read without the lock
+    private volatile int pendingCount;
+    private final PendingOperationsJournal journal;
+
+    private final FileItem.DataLoader dataLoader;
+
+    //db is the only connection writing, it is used only by the writer thread
+    private final ExecutorService writer;
+    //Runs the flushes triggered by too many pending operations, so that the producers never wait for them
+    private final ExecutorService flusher;
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final DatabaseReaderPool readers;
+    //The flushes waiting for their write, the reads overlapping them are counted
+    private final AtomicInteger flushesInProgress = new AtomicInteger();
+    private final MetricsRegistry registry;
+    //The ids of the locked items whose unlocking is observed, an item is observed once
+    private final Set<Integer> watchedUnlocks = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    //Read once from the secure preferences, every connection of the session is keyed with it
+    private final String password;
 
     private SQLiteDatabase db;
-
-    private enum Operation {ADD, UPDATE, DELETE}
+    private boolean replaying;
+    //Last write queued by queueWrite, guarded by the lock of the handler
+    private Future<?> lastWrite;
 
     /**
-     * Returns the current and only instance of SQLiteDatabaseHandler
+     * Returns the current and only instance of SQLiteDatabaseHandler. The libraries of SQLCipher must
+     * be loaded, which {@link DatabaseOpener} does before opening it.
      *
      * @return the DatabaseHandler
      */
-    public static SQLiteDatabaseHandler getInstance() {
+    public static synchronized SQLiteDatabaseHandler getInstance() {
         if (instance == null) {
             app = CalamarApplication.getInstance();
-            SQLiteDatabase.loadLibs(app);
             instance = new SQLiteDatabaseHandler();
         }
         return instance;
@@ -85,15 +257,57 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
     private SQLiteDatabaseHandler() {
         super(app, DATABASE_NAME, null, DATABASE_VERSION);
         lastItemTime = app.getLastItemsRefresh().getTime();
-        db = getReadableDatabase(app.getCurrentUser().getPassword());
-        this.pendingRecipients = new HashMap<>();
-        this.pendingItems = new HashMap<>();
-        this.FULL_PLACEHOLDERS = createPlaceholders(MAX_PLACEHOLDERS_COUNT);
-
+        password = app.getCurrentUser().getPassword();
+        db = getWritableDatabase(password);
+        this.writer = Executors.newSingleThreadExecutor();
+        this.flusher = Executors.newSingleThreadExecutor();
+        this.readers = new DatabaseReaderPool(app.getDatabasePath(DATABASE_NAME), READER_CONNECTIONS, flushesInProgress);
+        this.pendingRecipients = new PendingOperations<>();
+        this.pendingItems = new PendingItems();
+        this.staging = new StagedOperations();
+        this.registry = MetricsRegistry.getInstance();
+        registry.gauge(METRIC_PENDING_ITEMS, new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                synchronized (SQLiteDatabaseHandler.this) {
+                    return pendingItems.size();
+                }
+            }
+        });
+        registry.gauge(METRIC_PENDING_STAGED, new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return staging.size();
+            }
+        });
+        registry.gauge(METRIC_FLUSHING, new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return flushesInProgress.get();
+            }
+        });
+        registry.gauge(METRIC_PENDING_RECIPIENTS, new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                synchronized (SQLiteDatabaseHandler.this) {
+                    return pendingRecipients.size();
+                }
+            }
+        });
+        this.dataLoader = new FileItem.DataLoader() {
+            @Override
+            public byte[] load(int itemID) {
+                return loadItemData(itemID);
+            }
+        };
+        this.journal = new PendingOperationsJournal(new File(app.getFilesDir(), JOURNAL_NAME), app.getJournalKey());
+        replayJournal();
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        //Must be set before the first table is created, the free pages are then given back by incremental_vacuum
+        db.rawExecSQL("PRAGMA auto_vacuum = INCREMENTAL");
         final String createMessagesTable = "CREATE TABLE " + ITEMS_TABLE + " ("
                 + ITEMS_KEY_TYPE + " TEXT NOT NULL,"
                 + ITEMS_KEY_ID + " INTEGER PRIMARY KEY NOT NULL,"
@@ -103,33 +317,95 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
                 + ITEMS_KEY_CONDITION + " TEXT NOT NULL, "
                 + ITEMS_KEY_TEXT + " TEXT, "
                 + ITEMS_KEY_DATA + " BLOB, "
-                + ITEMS_KEY_PATH + " TEXT)";
+                + ITEMS_KEY_PATH + " TEXT, "
+                + ITEMS_KEY_LOW_ID + " INTEGER NOT NULL, "
+                + ITEMS_KEY_HIGH_ID + " INTEGER NOT NULL, "
+                + ITEMS_KEY_LATITUDE + " REAL, "
+                + ITEMS_KEY_LONGITUDE + " REAL, "
+                + ITEMS_KEY_RADIUS + " REAL, "
+                + ITEMS_KEY_UNLOCKED + " INTEGER NOT NULL DEFAULT 0, "
+                + ITEMS_KEY_CONDITION_TYPE + " TEXT)";
         db.execSQL(createMessagesTable);
+        final String createConversationIndex = "CREATE INDEX " + ITEMS_CONVERSATION_INDEX + " ON " + ITEMS_TABLE + " ("
+                + ITEMS_KEY_LOW_ID + ", " + ITEMS_KEY_HIGH_ID + ", " + ITEMS_KEY_ID + ")";
+        db.execSQL(createConversationIndex);
+        //Most items have no location, they are left out of the index
+        final String createLocationIndex = "CREATE INDEX " + ITEMS_LOCATION_INDEX + " ON " + ITEMS_TABLE + " ("
+                + ITEMS_KEY_LATITUDE + ", " + ITEMS_KEY_LONGITUDE + ") WHERE " + ITEMS_KEY_LATITUDE + " IS NOT NULL";
+        db.execSQL(createLocationIndex);
+        final String createPathIndex = "CREATE INDEX " + ITEMS_PATH_INDEX + " ON " + ITEMS_TABLE + " ("
+                + ITEMS_KEY_PATH + ") WHERE " + ITEMS_KEY_PATH + " IS NOT NULL";
+        db.execSQL(createPathIndex);
         final String createRecipientsTable = "CREATE TABLE " + RECIPIENTS_TABLE + " ("
                 + RECIPIENTS_KEY_ID + " INTEGER PRIMARY KEY NOT NULL,"
                 + RECIPIENTS_KEY_NAME + " TEXT NOT NULL)";
         db.execSQL(createRecipientsTable);
+        for (String statement : createConversationsSchema()) {
+            db.execSQL(statement);
+        }
+        for (String statement : createSearchSchema()) {
+            db.execSQL(statement);
+        }
         lastItemTime = 0;
         app.resetLastItemsRefresh();
         app.resetLastUsersRefresh();
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        //Write-ahead logging, so that the readers don't wait for the transactions of the writer
+        Cursor cursor = db.rawQuery("PRAGMA journal_mode = WAL", null);
+        cursor.moveToFirst();
+        cursor.close();
+        db.rawExecSQL("PRAGMA temp_store = MEMORY");
+        //Otherwise the rows replaced by INSERT OR REPLACE don't go through the delete trigger of the conversations
+        db.rawExecSQL("PRAGMA recursive_triggers = ON");
+        //A database migrated to incremental vacuum is rewritten once, VACUUM can't run in the transaction of the migration
+        if (pragma(db, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            db.rawExecSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.rawExecSQL("VACUUM");
+        }
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        //TODO only recreates db at the moment
-        db.execSQL("DROP TABLE IF EXISTS " + ITEMS_TABLE);
-        db.execSQL("DROP TABLE IF EXISTS " + RECIPIENTS_TABLE);
-        onCreate(db);
+        if (DatabaseMigrations.canMigrate(oldVersion, newVersion)) {
+            DatabaseMigrations.migrate(db, oldVersion, newVersion);
+        } else {
+            //Too old to be migrated, everything will be downloaded again
+            db.execSQL("DROP TABLE IF EXISTS " + ITEMS_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + RECIPIENTS_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + CONVERSATIONS_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + SEARCH_TABLE);
+            onCreate(db);
+        }
     }
 
     /**
      * Deletes all items in the database
      */
-    public synchronized void deleteAllItems() {
-        pendingItems.clear();
-        db = getWritableIfNotOpen();
-        db.delete(ITEMS_TABLE, null, null);
-        app.setLastItemsRefresh(lastItemTime);
+    public void deleteAllItems() {
+        Future<?> deleted;
+        long time;
+        synchronized (this) {
+            synchronized (stagingLock) {
+                drainStaged();
+                pendingItems.clear();
+                journalClear(JOURNAL_TARGET_ITEM);
+                watchedUnlocks.clear();
+            }
+            pendingCount = pendingItems.size() + pendingRecipients.size();
+            deleted = queueWrite(new Runnable() {
+                @Override
+                public void run() {
+                    db = getWritableIfNotOpen();
+                    db.delete(ITEMS_TABLE, null, null);
+                }
+            });
+            time = lastItemTime;
+        }
+        await(deleted);
+        app.setLastItemsRefresh(time);
     }
 
     /**
@@ -137,7 +413,7 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param message the item to delete
      */
-    public synchronized void deleteItem(Item message) {
+    public void deleteItem(Item message) {
         deleteItem(message.getID());
     }
 
@@ -146,8 +422,9 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param id the id of the item
      */
-    public synchronized void deleteItem(int id) {
-        pendingItems.put(id, new Pair<Operation, Item>(Operation.DELETE, null));
+    public void deleteItem(int id) {
+        stageItem(Operation.DELETE, id, null);
+        applyIfTooManyPending();
     }
 
     /**
@@ -155,10 +432,11 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param ids the ids of the items to delete
      */
-    public synchronized void deleteItems(List<Integer> ids) {
+    public void deleteItems(List<Integer> ids) {
         for (Integer i : ids) {
-            pendingItems.put(i, new Pair<Operation, Item>(Operation.DELETE, null));
+            stageItem(Operation.DELETE, i, null);
         }
+        applyIfTooManyPending();
     }
 
     /**
@@ -166,7 +444,7 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param recipient the contact to delete the conversation with
      */
-    public synchronized void deleteItemsForContact(Recipient recipient) {
+    public void deleteItemsForContact(Recipient recipient) {
         deleteItemsForContact(recipient.getID());
     }
 
@@ -175,11 +453,11 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param id the id of the contact to delete the conversation with
      */
-    public synchronized void deleteItemsForContact(int id) {
-        List<Item> items = getItemsForContact(id);
-        for (Item i : items) {
-            pendingItems.put(i.getID(), new Pair<Operation, Item>(Operation.DELETE, null));
+    public void deleteItemsForContact(int id) {
+        for (int itemID : getItemIDsForContact(id)) {
+            stageItem(Operation.DELETE, itemID, null);
         }
+        applyIfTooManyPending();
     }
 
     /**
@@ -187,9 +465,9 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param item the item to add
      */
-    public synchronized void addItem(Item item) {
-        pendingItems.put(item.getID(), new Pair<>(Operation.ADD, item));
-        addOrUpdateRecipientWithItem(item);
+    public void addItem(Item item) {
+        stageItem(Operation.ADD, item.getID(), item);
+        applyIfTooManyPending();
     }
 
     /**
@@ -197,11 +475,11 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param items the list of items to add
      */
-    public synchronized void addItems(List<Item> items) {
+    public void addItems(List<Item> items) {
         for (Item item : items) {
-            pendingItems.put(item.getID(), new Pair<>(Operation.ADD, item));
-            addOrUpdateRecipientWithItem(item);
+            stageItem(Operation.ADD, item.getID(), item);
         }
+        applyIfTooManyPending();
     }
 
 
@@ -210,8 +488,9 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param item the item to update
      */
-    public synchronized void updateItem(Item item) {
-        manageItemUpdate(item);
+    public void updateItem(Item item) {
+        stageItem(Operation.UPDATE, item.getID(), item);
+        applyIfTooManyPending();
     }
 
     /**
@@ -220,10 +499,11 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      * @param items the list of items to update
      */
 
-    public synchronized void updateItems(List<Item> items) {
+    public void updateItems(List<Item> items) {
         for (Item item : items) {
-            manageItemUpdate(item);
+            stageItem(Operation.UPDATE, item.getID(), item);
         }
+        applyIfTooManyPending();
     }
 
 
@@ -233,31 +513,37 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      * @param id the id of the item to retrieve
      * @return the item, or null
      */
-    public synchronized Item getItem(int id) {
-        Pair<Operation, Item> fromPending = pendingItems.get(id);
+    public Item getItem(int id) {
+        ReadSnapshot read = startRead();
+        Pair<Operation, Item> fromPending = read.items.get(id);
         if (fromPending != null) {
             switch (fromPending.getLeft()) {
                 case ADD:
-                    return fromPending.getRight();
+                    return endRead(METRIC_GET_ITEM, read, fromPending.getRight());
                 case DELETE:
-                    return null;
+                    return endRead(METRIC_GET_ITEM, read, null);
                 case UPDATE:
             }
         }
         Item toReturn = null;
-        db = getReadableIfNotOpen();
-        String[] args = {Integer.toString(id)};
-        Cursor cursor = db.query(ITEMS_TABLE, ITEMS_COLUMNS, ITEMS_KEY_ID + " = ?", args, null, null, null, null);
-        if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                toReturn = createItem(cursor);
+        SQLiteDatabase reader = acquireReader();
+        try {
+            String[] args = {Integer.toString(id)};
+            Cursor cursor = queryItems(reader, ITEMS_QUALIFIED_ID + " = ?", args, null, null, true);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    ++read.scannedRows;
+                    toReturn = createItem(cursor, read);
+                }
+                cursor.close();
             }
-            cursor.close();
-        }
-        if (toReturn != null && fromPending != null && fromPending.getLeft() == Operation.UPDATE) {
-            toReturn = fromPending.getRight();
+            if (toReturn != null && fromPending != null && fromPending.getLeft() == Operation.UPDATE) {
+                toReturn = fromPending.getRight();
+            }
+        } finally {
+            releaseReader(reader);
         }
-        return toReturn;
+        return endRead(METRIC_GET_ITEM, read, toReturn);
     }
 
     /**
@@ -266,71 +552,23 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      * @param ids the ids corresponding to the items
      * @return the items
      */
-    public synchronized List<Item> getItems(List<Integer> ids) {
-        List<Integer> databaseIds = new ArrayList<>(ids);
-        Set<Item> items = new HashSet<>();
-        Set<Item> toUpdate = new HashSet<>();
-        for (Integer i : ids) {
-            Pair<Operation, Item> fromPending = pendingItems.get(i);
-            if (fromPending != null) {
-                switch (fromPending.getLeft()) {
-                    case ADD:
-                        items.add(fromPending.getRight());
-                        databaseIds.remove(i);
-                        break;
-                    case UPDATE:
-                        toUpdate.add(fromPending.getRight());
-                        break;
-                    case DELETE:
-                        databaseIds.remove(i);
-                        break;
-                }
+    public List<Item> getItems(List<Integer> ids) {
+        ReadSnapshot read = startRead();
+        TreeMap<Integer, Item> added = new TreeMap<>();
+        for (Integer id : ids) {
+            Pair<Operation, Item> fromPending = read.items.get(id);
+            if (fromPending != null && fromPending.getLeft() == Operation.ADD) {
+                added.put(id, fromPending.getRight());
             }
         }
-        if (databaseIds.isEmpty()) {
-            return Sorter.sortItemList(new ArrayList<>(items));
-        }
-        db = getReadableIfNotOpen();
-        if (databaseIds.size() > MAX_PLACEHOLDERS_COUNT) {
-            int count = databaseIds.size();
-            while (count > 0) {
-                int num = count - MAX_PLACEHOLDERS_COUNT > 0 ? MAX_PLACEHOLDERS_COUNT : count;
-                String[] args = new String[num];
-                for (int i = 0; i < num; ++i) {
-                    args[i] = Integer.toString(databaseIds.get(i + (databaseIds.size() - count)));
-                }
-                Cursor cursor;
-                if (num == MAX_PLACEHOLDERS_COUNT) {
-                    cursor = db.query(ITEMS_TABLE, ITEMS_COLUMNS, ITEMS_KEY_ID + " IN (" + FULL_PLACEHOLDERS + ")", args, null, null, ITEMS_KEY_ID);
-                } else {
-                    cursor = db.query(ITEMS_TABLE, ITEMS_COLUMNS, ITEMS_KEY_ID + " IN (" + createPlaceholders(num) + ")", args, null, null, ITEMS_KEY_ID);
-                }
-                if (cursor != null) {
-                    boolean hasNext = cursor.moveToFirst();
-                    while (hasNext) {
-                        items.add(createItem(cursor));
-                        hasNext = cursor.moveToNext();
-                    }
-                    cursor.close();
-                }
-                count -= num;
-            }
-        } else {
-            String[] args = new String[databaseIds.size()];
-            for (int i = 0; i < databaseIds.size(); ++i) {
-                args[i] = Integer.toString(databaseIds.get(i));
-            }
-            Cursor cursor = db.query(ITEMS_TABLE, ITEMS_COLUMNS, ITEMS_KEY_ID + " IN (" + createPlaceholders(databaseIds.size()) + ")", args, null, null, ITEMS_KEY_ID);
-            if (cursor != null) {
-                boolean hasNext = cursor.moveToFirst();
-                while (hasNext) {
-                    items.add(createItem(cursor));
-                    hasNext = cursor.moveToNext();
-                }
-                cursor.close();
-            }
+        SQLiteDatabase reader = acquireReader();
+        try {
+            stageIds(reader, ids);
+            Cursor cursor = queryItems(reader, ITEMS_QUALIFIED_ID + " IN (" + LOOKUP_SELECT + ")", null, ITEMS_QUALIFIED_ID, null, true);
+            return endRead(METRIC_GET_ITEMS, read, mergeWithPending(cursor, added.values(), false, true, Integer.MAX_VALUE, read));
+        } finally {
+            releaseReader(reader);
         }
-        return Sorter.sortItemList(new ArrayList<>(updateGetItemsFromPending(items, toUpdate)));
     }
 
     /**
@@ -339,7 +577,7 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      * @param recipient The contact
      * @return a list of items
      */
-    public synchronized List<Item> getItemsForContact(Recipient recipient) {
+    public List<Item> getItemsForContact(Recipient recipient) {
         return getItemsForContact(recipient.getID());
     }
 
@@ -349,48 +587,61 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      * @param contactID The contact
      * @return a list of items
      */
-    public synchronized List<Item> getItemsForContact(int contactID) {
-        Set<Integer> mapIds = new HashSet<>();
-        Set<Item> items = new HashSet<>();
-        Set<Item> toUpdate = new HashSet<>();
+    public List<Item> getItemsForContact(int contactID) {
         int userID = app.getCurrentUserID();
-        for (Map.Entry<Integer, Pair<Operation, Item>> e : pendingItems.entrySet()) {
-            Pair<Operation, Item> p = e.getValue();
-            switch (p.getLeft()) {
-                case ADD:
-                    mapIds.add(e.getKey());
-                    Item i = p.getRight();
-                    int itemFromID = i.getFrom().getID();
-                    int itemToID = i.getTo().getID();
-                    if ((itemFromID == userID && itemToID == contactID) || (itemFromID == contactID && itemToID == userID)) {
-                        items.add(i);
-                    }
-                    break;
-                case UPDATE:
-                    toUpdate.add(p.getRight());
-                    break;
-                case DELETE:
-                    mapIds.add(e.getKey());
-                    break;
-            }
+        long requested = System.nanoTime();
+        ReadSnapshot read;
+        List<Item> added;
+        synchronized (this) {
+            read = startRead(requested);
+            added = new ArrayList<>(pendingItems.getAddedInConversation(userID, contactID).values());
         }
-        db = getReadableIfNotOpen();
-        int currentUserID = app.getCurrentUserID();
-        String[] args = {Integer.toString(currentUserID), Integer.toString(contactID), Integer.toString(currentUserID), Integer.toString(contactID)};
-        Cursor cursor = db.query(ITEMS_TABLE, ITEMS_COLUMNS, "( " + ITEMS_KEY_FROM + " = ? AND " + ITEMS_KEY_TO + " = ? ) OR ( " + ITEMS_KEY_TO + " = ? AND " + ITEMS_KEY_FROM + " = ? ) ", args, null, null, ITEMS_KEY_ID + " ASC");
-        boolean hasNext;
-        if (cursor != null) {
-            hasNext = cursor.moveToFirst();
-            while (hasNext) {
-                if (!mapIds.contains(cursor.getInt(1))) {
-                    Item item = createItem(cursor);
-                    items.add(item);
-                }
-                hasNext = cursor.moveToNext();
-            }
-            cursor.close();
+        SQLiteDatabase reader = acquireReader();
+        try {
+            String[] args = {Integer.toString(Math.min(userID, contactID)), Integer.toString(Math.max(userID, contactID))};
+            Cursor cursor = queryItems(reader, ITEMS_KEY_LOW_ID + " = ? AND " + ITEMS_KEY_HIGH_ID + " = ?", args, ITEMS_QUALIFIED_ID + " ASC", null, false);
+            return endRead(METRIC_GET_ITEMS_FOR_CONTACT, read, mergeWithPending(cursor, added, false, true, Integer.MAX_VALUE, read));
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Returns a page of the messages (items) exchanged between the current user and a recipient :
+     * the most recent items older than a given item (keyset pagination on the id).
+     *
+     * @param contactID The contact
+     * @param beforeID  Only the items with a smaller id are returned, Integer.MAX_VALUE for the most recent page
+     * @param limit     The maximum number of items returned
+     * @return a list of at most limit items, in ascending order
+     */
+    public List<Item> getItemsForContact(int contactID, int beforeID, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException(app.getString(R.string.page_limit_not_positive, limit));
+        }
+        int userID = app.getCurrentUserID();
+        long requested = System.nanoTime();
+        ReadSnapshot read;
+        List<Item> added;
+        int hiding;
+        synchronized (this) {
+            read = startRead(requested);
+            added = new ArrayList<>(pendingItems.getAddedInConversation(userID, contactID).headMap(beforeID).values());
+            hiding = pendingItems.getHidingCount();
+        }
+        Collections.reverse(added);
+        SQLiteDatabase reader = acquireReader();
+        try {
+            //Rows hidden by the pending operations are skipped, so fetch enough rows to fill the page anyway
+            String[] args = {Integer.toString(Math.min(userID, contactID)), Integer.toString(Math.max(userID, contactID)), Integer.toString(beforeID)};
+            Cursor cursor = queryItems(reader, ITEMS_KEY_LOW_ID + " = ? AND " + ITEMS_KEY_HIGH_ID + " = ? AND " + ITEMS_QUALIFIED_ID + " < ?",
+                    args, ITEMS_QUALIFIED_ID + " DESC", Integer.toString(limit + hiding), false);
+            List<Item> items = mergeWithPending(cursor, added, false, false, limit, read);
+            Collections.reverse(items);
+            return endRead(METRIC_GET_ITEMS_PAGE, read, items);
+        } finally {
+            releaseReader(reader);
         }
-        return Sorter.sortItemList(new ArrayList<>(updateGetItemsFromPending(items, toUpdate)));
     }
 
     /**
@@ -398,40 +649,21 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @return the list of Item
      */
-    public synchronized List<Item> getAllItems() {
-        Set<Integer> mapIds = new HashSet<>();
-        Set<Item> items = new HashSet<>();
-        Set<Item> toUpdate = new HashSet<>();
-        for (Map.Entry<Integer, Pair<Operation, Item>> e : pendingItems.entrySet()) {
-            Pair<Operation, Item> fromPending = e.getValue();
-            switch (fromPending.getLeft()) {
-                case ADD:
-                    mapIds.add(e.getKey());
-                    items.add(fromPending.getRight());
-                    break;
-                case UPDATE:
-                    toUpdate.add(fromPending.getRight());
-                    break;
-                case DELETE:
-                    mapIds.add(e.getKey());
-                    break;
-            }
+    public List<Item> getAllItems() {
+        long requested = System.nanoTime();
+        ReadSnapshot read;
+        List<Item> added;
+        synchronized (this) {
+            read = startRead(requested);
+            added = new ArrayList<>(pendingItems.getAdded().values());
         }
-        db = getReadableIfNotOpen();
-        Cursor cursor = db.rawQuery("SELECT * FROM " + ITEMS_TABLE + " ORDER BY " + ITEMS_KEY_ID, null);
-        boolean hasNext;
-        if (cursor != null) {
-            hasNext = cursor.moveToFirst();
-            while (hasNext) {
-                if (!mapIds.contains(cursor.getInt(1))) {
-                    Item item = createItem(cursor);
-                    items.add(item);
-                }
-                hasNext = cursor.moveToNext();
-            }
-            cursor.close();
+        SQLiteDatabase reader = acquireReader();
+        try {
+            Cursor cursor = queryItems(reader, null, null, ITEMS_QUALIFIED_ID, null, false);
+            return endRead(METRIC_GET_ALL_ITEMS, read, mergeWithPending(cursor, added, false, true, Integer.MAX_VALUE, read));
+        } finally {
+            releaseReader(reader);
         }
-        return Sorter.sortItemList(new ArrayList<>(updateGetItemsFromPending(items, toUpdate)));
     }
 
     /**
@@ -439,15 +671,107 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @return a list of localized item
      */
-    public synchronized List<Item> getAllLocalizedItems() {
-        List<Item> localizedItems = new ArrayList<>();
-        List<Item> allItems = getAllItems();
-        for (Item i : allItems) {
-            if (i.hasLocation()) {
-                localizedItems.add(i);
+    public List<Item> getAllLocalizedItems() {
+        return getLocalizedItems(null);
+    }
+
+    /**
+     * Returns the localized items whose location is in the given region
+     *
+     * @param bounds the region, e.g. the visible region of the map
+     * @return a list of localized items
+     */
+    public List<Item> getLocalizedItemsInRegion(LatLngBounds bounds) {
+        if (bounds == null) {
+            throw new IllegalArgumentException(app.getString(R.string.region_null));
+        }
+        return getLocalizedItems(bounds);
+    }
+
+    /**
+     * Reads the localized items with the location index, everywhere if bounds is null
+     */
+    private List<Item> getLocalizedItems(LatLngBounds bounds) {
+        long requested = System.nanoTime();
+        ReadSnapshot read;
+        List<Pair<Operation, Item>> localized;
+        synchronized (this) {
+            read = startRead(requested);
+            localized = new ArrayList<>(pendingItems.getLocalized().values());
+        }
+        SQLiteDatabase reader = acquireReader();
+        try {
+            //An updated item is read from the pending operations only if its row exists : it may have moved in the region
+            List<Item> pending = new ArrayList<>();
+            for (Pair<Operation, Item> fromPending : localized) {
+                Item item = fromPending.getRight();
+                if (isInRegion(item, bounds) && (fromPending.getLeft() == Operation.ADD || existsInDatabase(reader, item.getID()))) {
+                    pending.add(item);
+                }
+            }
+            String selection;
+            String[] args;
+            if (bounds == null) {
+                selection = ITEMS_KEY_LATITUDE + " IS NOT NULL";
+                args = null;
+            } else {
+                selection = ITEMS_KEY_LATITUDE + " BETWEEN ? AND ? AND ";
+                if (bounds.southwest.longitude <= bounds.northeast.longitude) {
+                    selection += ITEMS_KEY_LONGITUDE + " BETWEEN ? AND ?";
+                } else {
+                    //The region crosses the 180th meridian
+                    selection += "(" + ITEMS_KEY_LONGITUDE + " >= ? OR " + ITEMS_KEY_LONGITUDE + " <= ?)";
+                }
+                args = new String[]{Double.toString(bounds.southwest.latitude), Double.toString(bounds.northeast.latitude),
+                        Double.toString(bounds.southwest.longitude), Double.toString(bounds.northeast.longitude)};
+            }
+            Cursor cursor = queryItems(reader, selection, args, ITEMS_QUALIFIED_ID, null, false);
+            return endRead(METRIC_GET_LOCALIZED_ITEMS, read, mergeWithPending(cursor, pending, true, true, Integer.MAX_VALUE, read));
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Counts the items referencing a file, e.g. before deleting it : a file is shared by all the
+     * items having the same content
+     *
+     * @param path       the path of the file
+     * @param excludedID the id of an item not to count, e.g. the one whose file is deleted
+     * @return the number of other items whose path is the given one
+     */
+    public int countReferences(String path, int excludedID) {
+        if (path == null) {
+            throw new IllegalArgumentException(app.getString(R.string.path_null));
+        }
+        ReadSnapshot read = startRead();
+        Set<Integer> referencing = new HashSet<>();
+        SQLiteDatabase reader = acquireReader();
+        try {
+            Cursor cursor = reader.rawQuery("SELECT " + ITEMS_KEY_ID + " FROM " + ITEMS_TABLE + " WHERE " + ITEMS_KEY_PATH + " = ? AND "
+                    + ITEMS_KEY_ID + " != ?", new String[]{path, Integer.toString(excludedID)});
+            while (cursor.moveToNext()) {
+                ++read.scannedRows;
+                referencing.add(cursor.getInt(0));
+            }
+            cursor.close();
+        } finally {
+            releaseReader(reader);
+        }
+        //A pending operation replaces the row of its item
+        for (Map.Entry<Integer, Pair<Operation, Item>> pending : read.items.entrySet()) {
+            int id = pending.getKey();
+            Item item = pending.getValue().getRight();
+            if (id == excludedID) {
+                continue;
+            }
+            if (pending.getValue().getLeft() != Operation.DELETE && item instanceof FileItem && path.equals(((FileItem) item).getPath())) {
+                referencing.add(id);
+            } else {
+                referencing.remove(id);
             }
         }
-        return localizedItems;
+        return endRead(METRIC_COUNT_REFERENCES, read, referencing.size());
     }
 
     /**
@@ -455,8 +779,9 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param recipient the recipient to add
      */
-    public synchronized void addRecipient(Recipient recipient) {
-        pendingRecipients.put(recipient.getID(), new Pair<>(Operation.ADD, recipient));
+    public void addRecipient(Recipient recipient) {
+        stageRecipient(Operation.ADD, recipient.getID(), recipient);
+        applyIfTooManyPending();
     }
 
     /**
@@ -464,10 +789,11 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param recipients the list of recipients to add.
      */
-    public synchronized void addRecipients(List<Recipient> recipients) {
+    public void addRecipients(List<Recipient> recipients) {
         for (Recipient r : recipients) {
-            pendingRecipients.put(r.getID(), new Pair<>(Operation.ADD, r));
+            stageRecipient(Operation.ADD, r.getID(), r);
         }
+        applyIfTooManyPending();
     }
 
     /**
@@ -475,8 +801,9 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param recipient the recipient to update
      */
-    public synchronized void updateRecipient(Recipient recipient) {
-        manageRecipientUpdate(recipient);
+    public void updateRecipient(Recipient recipient) {
+        stageRecipient(Operation.UPDATE, recipient.getID(), recipient);
+        applyIfTooManyPending();
     }
 
     /**
@@ -484,10 +811,11 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param recipients the list of recipients to update
      */
-    public synchronized void updateRecipients(List<Recipient> recipients) {
+    public void updateRecipients(List<Recipient> recipients) {
         for (Recipient recipient : recipients) {
-            manageRecipientUpdate(recipient);
+            stageRecipient(Operation.UPDATE, recipient.getID(), recipient);
         }
+        applyIfTooManyPending();
     }
 
     /**
@@ -495,7 +823,7 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param recipient the recipient to delete
      */
-    public synchronized void deleteRecipient(Recipient recipient) {
+    public void deleteRecipient(Recipient recipient) {
         deleteRecipient(recipient.getID());
     }
 
@@ -504,9 +832,10 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param id the id
      */
-    public synchronized void deleteRecipient(int id) {
+    public void deleteRecipient(int id) {
         deleteItemsForContact(id);
-        pendingRecipients.put(id, new Pair<Operation, Recipient>(Operation.DELETE, null));
+        stageRecipient(Operation.DELETE, id, null);
+        applyIfTooManyPending();
     }
 
     /**
@@ -514,20 +843,37 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      *
      * @param ids a list of ids of recipients to delete.
      */
-    public synchronized void deleteRecipients(List<Integer> ids) {
+    public void deleteRecipients(List<Integer> ids) {
         for (Integer i : ids) {
-            pendingRecipients.put(i, new Pair<Operation, Recipient>(Operation.DELETE, null));
+            stageRecipient(Operation.DELETE, i, null);
         }
+        applyIfTooManyPending();
     }
 
     /**
      * Deletes all recipients
      */
-    public synchronized void deleteAllRecipients() {
-        pendingRecipients.clear();
-        db = getWritableIfNotOpen();
-        db.delete(RECIPIENTS_TABLE, null, null);
-        app.setLastUsersRefresh(lastItemTime);
+    public void deleteAllRecipients() {
+        Future<?> deleted;
+        long time;
+        synchronized (this) {
+            synchronized (stagingLock) {
+                drainStaged();
+                pendingRecipients.clear();
+                journalClear(JOURNAL_TARGET_RECIPIENT);
+            }
+            pendingCount = pendingItems.size() + pendingRecipients.size();
+            deleted = queueWrite(new Runnable() {
+                @Override
+                public void run() {
+                    db = getWritableIfNotOpen();
+                    db.delete(RECIPIENTS_TABLE, null, null);
+                }
+            });
+            time = lastItemTime;
+        }
+        await(deleted);
+        app.setLastUsersRefresh(time);
     }
 
     /**
@@ -536,37 +882,42 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      * @param id the id of the recipient
      * @return the recipient
      */
-    public synchronized Recipient getRecipient(int id) {
+    public Recipient getRecipient(int id) {
+        ReadSnapshot read = startRead();
         if (id == User.PUBLIC_ID) {
-            return new User(User.PUBLIC_ID, User.PUBLIC_NAME);
+            return endRead(METRIC_GET_RECIPIENT, read, new User(User.PUBLIC_ID, User.PUBLIC_NAME));
         }
-        Pair<Operation, Recipient> fromPending = pendingRecipients.get(id);
+        Pair<Operation, Recipient> fromPending = read.recipients.get(id);
         if (fromPending != null) {
             switch (fromPending.getLeft()) {
                 case ADD:
-                    return fromPending.getRight();
+                    return endRead(METRIC_GET_RECIPIENT, read, fromPending.getRight());
                 case DELETE:
-                    return null;
+                    return endRead(METRIC_GET_RECIPIENT, read, null);
                 case UPDATE:
                     break;
             }
         }
-        db = getReadableIfNotOpen();
         Recipient toReturn = null;
-        String[] args = {Integer.toString(id)};
-        Cursor cursor = db.query(RECIPIENTS_TABLE, RECIPIENTS_COLUMN, RECIPIENTS_KEY_ID + " = ?", args, null, null, null, null);
-        if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                String name = cursor.getString(1);
-                //TODO returns only user now
-                toReturn = new User(id, name);
+        SQLiteDatabase reader = acquireReader();
+        try {
+            String[] args = {Integer.toString(id)};
+            Cursor cursor = reader.query(RECIPIENTS_TABLE, RECIPIENTS_COLUMN, RECIPIENTS_KEY_ID + " = ?", args, null, null, null, null);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    String name = cursor.getString(1);
+                    //TODO returns only user now
+                    toReturn = new User(id, name);
+                }
+                cursor.close();
             }
-            cursor.close();
-        }
-        if (toReturn != null && fromPending != null && fromPending.getLeft() == Operation.UPDATE) {
-            toReturn = fromPending.getRight();
+            if (toReturn != null && fromPending != null && fromPending.getLeft() == Operation.UPDATE) {
+                toReturn = fromPending.getRight();
+            }
+        } finally {
+            releaseReader(reader);
         }
-        return toReturn;
+        return endRead(METRIC_GET_RECIPIENT, read, toReturn);
     }
 
     /**
@@ -575,191 +926,391 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      * @param ids a list of Integers
      * @return a list of Recipients
      */
-    public synchronized List<Recipient> getRecipients(List<Integer> ids) {
-        List<Integer> databaseIds = new ArrayList<>(ids);
-        Set<Recipient> recipients = new HashSet<>();
-        Set<Recipient> toUpdate = new HashSet<>();
-        for (Integer i : ids) {
-            Pair<Operation, Recipient> fromPending = pendingRecipients.get(i);
-            if (fromPending != null) {
-                switch (fromPending.getLeft()) {
-                    case ADD:
+    public List<Recipient> getRecipients(List<Integer> ids) {
+        ReadSnapshot read = startRead();
+        TreeMap<Integer, Recipient> recipients = new TreeMap<>();
+        for (Integer id : ids) {
+            Pair<Operation, Recipient> fromPending = read.recipients.get(id);
+            if (fromPending != null && fromPending.getLeft() == Operation.ADD) {
+                recipients.put(id, fromPending.getRight());
+            }
+        }
+        SQLiteDatabase reader = acquireReader();
+        try {
+            stageIds(reader, ids);
+            Cursor cursor = reader.query(RECIPIENTS_TABLE, RECIPIENTS_COLUMN, RECIPIENTS_KEY_ID + " IN (" + LOOKUP_SELECT + ")", null, null, null, null);
+            if (cursor != null) {
+                boolean hasNext = cursor.moveToFirst();
+                while (hasNext) {
+                    ++read.scannedRows;
+                    int id = cursor.getInt(0);
+                    Pair<Operation, Recipient> fromPending = read.recipients.get(id);
+                    if (fromPending == null) {
+                        recipients.put(id, createUser(cursor));
+                    } else if (fromPending.getLeft() == Operation.UPDATE) {
+                        recipients.put(id, fromPending.getRight());
+                    }
+                    hasNext = cursor.moveToNext();
+                }
+                cursor.close();
+            }
+        } finally {
+            releaseReader(reader);
+        }
+        Pair<Operation, Recipient> publicPending = read.recipients.get(User.PUBLIC_ID);
+        if (!recipients.containsKey(User.PUBLIC_ID) && ids.contains(User.PUBLIC_ID)
+                && (publicPending == null || publicPending.getLeft() == Operation.UPDATE)) {
+            recipients.put(User.PUBLIC_ID, new User(User.PUBLIC_ID, User.PUBLIC_NAME));
+        }
+        return endRead(METRIC_GET_RECIPIENTS, read, new ArrayList<>(recipients.values()));
+    }
+
+    /**
+     * Returns all recipients.
+     *
+     * @return all recipients as a List
+     */
+    public List<Recipient> getAllRecipients() {
+        long requested = System.nanoTime();
+        ReadSnapshot read;
+        List<Recipient> addedRecipients;
+        synchronized (this) {
+            read = startRead(requested);
+            addedRecipients = new ArrayList<>(pendingRecipients.getAdded().values());
+        }
+        List<Recipient> recipients = new ArrayList<>();
+        Iterator<Recipient> added = addedRecipients.iterator();
+        Recipient nextAdded = added.hasNext() ? added.next() : null;
+        SQLiteDatabase reader = acquireReader();
+        try {
+            Cursor cursor = reader.rawQuery("SELECT * FROM " + RECIPIENTS_TABLE + " ORDER BY " + RECIPIENTS_KEY_ID, null);
+            boolean hasNext;
+            if (cursor != null) {
+                hasNext = cursor.moveToFirst();
+                while (hasNext) {
+                    ++read.scannedRows;
+                    int id = cursor.getInt(0);
+                    while (nextAdded != null && nextAdded.getID() < id) {
+                        recipients.add(nextAdded);
+                        nextAdded = added.hasNext() ? added.next() : null;
+                    }
+                    Pair<Operation, Recipient> fromPending = read.recipients.get(id);
+                    if (fromPending == null) {
+                        recipients.add(createUser(cursor));
+                    } else if (fromPending.getLeft() == Operation.UPDATE) {
                         recipients.add(fromPending.getRight());
-                        databaseIds.remove(i);
-                        break;
-                    case UPDATE:
-                        toUpdate.add(fromPending.getRight());
-                        break;
-                    case DELETE:
-                        databaseIds.remove(i);
-                        break;
+                    }
+                    hasNext = cursor.moveToNext();
                 }
+                cursor.close();
             }
+        } finally {
+            releaseReader(reader);
+        }
+        while (nextAdded != null) {
+            recipients.add(nextAdded);
+            nextAdded = added.hasNext() ? added.next() : null;
+        }
+        return endRead(METRIC_GET_ALL_RECIPIENTS, read, recipients);
+    }
+
+    /**
+     * Returns the first page of the items whose text matches a full-text query
+     *
+     * @param query the query, e.g. "hello" or "hel*"
+     * @param limit the maximum number of items returned
+     * @return the items, best matches first
+     * @see #searchItems(String, int, int)
+     */
+    public List<Item> searchItems(String query, int limit) {
+        return searchItems(query, 0, limit);
+    }
+
+    /**
+     * Returns a page of the items whose text matches a full-text query, using the full-text index.
+     * The matches are ranked by how often the terms appear in the item compared to all the items,
+     * the most recent first between equal ones.<br>
+     * Only the items written in the database are searched : the pending deletes are left out and the
+     * pending updates replace the items found if their new text still matches, but the pending items
+     * aren't matched.
+     *
+     * @param query  the query, in the syntax of the full-text index, e.g. "hello", "hel*" or "hello OR hi"
+     * @param offset the number of best matches skipped
+     * @param limit  the maximum number of items returned
+     * @return the items, best matches first
+     * @throws IllegalArgumentException if the query is null or malformed, the offset negative or the limit not positive
+     */
+    public List<Item> searchItems(String query, int offset, int limit) {
+        if (query == null) {
+            throw new IllegalArgumentException(app.getString(R.string.search_query_null));
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException(app.getString(R.string.search_offset_negative, offset));
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException(app.getString(R.string.page_limit_not_positive, limit));
+        }
+        long requested = System.nanoTime();
+        ReadSnapshot read;
+        int hiding;
+        synchronized (this) {
+            read = startRead(requested);
+            hiding = pendingItems.getHidingCount();
         }
-        if (databaseIds.isEmpty()) {
-            return Sorter.sortRecipientList(new ArrayList<>(recipients));
+        List<Item> items = new ArrayList<>();
+        if (query.trim().isEmpty()) {
+            return endRead(METRIC_SEARCH_ITEMS, read, items);
         }
-        db = getReadableIfNotOpen();
-        if (databaseIds.size() > MAX_PLACEHOLDERS_COUNT) {
-            int count = databaseIds.size();
-            while (count > 0) {
-                int num = count - MAX_PLACEHOLDERS_COUNT > 0 ? MAX_PLACEHOLDERS_COUNT : count;
-                String[] args = new String[num];
-                for (int i = 0; i < num; ++i) {
-                    args[i] = Integer.toString(databaseIds.get(i + (databaseIds.size() - count)));
+        SQLiteDatabase reader = acquireReader();
+        try {
+            //Matches hidden by the pending operations are skipped, so rank enough matches to fill the page anyway
+            List<Integer> ranked = rankMatches(reader, query, offset + limit + hiding, read);
+            Map<Integer, Item> found = new HashMap<>();
+            if (!ranked.isEmpty()) {
+                stageIds(reader, ranked);
+                Cursor cursor = queryItems(reader, ITEMS_QUALIFIED_ID + " IN (" + LOOKUP_SELECT + ")", null, null, null, false);
+                while (cursor.moveToNext()) {
+                    ++read.scannedRows;
+                    Item item = createItem(cursor, read);
+                    found.put(item.getID(), item);
                 }
-                Cursor cursor;
-                if (num == MAX_PLACEHOLDERS_COUNT) {
-                    cursor = db.query(RECIPIENTS_TABLE, RECIPIENTS_COLUMN, RECIPIENTS_KEY_ID + " IN (" + FULL_PLACEHOLDERS + ")", args, null, null, RECIPIENTS_KEY_ID);
-                } else {
-                    cursor = db.query(RECIPIENTS_TABLE, RECIPIENTS_COLUMN, RECIPIENTS_KEY_ID + " IN (" + createPlaceholders(num) + ")", args, null, null, RECIPIENTS_KEY_ID);
+                cursor.close();
+            }
+            SearchQuery parsed = new SearchQuery(query);
+            int skipped = 0;
+            for (int i = 0; i < ranked.size() && items.size() < limit; ++i) {
+                int id = ranked.get(i);
+                Pair<Operation, Item> fromPending = read.items.get(id);
+                Item item = fromPending != null ? fromPending.getRight() : found.get(id);
+                if (item == null || (fromPending != null && !parsed.matches(item.getMessage()))) {
+                    continue;
                 }
-                if (cursor != null) {
-                    boolean hasNext = cursor.moveToFirst();
-                    while (hasNext) {
-                        recipients.add(createUser(cursor));
-                        hasNext = cursor.moveToNext();
-                    }
-                    cursor.close();
+                if (skipped < offset) {
+                    ++skipped;
+                } else {
+                    items.add(item);
                 }
-                count -= num;
             }
-        } else {
-            String[] args = new String[databaseIds.size()];
-            for (int i = 0; i < databaseIds.size(); ++i) {
-                args[i] = Integer.toString(databaseIds.get(i));
+        } finally {
+            releaseReader(reader);
+        }
+        return endRead(METRIC_SEARCH_ITEMS, read, items);
+    }
+
+    /**
+     * Returns the summary of the conversation between the current user and a contact, with a single
+     * lookup in the summary table. Only the items written in the database are counted.
+     *
+     * @param contactID the contact
+     * @return the summary, or null if no item was exchanged with the contact
+     */
+    public ConversationSummary getConversationSummary(int contactID) {
+        int userID = app.getCurrentUserID();
+        SQLiteDatabase reader = acquireReader();
+        try {
+            String[] args = {Integer.toString(Math.min(userID, contactID)), Integer.toString(Math.max(userID, contactID))};
+            Cursor cursor = reader.query(CONVERSATIONS_TABLE, CONVERSATIONS_COLUMNS, CONVERSATIONS_KEY_LOW_ID + " = ? AND "
+                    + CONVERSATIONS_KEY_HIGH_ID + " = ?", args, null, null, null);
+            ConversationSummary summary = null;
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    summary = createConversationSummary(cursor, userID);
+                }
+                cursor.close();
             }
-            Cursor cursor = db.query(RECIPIENTS_TABLE, RECIPIENTS_COLUMN, RECIPIENTS_KEY_ID + " IN (" + createPlaceholders(databaseIds.size()) + ")", args, null, null, RECIPIENTS_KEY_ID);
+            return summary;
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Returns the summaries of all the conversations of the current user
+     *
+     * @return the summaries by id of contact
+     */
+    public Map<Integer, ConversationSummary> getConversationSummaries() {
+        int userID = app.getCurrentUserID();
+        Map<Integer, ConversationSummary> summaries = new HashMap<>();
+        SQLiteDatabase reader = acquireReader();
+        try {
+            String[] args = {Integer.toString(userID), Integer.toString(userID)};
+            Cursor cursor = reader.query(CONVERSATIONS_TABLE, CONVERSATIONS_COLUMNS, CONVERSATIONS_KEY_LOW_ID + " = ? OR "
+                    + CONVERSATIONS_KEY_HIGH_ID + " = ?", args, null, null, null);
             if (cursor != null) {
                 boolean hasNext = cursor.moveToFirst();
                 while (hasNext) {
-                    recipients.add(createUser(cursor));
+                    ConversationSummary summary = createConversationSummary(cursor, userID);
+                    summaries.put(summary.getContactID(), summary);
                     hasNext = cursor.moveToNext();
                 }
                 cursor.close();
             }
+        } finally {
+            releaseReader(reader);
         }
-        if (databaseIds.contains(User.PUBLIC_ID)) {
-            recipients.add(new User(User.PUBLIC_ID, User.PUBLIC_NAME));
-        }
-        return Sorter.sortRecipientList(new ArrayList<>(updateGetRecipientsFromPending(recipients, toUpdate)));
+        return summaries;
     }
 
     /**
-     * Returns all recipients.
+     * Marks every item of the conversation with a contact as read
      *
-     * @return all recipients as a List
+     * @param contactID the contact
      */
-    public synchronized List<Recipient> getAllRecipients() {
-        Set<Integer> mapIds = new HashSet<>();
-        Set<Recipient> recipients = new HashSet<>();
-        Set<Recipient> toUpdate = new HashSet<>();
-        for (Map.Entry<Integer, Pair<Operation, Recipient>> e : pendingRecipients.entrySet()) {
-            Pair<Operation, Recipient> fromPending = e.getValue();
-            switch (fromPending.getLeft()) {
-                case ADD:
-                    recipients.add(fromPending.getRight());
-                    mapIds.add(e.getKey());
-                    break;
-                case UPDATE:
-                    toUpdate.add(fromPending.getRight());
-                    break;
-                case DELETE:
-                    mapIds.add(e.getKey());
-                    break;
+    public void markConversationRead(int contactID) {
+        int userID = app.getCurrentUserID();
+        final String[] args = {Integer.toString(Math.min(userID, contactID)), Integer.toString(Math.max(userID, contactID))};
+        runOnWriter(new Runnable() {
+            @Override
+            public void run() {
+                db = getWritableIfNotOpen();
+                db.execSQL("UPDATE " + CONVERSATIONS_TABLE + " SET " + CONVERSATIONS_KEY_LAST_READ_ID + " = " + CONVERSATIONS_KEY_LAST_ID + ", "
+                        + CONVERSATIONS_KEY_UNREAD_LOW + " = 0, " + CONVERSATIONS_KEY_UNREAD_HIGH + " = 0 WHERE "
+                        + CONVERSATIONS_KEY_LOW_ID + " = ? AND " + CONVERSATIONS_KEY_HIGH_ID + " = ?", args);
             }
-        }
-        db = getReadableIfNotOpen();
-        Cursor cursor = db.rawQuery("SELECT * FROM " + RECIPIENTS_TABLE + " ORDER BY " + RECIPIENTS_KEY_ID, null);
-        boolean hasNext;
-        if (cursor != null) {
-            hasNext = cursor.moveToFirst();
-            while (hasNext) {
-                if (!mapIds.contains(cursor.getInt(0))) {
-                    Recipient recipient = createUser(cursor);
-                    recipients.add(recipient);
+        });
+    }
+
+    /**
+     * Recomputes the summary table from the items, keeping what was read. The triggers keep it up
+     * to date, this is only needed if it was corrupted or the items were written around the handler.
+     */
+    public void rebuildConversations() {
+        runOnWriter(new Runnable() {
+            @Override
+            public void run() {
+                db = getWritableIfNotOpen();
+                db.beginTransaction();
+                try {
+                    for (String statement : createConversationsRebuild()) {
+                        db.execSQL(statement);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
                 }
-                hasNext = cursor.moveToNext();
             }
-            cursor.close();
-        }
-        return Sorter.sortRecipientList(new ArrayList<>(updateGetRecipientsFromPending(recipients, toUpdate)));
+        });
     }
 
     /**
-     * Write all pending operations in the database
+     * Removes the items which don't fit in a retention policy, then gives the freed pages back to
+     * the file system in bounded steps, between which the other writes run. Meant to run in the
+     * background when the application is idle : the pending operations are applied first.<br>
+     * The files of the removed file items are left to the caller, e.g. the {@link ch.epfl.sweng.calamar.utils.StorageManager}.
+     *
+     * @param policy the limits to apply
+     * @param now    the current time in milliseconds, the ages are computed from it
+     * @return the removed items, in ascending order of id for each limit
      */
-    public synchronized void applyPendingOperations() {
-        if (!(pendingItems.isEmpty() && pendingRecipients.isEmpty())) {
-            db = getWritableIfNotOpen();
-            db.beginTransaction();
-            try {
-                if (!pendingItems.isEmpty()) {
-                    List<Item> itemsToAdd = new ArrayList<>();
-                    List<Item> itemsToUpdate = new ArrayList<>();
-                    List<Integer> itemsToDelete = new ArrayList<>();
-                    for (Map.Entry<Integer, Pair<Operation, Item>> e : pendingItems.entrySet()) {
-                        Pair<Operation, Item> pair = e.getValue();
-                        switch (pair.getLeft()) {
-                            case ADD:
-                                itemsToAdd.add(pair.getRight());
-                                break;
-                            case UPDATE:
-                                itemsToUpdate.add(pair.getRight());
-                                break;
-                            case DELETE:
-                                itemsToDelete.add(e.getKey());
-                                break;
-                        }
-                    }
-                    pendingAddItems(itemsToAdd);
-                    pendingUpdateItems(itemsToUpdate);
-                    if (!itemsToDelete.isEmpty()) {
-                        pendingDeleteItems(itemsToDelete);
+    public List<RemovedItem> applyRetentionPolicy(final RetentionPolicy policy, final long now) {
+        if (policy == null) {
+            throw new IllegalArgumentException(app.getString(R.string.retention_policy_null));
+        }
+        applyPendingOperations();
+        final List<RemovedItem> removed = new ArrayList<>();
+        runOnWriter(new Runnable() {
+            @Override
+            public void run() {
+                db = getWritableIfNotOpen();
+                db.beginTransaction();
+                try {
+                    List<Integer> expired = new ArrayList<>();
+                    if (policy.hasMaxAge()) {
+                        expired.addAll(selectIds(ITEMS_KEY_ID + " FROM " + ITEMS_TABLE + " WHERE " + ITEMS_KEY_TIME + " < ?",
+                                new String[]{Long.toString(now - policy.getMaxAge())}));
                     }
-                }
-                if (!pendingRecipients.isEmpty()) {
-                    List<Recipient> recipientsToAdd = new ArrayList<>();
-                    List<Recipient> recipientsToUpdate = new ArrayList<>();
-                    List<Integer> recipientsToDelete = new ArrayList<>();
-                    for (Map.Entry<Integer, Pair<Operation, Recipient>> e : pendingRecipients.entrySet()) {
-                        Pair<Operation, Recipient> pair = e.getValue();
-                        switch (pair.getLeft()) {
-                            case ADD:
-                                recipientsToAdd.add(pair.getRight());
-                                break;
-                            case UPDATE:
-                                recipientsToUpdate.add(pair.getRight());
-                                break;
-                            case DELETE:
-                                recipientsToDelete.add(e.getKey());
-                        }
+                    if (policy.hasMaxItemsPerConversation()) {
+                        expired.addAll(selectBeyondConversationLimit(policy.getMaxItemsPerConversation()));
                     }
-                    pendingAddRecipients(recipientsToAdd);
-                    pendingUpdateRecipients(recipientsToUpdate);
-                    if (!recipientsToDelete.isEmpty()) {
-                        pendingDeleteRecipients(recipientsToDelete);
+                    removed.addAll(removeItems(expired));
+                    if (policy.hasMaxBytes()) {
+                        removed.addAll(removeItems(selectBeyondSize(policy.getMaxBytes())));
                     }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
                 }
-                db.setTransactionSuccessful();
-                pendingItems.clear();
-                pendingRecipients.clear();
-                app.setLastItemsRefresh(lastItemTime);
-                app.setLastUsersRefresh(lastItemTime);
-            } finally {
-                db.endTransaction();
+                compact(MAX_VACUUM_STEPS);
             }
+        });
+        Log.i(TAG, app.getString(R.string.retention_applied, removed.size()));
+        return removed;
+    }
 
+    /**
+     * Write all pending operations in the database.<br>
+     * The operations are written by the writer thread, without holding the lock of the handler : the
+     * reads go on during the write, with the operations still in the pending maps. The operations
+     * changed in the meantime stay pending until the next call.
+     */
+    public void applyPendingOperations() {
+        final Map<Integer, Pair<Operation, Item>> items;
+        final Map<Integer, Pair<Operation, Recipient>> recipients;
+        final long time;
+        Future<?> written;
+        long requested = System.nanoTime();
+        synchronized (this) {
+            lockAcquired(requested);
+            drainStaged();
+            if (pendingItems.isEmpty() && pendingRecipients.isEmpty()) {
+                return;
+            }
+            items = pendingItems.snapshot();
+            recipients = pendingRecipients.snapshot();
+            time = lastItemTime;
+            written = queueWrite(new Runnable() {
+                @Override
+                public void run() {
+                    writePendingOperations(items, recipients);
+                }
+            });
+        }
+        flushesInProgress.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            await(written);
+        } finally {
+            long duration = System.nanoTime() - start;
+            flushesInProgress.decrementAndGet();
+            registry.histogram(METRIC_FLUSH_DURATION).record(duration / NANOS_PER_MICRO);
+        }
+        requested = System.nanoTime();
+        synchronized (this) {
+            lockAcquired(requested);
+            removeApplied(pendingItems, items);
+            removeApplied(pendingRecipients, recipients);
+            pendingCount = pendingItems.size() + pendingRecipients.size();
+            app.setLastItemsRefresh(time);
+            app.setLastUsersRefresh(time);
+            //Otherwise the journal still holds operations which are not written, or a clear queued after the flush
+            if (pendingItems.isEmpty() && pendingRecipients.isEmpty() && lastItemTime == time && lastWrite == written) {
+                synchronized (stagingLock) {
+                    if (staging.isEmpty()) {
+                        journal.truncate();
+                    }
+                }
+            }
         }
     }
 
     /**
      * Closes the database.
      */
-    public synchronized void closeDatabase() {
-        if (db.isOpen()) {
-            this.db.close();
+    public void closeDatabase() {
+        Future<?> closed;
+        synchronized (this) {
+            readers.close();
+            closed = queueWrite(new Runnable() {
+                @Override
+                public void run() {
+                    if (db.isOpen()) {
+                        db.close();
+                    }
+                }
+            });
         }
+        await(closed);
     }
 
     /**
@@ -770,6 +1321,7 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
     public synchronized void setLastItemTime(long time) {
         if (lastItemTime < time) {
             lastItemTime = time;
+            journalTime(time);
         }
     }
 
@@ -787,6 +1339,14 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      */
     public synchronized void resetLastUpdateTime() {
         lastItemTime = 0;
+        journalClear(JOURNAL_TARGET_TIME);
+    }
+
+    /**
+     * Opens all the reader connections, so that the keys are derived before the first reads
+     */
+    void warmUp() {
+        readers.warmUp(password);
     }
 
     /**
@@ -795,133 +1355,581 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
      * @return true if there are pending operations
      */
     public boolean areOperationsPending() {
-        return !pendingItems.isEmpty() || !pendingRecipients.isEmpty();
+        return !staging.isEmpty() || !pendingItems.isEmpty() || !pendingRecipients.isEmpty();
     }
 
     //Helper methods for applyPendingOperations
 
     private void pendingDeleteItems(List<Integer> ids) {
-        if (ids.size() > MAX_PLACEHOLDERS_COUNT) {
-            int counter = ids.size();
-            while (counter > 0) {
-                int num = counter - MAX_PLACEHOLDERS_COUNT > 0 ? MAX_PLACEHOLDERS_COUNT : counter;
-                String[] args = new String[num];
-                for (int i = 0; i < num; ++i) {
-                    args[i] = Integer.toString(ids.get(i + (ids.size() - counter)));
+        stageIds(db, ids);
+        db.rawExecSQL("DELETE FROM " + ITEMS_TABLE + " WHERE " + ITEMS_KEY_ID + " IN (" + LOOKUP_SELECT + ")");
+    }
+
+    private void pendingDeleteRecipients(List<Integer> ids) {
+        stageIds(db, ids);
+        db.rawExecSQL("DELETE FROM " + RECIPIENTS_TABLE + " WHERE " + RECIPIENTS_KEY_ID + " IN (" + LOOKUP_SELECT + ")");
+    }
+
+    //Helper methods for applyRetentionPolicy, running on the writer thread
+
+    private List<Integer> selectIds(String idsQuery, String[] args) {
+        List<Integer> ids = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT " + idsQuery, args);
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getInt(0));
+        }
+        cursor.close();
+        return ids;
+    }
+
+    /**
+     * Selects the oldest items of the conversations having more items than the limit, reading the
+     * counts from the summary table and the items from the conversation index
+     */
+    private List<Integer> selectBeyondConversationLimit(int limit) {
+        List<Integer> ids = new ArrayList<>();
+        Cursor conversations = db.rawQuery("SELECT " + CONVERSATIONS_KEY_LOW_ID + ", " + CONVERSATIONS_KEY_HIGH_ID + " FROM "
+                + CONVERSATIONS_TABLE + " WHERE " + CONVERSATIONS_KEY_COUNT + " > ?", new String[]{Integer.toString(limit)});
+        while (conversations.moveToNext()) {
+            ids.addAll(selectIds(ITEMS_KEY_ID + " FROM " + ITEMS_TABLE + " WHERE " + ITEMS_KEY_LOW_ID + " = ? AND " + ITEMS_KEY_HIGH_ID + " = ?"
+                            + " ORDER BY " + ITEMS_KEY_ID + " DESC LIMIT -1 OFFSET " + limit,
+                    new String[]{conversations.getString(0), conversations.getString(1)}));
+        }
+        conversations.close();
+        return ids;
+    }
+
+    /**
+     * Selects the oldest items whose size adds up to what the used pages exceed the budget by
+     */
+    private List<Integer> selectBeyondSize(long maxBytes) {
+        long excess = (pragma("page_count") - pragma("freelist_count")) * pragma("page_size") - maxBytes;
+        List<Integer> ids = new ArrayList<>();
+        if (excess <= 0) {
+            return ids;
+        }
+        Cursor cursor = db.rawQuery("SELECT " + ITEMS_KEY_ID + ", IFNULL(LENGTH(" + ITEMS_KEY_DATA + "), 0) + IFNULL(LENGTH(" + ITEMS_KEY_TEXT + "), 0) + LENGTH("
+                + ITEMS_KEY_CONDITION + ") FROM " + ITEMS_TABLE + " ORDER BY " + ITEMS_KEY_ID, null);
+        long freed = 0;
+        while (freed < excess && cursor.moveToNext()) {
+            ids.add(cursor.getInt(0));
+            freed += cursor.getLong(1);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    /**
+     * Deletes items, with the triggers of the summaries and of the full-text index
+     *
+     * @return the id, the type and the path of the deleted items
+     */
+    private List<RemovedItem> removeItems(List<Integer> ids) {
+        List<RemovedItem> removed = new ArrayList<>();
+        if (ids.isEmpty()) {
+            return removed;
+        }
+        stageIds(db, ids);
+        //Only what is needed to delete the files, the items aren't rebuilt
+        Cursor cursor = db.rawQuery("SELECT " + ITEMS_KEY_ID + ", " + ITEMS_KEY_TYPE + ", " + ITEMS_KEY_PATH + " FROM " + ITEMS_TABLE
+                + " WHERE " + ITEMS_KEY_ID + " IN (" + LOOKUP_SELECT + ") ORDER BY " + ITEMS_KEY_ID, null);
+        while (cursor.moveToNext()) {
+            removed.add(new RemovedItem(cursor.getInt(0), Item.Type.valueOf(cursor.getString(1)), cursor.getString(2)));
+        }
+        cursor.close();
+        db.rawExecSQL("DELETE FROM " + ITEMS_TABLE + " WHERE " + ITEMS_KEY_ID + " IN (" + LOOKUP_SELECT + ")");
+        return removed;
+    }
+
+    /**
+     * Gives at most VACUUM_STEP_PAGES free pages back to the file system, then queues the next step
+     * behind the writes queued in the meantime, so that the flushes don't wait for the whole
+     * compaction. Must run on the writer thread.
+     *
+     * @param steps the number of steps left
+     */
+    private void compact(final int steps) {
+        if (steps == 0 || !db.isOpen() || pragma("freelist_count") == 0) {
+            return;
+        }
+        //Through sqlite3_exec, which runs the pragma until the pages are freed
+        db.rawExecSQL("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")");
+        writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                compact(steps - 1);
+            }
+        });
+    }
+
+    /**
+     * Writes a copy of the database in a file, encrypted with the same key, after applying the
+     * pending operations. SQLCipher copies the tables, the indexes and the triggers in a single
+     * read transaction : the copy is consistent even if items are written in the meantime.
+     *
+     * @param snapshot the file of the copy, replaced if it exists
+     * @return the time of the last item refresh covered by the copy
+     */
+    public long exportSnapshot(final File snapshot) {
+        applyPendingOperations();
+        //Read before the copy, so that the copy has at least the items received until then
+        long time = app.getLastItemsRefresh().getTime();
+        runOnWriter(new Runnable() {
+            @Override
+            public void run() {
+                if (snapshot.exists() && !snapshot.delete()) {
+                    throw new IllegalStateException(app.getString(R.string.error_file_deletion, snapshot.getPath()));
                 }
-                if (num == MAX_PLACEHOLDERS_COUNT) {
-                    db.delete(ITEMS_TABLE, ITEMS_KEY_ID + " IN (" + FULL_PLACEHOLDERS + ")", args);
-                } else {
-                    db.delete(ITEMS_TABLE, ITEMS_KEY_ID + " IN (" + createPlaceholders(num) + ")", args);
+                db = getWritableIfNotOpen();
+                db.execSQL("ATTACH DATABASE ? AS " + SNAPSHOT_SCHEMA + " KEY ?", new Object[]{snapshot.getPath(), password});
+                try {
+                    db.rawExecSQL("SELECT sqlcipher_export('" + SNAPSHOT_SCHEMA + "')");
+                    db.rawExecSQL("PRAGMA " + SNAPSHOT_SCHEMA + ".user_version = " + DATABASE_VERSION);
+                } finally {
+                    db.rawExecSQL("DETACH DATABASE " + SNAPSHOT_SCHEMA);
                 }
-                counter -= num;
             }
-        } else {
-            String[] args = new String[ids.size()];
-            for (int i = 0; i < ids.size(); ++i) {
-                args[i] = Integer.toString(ids.get(i));
+        });
+        return time;
+    }
+
+    /**
+     * Replaces the content of the database with a snapshot written by {@link #exportSnapshot(File)},
+     * with one INSERT ... SELECT per table in a single transaction. The pending operations are
+     * discarded and the time of the last refresh is set to the one of the snapshot, so that only
+     * the items received since are downloaded.
+     *
+     * @param snapshot the file of the snapshot
+     * @param time     the time of the last item refresh covered by the snapshot
+     * @throws IllegalArgumentException if the snapshot can't be read with the key of the database or
+     *                                  has another version of the database
+     */
+    public void importSnapshot(final File snapshot, long time) {
+        //Checked before the pending operations are discarded, so that they are kept if the snapshot is invalid
+        runOnWriter(new Runnable() {
+            @Override
+            public void run() {
+                db = getWritableIfNotOpen();
+                attachSnapshot(snapshot);
+                db.rawExecSQL("DETACH DATABASE " + SNAPSHOT_SCHEMA);
             }
-            db.delete(ITEMS_TABLE, ITEMS_KEY_ID + " IN (" + createPlaceholders(ids.size()) + ")", args);
+        });
+        Future<?> imported;
+        synchronized (this) {
+            synchronized (stagingLock) {
+                drainStaged();
+                pendingItems.clear();
+                pendingRecipients.clear();
+                journal.truncate();
+            }
+            pendingCount = 0;
+            lastItemTime = time;
+            //The flushes queued before write the discarded operations, they are replaced by the import
+            imported = queueWrite(new Runnable() {
+                @Override
+                public void run() {
+                    copySnapshot(snapshot);
+                }
+            });
         }
+        await(imported);
+        app.setLastItemsRefresh(time);
+        app.setLastUsersRefresh(time);
     }
 
-    private void pendingDeleteRecipients(List<Integer> ids) {
-        if (ids.size() > MAX_PLACEHOLDERS_COUNT) {
-            int counter = ids.size();
-            while (counter > 0) {
-                int num = counter - MAX_PLACEHOLDERS_COUNT > 0 ? MAX_PLACEHOLDERS_COUNT : counter;
-                String[] args = new String[num];
-                for (int i = 0; i < num; ++i) {
-                    args[i] = Integer.toString(ids.get(i + (ids.size() - counter)));
-                }
-                if (num == MAX_PLACEHOLDERS_COUNT) {
-                    db.delete(RECIPIENTS_TABLE, RECIPIENTS_KEY_ID + " IN (" + FULL_PLACEHOLDERS + ")", args);
-                } else {
-                    db.delete(RECIPIENTS_TABLE, RECIPIENTS_KEY_ID + " IN (" + createPlaceholders(num) + ")", args);
+    /**
+     * Replaces the tables with the ones of the snapshot, must run on the writer thread
+     */
+    private void copySnapshot(File snapshot) {
+        db = getWritableIfNotOpen();
+        attachSnapshot(snapshot);
+        try {
+            db.beginTransaction();
+            try {
+                db.delete(ITEMS_TABLE, null, null);
+                db.delete(RECIPIENTS_TABLE, null, null);
+                db.rawExecSQL(SNAPSHOT_COPY_RECIPIENTS);
+                //The triggers fill the full-text index and the summaries, whose read state is then copied
+                db.rawExecSQL(SNAPSHOT_COPY_ITEMS);
+                db.delete(CONVERSATIONS_TABLE, null, null);
+                db.rawExecSQL(SNAPSHOT_COPY_CONVERSATIONS);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.rawExecSQL("DETACH DATABASE " + SNAPSHOT_SCHEMA);
+        }
+    }
+
+    /**
+     * Attaches a snapshot as SNAPSHOT_SCHEMA, must run on the writer thread
+     *
+     * @throws IllegalArgumentException if the snapshot can't be read or has another version, it is then detached
+     */
+    private void attachSnapshot(File snapshot) {
+        db.execSQL("ATTACH DATABASE ? AS " + SNAPSHOT_SCHEMA + " KEY ?", new Object[]{snapshot.getPath(), password});
+        long version;
+        try {
+            version = pragma(SNAPSHOT_SCHEMA + ".user_version");
+        } catch (SQLiteException e) {
+            db.rawExecSQL("DETACH DATABASE " + SNAPSHOT_SCHEMA);
+            throw new IllegalArgumentException(app.getString(R.string.snapshot_invalid), e);
+        }
+        if (version != DATABASE_VERSION) {
+            db.rawExecSQL("DETACH DATABASE " + SNAPSHOT_SCHEMA);
+            throw new IllegalArgumentException(app.getString(R.string.snapshot_version_mismatch, version, DATABASE_VERSION));
+        }
+    }
+
+    private long pragma(String name) {
+        return pragma(db, name);
+    }
+
+    private static long pragma(SQLiteDatabase connection, String name) {
+        Cursor cursor = connection.rawQuery("PRAGMA " + name, null);
+        long value = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        cursor.close();
+        return value;
+    }
+
+    /**
+     * Stages the ids in the temporary lookup table of the connection, so that a single statement
+     * selects them with "IN (LOOKUP_SELECT)", however many they are.
+     * The temporary tables are in memory and only visible to their connection.
+     */
+    private static void stageIds(SQLiteDatabase connection, Collection<Integer> ids) {
+        connection.rawExecSQL("CREATE TEMP TABLE IF NOT EXISTS " + LOOKUP_TABLE + " (" + LOOKUP_KEY_ID + " INTEGER PRIMARY KEY)");
+        //A deferred transaction on the temporary database doesn't lock the main one
+        boolean ownTransaction = !connection.inTransaction();
+        if (ownTransaction) {
+            connection.rawExecSQL("BEGIN DEFERRED");
+        }
+        try {
+            connection.rawExecSQL("DELETE FROM temp." + LOOKUP_TABLE);
+            SQLiteStatement insert = connection.compileStatement("INSERT OR IGNORE INTO temp." + LOOKUP_TABLE + " VALUES (?)");
+            try {
+                for (int id : ids) {
+                    insert.bindLong(1, id);
+                    insert.execute();
                 }
-                counter -= num;
+            } finally {
+                insert.close();
             }
-        } else {
-            String[] args = new String[ids.size()];
-            for (int i = 0; i < ids.size(); ++i) {
-                args[i] = Integer.toString(ids.get(i));
+        } finally {
+            if (ownTransaction) {
+                connection.rawExecSQL("COMMIT");
             }
-            db.delete(RECIPIENTS_TABLE, RECIPIENTS_KEY_ID + " IN (" + createPlaceholders(ids.size()) + ")", args);
         }
     }
 
-    private void pendingAddItems(List<Item> items) {
-        for (Item item : items) {
-            ContentValues values = createItemValues(item);
-            db.replace(ITEMS_TABLE, null, values);
+    private void pendingAddItems(List<Item> items, ChunkedTransaction transaction) {
+        if (items.isEmpty()) {
+            return;
+        }
+        SQLiteStatement statement = db.compileStatement(ITEMS_REPLACE);
+        try {
+            for (Item item : items) {
+                bindItem(statement, item, true);
+                statement.execute();
+                transaction.rowWritten();
+            }
+        } finally {
+            statement.close();
         }
     }
 
-    private void pendingAddRecipients(List<Recipient> recipients) {
-        for (Recipient recipient : recipients) {
-            ContentValues values = createRecipientValues(recipient);
-            db.replace(RECIPIENTS_TABLE, null, values);
+    private void pendingAddRecipients(List<Recipient> recipients, ChunkedTransaction transaction) {
+        if (recipients.isEmpty()) {
+            return;
+        }
+        SQLiteStatement statement = db.compileStatement(RECIPIENTS_REPLACE);
+        try {
+            for (Recipient recipient : recipients) {
+                statement.bindLong(1, recipient.getID());
+                bindStringOrNull(statement, 2, recipient.getName());
+                statement.execute();
+                transaction.rowWritten();
+            }
+        } finally {
+            statement.close();
         }
     }
 
-    private void pendingUpdateItems(List<Item> items) {
-        for (Item item : items) {
-            ContentValues values = createItemValues(item);
-            String[] args = {Integer.toString(item.getID())};
-            db.update(ITEMS_TABLE, values, ITEMS_KEY_ID + " = ?", args);
+    private void pendingUpdateItems(List<Item> items, ChunkedTransaction transaction) {
+        if (items.isEmpty()) {
+            return;
+        }
+        //Items without data keep the data already stored
+        SQLiteStatement withData = db.compileStatement(ITEMS_UPDATE);
+        SQLiteStatement withoutData = db.compileStatement(ITEMS_UPDATE_WITHOUT_DATA);
+        try {
+            for (Item item : items) {
+                SQLiteStatement statement = hasData(item) ? withData : withoutData;
+                int idIndex = bindItem(statement, item, statement == withData);
+                statement.bindLong(idIndex, item.getID());
+                statement.execute();
+                transaction.rowWritten();
+            }
+        } finally {
+            withData.close();
+            withoutData.close();
         }
     }
 
-    private void pendingUpdateRecipients(List<Recipient> recipients) {
-        for (Recipient recipient : recipients) {
-            ContentValues values = createRecipientValues(recipient);
-            String[] args = {Integer.toString(recipient.getID())};
-            db.update(RECIPIENTS_TABLE, values, RECIPIENTS_KEY_ID + " = ?", args);
+    private void pendingUpdateRecipients(List<Recipient> recipients, ChunkedTransaction transaction) {
+        if (recipients.isEmpty()) {
+            return;
+        }
+        SQLiteStatement statement = db.compileStatement(RECIPIENTS_UPDATE);
+        try {
+            for (Recipient recipient : recipients) {
+                statement.bindLong(1, recipient.getID());
+                bindStringOrNull(statement, 2, recipient.getName());
+                statement.bindLong(3, recipient.getID());
+                statement.execute();
+                transaction.rowWritten();
+            }
+        } finally {
+            statement.close();
         }
     }
 
-
     private SQLiteDatabase getWritableIfNotOpen() {
         if (!db.isOpen() || db.isReadOnly()) {
-            return getWritableDatabase(app.getCurrentUser().getPassword());
+            return getWritableDatabase(password);
         }
         return db;
     }
 
-    private SQLiteDatabase getReadableIfNotOpen() {
-        if (!(db.isOpen())) {
-            return getReadableDatabase(app.getCurrentUser().getPassword());
+    /**
+     * Writes the operations in a transaction, must run on the writer thread
+     */
+    private void writePendingOperations(Map<Integer, Pair<Operation, Item>> items, Map<Integer, Pair<Operation, Recipient>> recipients) {
+        db = getWritableIfNotOpen();
+        long start = System.nanoTime();
+        ChunkedTransaction transaction = new ChunkedTransaction(db);
+        try {
+            if (!items.isEmpty()) {
+                List<Item> itemsToAdd = new ArrayList<>();
+                List<Item> itemsToUpdate = new ArrayList<>();
+                List<Integer> itemsToDelete = new ArrayList<>();
+                for (Map.Entry<Integer, Pair<Operation, Item>> e : items.entrySet()) {
+                    Pair<Operation, Item> pair = e.getValue();
+                    switch (pair.getLeft()) {
+                        case ADD:
+                            itemsToAdd.add(pair.getRight());
+                            break;
+                        case UPDATE:
+                            itemsToUpdate.add(pair.getRight());
+                            break;
+                        case DELETE:
+                            itemsToDelete.add(e.getKey());
+                            break;
+                    }
+                }
+                pendingAddItems(itemsToAdd, transaction);
+                pendingUpdateItems(itemsToUpdate, transaction);
+                if (!itemsToDelete.isEmpty()) {
+                    pendingDeleteItems(itemsToDelete);
+                    transaction.rowsWritten(itemsToDelete.size());
+                }
+            }
+            if (!recipients.isEmpty()) {
+                List<Recipient> recipientsToAdd = new ArrayList<>();
+                List<Recipient> recipientsToUpdate = new ArrayList<>();
+                List<Integer> recipientsToDelete = new ArrayList<>();
+                for (Map.Entry<Integer, Pair<Operation, Recipient>> e : recipients.entrySet()) {
+                    Pair<Operation, Recipient> pair = e.getValue();
+                    switch (pair.getLeft()) {
+                        case ADD:
+                            recipientsToAdd.add(pair.getRight());
+                            break;
+                        case UPDATE:
+                            recipientsToUpdate.add(pair.getRight());
+                            break;
+                        case DELETE:
+                            recipientsToDelete.add(e.getKey());
+                    }
+                }
+                pendingAddRecipients(recipientsToAdd, transaction);
+                pendingUpdateRecipients(recipientsToUpdate, transaction);
+                if (!recipientsToDelete.isEmpty()) {
+                    pendingDeleteRecipients(recipientsToDelete);
+                    transaction.rowsWritten(recipientsToDelete.size());
+                }
+            }
+            transaction.setSuccessful();
+        } finally {
+            transaction.end();
         }
-        return db;
+        long time = System.nanoTime() - start;
+        registry.histogram(METRIC_FLUSH_WRITE).record(time / NANOS_PER_MICRO);
+        registry.histogram(METRIC_FLUSH_ROWS).record(transaction.getRows());
+        Log.i(TAG, app.getString(R.string.pending_operations_written, transaction.getRows(),
+                transaction.getRows() * 1000000000L / Math.max(1, time)));
     }
 
-    private ContentValues createItemValues(Item item) {
-        ContentValues values = new ContentValues();
-        values.put(ITEMS_KEY_TYPE, item.getType().name());
-        values.put(ITEMS_KEY_ID, item.getID());
-        values.put(ITEMS_KEY_FROM, item.getFrom().getID());
-        values.put(ITEMS_KEY_TO, item.getTo().getID());
-        values.put(ITEMS_KEY_TIME, item.getDate().getTime());
+    /**
+     * Removes from the pending operations the ones which were written and didn't change since
+     */
+    private static <T> void removeApplied(PendingOperations<T> pending, Map<Integer, Pair<Operation, T>> applied) {
+        for (Map.Entry<Integer, Pair<Operation, T>> e : applied.entrySet()) {
+            pending.removeIfSame(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Runs a write on the writer thread and waits until it is done
+     */
+    private void runOnWriter(Runnable write) {
+        await(writer.submit(write));
+    }
+
+    /**
+     * Queues a write on the writer thread without waiting for it. Must be called with the lock held,
+     * so that the writes are queued in the order of the changes of the pending operations.
+     */
+    private Future<?> queueWrite(Runnable write) {
+        lastWrite = writer.submit(write);
+        return lastWrite;
+    }
+
+    /**
+     * Waits until a write queued on the writer thread is done, must not be called with the lock held
+     */
+    private void await(Future<?> result) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    result.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private SQLiteDatabase acquireReader() {
+        return readers.acquire(password);
+    }
+
+    private void releaseReader(SQLiteDatabase reader) {
+        readers.release(reader);
+    }
+
+    /**
+     * Binds the columns of the item in the order of ITEMS_WRITE_COLUMNS, followed by the data if asked
+     *
+     * @return the index of the next parameter
+     */
+    private int bindItem(SQLiteStatement statement, Item item, boolean withData) {
+        statement.bindString(1, item.getType().name());
+        statement.bindLong(2, item.getID());
+        statement.bindLong(3, item.getFrom().getID());
+        statement.bindLong(4, item.getTo().getID());
+        statement.bindLong(5, Math.min(item.getFrom().getID(), item.getTo().getID()));
+        statement.bindLong(6, Math.max(item.getFrom().getID(), item.getTo().getID()));
+        statement.bindLong(7, item.getDate().getTime());
+        JSONObject condition = null;
         try {
-            values.put(ITEMS_KEY_CONDITION, item.getCondition().toJSON().toString());
+            condition = item.getCondition().toJSON();
         } catch (JSONException e) {
             e.printStackTrace();
         }
-        values.put(ITEMS_KEY_TEXT, item.getMessage());
-
+        bindStringOrNull(statement, 8, condition == null ? null : condition.toString());
+        bindStringOrNull(statement, 9, item.getMessage());
         if (item.getType() == Item.Type.FILEITEM || item.getType() == Item.Type.IMAGEITEM) {
-            byte[] data = ((FileItem) item).getData();
-            if (data.length != 0) {
-                values.put(ITEMS_KEY_DATA, ((FileItem) item).getData());
-            }
-            values.put(ITEMS_KEY_PATH, ((FileItem) item).getPath());
-        } else if (item.getType() != Item.Type.SIMPLETEXTITEM) {
+            bindStringOrNull(statement, 10, ((FileItem) item).getPath());
+        } else if (item.getType() == Item.Type.SIMPLETEXTITEM) {
+            statement.bindNull(10);
+        } else {
             throw new IllegalArgumentException(app.getString(R.string.unexpected_item_type, item.getType()));
         }
-        return values;
+        bindLocation(statement, 11, condition);
+        statement.bindLong(14, item.isLocked() ? 0 : 1);
+        statement.bindString(15, item.getCondition().getType().name());
+        if (!withData) {
+            return ITEMS_WRITE_COLUMNS.length + 1;
+        }
+        byte[] data = hasData(item) ? ((FileItem) item).getData() : null;
+        if (data != null && data.length != 0) {
+            statement.bindBlob(ITEMS_WRITE_COLUMNS.length + 1, data);
+        } else {
+            statement.bindNull(ITEMS_WRITE_COLUMNS.length + 1);
+        }
+        return ITEMS_WRITE_COLUMNS.length + 2;
+    }
+
+    //Data not loaded isn't read to be written again : the item keeps the data already stored
+    private static boolean hasData(Item item) {
+        return (item.getType() == Item.Type.FILEITEM || item.getType() == Item.Type.IMAGEITEM)
+                && ((FileItem) item).isDataLoaded() && ((FileItem) item).getData().length != 0;
     }
 
-    private Item createItem(Cursor cursor) {
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Binds the location of the condition, so that the localized items can be found with the
+     * location index without parsing every condition
+     */
+    private static void bindLocation(SQLiteStatement statement, int index, JSONObject condition) {
+        JSONObject position = null;
+        try {
+            position = condition == null ? null : findPositionCondition(condition);
+            if (position != null) {
+                statement.bindDouble(index, position.getDouble(CONDITION_KEY_LATITUDE));
+                statement.bindDouble(index + 1, position.getDouble(CONDITION_KEY_LONGITUDE));
+                statement.bindDouble(index + 2, position.getDouble(CONDITION_KEY_RADIUS));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            position = null;
+        }
+        if (position == null) {
+            statement.bindNull(index);
+            statement.bindNull(index + 1);
+            statement.bindNull(index + 2);
+        }
+    }
+
+    /**
+     * Returns the position condition giving the location of the condition, in the same order as
+     * {@link Condition#getLocation()}, or null if it has no location
+     */
+    private static JSONObject findPositionCondition(JSONObject condition) throws JSONException {
+        switch (Condition.Type.valueOf(condition.getString(CONDITION_KEY_TYPE))) {
+            case POSITIONCONDITION:
+                return condition;
+            case ANDCONDITION:
+            case ORCONDITION:
+                JSONObject left = findPositionCondition(condition.getJSONObject(CONDITION_KEY_LEFT));
+                return left != null ? left : findPositionCondition(condition.getJSONObject(CONDITION_KEY_RIGHT));
+            case NOTCONDITION:
+                return findPositionCondition(condition.getJSONObject(CONDITION_KEY_VALUE));
+            default:
+                return null;
+        }
+    }
+
+    private Item createItem(Cursor cursor, ReadSnapshot read) {
         Item.Type type;
         try {
             type = Item.Type.valueOf(cursor.getString(0));
@@ -929,35 +1937,486 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
             throw new IllegalArgumentException(app.getString(R.string.unexpected_item_type));
         }
         int id = cursor.getInt(1);
-        User from = (User) getRecipient(cursor.getInt(2));
-        Recipient to = getRecipient(cursor.getInt(3));
+        User from = (User) createRecipientFromJoin(cursor.getInt(2), cursor.getString(ITEMS_HEADER_COLUMNS.length), read);
+        Recipient to = createRecipientFromJoin(cursor.getInt(3), cursor.getString(ITEMS_HEADER_COLUMNS.length + 1), read);
         Date time = new Date(cursor.getLong(4));
-        Condition condition = null;
-        try {
-            condition = Condition.fromJSON(new JSONObject(cursor.getString(5)));
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
+        //The condition is parsed only if it is needed, e.g. to show it or to observe the GPS
+        String conditionType = cursor.getString(9);
+        Condition condition = new LazyCondition(cursor.getString(5), conditionType == null ? null : Condition.Type.valueOf(conditionType),
+                cursor.getInt(8) != 0, !cursor.isNull(10), cursor.getDouble(10), cursor.getDouble(11));
         String text = cursor.getString(6);
-        byte[] data = cursor.getBlob(7);
-        String path = cursor.getString(8);
+        String path = cursor.getString(7);
+        //The header queries don't read the data, it is loaded by the item if it is needed
+        boolean hasData = cursor.getColumnCount() > ITEMS_HEADER_COLUMNS.length + 2;
+        byte[] data = hasData ? cursor.getBlob(ITEMS_HEADER_COLUMNS.length + 2) : null;
+        Item item;
         switch (type) {
             case SIMPLETEXTITEM:
-                return new SimpleTextItem(id, from, to, time, condition, text);
+                item = new SimpleTextItem(id, from, to, time, condition, text);
+                break;
             case FILEITEM:
-                return new FileItem(id, from, to, time, condition, data, path, text);
+                item = hasData ? new FileItem(id, from, to, time, condition, data, path, text)
+                        : new FileItem(id, from, to, time, condition, dataLoader, path, text);
+                break;
             case IMAGEITEM:
-                return new ImageItem(id, from, to, time, condition, data, path, text);
+                item = hasData ? new ImageItem(id, from, to, time, condition, data, path, text)
+                        : new ImageItem(id, from, to, time, condition, dataLoader, path, text);
+                break;
             default:
                 throw new IllegalArgumentException(app.getString(R.string.unexpected_item_type, type));
         }
+        watchUnlock(item);
+        return item;
+    }
+
+    /**
+     * Records the unlocking of a locked item once its condition is fulfilled, as an update staged
+     * like any other : it is journaled, seen by the next reads and written by the next flush.<br>
+     * Only the first locked copy of an item is observed, the copies read later are unlocked by the
+     * same update of the GPS.
+     */
+    private void watchUnlock(Item item) {
+        if (item.isLocked() && watchedUnlocks.add(item.getID())) {
+            item.addObserver(new Item.Observer() {
+                @Override
+                public void update(Item unlocked) {
+                    if (!unlocked.isLocked() && watchedUnlocks.remove(unlocked.getID())) {
+                        updateItem(unlocked);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Same result as getRecipient, but with the name read by the join of the items query
+     */
+    private Recipient createRecipientFromJoin(int id, String name, ReadSnapshot read) {
+        if (id == User.PUBLIC_ID) {
+            return new User(User.PUBLIC_ID, User.PUBLIC_NAME);
+        }
+        Pair<Operation, Recipient> fromPending = read.recipients.get(id);
+        if (fromPending != null) {
+            switch (fromPending.getLeft()) {
+                case ADD:
+                    return fromPending.getRight();
+                case DELETE:
+                    return null;
+                case UPDATE:
+                    return name == null ? null : fromPending.getRight();
+            }
+        }
+        //TODO returns only user now
+        return name == null ? null : new User(id, name);
+    }
+
+    /**
+     * Merges the rows of the cursor with the pending items, both in the same order of id.
+     * The rows having a pending ADD or DELETE are skipped (the added items are in pending if they
+     * match the query), the ones having a pending UPDATE are replaced. The cursor is closed.<br>
+     * The items are matched by id, so that the data of the file items doesn't have to be loaded to compare them.
+     *
+     * @param updatesInPending true if the updated items matching the query are in pending, their rows are then skipped
+     * @param ascending        true if the ids are in ascending order, false if descending
+     * @param limit            the maximum number of items returned
+     * @param read             the pending operations copied by the read
+     */
+    private List<Item> mergeWithPending(Cursor cursor, Collection<Item> pending, boolean updatesInPending, boolean ascending, int limit, ReadSnapshot read) {
+        List<Item> items = new ArrayList<>();
+        Iterator<Item> pendingIterator = pending.iterator();
+        Item nextPending = pendingIterator.hasNext() ? pendingIterator.next() : null;
+        boolean hasNext = cursor != null && cursor.moveToFirst();
+        while (hasNext && items.size() < limit) {
+            ++read.scannedRows;
+            int id = cursor.getInt(1);
+            while (nextPending != null && items.size() < limit && (ascending ? nextPending.getID() < id : nextPending.getID() > id)) {
+                items.add(nextPending);
+                nextPending = pendingIterator.hasNext() ? pendingIterator.next() : null;
+            }
+            Pair<Operation, Item> fromPending = read.items.get(id);
+            if (items.size() == limit) {
+                break;
+            } else if (fromPending == null) {
+                items.add(createItem(cursor, read));
+            } else if (fromPending.getLeft() == Operation.UPDATE && !updatesInPending) {
+                items.add(fromPending.getRight());
+            }
+            hasNext = cursor.moveToNext();
+        }
+        while (nextPending != null && items.size() < limit) {
+            items.add(nextPending);
+            nextPending = pendingIterator.hasNext() ? pendingIterator.next() : null;
+        }
+        if (cursor != null) {
+            cursor.close();
+        }
+        return items;
+    }
+
+    /**
+     * Records the time waited for the lock of the handler, to be called once it is held
+     *
+     * @param requested when the lock was requested (System.nanoTime)
+     * @return when the lock was acquired
+     */
+    private long lockAcquired(long requested) {
+        long acquired = System.nanoTime();
+        registry.histogram(METRIC_LOCK_WAIT).record((acquired - requested) / NANOS_PER_MICRO);
+        return acquired;
+    }
+
+    /**
+     * Starts measuring a read and takes a snapshot of the pending operations, holding the lock of the
+     * handler only for that : the query and the merge run without it.
+     *
+     * @return the pending operations seen by the read
+     */
+    private ReadSnapshot startRead() {
+        long requested = System.nanoTime();
+        synchronized (this) {
+            return startRead(requested);
+        }
+    }
+
+    /**
+     * Same as {@link #startRead()}, to be called once the lock of the handler is held, e.g. by a
+     * read copying the pending items of an index
+     *
+     * @param requested when the lock was requested (System.nanoTime)
+     * @return the pending operations seen by the read
+     */
+    private ReadSnapshot startRead(long requested) {
+        long start = lockAcquired(requested);
+        drainStaged();
+        return new ReadSnapshot(start, pendingItems.snapshot(), pendingRecipients.snapshot());
+    }
+
+    /**
+     * Records the latency, the rows returned and the rows scanned of a read
+     *
+     * @param name   the name of the read, e.g. METRIC_GET_ITEM
+     * @param read   the read, started by startRead
+     * @param result the result of the read, a collection or a single object (null if none)
+     * @return the result
+     */
+    private <T> T endRead(String name, ReadSnapshot read, T result) {
+        registry.histogram(name + METRIC_LATENCY).record((System.nanoTime() - read.start) / NANOS_PER_MICRO);
+        long rows = result instanceof Collection ? ((Collection<?>) result).size() : (result == null ? 0 : 1);
+        registry.histogram(name + METRIC_ROWS).record(rows);
+        registry.histogram(name + METRIC_SCANNED).record(read.scannedRows);
+        return result;
+    }
+
+    /**
+     * Ranks the matches of a full-text query with their match info : the score of an item adds, for
+     * each term, its number of hits in the item divided by its number of hits in all the items.
+     * Only the best matches are kept in memory.
+     *
+     * @return the ids of the count best matches, best first
+     */
+    private List<Integer> rankMatches(SQLiteDatabase reader, String query, int count, ReadSnapshot read) {
+        //The worst match kept is at the head
+        PriorityQueue<SearchMatch> best = new PriorityQueue<>(Math.min(count, RANKED_MATCHES_CAPACITY), SearchMatch.WORST_FIRST);
+        Cursor cursor = reader.rawQuery("SELECT docid, matchinfo(" + SEARCH_TABLE + ", 'pcx') FROM " + SEARCH_TABLE
+                + " WHERE " + SEARCH_TABLE + " MATCH ?", new String[]{query});
+        try {
+            while (cursor.moveToNext()) {
+                ++read.scannedRows;
+                SearchMatch match = new SearchMatch(cursor.getInt(0), score(cursor.getBlob(1)));
+                if (best.size() < count) {
+                    best.add(match);
+                } else if (SearchMatch.WORST_FIRST.compare(match, best.peek()) > 0) {
+                    best.poll();
+                    best.add(match);
+                }
+            }
+        } catch (SQLiteException e) {
+            throw new IllegalArgumentException(app.getString(R.string.search_query_invalid, query), e);
+        } finally {
+            cursor.close();
+        }
+        List<Integer> ids = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            ids.add(best.poll().id);
+        }
+        Collections.reverse(ids);
+        return ids;
+    }
+
+    /**
+     * Computes the score of a match from its match info in the 'pcx' format : the number of phrases
+     * and columns, then for each phrase and column the hits in the row, the hits in all the rows and
+     * the number of rows having a hit, as native 32-bit integers.
+     */
+    private static double score(byte[] matchInfo) {
+        IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; ++phrase) {
+            for (int column = 0; column < columns; ++column) {
+                int hits = 2 + 3 * (phrase * columns + column);
+                if (info.get(hits + 1) > 0) {
+                    score += (double) info.get(hits) / info.get(hits + 1);
+                }
+            }
+        }
+        return score;
+    }
+
+    private boolean isInRegion(Item item, LatLngBounds bounds) {
+        return item.hasLocation() && (bounds == null
+                || bounds.contains(new LatLng(item.getLocation().getLatitude(), item.getLocation().getLongitude())));
+    }
+
+    private boolean existsInDatabase(SQLiteDatabase reader, int id) {
+        Cursor cursor = reader.rawQuery("SELECT 1 FROM " + ITEMS_TABLE + " WHERE " + ITEMS_KEY_ID + " = ?", new String[]{Integer.toString(id)});
+        boolean exists = cursor.getCount() > 0;
+        cursor.close();
+        return exists;
+    }
+
+    /**
+     * Returns the ids of the items exchanged between the current user and a contact, without
+     * building the items. Like the reads, the query runs without the lock of the handler.
+     */
+    private List<Integer> getItemIDsForContact(int contactID) {
+        int userID = app.getCurrentUserID();
+        long requested = System.nanoTime();
+        ReadSnapshot read;
+        List<Integer> ids;
+        synchronized (this) {
+            read = startRead(requested);
+            ids = new ArrayList<>(pendingItems.getAddedInConversation(userID, contactID).keySet());
+        }
+        SQLiteDatabase reader = acquireReader();
+        try {
+            String[] args = {Integer.toString(Math.min(userID, contactID)), Integer.toString(Math.max(userID, contactID))};
+            Cursor cursor = reader.rawQuery("SELECT " + ITEMS_KEY_ID + " FROM " + ITEMS_TABLE + " WHERE " + ITEMS_KEY_LOW_ID + " = ? AND "
+                    + ITEMS_KEY_HIGH_ID + " = ?", args);
+            while (cursor.moveToNext()) {
+                //The added items are already in the list, the deleted ones are skipped
+                Pair<Operation, Item> fromPending = read.items.get(cursor.getInt(0));
+                if (fromPending == null || fromPending.getLeft() == Operation.UPDATE) {
+                    ids.add(cursor.getInt(0));
+                }
+            }
+            cursor.close();
+        } finally {
+            releaseReader(reader);
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the data of a file item from the database, used by the items created by the header queries.
+     * Doesn't take the lock of the handler : only the database is read.
+     */
+    private byte[] loadItemData(int id) {
+        byte[] data = null;
+        SQLiteDatabase reader = acquireReader();
+        try {
+            String[] args = {Integer.toString(id)};
+            Cursor cursor = reader.query(ITEMS_TABLE, new String[]{ITEMS_KEY_DATA}, ITEMS_KEY_ID + " = ?", args, null, null, null);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    data = cursor.getBlob(0);
+                }
+                cursor.close();
+            }
+        } finally {
+            releaseReader(reader);
+        }
+        return data;
+    }
+
+    private Cursor queryItems(SQLiteDatabase reader, String selection, String[] args, String orderBy, String limit, boolean withData) {
+        StringBuilder query = new StringBuilder(withData ? ITEMS_SELECT : ITEMS_HEADER_SELECT);
+        if (selection != null) {
+            query.append(" WHERE ").append(selection);
+        }
+        if (orderBy != null) {
+            query.append(" ORDER BY ").append(orderBy);
+        }
+        if (limit != null) {
+            query.append(" LIMIT ").append(limit);
+        }
+        return reader.rawQuery(query.toString(), args);
+    }
+
+    private static String createItemsSelect(boolean withData) {
+        StringBuilder select = new StringBuilder("SELECT ");
+        for (String column : ITEMS_HEADER_COLUMNS) {
+            select.append(ITEMS_TABLE).append('.').append(column).append(", ");
+        }
+        select.append(SENDERS_ALIAS).append('.').append(RECIPIENTS_KEY_NAME).append(", ")
+                .append(RECEIVERS_ALIAS).append('.').append(RECIPIENTS_KEY_NAME);
+        if (withData) {
+            select.append(", ").append(ITEMS_TABLE).append('.').append(ITEMS_KEY_DATA);
+        }
+        select.append(" FROM ").append(ITEMS_TABLE)
+                .append(" LEFT JOIN ").append(RECIPIENTS_TABLE).append(' ').append(SENDERS_ALIAS)
+                .append(" ON ").append(SENDERS_ALIAS).append('.').append(RECIPIENTS_KEY_ID).append(" = ").append(ITEMS_TABLE).append('.').append(ITEMS_KEY_FROM)
+                .append(" LEFT JOIN ").append(RECIPIENTS_TABLE).append(' ').append(RECEIVERS_ALIAS)
+                .append(" ON ").append(RECEIVERS_ALIAS).append('.').append(RECIPIENTS_KEY_ID).append(" = ").append(ITEMS_TABLE).append('.').append(ITEMS_KEY_TO);
+        return select.toString();
+    }
+
+    private static ConversationSummary createConversationSummary(Cursor cursor, int userID) {
+        int lowID = cursor.getInt(0);
+        int highID = cursor.getInt(1);
+        //The unread items are the ones sent by the contact
+        boolean userIsLow = lowID == userID;
+        return new ConversationSummary(userIsLow ? highID : lowID, cursor.getInt(2), cursor.getInt(userIsLow ? 4 : 3),
+                cursor.getInt(5), new Date(cursor.getLong(6)), cursor.getString(7));
+    }
+
+    /**
+     * Creates the summary table and the triggers keeping it up to date, in the same transaction as
+     * the writes of the items
+     */
+    private static String[] createConversationsSchema() {
+        String createTable = "CREATE TABLE " + CONVERSATIONS_TABLE + " ("
+                + CONVERSATIONS_KEY_LOW_ID + " INTEGER NOT NULL, "
+                + CONVERSATIONS_KEY_HIGH_ID + " INTEGER NOT NULL, "
+                + CONVERSATIONS_KEY_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + CONVERSATIONS_KEY_UNREAD_LOW + " INTEGER NOT NULL DEFAULT 0, "
+                + CONVERSATIONS_KEY_UNREAD_HIGH + " INTEGER NOT NULL DEFAULT 0, "
+                + CONVERSATIONS_KEY_LAST_READ_ID + " INTEGER NOT NULL DEFAULT -1, "
+                + CONVERSATIONS_KEY_LAST_ID + " INTEGER, "
+                + CONVERSATIONS_KEY_LAST_TIME + " INTEGER, "
+                + CONVERSATIONS_KEY_LAST_TEXT + " TEXT, "
+                + "PRIMARY KEY (" + CONVERSATIONS_KEY_LOW_ID + ", " + CONVERSATIONS_KEY_HIGH_ID + "))";
+        String insertTrigger = "CREATE TRIGGER trg_Items_insert AFTER INSERT ON " + ITEMS_TABLE + " BEGIN "
+                + conversationAdd("NEW") + " END";
+        String deleteTrigger = "CREATE TRIGGER trg_Items_delete AFTER DELETE ON " + ITEMS_TABLE + " BEGIN "
+                + conversationRemove("OLD") + " END";
+        //The new row is counted first, so that a conversation doesn't lose its read state when its only item is updated
+        String updateTrigger = "CREATE TRIGGER trg_Items_update AFTER UPDATE ON " + ITEMS_TABLE + " BEGIN "
+                + conversationAdd("NEW") + " " + conversationRemove("OLD") + " END";
+        return new String[]{createTable, insertTrigger, deleteTrigger, updateTrigger};
+    }
+
+    private static String conversationAdd(String row) {
+        String where = " WHERE " + CONVERSATIONS_KEY_LOW_ID + " = " + row + "." + ITEMS_KEY_LOW_ID
+                + " AND " + CONVERSATIONS_KEY_HIGH_ID + " = " + row + "." + ITEMS_KEY_HIGH_ID;
+        String unread = row + "." + ITEMS_KEY_ID + " > " + CONVERSATIONS_KEY_LAST_READ_ID + " AND " + row + "." + ITEMS_KEY_FROM + " = " + row + ".";
+        return "INSERT OR IGNORE INTO " + CONVERSATIONS_TABLE + " (" + CONVERSATIONS_KEY_LOW_ID + ", " + CONVERSATIONS_KEY_HIGH_ID + ") VALUES ("
+                + row + "." + ITEMS_KEY_LOW_ID + ", " + row + "." + ITEMS_KEY_HIGH_ID + "); "
+                + "UPDATE " + CONVERSATIONS_TABLE + " SET " + CONVERSATIONS_KEY_COUNT + " = " + CONVERSATIONS_KEY_COUNT + " + 1, "
+                + CONVERSATIONS_KEY_UNREAD_LOW + " = " + CONVERSATIONS_KEY_UNREAD_LOW + " + (" + unread + ITEMS_KEY_LOW_ID + "), "
+                + CONVERSATIONS_KEY_UNREAD_HIGH + " = " + CONVERSATIONS_KEY_UNREAD_HIGH + " + (" + unread + ITEMS_KEY_HIGH_ID + ")"
+                + where + "; "
+                + "UPDATE " + CONVERSATIONS_TABLE + " SET " + CONVERSATIONS_KEY_LAST_ID + " = " + row + "." + ITEMS_KEY_ID + ", "
+                + CONVERSATIONS_KEY_LAST_TIME + " = " + row + "." + ITEMS_KEY_TIME + ", "
+                + CONVERSATIONS_KEY_LAST_TEXT + " = " + row + "." + ITEMS_KEY_TEXT
+                + where + " AND (" + CONVERSATIONS_KEY_LAST_ID + " IS NULL OR " + CONVERSATIONS_KEY_LAST_ID + " <= " + row + "." + ITEMS_KEY_ID + ");";
+    }
+
+    private static String conversationRemove(String row) {
+        String where = " WHERE " + CONVERSATIONS_KEY_LOW_ID + " = " + row + "." + ITEMS_KEY_LOW_ID
+                + " AND " + CONVERSATIONS_KEY_HIGH_ID + " = " + row + "." + ITEMS_KEY_HIGH_ID;
+        String unread = row + "." + ITEMS_KEY_ID + " > " + CONVERSATIONS_KEY_LAST_READ_ID + " AND " + row + "." + ITEMS_KEY_FROM + " = " + row + ".";
+        //The last item is searched again with the conversation index only if it is the one removed
+        String lastItem = " FROM " + ITEMS_TABLE + " WHERE " + ITEMS_KEY_LOW_ID + " = " + row + "." + ITEMS_KEY_LOW_ID
+                + " AND " + ITEMS_KEY_HIGH_ID + " = " + row + "." + ITEMS_KEY_HIGH_ID + " ORDER BY " + ITEMS_KEY_ID + " DESC LIMIT 1)";
+        return "UPDATE " + CONVERSATIONS_TABLE + " SET " + CONVERSATIONS_KEY_COUNT + " = " + CONVERSATIONS_KEY_COUNT + " - 1, "
+                + CONVERSATIONS_KEY_UNREAD_LOW + " = " + CONVERSATIONS_KEY_UNREAD_LOW + " - (" + unread + ITEMS_KEY_LOW_ID + "), "
+                + CONVERSATIONS_KEY_UNREAD_HIGH + " = " + CONVERSATIONS_KEY_UNREAD_HIGH + " - (" + unread + ITEMS_KEY_HIGH_ID + ")"
+                + where + "; "
+                + "DELETE FROM " + CONVERSATIONS_TABLE + where + " AND " + CONVERSATIONS_KEY_COUNT + " <= 0; "
+                + "UPDATE " + CONVERSATIONS_TABLE + " SET " + CONVERSATIONS_KEY_LAST_ID + " = (SELECT " + ITEMS_KEY_ID + lastItem + ", "
+                + CONVERSATIONS_KEY_LAST_TIME + " = (SELECT " + ITEMS_KEY_TIME + lastItem + ", "
+                + CONVERSATIONS_KEY_LAST_TEXT + " = (SELECT " + ITEMS_KEY_TEXT + lastItem
+                + where + " AND " + CONVERSATIONS_KEY_LAST_ID + " = " + row + "." + ITEMS_KEY_ID + ";";
+    }
+
+    private static String[] createConversationsRebuild() {
+        String match = " FROM " + ITEMS_TABLE + " i WHERE i." + ITEMS_KEY_LOW_ID + " = " + CONVERSATIONS_TABLE + "." + CONVERSATIONS_KEY_LOW_ID
+                + " AND i." + ITEMS_KEY_HIGH_ID + " = " + CONVERSATIONS_TABLE + "." + CONVERSATIONS_KEY_HIGH_ID;
+        String unread = " AND i." + ITEMS_KEY_ID + " > " + CONVERSATIONS_TABLE + "." + CONVERSATIONS_KEY_LAST_READ_ID + " AND i." + ITEMS_KEY_FROM + " = i.";
+        String last = " ORDER BY i." + ITEMS_KEY_ID + " DESC LIMIT 1)";
+        return new String[]{
+                "DELETE FROM " + CONVERSATIONS_TABLE + " WHERE NOT EXISTS (SELECT 1" + match + ")",
+                "INSERT OR IGNORE INTO " + CONVERSATIONS_TABLE + " (" + CONVERSATIONS_KEY_LOW_ID + ", " + CONVERSATIONS_KEY_HIGH_ID + ") "
+                        + "SELECT DISTINCT " + ITEMS_KEY_LOW_ID + ", " + ITEMS_KEY_HIGH_ID + " FROM " + ITEMS_TABLE,
+                "UPDATE " + CONVERSATIONS_TABLE + " SET "
+                        + CONVERSATIONS_KEY_COUNT + " = (SELECT COUNT(*)" + match + "), "
+                        + CONVERSATIONS_KEY_UNREAD_LOW + " = (SELECT COUNT(*)" + match + unread + ITEMS_KEY_LOW_ID + "), "
+                        + CONVERSATIONS_KEY_UNREAD_HIGH + " = (SELECT COUNT(*)" + match + unread + ITEMS_KEY_HIGH_ID + "), "
+                        + CONVERSATIONS_KEY_LAST_ID + " = (SELECT i." + ITEMS_KEY_ID + match + last + ", "
+                        + CONVERSATIONS_KEY_LAST_TIME + " = (SELECT i." + ITEMS_KEY_TIME + match + last + ", "
+                        + CONVERSATIONS_KEY_LAST_TEXT + " = (SELECT i." + ITEMS_KEY_TEXT + match + last
+        };
+    }
+
+    /**
+     * Creates the full-text index and the triggers keeping it up to date, in the same transaction as
+     * the writes of the items. The index reads the text from tb_Items, which it must be given back
+     * before the row changes to remove it from the index.
+     */
+    private static String[] createSearchSchema() {
+        String createTable = "CREATE VIRTUAL TABLE " + SEARCH_TABLE + " USING fts4(content=\"" + ITEMS_TABLE + "\", " + ITEMS_KEY_TEXT + ")";
+        String changed = "OLD." + ITEMS_KEY_TEXT + " IS NOT NEW." + ITEMS_KEY_TEXT;
+        String insertTrigger = "CREATE TRIGGER trg_Search_insert AFTER INSERT ON " + ITEMS_TABLE
+                + " WHEN NEW." + ITEMS_KEY_TEXT + " IS NOT NULL BEGIN " + searchAdd("NEW") + " END";
+        String deleteTrigger = "CREATE TRIGGER trg_Search_delete BEFORE DELETE ON " + ITEMS_TABLE
+                + " WHEN OLD." + ITEMS_KEY_TEXT + " IS NOT NULL BEGIN " + searchRemove("OLD") + " END";
+        //The text rarely changes, the other updates leave the index alone
+        String beforeUpdateTrigger = "CREATE TRIGGER trg_Search_before_update BEFORE UPDATE ON " + ITEMS_TABLE
+                + " WHEN " + changed + " AND OLD." + ITEMS_KEY_TEXT + " IS NOT NULL BEGIN " + searchRemove("OLD") + " END";
+        String afterUpdateTrigger = "CREATE TRIGGER trg_Search_after_update AFTER UPDATE ON " + ITEMS_TABLE
+                + " WHEN " + changed + " AND NEW." + ITEMS_KEY_TEXT + " IS NOT NULL BEGIN " + searchAdd("NEW") + " END";
+        return new String[]{createTable, insertTrigger, deleteTrigger, beforeUpdateTrigger, afterUpdateTrigger};
+    }
+
+    private static String searchAdd(String row) {
+        return "INSERT INTO " + SEARCH_TABLE + " (docid, " + ITEMS_KEY_TEXT + ") VALUES (" + row + "." + ITEMS_KEY_ID + ", " + row + "." + ITEMS_KEY_TEXT + ");";
+    }
+
+    private static String searchRemove(String row) {
+        return "INSERT INTO " + SEARCH_TABLE + " (" + SEARCH_TABLE + ", docid, " + ITEMS_KEY_TEXT + ") VALUES ('delete', "
+                + row + "." + ITEMS_KEY_ID + ", " + row + "." + ITEMS_KEY_TEXT + ");";
+    }
+
+    private static String createReplace(String table, String[] columns, String lastColumn) {
+        StringBuilder replace = new StringBuilder("INSERT OR REPLACE INTO ").append(table).append(" (");
+        StringBuilder values = new StringBuilder(" VALUES (");
+        for (int i = 0; i < columns.length; ++i) {
+            replace.append(i == 0 ? "" : ", ").append(columns[i]);
+            values.append(i == 0 ? "?" : ", ?");
+        }
+        if (lastColumn != null) {
+            replace.append(", ").append(lastColumn);
+            values.append(", ?");
+        }
+        return replace.append(')').append(values).append(')').toString();
     }
 
-    private ContentValues createRecipientValues(Recipient recipient) {
-        ContentValues values = new ContentValues();
-        values.put(RECIPIENTS_KEY_ID, recipient.getID());
-        values.put(RECIPIENTS_KEY_NAME, recipient.getName());
-        return values;
+    /**
+     * Creates the statement copying the rows of a table from the attached snapshot, by name of column
+     * so that it doesn't depend on the order of the columns
+     */
+    private static String createSnapshotCopy(String table, String[] columns, String lastColumn) {
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < columns.length; ++i) {
+            names.append(i == 0 ? "" : ", ").append(columns[i]);
+        }
+        if (lastColumn != null) {
+            names.append(", ").append(lastColumn);
+        }
+        return "INSERT INTO main." + table + " (" + names + ") SELECT " + names + " FROM " + SNAPSHOT_SCHEMA + "." + table;
+    }
+
+    private static String createUpdate(String table, String[] columns, String lastColumn, String key) {
+        StringBuilder update = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        for (int i = 0; i < columns.length; ++i) {
+            update.append(i == 0 ? "" : ", ").append(columns[i]).append(" = ?");
+        }
+        if (lastColumn != null) {
+            update.append(", ").append(lastColumn).append(" = ?");
+        }
+        return update.append(" WHERE ").append(key).append(" = ?").toString();
     }
 
     private User createUser(Cursor cursor) {
@@ -968,10 +2427,10 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
 
     private void addOrUpdateRecipientWithItem(Item item) {
         if (item.getFrom().getName() != null) {
-            pendingRecipients.put(item.getFrom().getID(), new Pair<>(Operation.ADD, (Recipient) item.getFrom()));
+            pendingRecipients.put(item.getFrom().getID(), Operation.ADD, item.getFrom());
         }
         if (item.getTo().getID() != User.PUBLIC_ID && item.getTo().getName() != null) {
-            pendingRecipients.put(item.getTo().getID(), new Pair<>(Operation.ADD, item.getTo()));
+            pendingRecipients.put(item.getTo().getID(), Operation.ADD, item.getTo());
         }
     }
 
@@ -980,18 +2439,18 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
         if (fromPending != null) {
             switch (fromPending.getLeft()) {
                 case ADD:
-                    pendingItems.put(item.getID(), new Pair<>(Operation.ADD, item));
+                    pendingItems.put(item.getID(), Operation.ADD, item);
                     addOrUpdateRecipientWithItem(item);
                     break;
                 case UPDATE:
-                    pendingItems.put(item.getID(), new Pair<>(Operation.UPDATE, item));
+                    pendingItems.put(item.getID(), Operation.UPDATE, item);
                     addOrUpdateRecipientWithItem(item);
                     break;
                 case DELETE:
                     break;
             }
         } else {
-            pendingItems.put(item.getID(), new Pair<>(Operation.UPDATE, item));
+            pendingItems.put(item.getID(), Operation.UPDATE, item);
             addOrUpdateRecipientWithItem(item);
         }
     }
@@ -1001,71 +2460,496 @@ public final class SQLiteDatabaseHandler extends SQLiteOpenHelper {
         if (fromPending != null) {
             switch (fromPending.getLeft()) {
                 case ADD:
-                    pendingRecipients.put(recipient.getID(), new Pair<>(Operation.ADD, recipient));
+                    pendingRecipients.put(recipient.getID(), Operation.ADD, recipient);
                     break;
                 case UPDATE:
-                    pendingRecipients.put(recipient.getID(), new Pair<>(Operation.UPDATE, recipient));
+                    pendingRecipients.put(recipient.getID(), Operation.UPDATE, recipient);
                     break;
                 case DELETE:
                     break;
             }
         } else {
-            pendingRecipients.put(recipient.getID(), new Pair<>(Operation.UPDATE, recipient));
+            pendingRecipients.put(recipient.getID(), Operation.UPDATE, recipient);
         }
     }
 
-    private Set<Item> updateGetItemsFromPending(Set<Item> items, Set<Item> toUpdate) {
-        Set<Item> itemsCopy = new HashSet<>(items);
-        if (toUpdate.size() < items.size()) {
-            for (Item i : toUpdate) {
-                if (items.contains(i)) {
-                    itemsCopy.remove(i);
-                    itemsCopy.add(i);
+    /**
+     * Stages an operation on an item and appends it to the journal, without the lock of the handler :
+     * the operation survives a crash even if nothing reads or flushes before
+     */
+    private void stageItem(Operation operation, int id, Item item) {
+        JSONObject record = null;
+        try {
+            record = createJournalRecord(JOURNAL_TARGET_ITEM, operation.name(), id);
+            if (item != null) {
+                record.put(JOURNAL_KEY_TYPE, item.getType().name());
+                if (item.getType() == Item.Type.FILEITEM || item.getType() == Item.Type.IMAGEITEM) {
+                    //The data of a file isn't read to be journaled, only the file holding it
+                    record.put(JOURNAL_KEY_VALUE, ((FileItem) item).toJSONWithoutLoading());
+                    record.put(JOURNAL_KEY_PATH, ((FileItem) item).getPath());
+                } else {
+                    record.put(JOURNAL_KEY_VALUE, item.toJSON());
                 }
             }
-        } else {
-            for (Item i : items) {
-                Pair<Operation, Item> fromPending = pendingItems.get(i.getID());
-                if (fromPending != null && fromPending.getLeft() == Operation.UPDATE) {
-                    itemsCopy.remove(i);
-                    itemsCopy.add(fromPending.getRight());
+        } catch (JSONException e) {
+            e.printStackTrace();
+            record = null;
+        }
+        synchronized (stagingLock) {
+            staging.stageItem(operation, id, item);
+            if (record != null) {
+                journal.append(record);
+            }
+        }
+    }
+
+    /**
+     * Stages an operation on a recipient and appends it to the journal, without the lock of the handler
+     */
+    private void stageRecipient(Operation operation, int id, Recipient recipient) {
+        JSONObject record = null;
+        try {
+            record = createJournalRecord(JOURNAL_TARGET_RECIPIENT, operation.name(), id);
+            if (recipient != null) {
+                record.put(JOURNAL_KEY_VALUE, recipient.toJSON());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            record = null;
+        }
+        synchronized (stagingLock) {
+            staging.stageRecipient(operation, id, recipient);
+            if (record != null) {
+                journal.append(record);
+            }
+        }
+    }
+
+    /**
+     * Queues a flush in the background once too many operations are pending, at most one at a time.
+     * If the operations keep coming faster than they are written, the producer flushes them itself,
+     * so that the memory held by the pending operations stays bounded.
+     */
+    private void applyIfTooManyPending() {
+        int pending = staging.size() + pendingCount;
+        if (pending >= BLOCKING_PENDING_OPERATIONS) {
+            registry.counter(METRIC_PENDING_BLOCKED).increment();
+            applyPendingOperations();
+        } else if (pending >= MAX_PENDING_OPERATIONS && flushQueued.compareAndSet(false, true)) {
+            flusher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushQueued.set(false);
+                    applyPendingOperations();
                 }
+            });
+        }
+    }
+
+    /**
+     * Moves the staged operations to the pending operations, in the order they were staged. They are
+     * already in the journal. Must be called with the lock held.
+     */
+    private void drainStaged() {
+        StagedOperations.Staged staged = staging.poll();
+        if (staged == null) {
+            return;
+        }
+        while (staged != null) {
+            if (staged.isOnItem()) {
+                applyItemOperation(staged.getOperation(), staged.getID(), staged.getItem());
+            } else {
+                applyRecipientOperation(staged.getOperation(), staged.getID(), staged.getRecipient());
             }
+            staged = staging.poll();
         }
-        return itemsCopy;
+        pendingCount = pendingItems.size() + pendingRecipients.size();
     }
 
-    private Set<Recipient> updateGetRecipientsFromPending(Set<Recipient> recipients, Set<Recipient> toUpdate) {
-        Set<Recipient> recipientsCopy = new HashSet<>(recipients);
-        if (toUpdate.size() < recipients.size()) {
-            for (Recipient i : toUpdate) {
-                if (recipients.contains(i)) {
-                    recipientsCopy.remove(i);
-                    recipientsCopy.add(i);
+    /**
+     * Applies a staged or a replayed operation on an item to the pending operations
+     */
+    private void applyItemOperation(Operation operation, int id, Item item) {
+        switch (operation) {
+            case ADD:
+                pendingItems.put(id, Operation.ADD, item);
+                addOrUpdateRecipientWithItem(item);
+                watchUnlock(item);
+                break;
+            case UPDATE:
+                manageItemUpdate(item);
+                watchUnlock(item);
+                break;
+            case DELETE:
+                pendingItems.put(id, Operation.DELETE, null);
+                break;
+        }
+    }
+
+    /**
+     * Applies a staged or a replayed operation on a recipient to the pending operations
+     */
+    private void applyRecipientOperation(Operation operation, int id, Recipient recipient) {
+        switch (operation) {
+            case ADD:
+                pendingRecipients.put(id, Operation.ADD, recipient);
+                break;
+            case UPDATE:
+                manageRecipientUpdate(recipient);
+                break;
+            case DELETE:
+                pendingRecipients.put(id, Operation.DELETE, null);
+                break;
+        }
+    }
+
+    private void journalClear(String target) {
+        if (!replaying) {
+            try {
+                journal.append(createJournalRecord(target, JOURNAL_CLEAR, 0));
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void journalTime(long time) {
+        if (!replaying) {
+            try {
+                JSONObject record = createJournalRecord(JOURNAL_TARGET_TIME, Operation.UPDATE.name(), 0);
+                record.put(JOURNAL_KEY_TIME, time);
+                journal.append(record);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private JSONObject createJournalRecord(String target, String operation, int id) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put(JOURNAL_KEY_TARGET, target);
+        record.put(JOURNAL_KEY_OPERATION, operation);
+        record.put(JOURNAL_KEY_ID, id);
+        return record;
+    }
+
+    /**
+     * Waits until all the operations appended to the journal are written on disk.
+     */
+    void syncJournal() {
+        journal.sync();
+    }
+
+    /**
+     * Rebuilds the pending operations from the journal, as if the application was restarting,
+     * and writes them in the database.
+     */
+    void replayJournal() {
+        synchronized (this) {
+            drainStaged();
+            journal.sync();
+            List<JSONObject> records = journal.readAll();
+            if (records.isEmpty()) {
+                return;
+            }
+            pendingItems.clear();
+            pendingRecipients.clear();
+            replaying = true;
+            try {
+                for (JSONObject record : records) {
+                    replayRecord(record);
                 }
+            } catch (JSONException | IllegalArgumentException e) {
+                //Keeps the operations replayed until the broken record
+                Log.e(TAG, app.getString(R.string.journal_read_failed), e);
+            } finally {
+                replaying = false;
             }
-        } else {
-            for (Recipient i : recipients) {
-                Pair<Operation, Recipient> fromPending = pendingRecipients.get(i.getID());
-                if (fromPending != null && fromPending.getLeft() == Operation.UPDATE) {
-                    recipientsCopy.remove(i);
-                    recipientsCopy.add(fromPending.getRight());
+            pendingCount = pendingItems.size() + pendingRecipients.size();
+            Log.i(TAG, app.getString(R.string.journal_replayed, records.size()));
+            if (pendingItems.isEmpty() && pendingRecipients.isEmpty()) {
+                journal.truncate();
+                return;
+            }
+        }
+        //Truncates the journal once the operations are written
+        applyPendingOperations();
+    }
+
+    private void replayRecord(JSONObject record) throws JSONException {
+        String target = record.getString(JOURNAL_KEY_TARGET);
+        String operation = record.getString(JOURNAL_KEY_OPERATION);
+        int id = record.getInt(JOURNAL_KEY_ID);
+        switch (target) {
+            case JOURNAL_TARGET_ITEM:
+                if (operation.equals(JOURNAL_CLEAR)) {
+                    pendingItems.clear();
+                } else {
+                    Item item = record.isNull(JOURNAL_KEY_VALUE) ? null : itemFromJournal(record);
+                    applyItemOperation(Operation.valueOf(operation), id, item);
+                }
+                break;
+            case JOURNAL_TARGET_RECIPIENT:
+                if (operation.equals(JOURNAL_CLEAR)) {
+                    pendingRecipients.clear();
+                } else {
+                    Recipient recipient = record.isNull(JOURNAL_KEY_VALUE) ? null : Recipient.fromJSON(record.getJSONObject(JOURNAL_KEY_VALUE));
+                    applyRecipientOperation(Operation.valueOf(operation), id, recipient);
                 }
+                break;
+            case JOURNAL_TARGET_TIME:
+                if (operation.equals(JOURNAL_CLEAR)) {
+                    lastItemTime = 0;
+                } else {
+                    setLastItemTime(record.getLong(JOURNAL_KEY_TIME));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(app.getString(R.string.journal_read_failed));
+        }
+    }
+
+    private Item itemFromJournal(JSONObject record) throws JSONException {
+        JSONObject json = record.getJSONObject(JOURNAL_KEY_VALUE);
+        //The path is not part of the JSON representation of the items
+        String type = record.getString(JOURNAL_KEY_TYPE);
+        switch (Item.Type.valueOf(type)) {
+            case SIMPLETEXTITEM:
+                return SimpleTextItem.fromJSON(json);
+            case FILEITEM:
+                FileItem.Builder fileBuilder = new FileItem.Builder().parse(json);
+                fileBuilder.setPath(record.getString(JOURNAL_KEY_PATH));
+                if (!json.has(FileItem.JSON_DATA) && !json.has(FileItem.JSON_DATA_FILE)) {
+                    //Its data is still in the database
+                    fileBuilder.setLoader(dataLoader);
+                }
+                return fileBuilder.build();
+            case IMAGEITEM:
+                ImageItem.Builder imageBuilder = new ImageItem.Builder().parse(json);
+                imageBuilder.setPath(record.getString(JOURNAL_KEY_PATH));
+                if (!json.has(FileItem.JSON_DATA) && !json.has(FileItem.JSON_DATA_FILE)) {
+                    imageBuilder.setLoader(dataLoader);
+                }
+                return imageBuilder.build();
+            default:
+                throw new IllegalArgumentException(app.getString(R.string.unexpected_item_type, type));
+        }
+    }
+
+    /**
+     * A transaction committed every WRITE_CHUNK_SIZE rows, so that a big flush doesn't keep the
+     * whole write in the log before committing. The operations stay pending until the end of the
+     * flush, so the reads never see a partial flush, and writing them again after a crash is harmless.
+     */
+    private static final class ChunkedTransaction {
+
+        private final SQLiteDatabase db;
+        private int rows;
+        private int chunkRows;
+
+        ChunkedTransaction(SQLiteDatabase db) {
+            this.db = db;
+            db.beginTransaction();
+        }
+
+        void rowWritten() {
+            rowsWritten(1);
+        }
+
+        void rowsWritten(int count) {
+            rows += count;
+            chunkRows += count;
+            if (chunkRows >= WRITE_CHUNK_SIZE) {
+                db.setTransactionSuccessful();
+                db.endTransaction();
+                db.beginTransaction();
+                chunkRows = 0;
             }
         }
-        return recipientsCopy;
+
+        void setSuccessful() {
+            db.setTransactionSuccessful();
+        }
+
+        void end() {
+            db.endTransaction();
+        }
+
+        int getRows() {
+            return rows;
+        }
     }
 
-    private String createPlaceholders(int length) {
-        if (length < 1) {
-            throw new RuntimeException(app.getString(R.string.no_placeholders));
-        } else {
-            StringBuilder builder = new StringBuilder(length * 2 - 1);
-            builder.append('?');
-            for (int i = 1; i < length; ++i) {
-                builder.append(",?");
+    /**
+     * The pending operations seen by a read, a snapshot taken while holding the lock of the handler
+     * so that the query and the merge run without it, and the rows scanned by the read
+     */
+    private static final class ReadSnapshot {
+
+        final long start;
+        final Map<Integer, Pair<Operation, Item>> items;
+        final Map<Integer, Pair<Operation, Recipient>> recipients;
+        long scannedRows;
+
+        ReadSnapshot(long start, Map<Integer, Pair<Operation, Item>> items, Map<Integer, Pair<Operation, Recipient>> recipients) {
+            this.start = start;
+            this.items = items;
+            this.recipients = recipients;
+        }
+    }
+
+    /**
+     * A full-text query matched against a text the way the full-text index does, to check the pending
+     * updates : the text is split in lower case ASCII words, the terms of the query must all appear
+     * but the ones joined by OR, where one is enough, and the ones starting with '-', which mustn't.
+     * A term ending with '*' is a prefix, a quoted term a phrase whose words must follow each other.
+     */
+    private static final class SearchQuery {
+
+        private static final String OR = "OR";
+        private static final String PREFIX = "*";
+
+        //Each clause is a list of alternatives, each one a phrase whose last word ends with '*' if it is a prefix
+        private final List<List<List<String>>> clauses = new ArrayList<>();
+        private final List<List<String>> excluded = new ArrayList<>();
+
+        SearchQuery(String query) {
+            List<String> terms = splitTerms(query);
+            for (int i = 0; i < terms.size(); ++i) {
+                String term = terms.get(i);
+                boolean joined = OR.equals(term) && !clauses.isEmpty() && i + 1 < terms.size();
+                if (joined) {
+                    term = terms.get(++i);
+                }
+                boolean exclude = term.startsWith("-");
+                List<String> phrase = tokenize(exclude ? term.substring(1) : term);
+                if (phrase.isEmpty()) {
+                    continue;
+                }
+                if (term.endsWith(PREFIX)) {
+                    phrase.set(phrase.size() - 1, phrase.get(phrase.size() - 1) + PREFIX);
+                }
+                if (exclude) {
+                    excluded.add(phrase);
+                } else if (joined) {
+                    clauses.get(clauses.size() - 1).add(phrase);
+                } else {
+                    List<List<String>> clause = new ArrayList<>();
+                    clause.add(phrase);
+                    clauses.add(clause);
+                }
+            }
+        }
+
+        /**
+         * Tells whether a text matches the query
+         *
+         * @param text the text, null for none
+         * @return true if the text matches
+         */
+        boolean matches(String text) {
+            List<String> words = tokenize(text == null ? "" : text);
+            for (List<List<String>> clause : clauses) {
+                boolean any = false;
+                for (List<String> phrase : clause) {
+                    any |= contains(words, phrase);
+                }
+                if (!any) {
+                    return false;
+                }
+            }
+            for (List<String> phrase : excluded) {
+                if (contains(words, phrase)) {
+                    return false;
+                }
             }
-            return builder.toString();
+            return true;
+        }
+
+        private static boolean contains(List<String> words, List<String> phrase) {
+            int last = phrase.size() - 1;
+            String lastWord = phrase.get(last);
+            boolean prefix = lastWord.endsWith(PREFIX);
+            if (prefix) {
+                lastWord = lastWord.substring(0, lastWord.length() - PREFIX.length());
+            }
+            for (int start = 0; start + last < words.size(); ++start) {
+                int matched = 0;
+                while (matched < last && words.get(start + matched).equals(phrase.get(matched))) {
+                    ++matched;
+                }
+                String word = words.get(start + last);
+                if (matched == last && (prefix ? word.startsWith(lastWord) : word.equals(lastWord))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        //Splits on the spaces outside the quotes, a quoted phrase keeping its spaces
+        private static List<String> splitTerms(String query) {
+            List<String> terms = new ArrayList<>();
+            StringBuilder term = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < query.length(); ++i) {
+                char c = query.charAt(i);
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (Character.isWhitespace(c) && !quoted) {
+                    if (term.length() > 0) {
+                        terms.add(term.toString());
+                        term.setLength(0);
+                    }
+                } else {
+                    term.append(c);
+                }
+            }
+            if (term.length() > 0) {
+                terms.add(term.toString());
+            }
+            return terms;
+        }
+
+        //The words of the simple tokenizer : runs of ASCII letters and digits or non-ASCII characters
+        private static List<String> tokenize(String text) {
+            List<String> words = new ArrayList<>();
+            StringBuilder word = new StringBuilder();
+            for (int i = 0; i <= text.length(); ++i) {
+                char c = i < text.length() ? text.charAt(i) : ' ';
+                if (c >= 128 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')) {
+                    word.append(c);
+                } else if (c >= 'A' && c <= 'Z') {
+                    word.append((char) (c - 'A' + 'a'));
+                } else if (word.length() > 0) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                }
+            }
+            return words;
+        }
+    }
+
+    /**
+     * A match of a full-text search
+     */
+    private static final class SearchMatch {
+
+        //Lowest score first, the oldest first between equal scores
+        static final Comparator<SearchMatch> WORST_FIRST = new Comparator<SearchMatch>() {
+            @Override
+            public int compare(SearchMatch lhs, SearchMatch rhs) {
+                int byScore = Double.compare(lhs.score, rhs.score);
+                //Integer.compare needs API 19
+                return byScore != 0 ? byScore : (lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1));
+            }
+        };
+
+        final int id;
+        final double score;
+
+        SearchMatch(int id, double score) {
+            this.id = id;
+            this.score = score;
         }
     }
 }
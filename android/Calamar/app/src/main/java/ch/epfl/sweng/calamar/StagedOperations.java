@@ -0,0 +1,100 @@
+package ch.epfl.sweng.calamar;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.epfl.sweng.calamar.PendingOperations.Operation;
+import ch.epfl.sweng.calamar.item.Item;
+import ch.epfl.sweng.calamar.recipient.Recipient;
+
+/**
+ * The operations of the {@link SQLiteDatabaseHandler} not moved to its pending operations yet.<br>
+ * Any thread stages an operation without locking, so that the producers (GCM listener, storage
+ * manager, activities) never wait for a read or a flush holding the lock of the handler. The
+ * handler drains the operations, in the order they were staged, while holding its lock : a read
+ * or a flush sees every operation staged before it.
+ */
+final class StagedOperations {
+
+    /**
+     * An operation on an item or on a recipient, the value is null for a DELETE
+     */
+    static final class Staged {
+        private final boolean onItem;
+        private final Operation operation;
+        private final int id;
+        private final Item item;
+        private final Recipient recipient;
+
+        private Staged(boolean onItem, Operation operation, int id, Item item, Recipient recipient) {
+            this.onItem = onItem;
+            this.operation = operation;
+            this.id = id;
+            this.item = item;
+            this.recipient = recipient;
+        }
+
+        boolean isOnItem() {
+            return onItem;
+        }
+
+        Operation getOperation() {
+            return operation;
+        }
+
+        int getID() {
+            return id;
+        }
+
+        Item getItem() {
+            return item;
+        }
+
+        Recipient getRecipient() {
+            return recipient;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Staged> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    void stageItem(Operation operation, int id, Item item) {
+        stage(new Staged(true, operation, id, item, null));
+    }
+
+    void stageRecipient(Operation operation, int id, Recipient recipient) {
+        stage(new Staged(false, operation, id, null, recipient));
+    }
+
+    /**
+     * Removes the oldest staged operation. Only one thread at a time may poll, i.e. the one holding
+     * the lock of the handler.
+     *
+     * @return the operation, or null if none is staged
+     */
+    Staged poll() {
+        Staged staged = queue.poll();
+        if (staged != null) {
+            size.decrementAndGet();
+        }
+        return staged;
+    }
+
+    /**
+     * Returns the number of staged operations, which may already have changed
+     *
+     * @return the number of operations
+     */
+    int size() {
+        return size.get();
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    private void stage(Staged staged) {
+        queue.add(staged);
+        size.incrementAndGet();
+    }
+}
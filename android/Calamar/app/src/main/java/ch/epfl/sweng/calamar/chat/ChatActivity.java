@@ -10,6 +10,7 @@ import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.EditText;
@@ -19,7 +20,9 @@ import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import ch.epfl.sweng.calamar.BaseActivity;
 import ch.epfl.sweng.calamar.CalamarApplication;
@@ -44,7 +47,7 @@ import ch.epfl.sweng.calamar.utils.StorageManager;
 public final class ChatActivity extends BaseActivity implements StorageCallbacks {
 
     private static final String TAG = ChatActivity.class.getSimpleName();
-
+    private static final int PAGE_SIZE = 30;
 
     private EditText editText;
     private Button sendButton;
@@ -57,6 +60,10 @@ public final class ChatActivity extends BaseActivity implements StorageCallbacks
     private SQLiteDatabaseHandler dbHandler;
     private CalamarApplication app;
 
+    private boolean loadingOlderItems = false;
+    private boolean historyComplete = false;
+    //Items whose read was cancelled when their row left the screen, read again when it comes back
+    private final Set<Integer> cancelledReads = new HashSet<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -114,6 +121,36 @@ public final class ChatActivity extends BaseActivity implements StorageCallbacks
         messagesContainer.setAdapter(adapter);
 
         messagesContainer.setOnItemClickListener(new ItemClickWithStorageCallbackListener());
+        messagesContainer.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (firstVisibleItem == 0 && totalItemCount > 0 && !loadingOlderItems && !historyComplete) {
+                    loadingOlderItems = true;
+                    new LoadOlderItemsTask(adapter.getItem(0).getID()).execute();
+                }
+                if (!cancelledReads.isEmpty()) {
+                    for (int i = firstVisibleItem; i < firstVisibleItem + visibleItemCount && i < totalItemCount; ++i) {
+                        Item item = adapter.getItem(i);
+                        if (cancelledReads.remove(item.getID())) {
+                            storageManager.getCompleteItem(item, ChatActivity.this);
+                        }
+                    }
+                }
+            }
+        });
+        messagesContainer.setRecyclerListener(new AbsListView.RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                int id = adapter.getDisplayedItemID(view);
+                if (storageManager.cancelRead(id, ChatActivity.this)) {
+                    cancelledReads.add(id);
+                }
+            }
+        });
 
         TextView recipient = (TextView) findViewById(R.id.recipientLabel);
         recipient.setText(correspondent.getName());
@@ -133,6 +170,8 @@ public final class ChatActivity extends BaseActivity implements StorageCallbacks
         super.onPause();
         //Save sent messages
         app.new ApplyPendingDatabaseOperationsTask().execute();
+        //Runs after the operations are applied, the tasks being executed serially
+        new MarkConversationReadTask(correspondent.getID()).execute();
     }
 
     /**
@@ -156,6 +195,21 @@ public final class ChatActivity extends BaseActivity implements StorageCallbacks
     /**
      * Async task for sending a message.
      */
+    private class MarkConversationReadTask extends AsyncTask<Void, Void, Void> {
+
+        private final int contactID;
+
+        public MarkConversationReadTask(int contactID) {
+            this.contactID = contactID;
+        }
+
+        @Override
+        protected Void doInBackground(Void... v) {
+            dbHandler.markConversationRead(contactID);
+            return null;
+        }
+    }
+
     private class SendItemTask extends AsyncTask<Void, Void, Item> {
 
         private final Item item;
@@ -208,7 +262,7 @@ public final class ChatActivity extends BaseActivity implements StorageCallbacks
         @Override
         protected List<Item> doInBackground(Void... v) {
             if (offline) {
-                return dbHandler.getItemsForContact(correspondent);
+                return dbHandler.getItemsForContact(correspondent.getID(), Integer.MAX_VALUE, PAGE_SIZE);
             } else {
                 try {
                     return DatabaseClientLocator.getDatabaseClient().getAllItems(recipient, new Date(dbHandler.getLastItemTime()));
@@ -222,6 +276,10 @@ public final class ChatActivity extends BaseActivity implements StorageCallbacks
         @Override
         protected void onPostExecute(List<Item> items) {
             if (items != null) {
+                //Set on the UI thread, where the scroll listener reads it
+                if (offline && items.size() < PAGE_SIZE) {
+                    historyComplete = true;
+                }
                 if (!items.isEmpty()) {
                     if (!offline) {
                         storageManager.storeItems(items, ChatActivity.this);
@@ -262,6 +320,41 @@ public final class ChatActivity extends BaseActivity implements StorageCallbacks
     }
 
 
+    /**
+     * Async task loading the page of messages preceding the oldest one displayed.
+     */
+    private class LoadOlderItemsTask extends AsyncTask<Void, Void, List<Item>> {
+
+        private final int oldestID;
+
+        public LoadOlderItemsTask(int oldestID) {
+            this.oldestID = oldestID;
+        }
+
+        @Override
+        protected List<Item> doInBackground(Void... v) {
+            return dbHandler.getItemsForContact(correspondent.getID(), oldestID, PAGE_SIZE);
+        }
+
+        @Override
+        protected void onPostExecute(List<Item> items) {
+            if (items.size() < PAGE_SIZE) {
+                historyComplete = true;
+            }
+            if (!items.isEmpty()) {
+                //Keeps the messages currently displayed at the same place on the screen
+                View first = messagesContainer.getChildAt(0);
+                int top = first == null ? 0 : first.getTop();
+                int added = adapter.addOlder(items);
+                messagesContainer.setSelectionFromTop(added, top);
+                for (Item item : items) {
+                    storageManager.getCompleteItem(item, ChatActivity.this);
+                }
+            }
+            loadingOlderItems = false;
+        }
+    }
+
     /**
      * Returns a copy of the messages history
      *
@@ -300,6 +393,7 @@ public final class ChatActivity extends BaseActivity implements StorageCallbacks
 
     public void clearChat() {
         adapter.clear();
+        historyComplete = false;
     }
 
     private class ItemClickWithStorageCallbackListener implements AdapterView.OnItemClickListener, StorageCallbacks {
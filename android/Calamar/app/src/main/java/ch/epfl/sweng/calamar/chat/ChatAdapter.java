@@ -66,9 +66,20 @@ public final class ChatAdapter extends BaseAdapter {
         holder.itemView.removeAllViews();
         holder.itemView.addView(item.getPreView(context));
         holder.textTime.setText(item.getDate().toString());
+        holder.itemID = item.getID();
         return convertView;
     }
 
+    /**
+     * Returns the id of the item displayed by a row
+     *
+     * @param row a view returned by {@link #getView(int, View, ViewGroup)}
+     * @return the id of the item
+     */
+    public int getDisplayedItemID(View row) {
+        return ((ViewHolder) row.getTag()).itemID;
+    }
+
     /**
      * Add a message to the adapter
      *
@@ -117,6 +128,31 @@ public final class ChatAdapter extends BaseAdapter {
         notifyDataSetChanged();
     }
 
+    /**
+     * Add a page of older messages at the beginning of the adapter
+     *
+     * @param olderMessages the messages, in ascending order
+     * @return the number of messages added
+     */
+    public int addOlder(List<Item> olderMessages) {
+        List<Item> toAdd = new ArrayList<>();
+        for (Item m : olderMessages) {
+            boolean present = false;
+            for (Item i : messages) {
+                if (i.getID() == m.getID()) {
+                    present = true;
+                    break;
+                }
+            }
+            if (!present) {
+                toAdd.add(m);
+            }
+        }
+        messages.addAll(0, toAdd);
+        notifyDataSetChanged();
+        return toAdd.size();
+    }
+
     /**
      * Updates an item of the adapter (StorageManager has found the complete data)
      *
@@ -258,6 +294,7 @@ public final class ChatAdapter extends BaseAdapter {
         protected TextView textTime;
         protected LinearLayout content;
         protected LinearLayout contentWithBG;
+        protected int itemID;
     }
 
 }
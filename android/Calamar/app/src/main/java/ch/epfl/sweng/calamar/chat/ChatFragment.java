@@ -18,9 +18,11 @@ import android.widget.ListView;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import ch.epfl.sweng.calamar.BaseActivity;
 import ch.epfl.sweng.calamar.CalamarApplication;
+import ch.epfl.sweng.calamar.ConversationSummary;
 import ch.epfl.sweng.calamar.R;
 import ch.epfl.sweng.calamar.client.DatabaseClientException;
 import ch.epfl.sweng.calamar.client.DatabaseClientLocator;
@@ -59,7 +61,6 @@ public final class ChatFragment extends android.support.v4.app.Fragment {
         app = CalamarApplication.getInstance();
 
         contacts = new ArrayList<>();
-        getContacts();
 
         final View view = getView();
         final ListView contactsView;
@@ -72,6 +73,7 @@ public final class ChatFragment extends android.support.v4.app.Fragment {
         contactsView.setSelector(R.drawable.list_selector);
         adapter = new ChatUsersListAdapter(getActivity(), contacts);
         contactsView.setAdapter(adapter);
+        getContacts();
         contactsView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
@@ -108,6 +110,7 @@ public final class ChatFragment extends android.support.v4.app.Fragment {
         //refresh message
         // need to change data if we want that the adapter rally update
         adapter.notifyDataSetChanged();
+        new RefreshSummariesTask().execute();
 
         super.onResume();
     }
@@ -142,8 +145,15 @@ public final class ChatFragment extends android.support.v4.app.Fragment {
 
     private void getContacts() {
         //TODO asynchronously get recipients ? Database operations should not be done on main thread
-        contacts.addAll(app.getDatabaseHandler().getAllRecipients());
-        contacts.remove(app.getCurrentUser());
+        //Filled once the database is open, at once if it already is
+        app.whenDatabaseOpen(new Runnable() {
+            @Override
+            public void run() {
+                contacts.addAll(app.getDatabaseHandler().getAllRecipients());
+                contacts.remove(app.getCurrentUser());
+                adapter.notifyDataSetChanged();
+            }
+        });
     }
 
     private void addNewContact() {
@@ -182,6 +192,24 @@ public final class ChatFragment extends android.support.v4.app.Fragment {
         }
     }
 
+    /**
+     * Async task reading the summaries of the conversations, e.g. the last message and the number
+     * of unread ones.
+     */
+    private class RefreshSummariesTask extends AsyncTask<Void, Void, Map<Integer, ConversationSummary>> {
+
+        @Override
+        protected Map<Integer, ConversationSummary> doInBackground(Void... v) {
+            return app.getDatabaseHandler().getConversationSummaries();
+        }
+
+        @Override
+        protected void onPostExecute(Map<Integer, ConversationSummary> summaries) {
+            adapter.setSummaries(summaries);
+            adapter.notifyDataSetChanged();
+        }
+    }
+
     /**
      * Async task for retrieving a new user.
      */
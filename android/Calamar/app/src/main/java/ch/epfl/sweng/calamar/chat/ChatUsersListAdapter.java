@@ -9,15 +9,19 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.TextView;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import ch.epfl.sweng.calamar.ConversationSummary;
 import ch.epfl.sweng.calamar.R;
 import ch.epfl.sweng.calamar.recipient.Recipient;
 
 public final class ChatUsersListAdapter extends BaseAdapter {
     private final HighlightMap<Recipient,Boolean> users;
     private final Activity context;
+    private final Map<Integer, ConversationSummary> summaries = new HashMap<>();
 
     public ChatUsersListAdapter(Activity context, List<Recipient> users) {
         this.users = new HighlightMap<>(users,false);
@@ -62,9 +66,33 @@ public final class ChatUsersListAdapter extends BaseAdapter {
 
         holder.userName.setText(user.getName());
 
+        ConversationSummary summary = summaries.get(user.getID());
+        if (summary != null) {
+            String lastText = summary.getLastText() != null ? summary.getLastText() : "";
+            if (summary.getUnreadCount() > 0) {
+                holder.lastMessage.setText(context.getString(R.string.contact_last_message_unread,
+                        summary.getUnreadCount(), lastText));
+            } else {
+                holder.lastMessage.setText(lastText);
+            }
+            holder.lastMessage.setVisibility(View.VISIBLE);
+        } else {
+            holder.lastMessage.setVisibility(View.GONE);
+        }
+
         return convertView;
     }
 
+    /**
+     * Replaces the summaries of the conversations shown under the names of the users
+     *
+     * @param summaries The summaries by id of the contact
+     */
+    public void setSummaries(Map<Integer, ConversationSummary> summaries) {
+        this.summaries.clear();
+        this.summaries.putAll(summaries);
+    }
+
     public void highlight(Recipient user,Boolean state)
     {
         users.put(user,state);
@@ -90,7 +118,7 @@ public final class ChatUsersListAdapter extends BaseAdapter {
     }
 
     /**
-     * Creates a ViewHolder containing the name of the user, and one LinearLayout containing it.
+     * Creates a ViewHolder containing the name of the user, the last message, and one LinearLayout containing it.
      *
      * @param v The itemView holding those values
      * @return The newly created ViewHolder
@@ -98,6 +126,7 @@ public final class ChatUsersListAdapter extends BaseAdapter {
     private ViewHolder createViewHolder(View v) {
         ViewHolder holder = new ViewHolder();
         holder.userName = (TextView) v.findViewById(R.id.userName);
+        holder.lastMessage = (TextView) v.findViewById(R.id.lastMessage);
         return holder;
 
     }
@@ -107,6 +136,7 @@ public final class ChatUsersListAdapter extends BaseAdapter {
      */
     private static class ViewHolder {
         public TextView userName;
+        public TextView lastMessage;
     }
 
     /**
@@ -0,0 +1,212 @@
+package ch.epfl.sweng.calamar.client;
+
+import android.util.Base64;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackReader;
+import java.io.Reader;
+
+import ch.epfl.sweng.calamar.CalamarApplication;
+import ch.epfl.sweng.calamar.R;
+import ch.epfl.sweng.calamar.item.FileItem;
+import ch.epfl.sweng.calamar.utils.Compresser;
+import ch.epfl.sweng.calamar.utils.StorageManager;
+
+/**
+ * Reads a JSON response holding items, and writes the data of their files to the disk while it is
+ * received instead of keeping it in the response.<br>
+ * The Base64 value of each "data" key is decoded chunk by chunk to a file of a folder, named by the
+ * hash of its content, then replaced by the path of the file under the {@link FileItem#JSON_DATA_FILE}
+ * key, so that the parsed item only holds a handle on its data. The memory needed doesn't depend on
+ * the size of the files.
+ */
+final class AttachmentExtractor {
+
+    private static final String DATA_KEY = "data";
+    private static final String TEMP_PREFIX = "tmp_";
+    //Base64 characters decoded at once, a multiple of 4
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int UNICODE_ESCAPE_LENGTH = 4;
+    private static final int HEX_RADIX = 16;
+
+    private final PushbackReader in;
+    private final File directory;
+    private final StringBuilder out = new StringBuilder();
+
+    private AttachmentExtractor(Reader in, File directory) {
+        this.in = new PushbackReader(in);
+        this.directory = directory;
+    }
+
+    /**
+     * Reads a whole response, extracting the data of the files
+     *
+     * @param in        the response, not closed
+     * @param directory the folder of the files, or null to keep the data in the response
+     * @return the response without the data of the files
+     * @throws IOException if the response can't be read or a file can't be written
+     */
+    static String extract(Reader in, File directory) throws IOException {
+        return new AttachmentExtractor(in, directory).extract();
+    }
+
+    private String extract() throws IOException {
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c != '"') {
+                out.append((char) c);
+                continue;
+            }
+            int keyStart = out.length();
+            out.append('"');
+            boolean isDataKey = copyString();
+            if (isDataKey && directory != null && skipToStringValue()) {
+                out.setLength(keyStart);
+                File file = File.createTempFile(TEMP_PREFIX, null, directory);
+                File stored;
+                try {
+                    decodeString(file);
+                    Compresser.decompress(file);
+                    stored = StorageManager.getReceivedFile(directory, StorageManager.getContentHash(file));
+                    //Received again, e.g. after a resync : the stored file is shared, and checked again once the item is stored
+                    if (!stored.exists() && !file.renameTo(stored)) {
+                        throw new IOException(CalamarApplication.getInstance().getString(R.string.error_file_rename, stored.getPath()));
+                    }
+                } finally {
+                    if (file.exists() && !file.delete()) {
+                        file.deleteOnExit();
+                    }
+                }
+                out.append('"').append(FileItem.JSON_DATA_FILE).append("\":\"")
+                        .append(stored.getAbsolutePath().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Copies a string whose opening quote was read, up to its closing quote
+     *
+     * @return true if the string is the key of the data of a file
+     */
+    private boolean copyString() throws IOException {
+        int start = out.length();
+        boolean escaped = false;
+        int c;
+        while ((c = in.read()) != -1) {
+            out.append((char) c);
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '"') {
+                return out.length() - start == DATA_KEY.length() + 1 && out.indexOf(DATA_KEY, start) == start;
+            }
+        }
+        throw new IOException(CalamarApplication.getInstance().getString(R.string.response_truncated));
+    }
+
+    /**
+     * Copies the separator following a key, and reads the opening quote of its value if it is a string
+     *
+     * @return true if the value is a string, whose opening quote was read but not copied
+     */
+    private boolean skipToStringValue() throws IOException {
+        int c = skipWhitespace();
+        if (c != ':') {
+            unread(c);
+            return false;
+        }
+        out.append(':');
+        c = skipWhitespace();
+        if (c != '"') {
+            unread(c);
+            return false;
+        }
+        return true;
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        while ((c = in.read()) != -1 && Character.isWhitespace(c)) {
+            out.append((char) c);
+        }
+        return c;
+    }
+
+    private void unread(int c) throws IOException {
+        if (c != -1) {
+            in.unread(c);
+        }
+    }
+
+    /**
+     * Decodes a Base64 string whose opening quote was read to a file, up to its closing quote
+     */
+    private void decodeString(File file) throws IOException {
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int length = 0;
+            int c;
+            while ((c = in.read()) != '"') {
+                if (c == -1) {
+                    throw new IOException(CalamarApplication.getInstance().getString(R.string.response_truncated));
+                }
+                if (c == '\\') {
+                    c = readEscaped();
+                }
+                if (Character.isWhitespace(c)) {
+                    continue;
+                }
+                chunk[length++] = (byte) c;
+                if (length == CHUNK_SIZE) {
+                    stream.write(Base64.decode(chunk, 0, length, Base64.DEFAULT));
+                    length = 0;
+                }
+            }
+            if (length != 0) {
+                stream.write(Base64.decode(chunk, 0, length, Base64.DEFAULT));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private int readEscaped() throws IOException {
+        int c = in.read();
+        switch (c) {
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                char[] hex = new char[UNICODE_ESCAPE_LENGTH];
+                for (int i = 0; i < UNICODE_ESCAPE_LENGTH; ++i) {
+                    int digit = in.read();
+                    if (digit == -1) {
+                        throw new IOException(CalamarApplication.getInstance().getString(R.string.response_truncated));
+                    }
+                    hex[i] = (char) digit;
+                }
+                try {
+                    return Integer.parseInt(new String(hex), HEX_RADIX);
+                } catch (NumberFormatException e) {
+                    throw new IOException(e);
+                }
+            case -1:
+                throw new IOException(CalamarApplication.getInstance().getString(R.string.response_truncated));
+            default:
+                //e.g. an escaped '/'
+                return c;
+        }
+    }
+}
@@ -49,6 +49,16 @@ public class ConstantDatabaseClient implements DatabaseClient {
         return items;
     }
 
+    @Override
+    public Item getItem(Recipient recipient, Date from, int id) throws DatabaseClientException {
+        for (Item item : getAllItems(recipient, from)) {
+            if (item.getID() == id) {
+                return item;
+            }
+        }
+        return null;
+    }
+
     @Override
     public Item send(Item item) throws DatabaseClientException {
         return item;
@@ -37,6 +37,17 @@ public interface DatabaseClient {
      */
     List<Item> getAllItems(Recipient recipient, Date from) throws DatabaseClientException;
 
+    /**
+     * gets from a database the item whose id is <i>id</i>, if it has <i>recipient</i> into its
+     * recipient field AND its date is greater than <i>from</i>
+     *
+     * @param recipient the item must have recipient in its destination field
+     * @param from      the item has been sent after from
+     * @param id        the id of the item
+     * @return the {@link Item item}, or null if there is no such item
+     */
+    Item getItem(Recipient recipient, Date from, int id) throws DatabaseClientException;
+
     /**
      * send an item to a database
      *
@@ -23,6 +23,11 @@ public final class FaultyDatabaseClient implements DatabaseClient {
         throw new DatabaseClientException("Impossible to get all item");
     }
 
+    @Override
+    public Item getItem(Recipient recipient, Date from, int id) throws DatabaseClientException {
+        throw new DatabaseClientException("Impossible to get an item");
+    }
+
     @Override
     public Item send(Item item) throws DatabaseClientException {
         throw new DatabaseClientException("Impossible to send an item");
@@ -12,6 +12,7 @@ import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
@@ -25,6 +26,7 @@ import ch.epfl.sweng.calamar.item.Item;
 import ch.epfl.sweng.calamar.recipient.Recipient;
 import ch.epfl.sweng.calamar.recipient.User;
 import ch.epfl.sweng.calamar.utils.Sorter;
+import ch.epfl.sweng.calamar.utils.StorageManager;
 
 /**
  * Created by LPI on 19.10.2015.
@@ -76,12 +78,22 @@ public final class NetworkDatabaseClient implements DatabaseClient {
         if (null == visibleRegion) {
             throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.network_db_client_visibleregion_null));
         }
-        return getItems(recipient, from, visibleRegion);
+        return getItems(recipient, from, visibleRegion, null);
     }
 
     @Override
     public List<Item> getAllItems(Recipient recipient, Date from) throws DatabaseClientException {
-        return getItems(recipient, from, null);
+        return getItems(recipient, from, null, null);
+    }
+
+    @Override
+    public Item getItem(Recipient recipient, Date from, int id) throws DatabaseClientException {
+        for (Item item : getItems(recipient, from, null, id)) {
+            if (item.getID() == id) {
+                return item;
+            }
+        }
+        return null;
     }
 
     @Override
@@ -147,7 +159,10 @@ public final class NetworkDatabaseClient implements DatabaseClient {
         }
     }
 
-    private List<Item> getItems(Recipient recipient, Date from, VisibleRegion visibleRegion)
+    /**
+     * Retrieves the items sent to a recipient, only the one of the given id if it isn't null
+     */
+    private List<Item> getItems(Recipient recipient, Date from, VisibleRegion visibleRegion, Integer id)
             throws DatabaseClientException {
         if(null == recipient || null == from) {
             throw new IllegalArgumentException("getItems: recipient or date null");
@@ -160,6 +175,9 @@ public final class NetworkDatabaseClient implements DatabaseClient {
             JSONObject jsonParameter = new JSONObject();
             jsonParameter.accumulate(JSON_RECIPIENT, recipient.toJSON());
             jsonParameter.accumulate(JSON_LAST_REFRESH, from.getTime());
+            if (id != null) {
+                jsonParameter.accumulate(JSON_ID, id);
+            }
 
             if (visibleRegion != null) {
                 double left = visibleRegion.latLngBounds.southwest.longitude;
@@ -174,7 +192,9 @@ public final class NetworkDatabaseClient implements DatabaseClient {
 
             connection = NetworkDatabaseClient.createConnection(networkProvider, url);
             Log.v(NetworkDatabaseClient.TAG, "getItems json request : " + jsonParameter.toString());
-            String response = NetworkDatabaseClient.post(connection, jsonParameter.toString());
+            NetworkDatabaseClient.request(connection, jsonParameter.toString());
+            //The data of the files goes from the response to the disk, only the rest is kept
+            String response = NetworkDatabaseClient.fetchItems(connection);
             Log.v(NetworkDatabaseClient.TAG, "server response : " + response);
             return NetworkDatabaseClient.itemsFromJSON(response);
         } catch (IOException | JSONException e) {
@@ -206,6 +226,23 @@ public final class NetworkDatabaseClient implements DatabaseClient {
         }
     }
 
+    /**
+     * Reads the items of the response, writing the data of their files to the disk
+     */
+    private static String fetchItems(HttpURLConnection conn) throws IOException {
+        Reader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), UTF8_CHARSET));
+            String result = AttachmentExtractor.extract(reader, StorageManager.getReceivedDirectory());
+            Log.d("HTTPFetchContent", CalamarApplication.getInstance().getString(R.string.network_db_client_log_fetched_length, result.length()));
+            return result;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
     /**
      * used to post data on connection
      *
@@ -217,6 +254,22 @@ public final class NetworkDatabaseClient implements DatabaseClient {
      */
     private static String post(HttpURLConnection connection, String jsonParameter)
             throws IOException, DatabaseClientException
+    {
+        request(connection, jsonParameter);
+        //get result
+        return NetworkDatabaseClient.fetchContent(connection);
+    }
+
+    /**
+     * used to post data on connection, without reading the result
+     *
+     * @param connection    the connection used to post data
+     * @param jsonParameter the data posted
+     * @throws IOException
+     * @throws DatabaseClientException if the response code isn't a success
+     */
+    private static void request(HttpURLConnection connection, String jsonParameter)
+            throws IOException, DatabaseClientException
     {
         String toSend = URLEncoder.encode(jsonParameter, UTF8_CHARSET);
         connection.setRequestMethod(CONNECTION_REQUEST_METHOD);
@@ -239,9 +292,6 @@ public final class NetworkDatabaseClient implements DatabaseClient {
         if (responseCode < HTTP_SUCCESS_START || responseCode > HTTP_SUCCESS_END) {
             throw new DatabaseClientException(CalamarApplication.getInstance().getString(R.string.invalid_http_response, responseCode));
         }
-
-        //get result
-        return NetworkDatabaseClient.fetchContent(connection);
     }
 
     private static void close(HttpURLConnection connection) {
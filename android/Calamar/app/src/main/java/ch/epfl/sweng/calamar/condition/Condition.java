@@ -199,6 +199,20 @@ public abstract class Condition {
      * @throws IllegalArgumentException
      */
     public static Condition fromJSON(JSONObject json) throws JSONException, IllegalArgumentException {
+        return fromJSON(json, false);
+    }
+
+    /**
+     * create a Condition from a JSONObject, already fulfilled if it was unlocked before : its
+     * position conditions don't wait for the GPS, so that an unlocked item isn't evaluated again
+     *
+     * @param json     Object in JSON format
+     * @param unlocked true if the condition was already fulfilled
+     * @return the desired condition Condition
+     * @throws JSONException
+     * @throws IllegalArgumentException
+     */
+    public static Condition fromJSON(JSONObject json, boolean unlocked) throws JSONException, IllegalArgumentException {
         if (null == json || json.isNull(JSON_TYPE)) {
             throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.malformed_json));
         }
@@ -206,16 +220,16 @@ public abstract class Condition {
         String type = json.getString(JSON_TYPE);
         switch (Type.valueOf(type)) {
             case POSITIONCONDITION:
-                cond = PositionCondition.fromJSON(json);
+                cond = PositionCondition.fromJSON(json, unlocked);
                 break;
             case ANDCONDITION:
-                cond = and(fromJSON(json.getJSONObject(JSON_LEFT)), fromJSON(json.getJSONObject(JSON_RIGHT)));
+                cond = and(fromJSON(json.getJSONObject(JSON_LEFT), unlocked), fromJSON(json.getJSONObject(JSON_RIGHT), unlocked));
                 break;
             case ORCONDITION:
-                cond = or(fromJSON(json.getJSONObject(JSON_LEFT)), fromJSON(json.getJSONObject(JSON_RIGHT)));
+                cond = or(fromJSON(json.getJSONObject(JSON_LEFT), unlocked), fromJSON(json.getJSONObject(JSON_RIGHT), unlocked));
                 break;
             case NOTCONDITION:
-                cond = not(fromJSON(json.getJSONObject(JSON_VALUE)));
+                cond = not(fromJSON(json.getJSONObject(JSON_VALUE), unlocked));
                 break;
             case TRUECONDITION:
                 cond = trueCondition();
@@ -226,6 +240,10 @@ public abstract class Condition {
             default:
                 throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.unexpected_item_type, type));
         }
+        if (unlocked) {
+            //e.g. a negation, whose operand is rebuilt fulfilled too
+            cond.setValue(true);
+        }
         return cond;
     }
 
@@ -0,0 +1,138 @@
+package ch.epfl.sweng.calamar.condition;
+
+import android.app.Activity;
+import android.location.Location;
+import android.view.View;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import ch.epfl.sweng.calamar.CalamarApplication;
+import ch.epfl.sweng.calamar.R;
+
+/**
+ * A condition read from the database, parsed only when it is really needed.<br>
+ * Its type, its location and whether it is fulfilled are known without parsing it, so that listing
+ * the items or placing them on the map doesn't build a tree of conditions per item. It is parsed
+ * when its view or its metadata are asked, or when it is observed while it may still change, i.e.
+ * while it is locked and has a location.
+ */
+public final class LazyCondition extends Condition {
+
+    private final String json;
+    private final Type type;
+    private final boolean hasLocation;
+    private final double latitude;
+    private final double longitude;
+    private Location location;
+    private Condition parsed;
+
+    /**
+     * Constructs a condition from its stored JSON and the values extracted from it
+     *
+     * @param json        the JSON of the condition
+     * @param type        the type of the condition, or null if unknown
+     * @param unlocked    true if the condition is already fulfilled
+     * @param hasLocation true if the condition has a location
+     * @param latitude    the latitude of its location, if any
+     * @param longitude   the longitude of its location, if any
+     */
+    public LazyCondition(String json, Type type, boolean unlocked, boolean hasLocation, double latitude, double longitude) {
+        if (null == json) {
+            throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.malformed_json));
+        }
+        this.json = json;
+        this.type = type;
+        this.hasLocation = hasLocation;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        setValue(unlocked);
+    }
+
+    /**
+     * Returns the parsed condition, parsing it at the first call
+     *
+     * @return the condition
+     * @throws IllegalArgumentException if the JSON is malformed
+     */
+    public synchronized Condition getCondition() {
+        if (parsed == null) {
+            try {
+                parsed = Condition.fromJSON(new JSONObject(json), getValue());
+            } catch (JSONException e) {
+                throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.malformed_json), e);
+            }
+            parsed.addObserver(new Condition.Observer() {
+                @Override
+                public void update(Condition condition) {
+                    setValue(condition.getValue());
+                }
+            });
+            setValue(parsed.getValue());
+        }
+        return parsed;
+    }
+
+    @Override
+    protected void compose(JSONObject json) throws JSONException {
+        getCondition().compose(json);
+    }
+
+    @Override
+    public JSONObject toJSON() throws JSONException {
+        return new JSONObject(json);
+    }
+
+    @Override
+    public String toString() {
+        return getCondition().toString();
+    }
+
+    @Override
+    public Type getType() {
+        return type != null ? type : getCondition().getType();
+    }
+
+    @Override
+    public synchronized Location getLocation() throws UnsupportedOperationException {
+        if (!hasLocation) {
+            return super.getLocation();
+        }
+        if (location == null) {
+            location = new Location(CalamarApplication.getInstance().getString(R.string.calamar_location_provider));
+            location.setLatitude(latitude);
+            location.setLongitude(longitude);
+        }
+        return location;
+    }
+
+    @Override
+    public boolean hasLocation() {
+        return hasLocation;
+    }
+
+    @Override
+    public View getView(Activity context) {
+        return getCondition().getView(context);
+    }
+
+    @Override
+    public JSONArray getMetadata() throws JSONException {
+        return getCondition().getMetadata();
+    }
+
+    /**
+     * Adds an observer, parsing the condition if it may still change : its position conditions
+     * must observe the GPS
+     *
+     * @param observer A Condition.Observer (Item generally)
+     */
+    @Override
+    public void addObserver(Condition.Observer observer) {
+        super.addObserver(observer);
+        if (!getValue() && hasLocation) {
+            getCondition();
+        }
+    }
+}
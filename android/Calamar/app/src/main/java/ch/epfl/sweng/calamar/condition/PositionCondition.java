@@ -46,12 +46,22 @@ public final class PositionCondition extends Condition {
      * @param radius   the radius as a double
      */
     public PositionCondition(Location location, double radius) {
+        this(location, radius, false);
+    }
+
+    /**
+     * construct a PositionCondition, which doesn't observe the GPS if it is already fulfilled
+     */
+    private PositionCondition(Location location, double radius, boolean unlocked) {
         if (null == location) {
             throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.positioncondition_location_null));
         }
         this.location = location;
         this.radius = radius;
-        setValue(false);
+        setValue(unlocked);
+        if (unlocked) {
+            return;
+        }
         GPSProvider.getInstance().addObserver(new GPSProvider.Observer() {
             @Override
             public void update(Location newLocation) {
@@ -212,7 +222,20 @@ public final class PositionCondition extends Condition {
      * @throws IllegalArgumentException
      */
     public static Condition fromJSON(JSONObject json) throws JSONException {
-        return new PositionCondition.Builder().parse(json).build();
+        return fromJSON(json, false);
+    }
+
+    /**
+     * create a Condition from a JSONObject
+     *
+     * @param json     Object in JSON format
+     * @param unlocked true if the condition was already fulfilled, it then doesn't observe the GPS
+     * @return the desired condition Condition
+     * @throws JSONException
+     * @throws IllegalArgumentException
+     */
+    public static Condition fromJSON(JSONObject json, boolean unlocked) throws JSONException {
+        return new PositionCondition.Builder().parse(json).setUnlocked(unlocked).build();
     }
 
     /**
@@ -224,6 +247,7 @@ public final class PositionCondition extends Condition {
 
         private double latitude, longitude;
         private double radius;
+        private boolean unlocked;
 
         @Override
         public Builder parse(JSONObject json) throws JSONException {
@@ -238,13 +262,18 @@ public final class PositionCondition extends Condition {
             return this;
         }
 
+        public Builder setUnlocked(boolean unlocked) {
+            this.unlocked = unlocked;
+            return this;
+        }
+
         /**
          * Builds the Condition
          *
          * @return The built PositionCondition
          */
         public PositionCondition build() {
-            return new PositionCondition(latitude, longitude, radius);
+            return new PositionCondition(makeLocation(latitude, longitude), radius, unlocked);
         }
     }
 }
@@ -71,14 +71,10 @@ public final class CreateItemActivity extends BaseActivity {
         locationProgressBar.setVisibility(ProgressBar.INVISIBLE);
         message = (EditText) findViewById(R.id.createItemActivity_messageText);
 
-        contacts = CalamarApplication.getInstance().getDatabaseHandler().getAllRecipients();
-        List<String> contactsName = new ArrayList<>();
-        for (Recipient r : contacts) {
-            contactsName.add(r.getName());
-        }
+        contacts = new ArrayList<>();
         contactsSpinner = (Spinner) findViewById(R.id.contactSpinner);
         contactsSpinner.setVisibility(View.INVISIBLE);
-        ArrayAdapter<String> spinnerAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, contactsName);
+        final ArrayAdapter<String> spinnerAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, new ArrayList<String>());
         contactsSpinner.setAdapter(spinnerAdapter);
 
         //timeCheck = (CheckBox) findViewById(R.id.timeCheck);
@@ -87,12 +83,24 @@ public final class CreateItemActivity extends BaseActivity {
 
         Intent intent = getIntent();
         final int id = intent.getIntExtra(CREATE_ITEM_RECIPIENT_EXTRA_ID, -1);
+        final String name = intent.getStringExtra(CREATE_ITEM_RECIPIENT_EXTRA_NAME);
         if (id != -1) {
-            final String name = intent.getStringExtra(CREATE_ITEM_RECIPIENT_EXTRA_NAME);
             contactsSpinner.setVisibility(View.VISIBLE);
             privateCheckbox.setChecked(true);
-            contactsSpinner.setSelection(contacts.indexOf(new User(id, name)));
         }
+        //Filled once the database is open, at once if it already is
+        CalamarApplication.getInstance().whenDatabaseOpen(new Runnable() {
+            @Override
+            public void run() {
+                contacts.addAll(CalamarApplication.getInstance().getDatabaseHandler().getAllRecipients());
+                for (Recipient r : contacts) {
+                    spinnerAdapter.add(r.getName());
+                }
+                if (id != -1) {
+                    contactsSpinner.setSelection(contacts.indexOf(new User(id, name)));
+                }
+            }
+        });
         browseButton = (Button) findViewById(R.id.selectFileButton);
         sendButton = (Button) findViewById(R.id.createButton);
         sendButton.setOnClickListener(new View.OnClickListener() {
@@ -26,6 +26,7 @@ import ch.epfl.sweng.calamar.condition.Condition;
 import ch.epfl.sweng.calamar.recipient.Recipient;
 import ch.epfl.sweng.calamar.recipient.User;
 import ch.epfl.sweng.calamar.utils.Compresser;
+import ch.epfl.sweng.calamar.utils.StorageManager;
 
 /**
  * Class representing a File Item, without a particular extension. For example, *.png will be ImageItem
@@ -34,15 +35,19 @@ import ch.epfl.sweng.calamar.utils.Compresser;
 public class FileItem extends Item {
 
     public static final String DUMMY_PATH = "/dummy";
+    //Replaces the data in the JSON of a received item whose data was written to a file
+    public static final String JSON_DATA_FILE = "dataFile";
 
-    private static final String JSON_DATA = "data";
+    public static final String JSON_DATA = "data";
     private static final String UTF8_CHARSET = "UTF-8";
+    //Returned by FileUtils for a file without extension
+    private static final String UNKNOWN_MIME_TYPE = "application/octet-stream";
     private final static Type ITEM_TYPE = Type.FILEITEM;
 
     private final String path;
     private final String name;
-    private final byte[] data;
-    private final int hash;
+    private final DataLoader loader;
+    private byte[] data;
 
     /**
      * Instantiates a new FileItem with the given parameters
@@ -63,6 +68,35 @@ public class FileItem extends Item {
         } else {
             this.data = new byte[0];
         }
+        this.loader = null;
+        final int idx = path.lastIndexOf('/');
+        if (idx == -1) {
+            throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.bad_path_fileitem, path));
+        } else {
+            this.path = path;
+            this.name = path.substring(idx + 1);
+        }
+    }
+
+    /**
+     * Instantiates a new FileItem whose data is loaded by the given loader the first time it is needed
+     *
+     * @param ID        The ID of the item
+     * @param from      The user who sent the item
+     * @param to        The recipient of the item
+     * @param date      The date of creation of the item
+     * @param condition The condition for unlocking the item
+     * @param loader    The loader of the content of the file
+     * @param path      The path of the file
+     * @param message   The message of the file
+     */
+    public FileItem(int ID, User from, Recipient to, Date date, Condition condition, DataLoader loader, String path, String message) {
+        super(ID, from, to, date, condition, message);
+        if (loader == null) {
+            throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.fileitem_null_loader));
+        }
+        this.loader = loader;
+        this.data = null;
         final int idx = path.lastIndexOf('/');
         if (idx == -1) {
             throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.bad_path_fileitem, path));
@@ -70,7 +104,6 @@ public class FileItem extends Item {
             this.path = path;
             this.name = path.substring(idx + 1);
         }
-        this.hash = computeHash();
     }
 
     /**
@@ -119,11 +152,51 @@ public class FileItem extends Item {
 
     /**
      * Returns a copy of the (COMPRESSED!) data of the file.
+     * If the item was created with a {@link DataLoader}, the data is loaded on the first call.
      *
      * @return a byte array
      */
     public byte[] getData() {
-        return data.clone();
+        return loadedData().clone();
+    }
+
+    /**
+     * Returns true if the data of the file is in memory, false if it will be loaded by the next
+     * call to {@link #getData()}
+     *
+     * @return true if the data is loaded
+     */
+    public synchronized boolean isDataLoaded() {
+        return data != null;
+    }
+
+    private synchronized byte[] loadedData() {
+        if (data == null) {
+            byte[] loaded = loader.load(getID());
+            data = loaded == null ? new byte[0] : Compresser.compress(loaded);
+        }
+        return data;
+    }
+
+    /**
+     * Reads a part of the stored file of the item, e.g. its header, without loading its data
+     *
+     * @param offset the position of the first byte to read
+     * @param length the number of bytes to read
+     * @return the bytes read, fewer than length if the file ends before
+     * @throws IOException if the file isn't stored or can't be read
+     */
+    public byte[] readRange(long offset, int length) throws IOException {
+        return StorageManager.readRange(new File(path), offset, length);
+    }
+
+    /**
+     * Returns the file the data is loaded from, if the item was created with a {@link FileDataLoader}
+     *
+     * @return the file, or null if the data isn't loaded from a file
+     */
+    public File getDataFile() {
+        return loader instanceof FileDataLoader ? ((FileDataLoader) loader).getFile() : null;
     }
 
     /**
@@ -173,10 +246,31 @@ public class FileItem extends Item {
         return new FileItem.Builder().parse(json).build();
     }
 
+    /**
+     * Returns the JSON representation of the item without reading its data : the file holding it
+     * is given instead, and an item whose data is neither in memory nor in a file (e.g. still in the
+     * database) has no data. Parsed by the Builder, e.g. to journal the item, not to send it.
+     *
+     * @return the JSON representation
+     * @throws JSONException if the item can't be written as JSON
+     */
+    public JSONObject toJSONWithoutLoading() throws JSONException {
+        JSONObject ret = new JSONObject();
+        super.compose(ret);
+        File file = getDataFile();
+        if (file != null) {
+            ret.accumulate(JSON_DATA_FILE, file.getAbsolutePath());
+        } else if (isDataLoaded()) {
+            ret.accumulate(JSON_DATA, byteArrayToBase64String(loadedData()));
+        }
+        ret.accumulate(JSON_TYPE, getType().name());
+        return ret;
+    }
+
     @Override
     protected void compose(JSONObject object) throws JSONException {
         super.compose(object);
-        object.accumulate(JSON_DATA, byteArrayToBase64String(data));
+        object.accumulate(JSON_DATA, byteArrayToBase64String(loadedData()));
         object.accumulate(JSON_TYPE, ITEM_TYPE.name());
     }
 
@@ -201,30 +295,33 @@ public class FileItem extends Item {
     }
 
     /**
-     * test if this is equals to other Object, true when object is an ImageItem and content truly equals
+     * test if this is equals to other Object, true when object is a FileItem of the same file. The
+     * contents are compared only if both are in memory : the data is never loaded to compare items.
      *
      * @param o Obect to compare this with
-     * @return true if two ImageItems are equal
+     * @return true if two FileItems are equal
      */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (!(o instanceof FileItem)) return false;
         FileItem that = (FileItem) o;
-        return super.equals(that) && Arrays.equals(data, that.data) && path.equals(that.path);
+        if (!super.equals(that) || !path.equals(that.path)) {
+            return false;
+        }
+        byte[] thisData = loadedDataOrNull();
+        byte[] thatData = that.loadedDataOrNull();
+        return thisData == null || thatData == null || Arrays.equals(thisData, thatData);
     }
 
+    //Without the data, which may not be loaded
     @Override
     public int hashCode() {
-        return hash;
+        return super.hashCode() * 73 + path.hashCode();
     }
 
-    private int computeHash() {
-        if (data == null) {
-            return 0;
-        } else {
-            return super.hashCode() * 73 + Arrays.hashCode(data) * 107 + path.hashCode();
-        }
+    private synchronized byte[] loadedDataOrNull() {
+        return data;
     }
 
     @Override
@@ -236,6 +333,13 @@ public class FileItem extends Item {
         File file = new File(f.getPath());
         Intent newIntent = new Intent(Intent.ACTION_VIEW);
         String mimeType = FileUtils.getMimeType(file);
+        if (mimeType == null || mimeType.equals(UNKNOWN_MIME_TYPE)) {
+            //No known extension, e.g. a file written while it was received
+            final String sniffed = StorageManager.sniffMimeType(file);
+            if (sniffed != null) {
+                mimeType = sniffed;
+            }
+        }
         newIntent.setDataAndType(Uri.fromFile(file), mimeType);
         newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         try {
@@ -245,6 +349,48 @@ public class FileItem extends Item {
         }
     }
 
+    /**
+     * Loads the data of a FileItem created without it, e.g. from the database
+     */
+    public abstract static class DataLoader {
+        /**
+         * Loads the data of an item
+         *
+         * @param itemID the id of the item
+         * @return the data of the item, possibly compressed, or null if it has none
+         */
+        public abstract byte[] load(int itemID);
+    }
+
+    /**
+     * Loads the data from a file, e.g. the one written while the item was received
+     */
+    public static final class FileDataLoader extends DataLoader {
+
+        private final File file;
+
+        public FileDataLoader(File file) {
+            if (file == null) {
+                throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.fileitem_null_loader));
+            }
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public byte[] load(int itemID) {
+            try {
+                return FileUtils.toByteArray(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
     /**
      * A Builder for FileItems
      */
@@ -252,9 +398,13 @@ public class FileItem extends Item {
 
         protected byte[] data;
         protected String path;
+        protected DataLoader loader;
 
         @Override
         public FileItem build() {
+            if (loader != null) {
+                return new FileItem(super.ID, super.from, super.to, super.date, super.condition, loader, path, message);
+            }
             return new FileItem(super.ID, super.from, super.to, super.date, super.condition, data, path, message);
         }
 
@@ -265,8 +415,18 @@ public class FileItem extends Item {
             if (!(type.equals(FileItem.ITEM_TYPE.name()) || type.equals(ImageItem.ITEM_TYPE.name()))) {
                 throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.expected_but_was, FileItem.ITEM_TYPE.name(), type));
             }
-            data = Compresser.decompress(base64StringToByteArray(json.getString(JSON_DATA)));
-            path = DUMMY_PATH;
+            if (json.has(JSON_DATA_FILE)) {
+                //The data was written to the file while the item was received
+                File file = new File(json.getString(JSON_DATA_FILE));
+                loader = new FileDataLoader(file);
+                path = file.getAbsolutePath();
+            } else if (!json.has(JSON_DATA)) {
+                //Written without its data by toJSONWithoutLoading, the loader must be set
+                path = DUMMY_PATH;
+            } else {
+                data = Compresser.decompress(base64StringToByteArray(json.getString(JSON_DATA)));
+                path = DUMMY_PATH;
+            }
             return this;
         }
 
@@ -292,6 +452,17 @@ public class FileItem extends Item {
             return this;
         }
 
+        /**
+         * Sets the loader of the data of the FileItem to be created, read the first time it is needed
+         *
+         * @param loader the loader
+         * @return the builder
+         */
+        public FileItem.Builder setLoader(DataLoader loader) {
+            this.loader = loader;
+            return this;
+        }
+
         /**
          * Sets the path of the FileItem to be created
          *
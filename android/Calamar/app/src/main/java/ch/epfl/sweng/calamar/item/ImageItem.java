@@ -11,6 +11,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.util.Date;
 
 import ch.epfl.sweng.calamar.CalamarApplication;
@@ -45,6 +46,23 @@ public final class ImageItem extends FileItem {
         super(ID, from, to, date, condition, data, path, message);
     }
 
+    /**
+     * Instantiates a new ImageItem whose image is loaded by the given loader the first time it is needed
+     *
+     * @param ID        the id
+     * @param from      the 'from' field of the Item (sender)
+     * @param to        the 'to' field of the Item (recipient)
+     * @param date      the creation/posting date of the Item
+     * @param condition the content (text message)
+     * @param loader    the loader of the image
+     * @param path      the path of the image
+     * @param message   the message of the image
+     * @see FileItem#FileItem(int, User, Recipient, Date, Condition, DataLoader, String, String)
+     */
+    public ImageItem(int ID, User from, Recipient to, Date date, Condition condition, DataLoader loader, String path, String message) {
+        super(ID, from, to, date, condition, loader, path, message);
+    }
+
     /**
      * Instantiates a new ImageItem with the following parameters
      *
@@ -175,6 +193,11 @@ public final class ImageItem extends FileItem {
      * @return a bitmap
      */
     public Bitmap getBitmap() {
+        //An image still on the disk is decoded from its file, without loading its data
+        final File file = isDataLoaded() ? null : getDataFile();
+        if (file != null) {
+            return BitmapFactory.decodeFile(file.getPath());
+        }
         byte[] tempData = Compresser.decompress(getData());
         if (tempData != null) {
             return BitmapFactory.decodeByteArray(tempData, 0, tempData.length);
@@ -226,6 +249,9 @@ public final class ImageItem extends FileItem {
 
         @Override
         public ImageItem build() {
+            if (super.loader != null) {
+                return new ImageItem(super.ID, super.from, super.to, super.date, super.condition, super.loader, super.path, super.message);
+            }
             return new ImageItem(super.ID, super.from, super.to, super.date, super.condition, super.data, super.path, super.message);
         }
     }
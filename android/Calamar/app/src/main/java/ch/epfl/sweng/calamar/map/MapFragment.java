@@ -20,6 +20,7 @@ import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.maps.model.VisibleRegion;
@@ -78,7 +79,7 @@ public final class MapFragment extends android.support.v4.app.Fragment implement
         @Override
         public void update(Item item) {
             if (isAdded()) {
-                Marker updatedMarker = markers.get(item);
+                Marker updatedMarker = markers.get(item.getID());
                 updatedMarker.setTitle(getLockStringForItem(item));
                 updatedMarker.setIcon(BitmapDescriptorFactory.fromResource(getLockIdForItem(item)));
             }
@@ -86,9 +87,10 @@ public final class MapFragment extends android.support.v4.app.Fragment implement
     };
 
     // TODO : Use a bidirectional map ?
-    private Map<Item, Marker> markers;
+    //Keyed by id : hashing a file item would load its data from the database
+    private Map<Integer, Marker> markers;
     private Map<Marker, Item> itemFromMarkers;
-    private Set<Item> items;
+    private Set<Integer> itemIDs;
     private LinearLayout detailsViewDialog;
 
     private GoogleMap map; // Might be null if Google Play services APK is not available.
@@ -127,7 +129,7 @@ public final class MapFragment extends android.support.v4.app.Fragment implement
         super.onCreateView(inflater, container, savedInstanceState);
         markers = new HashMap<>();
         itemFromMarkers = new HashMap<>();
-        items = new HashSet<>();
+        itemIDs = new HashSet<>();
 
         detailsViewDialog = new LinearLayout(getActivity());
         detailsViewDialog.setOrientation(LinearLayout.VERTICAL);
@@ -157,6 +159,7 @@ public final class MapFragment extends android.support.v4.app.Fragment implement
                 @Override
                 public void onClick(View v) {
                     addAllItemsInRegionToMap();
+                    addAllPrivateItem();
                 }
             });
         } else {
@@ -203,9 +206,10 @@ public final class MapFragment extends android.support.v4.app.Fragment implement
      */
     private void addAllPrivateItem() {
         if (null != map) {
-            List<Item> localizedItems = CalamarApplication.getInstance().getDatabaseHandler().getAllLocalizedItems();
+            LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
+            List<Item> localizedItems = CalamarApplication.getInstance().getDatabaseHandler().getLocalizedItemsInRegion(bounds);
             for (Item i : localizedItems) {
-                if (!items.contains(i)) {
+                if (!itemIDs.contains(i.getID())) {
                     addItemToMap(i);
                 }
             }
@@ -241,9 +245,9 @@ public final class MapFragment extends android.support.v4.app.Fragment implement
         item.addObserver(itemObserver);
 
         Marker finalMarker = map.addMarker(marker);
-        markers.put(item, finalMarker);
+        markers.put(item.getID(), finalMarker);
         itemFromMarkers.put(finalMarker, item);
-        items.add(item);
+        itemIDs.add(item.getID());
     }
 
     /**
@@ -343,7 +347,7 @@ public final class MapFragment extends android.support.v4.app.Fragment implement
             if (receivedItems != null) {
 
                 for (Item item : receivedItems) {
-                    if (!items.contains(item)) {
+                    if (!itemIDs.contains(item.getID())) {
                         addItemToMap(item);
                     }
                 }
@@ -1,15 +1,24 @@
 package ch.epfl.sweng.calamar.utils;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.media.ThumbnailUtils;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import ch.epfl.sweng.calamar.CalamarApplication;
 import ch.epfl.sweng.calamar.R;
@@ -24,6 +33,7 @@ public final class Compresser {
     private static final int MIN_SIZE_FOR_COMPRESSION = 30;
     private static final int THUMBNAIL_SIZE = 100;
     private static final int BUFFER_SIZE = 1024;
+    private static final String INFLATED_SUFFIX = ".inflated";
     private static final byte HEADER_1 = 0x78;
     private static final byte HEADER_2 = (byte) 0xDA;
     private static final byte[] FOOTER = {0x10, 0x23, 0x47, 0x12, 0x45, (byte) 0xa7, (byte) 0xd3, (byte) 0xef, (byte) 0xaa, (byte) 0xfa, 0x02, 0x21, 0x33, 0x22};
@@ -117,6 +127,41 @@ public final class Compresser {
 
     }
 
+    /**
+     * Decompresses a file in place if it is compressed, without loading it in memory
+     *
+     * @param file the file
+     * @throws IOException if the file can't be read or replaced
+     */
+    public static void decompress(File file) throws IOException {
+        if (!isCompressed(file)) {
+            return;
+        }
+        File inflated = new File(file.getPath() + INFLATED_SUFFIX);
+        //The inflater stops at the end of the compressed data, before the footer
+        InputStream in = new InflaterInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(inflated));
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!inflated.renameTo(file)) {
+            if (!inflated.delete()) {
+                inflated.deleteOnExit();
+            }
+            throw new IOException(CalamarApplication.getInstance().getString(R.string.error_file_rename, file.getPath()));
+        }
+    }
+
     /**
      * Compresses (or removes) data from a FileItem, to reduce the size of the database.
      *
@@ -142,7 +187,9 @@ public final class Compresser {
      */
     public static byte[] getImageThumbnail(ImageItem i) {
         final ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        final Bitmap bitmap = i.getBitmap();
+        //An image still on the disk is decoded at the smallest scale big enough for the thumbnail
+        final File file = i.isDataLoaded() ? null : i.getDataFile();
+        final Bitmap bitmap = file == null ? i.getBitmap() : decodeSampled(file);
         if (bitmap != null) {
             final int width = bitmap.getWidth();
             final int height = bitmap.getHeight();
@@ -165,6 +212,30 @@ public final class Compresser {
         return null;
     }
 
+    private static Bitmap decodeSampled(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= THUMBNAIL_SIZE && options.outHeight / (sampleSize * 2) >= THUMBNAIL_SIZE) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    private static boolean isCompressed(File file) throws IOException {
+        final long length = file.length();
+        if (length < FOOTER.length + 2) {
+            return false;
+        }
+        //Only the header and the footer are read
+        final byte[] header = StorageManager.readRange(file, 0, 2);
+        final byte[] footer = StorageManager.readRange(file, length - FOOTER.length, FOOTER.length);
+        return header[0] == HEADER_1 && header[1] == HEADER_2 && Arrays.equals(footer, FOOTER);
+    }
+
     /**
      * Checks if the data is compressed by this Compresser.
      *
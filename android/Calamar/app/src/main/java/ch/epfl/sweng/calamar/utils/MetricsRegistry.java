@@ -0,0 +1,242 @@
+package ch.epfl.sweng.calamar.utils;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A registry of named metrics (histograms, counters and gauges), shared by the whole application.<br>
+ * Recording a value only updates a few atomic longs, so that the metrics can stay enabled in the
+ * field. The metrics are created when first used, and can be dumped to the log or read by name,
+ * e.g. in the tests.
+ */
+public final class MetricsRegistry {
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the only instance of this class
+     *
+     * @return the singleton
+     */
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    private MetricsRegistry() {
+    }
+
+    /**
+     * Returns the histogram of a name, creating it if needed
+     *
+     * @param name the name
+     * @return the histogram
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the counter of a name, creating it if needed
+     *
+     * @param name the name
+     * @return the counter
+     */
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new Counter());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    /**
+     * Registers a gauge, replacing the one of the same name if any
+     *
+     * @param name  the name
+     * @param gauge the gauge, read when the metrics are dumped
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Returns the current value of a gauge
+     *
+     * @param name the name of the gauge
+     * @return the value, or 0 if there is no such gauge
+     */
+    public long getGaugeValue(String name) {
+        Gauge gauge = gauges.get(name);
+        return gauge == null ? 0 : gauge.getValue();
+    }
+
+    /**
+     * Resets the histograms and the counters, e.g. before a measure. The gauges are kept.
+     */
+    public void reset() {
+        histograms.clear();
+        counters.clear();
+    }
+
+    /**
+     * Returns all the metrics, one per line, sorted by name
+     *
+     * @return the text, e.g. for a debug screen
+     */
+    public String dump() {
+        Map<String, String> lines = new TreeMap<>();
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            lines.put(e.getKey(), e.getValue().toString());
+        }
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            lines.put(e.getKey(), Long.toString(e.getValue().get()));
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            lines.put(e.getKey(), Long.toString(e.getValue().getValue()));
+        }
+        StringBuilder dump = new StringBuilder();
+        for (Map.Entry<String, String> line : lines.entrySet()) {
+            dump.append(line.getKey()).append(" : ").append(line.getValue()).append('\n');
+        }
+        return dump.toString();
+    }
+
+    /**
+     * Writes all the metrics to the log
+     *
+     * @param tag the tag of the log
+     */
+    public void log(String tag) {
+        for (String line : dump().split("\n")) {
+            if (!line.isEmpty()) {
+                Log.i(tag, line);
+            }
+        }
+    }
+
+    /**
+     * A distribution of values, in buckets of powers of 2 : the percentiles are upper bounds, at most
+     * twice the actual value.
+     */
+    public static final class Histogram {
+
+        //Bucket 0 holds 0, bucket i holds [2^(i-1), 2^i - 1]
+        private static final int BUCKETS = Long.SIZE;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram() {
+        }
+
+        /**
+         * Records a value, the negative values are recorded as 0
+         *
+         * @param value the value
+         */
+        public void record(long value) {
+            long positive = Math.max(0, value);
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(positive));
+            count.incrementAndGet();
+            sum.addAndGet(positive);
+            long currentMax = max.get();
+            while (positive > currentMax && !max.compareAndSet(currentMax, positive)) {
+                currentMax = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : sum.get() / n;
+        }
+
+        /**
+         * Returns an upper bound of a percentile
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return a value at least as big as the percentile, and at most twice as big
+         */
+        public long getPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    //(1L << 63) - 1 overflows to Long.MAX_VALUE, the bound of the last bucket
+                    return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            return "count " + getCount() + ", mean " + getMean() + ", p50 " + getPercentile(50)
+                    + ", p99 " + getPercentile(99) + ", max " + getMax();
+        }
+    }
+
+    /**
+     * A number which only grows
+     */
+    public static final class Counter {
+
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter() {
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * A value read when the metrics are dumped, e.g. the size of a queue
+     */
+    public interface Gauge {
+        long getValue();
+    }
+}
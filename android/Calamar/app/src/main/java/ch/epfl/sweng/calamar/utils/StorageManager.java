@@ -8,24 +8,47 @@ import android.widget.Toast;
 
 import com.ipaulpro.afilechooser.utils.FileUtils;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import ch.epfl.sweng.calamar.CalamarApplication;
 import ch.epfl.sweng.calamar.R;
+import ch.epfl.sweng.calamar.RemovedItem;
+import ch.epfl.sweng.calamar.RetentionPolicy;
 import ch.epfl.sweng.calamar.SQLiteDatabaseHandler;
+import ch.epfl.sweng.calamar.client.DatabaseClientException;
+import ch.epfl.sweng.calamar.client.DatabaseClientLocator;
 import ch.epfl.sweng.calamar.item.FileItem;
 import ch.epfl.sweng.calamar.item.ImageItem;
 import ch.epfl.sweng.calamar.item.Item;
+import ch.epfl.sweng.calamar.utils.StorageScheduler.Lane;
 
 /**
  * A Singleton managing storing, retrieving and deleting items on local storage.
@@ -38,17 +61,58 @@ public final class StorageManager {
     //Will be used to requery server if writing of a file has failed and the file is no longer available.
     private static final Set<Integer> currentFilesID = new CopyOnWriteArraySet<>();
 
+    //Paths of the files being written, so that an item of the same content doesn't write it again
+    private static final Set<String> currentWritingPaths = new CopyOnWriteArraySet<>();
+
+    //Retries of writings which failed because the storage wasn't mounted, run once it is
+    private static final Set<WritingTask> waitingForStorage = new CopyOnWriteArraySet<>();
+
 
     private static final String ROOT_FOLDER_NAME = "Calamar/";
     private static final String IMAGE_FOLDER_NAME = ROOT_FOLDER_NAME + "Calamar Images/";
     private static final String FILE_FOLDER_NAME = ROOT_FOLDER_NAME + "Calamar Others/";
+    private static final String RECEIVED_FOLDER_NAME = ROOT_FOLDER_NAME + "Calamar Received/";
     private static final String FILENAME = "FILE_";
     private static final String IMAGENAME = "IMG_";
-    private static final String NAME_SUFFIX = "_CAL";
+    //Files written while they are received, moved to the stored files once their item is stored
+    private static final String RECEIVED_NAME = "RCV_";
     private static final String IMAGE_EXT = ".png";
-
+    //Suffix of a file while it is written, so that a stored file is always complete
+    private static final String PARTIAL_EXT = ".part";
+
+    //The stored files are named by the hash of their content, and shared by the items having it
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    //Entries of a snapshot archive
+    private static final String SNAPSHOT_DESCRIPTION = "snapshot.json";
+    private static final String SNAPSHOT_DATABASE = "snapshot.db";
+    private static final String SNAPSHOT_FILES = "files/";
+    private static final String SNAPSHOT_KEY_USER = "user";
+    private static final String SNAPSHOT_KEY_TIME = "time";
+    private static final String SNAPSHOT_CHARSET = "UTF-8";
+    private static final int SNAPSHOT_BUFFER_SIZE = 64 * 1024;
+
+    //Signatures of the files whose type is sniffed, and their MIME type
+    private static final byte[][] SIGNATURES = {
+            {(byte) 0x89, 'P', 'N', 'G'},
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},
+            {'G', 'I', 'F', '8'},
+            {'%', 'P', 'D', 'F'},
+            {'P', 'K', 3, 4}
+    };
+    private static final String[] SIGNATURE_TYPES = {
+            "image/png", "image/jpeg", "image/gif", "application/pdf", "application/zip"
+    };
+    private static final int SIGNATURE_LENGTH = 4;
+
+    //The delay before a retry doubles at each attempt, from RETRY_TIME up to MAX_RETRY_TIME
     private static final int RETRY_TIME = 10000;
+    private static final int MAX_RETRY_TIME = 30 * 60 * 1000;
     private static final int MAX_ITER = 20;
+    //Files read at the same time, the files are written or deleted one at a time
+    private static final int PARALLELISM = 2;
 
     private static final int OPERATION_READ = 1;
     private static final int OPERATION_DELETE_WITHOUT_DB = 2;
@@ -58,7 +122,15 @@ public final class StorageManager {
     private final SQLiteDatabaseHandler dbHandler;
     private final Handler handler;
     private final CalamarApplication app;
-    private final Calendar calendar;
+    //Held while a stored file is shared by a new item or deleted, so that it isn't deleted once shared
+    private final Object sharedFilesLock = new Object();
+    private final Random random = new Random();
+    //Attempts to fetch again the items whose data was lost, reset once one succeeds
+    private int fetchAttempts;
+    private boolean fetchPending;
+    private final StorageScheduler scheduler;
+    //Reads of complete items not finished yet, by id of item
+    private final ConcurrentMap<Integer, ReadTask> currentReads = new ConcurrentHashMap<>();
 
     /**
      * Returns the only instance of this class
@@ -79,7 +151,13 @@ public final class StorageManager {
         app = CalamarApplication.getInstance();
         dbHandler = app.getDatabaseHandler();
         handler = new Handler();
-        calendar = Calendar.getInstance();
+        scheduler = new StorageScheduler(PARALLELISM);
+        MetricsRegistry.getInstance().gauge(StorageScheduler.METRIC_QUEUED, new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return scheduler.getQueuedCount();
+            }
+        });
     }
 
     /**
@@ -89,16 +167,46 @@ public final class StorageManager {
         for (WritingTask w : currentWritingTasks) {
             if (w.getIteration() >= level) {
                 w.cancel(true);
+                //Never executed, so onCancelled won't be called
+                if (waitingForStorage.remove(w)) {
+                    currentWritingTasks.remove(w);
+                    currentWritingPaths.remove(w.f.getPath());
+                }
             }
         }
     }
 
     /**
-     * Retry failed FileItem writings once more memory is available
-     * TODO does nothing at the moment
+     * Retries the failed FileItem writings, e.g. once the storage is mounted or more memory is
+     * available. The writings which lost their data, because they were cancelled or the application
+     * was killed, fetch their item again from the server.
      */
     public void retryFailedWriting() {
-        //Ask server
+        List<WritingTask> waiting = new ArrayList<>(waitingForStorage);
+        waitingForStorage.removeAll(waiting);
+        for (WritingTask task : waiting) {
+            task.executeOnExecutor(scheduler.getExecutor(task.lane));
+        }
+        Set<Integer> lost = app.getPendingWrites();
+        for (WritingTask task : currentWritingTasks) {
+            lost.remove(task.f.getID());
+        }
+        if (!lost.isEmpty() && !fetchPending) {
+            fetchPending = true;
+            new FetchLostTask().executeOnExecutor(scheduler.getExecutor(Lane.BACKGROUND_WRITE), lost.toArray(new Integer[lost.size()]));
+        }
+    }
+
+    /**
+     * Returns the delay before a retry : it doubles at each attempt up to MAX_RETRY_TIME, and half
+     * of it is random so that the retries of several files don't run at the same time
+     *
+     * @param attempt the number of attempts already made
+     * @return the delay in milliseconds
+     */
+    private long getRetryDelay(int attempt) {
+        long delay = Math.min(MAX_RETRY_TIME, (long) RETRY_TIME << Math.min(attempt, MAX_ITER));
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
     }
 
     /**
@@ -108,12 +216,18 @@ public final class StorageManager {
      * @param i The item to be stored
      */
     public void storeItem(Item i, StorageCallbacks caller) {
+        storeItem(i, caller, Lane.USER_WRITE);
+    }
+
+    private void storeItem(Item i, StorageCallbacks caller, Lane lane) {
         switch (i.getType()) {
             case SIMPLETEXTITEM:
                 dbHandler.addItem(i);
                 break;
             case IMAGEITEM:
-                if (!i.getFrom().equals(app.getCurrentUser())) {
+                if (((ImageItem) i).getDataFile() != null) {
+                    storeReceivedFile((ImageItem) i, caller);
+                } else if (!i.getFrom().equals(app.getCurrentUser())) {
                     //if (!i.isLocked()) { While metadatas are not implemented...
                     ImageItem repathedImage = (ImageItem) rePath((ImageItem) i);
                     if (caller != null) {
@@ -122,8 +236,10 @@ public final class StorageManager {
                     }
                     ImageItem compressedImage = (ImageItem) Compresser.compressDataForDatabase(repathedImage);
                     app.increaseImageCount();
-                    dbHandler.addItem(compressedImage);
-                    storeFile(repathedImage);
+                    synchronized (sharedFilesLock) {
+                        dbHandler.addItem(compressedImage);
+                        storeFile(repathedImage, lane);
+                    }
                     // } else {
                     //Assuming a locked item has no data
                     //    dbHandler.addItem(i);
@@ -133,7 +249,9 @@ public final class StorageManager {
                 }
                 break;
             case FILEITEM:
-                if (!i.getFrom().equals(app.getCurrentUser())) {
+                if (((FileItem) i).getDataFile() != null) {
+                    storeReceivedFile((FileItem) i, caller);
+                } else if (!i.getFrom().equals(app.getCurrentUser())) {
                     //if (i.getCondition().getValue()) {
                     FileItem repathedFile = rePath((FileItem) i);
                     if (caller != null) {
@@ -142,8 +260,10 @@ public final class StorageManager {
                     }
                     FileItem compressedFile = Compresser.compressDataForDatabase(repathedFile);
                     app.increaseFileCount();
-                    dbHandler.addItem(compressedFile);
-                    storeFile(repathedFile);
+                    synchronized (sharedFilesLock) {
+                        dbHandler.addItem(compressedFile);
+                        storeFile(repathedFile, lane);
+                    }
                     //} else {
                     //Assuming a locked item has no data
                     //    dbHandler.addItem(i);
@@ -159,13 +279,149 @@ public final class StorageManager {
     }
 
     /**
-     * Adds the items to the database and possibly store them
+     * Adds to the database an item whose file was written while it was received : the file is moved
+     * to the stored files, where rePath puts the files of the same content, and the database only
+     * gets a thumbnail of it.<br>
+     * A file received again is shared with the item which already uses it, and may have been deleted
+     * with that item since it was received : it is then fetched and written again.
+     */
+    private void storeReceivedFile(FileItem received, StorageCallbacks caller) {
+        boolean lost;
+        FileItem f;
+        synchronized (sharedFilesLock) {
+            f = moveToStoredFile(received);
+            lost = !f.getDataFile().exists();
+            if (lost) {
+                //Kept until the file is written, even if the application is killed
+                app.addPendingWrite(f.getID());
+            }
+            dbHandler.addItem(Compresser.compressDataForDatabase(f));
+        }
+        if (caller != null) {
+            //Gives item updated with new path
+            caller.onItemRetrieved(f);
+        }
+        if (lost) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    retryFailedWriting();
+                }
+            });
+        }
+    }
+
+    /**
+     * Moves the file written while an item was received to the stored file of its content, or deletes
+     * it if that file already exists. Must be called with sharedFilesLock held.
+     *
+     * @return the item with the path of the stored file, or the received one if its file couldn't be moved
+     */
+    private FileItem moveToStoredFile(FileItem received) {
+        File file = received.getDataFile();
+        if (!file.getName().startsWith(RECEIVED_NAME)) {
+            return received;
+        }
+        File stored = getStoredFile(received.getType(), file.getName().substring(RECEIVED_NAME.length()));
+        if (!stored.exists() && file.exists()) {
+            File parent = stored.getParentFile();
+            if ((!parent.exists() && !parent.mkdirs()) || !file.renameTo(stored)) {
+                return received;
+            }
+        } else if (file.exists() && dbHandler.countReferences(file.getAbsolutePath(), -1) == 0 && !file.delete()) {
+            file.deleteOnExit();
+        }
+        FileItem.DataLoader loader = new FileItem.FileDataLoader(stored);
+        return received.getType() == Item.Type.IMAGEITEM
+                ? new ImageItem(received.getID(), received.getFrom(), received.getTo(), received.getDate(), received.getCondition(), loader, stored.getAbsolutePath(), received.getMessage())
+                : new FileItem(received.getID(), received.getFrom(), received.getTo(), received.getDate(), received.getCondition(), loader, stored.getAbsolutePath(), received.getMessage());
+    }
+
+    /**
+     * Returns the file in which an item whose file is received is written, named by the hash of its
+     * content until it is stored
+     *
+     * @param directory the folder of the received files
+     * @param hash      the hash of the content
+     * @return the file
+     * @see #getReceivedDirectory()
+     */
+    public static File getReceivedFile(File directory, String hash) {
+        return new File(directory, RECEIVED_NAME + hash);
+    }
+
+    /**
+     * Returns the folder where the files of the items are written while they are received, creating
+     * it if needed
+     *
+     * @return the folder, or null if it can't be written
+     */
+    public static File getReceivedDirectory() {
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            return null;
+        }
+        File directory = Environment.getExternalStoragePublicDirectory(RECEIVED_FOLDER_NAME);
+        if (!directory.exists() && !directory.mkdirs()) {
+            return null;
+        }
+        return directory;
+    }
+
+    /**
+     * Reads a part of a file without reading the rest of it
+     *
+     * @param file   the file
+     * @param offset the position of the first byte to read
+     * @param length the number of bytes to read
+     * @return the bytes read, fewer than length if the file ends before
+     * @throws IOException if the file can't be read
+     */
+    public static byte[] readRange(File file, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException(CalamarApplication.getInstance().getString(R.string.storage_invalid_range, length, offset));
+        }
+        RandomAccessFile random = new RandomAccessFile(file, "r");
+        try {
+            byte[] range = new byte[(int) Math.max(0, Math.min(length, random.length() - offset))];
+            random.seek(offset);
+            random.readFully(range);
+            return range;
+        } finally {
+            random.close();
+        }
+    }
+
+    /**
+     * Guesses the MIME type of a file from its first bytes, e.g. for the files written while they
+     * were received, which have no extension
+     *
+     * @param file the file
+     * @return the MIME type, or null if it is unknown
+     */
+    public static String sniffMimeType(File file) {
+        byte[] header;
+        try {
+            header = readRange(file, 0, SIGNATURE_LENGTH);
+        } catch (IOException e) {
+            return null;
+        }
+        for (int i = 0; i < SIGNATURES.length; ++i) {
+            byte[] signature = SIGNATURES[i];
+            if (header.length >= signature.length && Arrays.equals(Arrays.copyOf(header, signature.length), signature)) {
+                return SIGNATURE_TYPES[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the items to the database and possibly store them, after the files asked by the user
      *
      * @param items The items to be stored
      */
     public void storeItems(List<Item> items, StorageCallbacks caller) {
         for (Item i : items) {
-            storeItem(i, caller);
+            storeItem(i, caller, Lane.BACKGROUND_WRITE);
         }
     }
 
@@ -180,11 +436,11 @@ public final class StorageManager {
                 dbHandler.deleteItem(item);
                 break;
             case FILEITEM:
-                new DeleteTask((FileItem) item).execute();
+                new DeleteTask(item.getID(), ((FileItem) item).getPath()).executeOnExecutor(scheduler.getExecutor(Lane.DELETE));
                 dbHandler.deleteItem(item);
                 break;
             case IMAGEITEM:
-                new DeleteTask((ImageItem) item).execute();
+                new DeleteTask(item.getID(), ((ImageItem) item).getPath()).executeOnExecutor(scheduler.getExecutor(Lane.DELETE));
                 dbHandler.deleteItem(item);
                 break;
             default:
@@ -202,10 +458,10 @@ public final class StorageManager {
             case SIMPLETEXTITEM:
                 break;
             case FILEITEM:
-                new DeleteTask((FileItem) item).execute();
+                new DeleteTask(item.getID(), ((FileItem) item).getPath()).executeOnExecutor(scheduler.getExecutor(Lane.DELETE));
                 break;
             case IMAGEITEM:
-                new DeleteTask((ImageItem) item).execute();
+                new DeleteTask(item.getID(), ((ImageItem) item).getPath()).executeOnExecutor(scheduler.getExecutor(Lane.DELETE));
                 break;
             default:
                 throw new IllegalArgumentException(app.getString(R.string.unexpected_item_type, item.getType().name()));
@@ -219,7 +475,7 @@ public final class StorageManager {
      */
     public void deleteItemWithDatabase(int ID) {
         Integer[] tempArr = {ID};
-        new GetItemFromIDTask(null, OPERATION_DELETE_WITH_DB).execute(tempArr);
+        new GetItemFromIDTask(null, OPERATION_DELETE_WITH_DB).executeOnExecutor(scheduler.getExecutor(Lane.DELETE), tempArr);
     }
 
     /**
@@ -229,7 +485,7 @@ public final class StorageManager {
      */
     public void deleteItemWithoutDatabase(int ID) {
         Integer[] tempArr = {ID};
-        new GetItemFromIDTask(null, OPERATION_DELETE_WITHOUT_DB).execute(tempArr);
+        new GetItemFromIDTask(null, OPERATION_DELETE_WITHOUT_DB).executeOnExecutor(scheduler.getExecutor(Lane.DELETE), tempArr);
     }
 
     /**
@@ -263,7 +519,7 @@ public final class StorageManager {
      * @param ids the ids of the items to delete
      */
     public void deleteItemsForIdsWithDatabase(List<Integer> ids) {
-        new GetItemFromIDTask(null, OPERATION_DELETE_WITH_DB).execute(ids.toArray(new Integer[ids.size()]));
+        new GetItemFromIDTask(null, OPERATION_DELETE_WITH_DB).executeOnExecutor(scheduler.getExecutor(Lane.DELETE), ids.toArray(new Integer[ids.size()]));
     }
 
     /**
@@ -283,7 +539,7 @@ public final class StorageManager {
      * @param ids the ids of the items to delete
      */
     public void deleteItemsForIdsWithoutDatabase(List<Integer> ids) {
-        new GetItemFromIDTask(null, OPERATION_DELETE_WITHOUT_DB).execute(ids.toArray(new Integer[ids.size()]));
+        new GetItemFromIDTask(null, OPERATION_DELETE_WITHOUT_DB).executeOnExecutor(scheduler.getExecutor(Lane.DELETE), ids.toArray(new Integer[ids.size()]));
     }
 
     /**
@@ -298,23 +554,392 @@ public final class StorageManager {
     }
 
     /**
-     * Task which deletes the FileItem given to the constructor. Tries only once.
+     * Removes the items which don't fit in the retention policy from the database, with their
+     * files, and compacts the database. Runs in the background.
+     *
+     * @param policy the limits to apply
+     */
+    public void applyRetentionPolicy(RetentionPolicy policy) {
+        new RetentionTask(policy).executeOnExecutor(scheduler.getExecutor(Lane.DELETE));
+    }
+
+    /**
+     * Task applying a retention policy to the database, then deleting the files of the removed items
+     */
+    private class RetentionTask extends AsyncTask<Void, Void, List<RemovedItem>> {
+
+        private final RetentionPolicy policy;
+
+        public RetentionTask(RetentionPolicy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        protected List<RemovedItem> doInBackground(Void... params) {
+            return dbHandler.applyRetentionPolicy(policy, System.currentTimeMillis());
+        }
+
+        @Override
+        protected void onPostExecute(List<RemovedItem> removed) {
+            for (RemovedItem item : removed) {
+                if (item.getType() != Item.Type.SIMPLETEXTITEM && item.getPath() != null) {
+                    new DeleteTask(item.getID(), item.getPath()).executeOnExecutor(scheduler.getExecutor(Lane.DELETE));
+                }
+            }
+            app.setLastRetentionRun(new Date());
+        }
+    }
+
+    /**
+     * Task fetching again from the server the items whose file wasn't written and whose data was
+     * lost, then writing their files. Retried with an exponential backoff while the server can't be
+     * reached.
+     */
+    private class FetchLostTask extends AsyncTask<Integer, Void, List<FileItem>> {
+
+        private boolean unreachable;
+
+        @Override
+        protected List<FileItem> doInBackground(Integer... ids) {
+            List<FileItem> fetched = new ArrayList<>();
+            Set<Integer> deleted = new HashSet<>(Arrays.asList(ids));
+            for (Item stored : dbHandler.getItems(Arrays.asList(ids))) {
+                deleted.remove(stored.getID());
+                if (!(stored instanceof FileItem) || new File(((FileItem) stored).getPath()).exists()) {
+                    //Written in the meantime, e.g. by an item of the same content
+                    app.removePendingWrite(stored.getID());
+                } else {
+                    FileItem item = fetch((FileItem) stored);
+                    if (item != null) {
+                        fetched.add(item);
+                    }
+                }
+            }
+            for (int id : deleted) {
+                app.removePendingWrite(id);
+            }
+            return fetched;
+        }
+
+        /**
+         * Fetches an item with its data, alone so that the files of the other items aren't downloaded.
+         * The file written while it was received is moved to the path the item has in the database ;
+         * an item whose data was kept in the response is rebuilt with this path, to be written.
+         *
+         * @return the item to write, or null if it couldn't be fetched or its file was restored
+         */
+        private FileItem fetch(FileItem stored) {
+            if (unreachable) {
+                return null;
+            }
+            try {
+                Item item = DatabaseClientLocator.getDatabaseClient().getItem(stored.getTo(), new Date(stored.getDate().getTime() - 1), stored.getID());
+                if (item instanceof FileItem) {
+                    try {
+                        return restore(stored, (FileItem) item);
+                    } finally {
+                        //Moved or copied by restore, unless another item uses it
+                        deleteIfUnreferenced(((FileItem) item).getDataFile());
+                    }
+                }
+                Log.w(app.getString(R.string.storage), app.getString(R.string.file_lost, stored.getPath()));
+                showToast(app.getString(R.string.file_lost, stored.getPath()));
+                app.removePendingWrite(stored.getID());
+            } catch (DatabaseClientException e) {
+                Log.w(app.getString(R.string.storage), e.getMessage());
+                unreachable = true;
+            }
+            return null;
+        }
+
+        /**
+         * Gives back its file to a stored item from the fetched one
+         *
+         * @return the item to write, or null if its file was restored
+         */
+        private FileItem restore(FileItem stored, FileItem fetched) {
+            File received = fetched.getDataFile();
+            if (received == null) {
+                //Kept in the response, e.g. when the storage wasn't writable
+                byte[] data = Compresser.decompress(fetched.getData());
+                return stored.getType() == Item.Type.IMAGEITEM
+                        ? new ImageItem(stored.getID(), stored.getFrom(), stored.getTo(), stored.getDate(), stored.getCondition(), data, stored.getPath())
+                        : new FileItem(stored.getID(), stored.getFrom(), stored.getTo(), stored.getDate(), stored.getCondition(), data, stored.getPath());
+            }
+            File file = new File(stored.getPath());
+            synchronized (sharedFilesLock) {
+                try {
+                    if (!file.exists()) {
+                        File parent = file.getParentFile();
+                        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                            throw new IOException(app.getString(R.string.error_file_rename, file.getPath()));
+                        }
+                        //Copied if another item shares it, or if it is on another file system
+                        if (dbHandler.countReferences(received.getAbsolutePath(), -1) != 0 || !received.renameTo(file)) {
+                            InputStream in = new FileInputStream(received);
+                            try {
+                                copyTo(in, file);
+                            } catch (IOException e) {
+                                //Not left half written, it would be taken for the restored file
+                                if (file.exists() && !file.delete()) {
+                                    file.deleteOnExit();
+                                }
+                                throw e;
+                            } finally {
+                                in.close();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.w(app.getString(R.string.storage), e.getMessage());
+                    return null;
+                }
+            }
+            app.removePendingWrite(stored.getID());
+            return null;
+        }
+
+        /**
+         * Deletes the file written while an item was fetched, if no item uses it
+         */
+        private void deleteIfUnreferenced(File file) {
+            if (file != null) {
+                synchronized (sharedFilesLock) {
+                    if (file.exists() && dbHandler.countReferences(file.getAbsolutePath(), -1) == 0 && !file.delete()) {
+                        file.deleteOnExit();
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(List<FileItem> fetched) {
+            fetchPending = false;
+            for (FileItem f : fetched) {
+                synchronized (sharedFilesLock) {
+                    storeFile(f, Lane.BACKGROUND_WRITE);
+                }
+                if (!currentWritingPaths.contains(f.getPath())) {
+                    //Nothing to write, or already written by an item of the same content
+                    app.removePendingWrite(f.getID());
+                }
+            }
+            if (!unreachable) {
+                fetchAttempts = 0;
+                return;
+            }
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    retryFailedWriting();
+                }
+            }, getRetryDelay(fetchAttempts++));
+        }
+    }
+
+    /**
+     * Writes the local state in a single zip archive, streamed to the output : a description of the
+     * snapshot, the database file (encrypted with the key of the current user) and the files of the
+     * items, stored under their path relative to the root folder. The output isn't closed.<br>
+     * Blocks while the database is copied and the files read, so must not run on the UI thread.
+     *
+     * @param out the stream the archive is written to
+     * @throws IOException if the archive couldn't be written
+     */
+    public void exportSnapshot(OutputStream out) throws IOException {
+        File database = new File(app.getCacheDir(), SNAPSHOT_DATABASE);
+        try {
+            long time = dbHandler.exportSnapshot(database);
+            ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out));
+            //The database is encrypted and the images compressed, deflating them would only cost time
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            JSONObject description = new JSONObject();
+            description.put(SNAPSHOT_KEY_USER, app.getCurrentUserID());
+            description.put(SNAPSHOT_KEY_TIME, time);
+            zip.putNextEntry(new ZipEntry(SNAPSHOT_DESCRIPTION));
+            zip.write(description.toString().getBytes(SNAPSHOT_CHARSET));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry(SNAPSHOT_DATABASE));
+            copyFrom(database, zip);
+            zip.closeEntry();
+            int files = 0;
+            File root = Environment.getExternalStoragePublicDirectory(ROOT_FOLDER_NAME);
+            if (isExternalStorageReadable() && root.isDirectory()) {
+                files = exportFiles(root, SNAPSHOT_FILES, zip);
+            }
+            zip.finish();
+            zip.flush();
+            Log.i(app.getString(R.string.storage), app.getString(R.string.snapshot_exported, files));
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            if (database.exists() && !database.delete()) {
+                Log.e(app.getString(R.string.storage), app.getString(R.string.error_file_deletion, database.getPath()));
+            }
+        }
+    }
+
+    /**
+     * Restores the local state from an archive written by {@link #exportSnapshot(OutputStream)} :
+     * the files of the items are written back to the root folder and the database is bulk-loaded
+     * from the snapshot, replacing its content. The refresh time is set to the one of the snapshot,
+     * so that only the items received since are downloaded from the server. The input isn't closed.<br>
+     * Blocks while the archive is read, so must not run on the UI thread.
+     *
+     * @param in the stream the archive is read from
+     * @throws IOException              if the archive couldn't be read
+     * @throws IllegalArgumentException if the archive is invalid or belongs to another user
+     */
+    public void importSnapshot(InputStream in) throws IOException {
+        File database = new File(app.getCacheDir(), SNAPSHOT_DATABASE);
+        try {
+            ZipInputStream zip = new ZipInputStream(new BufferedInputStream(in));
+            File root = Environment.getExternalStoragePublicDirectory(ROOT_FOLDER_NAME);
+            boolean writeFiles = isExternalStorageWritable();
+            if (!writeFiles) {
+                Log.w(app.getString(R.string.storage), app.getString(R.string.snapshot_files_skipped));
+            }
+            Long time = null;
+            boolean hasDatabase = false;
+            int files = 0;
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (name.equals(SNAPSHOT_DESCRIPTION)) {
+                    ByteArrayOutputStream description = new ByteArrayOutputStream();
+                    copy(zip, description);
+                    time = readDescription(new String(description.toByteArray(), SNAPSHOT_CHARSET));
+                } else if (name.equals(SNAPSHOT_DATABASE)) {
+                    copyTo(zip, database);
+                    hasDatabase = true;
+                } else if (name.startsWith(SNAPSHOT_FILES) && !entry.isDirectory()) {
+                    if (writeFiles) {
+                        copyTo(zip, snapshotFile(root, name.substring(SNAPSHOT_FILES.length())));
+                        ++files;
+                    }
+                } else {
+                    throw new IllegalArgumentException(app.getString(R.string.snapshot_entry_invalid, name));
+                }
+                zip.closeEntry();
+            }
+            if (time == null || !hasDatabase) {
+                throw new IllegalArgumentException(app.getString(R.string.snapshot_incomplete));
+            }
+            dbHandler.importSnapshot(database, time);
+            Log.i(app.getString(R.string.storage), app.getString(R.string.snapshot_imported, files));
+        } finally {
+            if (database.exists() && !database.delete()) {
+                Log.e(app.getString(R.string.storage), app.getString(R.string.error_file_deletion, database.getPath()));
+            }
+        }
+    }
+
+    /**
+     * Checks the description of a snapshot
+     *
+     * @return the refresh time of the snapshot
+     */
+    private long readDescription(String text) {
+        try {
+            JSONObject description = new JSONObject(text);
+            int user = description.getInt(SNAPSHOT_KEY_USER);
+            if (user != app.getCurrentUserID()) {
+                throw new IllegalArgumentException(app.getString(R.string.snapshot_wrong_user, user, app.getCurrentUserID()));
+            }
+            return description.getLong(SNAPSHOT_KEY_TIME);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(app.getString(R.string.snapshot_entry_invalid, SNAPSHOT_DESCRIPTION), e);
+        }
+    }
+
+    /**
+     * Returns the file of an entry of a snapshot, which must be in the root folder
+     */
+    private File snapshotFile(File root, String relativePath) throws IOException {
+        File file = new File(root, relativePath);
+        if (!file.getCanonicalPath().startsWith(root.getCanonicalPath() + File.separator)) {
+            throw new IllegalArgumentException(app.getString(R.string.snapshot_entry_invalid, relativePath));
+        }
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException(app.getString(R.string.error_directory_creation));
+        }
+        return file;
+    }
+
+    /**
+     * Adds the files of a directory and of its subdirectories to the archive
+     *
+     * @return the number of files added
+     */
+    private int exportFiles(File directory, String prefix, ZipOutputStream zip) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        int files = 0;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                files += exportFiles(child, prefix + child.getName() + '/', zip);
+            } else {
+                zip.putNextEntry(new ZipEntry(prefix + child.getName()));
+                copyFrom(child, zip);
+                zip.closeEntry();
+                ++files;
+            }
+        }
+        return files;
+    }
+
+    private static void copyFrom(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copyTo(InputStream in, File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            copy(in, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[SNAPSHOT_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Task which deletes the file of the item given to the constructor, unless another item shares it. Tries only once.
      */
     private class DeleteTask extends AsyncTask<Void, Void, Void> {
 
-        private final FileItem f;
+        private final int id;
+        private final String path;
 
-        public DeleteTask(FileItem f) {
-            this.f = f;
+        public DeleteTask(int id, String path) {
+            this.id = id;
+            this.path = path;
         }
 
         @Override
         protected Void doInBackground(Void... params) {
             if (isExternalStorageWritable()) {
-                File file = new File(f.getPath());
-                if (file.exists()) {
-                    if (!file.delete()) {
-                        showToast(app.getString(R.string.error_file_deletion, f.getPath()));
+                synchronized (sharedFilesLock) {
+                    //The file is deleted with the last item referencing it
+                    File file = new File(path);
+                    if (file.exists() && dbHandler.countReferences(path, id) == 0) {
+                        if (!file.delete()) {
+                            showToast(app.getString(R.string.error_file_deletion, path));
+                        }
                     }
                 }
             } else {
@@ -337,10 +962,10 @@ public final class StorageManager {
                     caller.onItemRetrieved(i);
                     break;
                 case FILEITEM:
-                    new ReadTask((FileItem) i, ((FileItem) i).getPath(), caller).execute();
-                    break;
                 case IMAGEITEM:
-                    new ReadTask((ImageItem) i, ((ImageItem) i).getPath(), caller).execute();
+                    ReadTask task = new ReadTask((FileItem) i, ((FileItem) i).getPath(), caller);
+                    currentReads.put(i.getID(), task);
+                    task.executeOnExecutor(scheduler.getExecutor(Lane.VISIBLE_READ));
                     break;
                 default:
                     throw new IllegalArgumentException(app.getString(R.string.unexpected_item_type, i.getType().name()));
@@ -355,7 +980,24 @@ public final class StorageManager {
      * @param caller The Activity who called this method
      */
     public void getCompleteItem(int ID, StorageCallbacks caller) {
-        new GetItemFromIDTask(caller, OPERATION_READ).execute(ID);
+        new GetItemFromIDTask(caller, OPERATION_READ).executeOnExecutor(scheduler.getExecutor(Lane.VISIBLE_READ), ID);
+    }
+
+    /**
+     * Cancels the read of the complete item of an id asked by a caller if it didn't finish yet,
+     * e.g. once the item isn't displayed anymore : the callback won't be called
+     *
+     * @param ID     the id of the item
+     * @param caller the caller which asked for the item
+     * @return true if a read was cancelled
+     */
+    public boolean cancelRead(int ID, StorageCallbacks caller) {
+        ReadTask task = currentReads.get(ID);
+        if (task == null || task.caller != caller || !currentReads.remove(ID, task) || !task.cancel(false)) {
+            return false;
+        }
+        scheduler.purge();
+        return true;
     }
 
     /**
@@ -365,7 +1007,7 @@ public final class StorageManager {
      * @param caller The Activity who called this method
      */
     public void getData(String path, StorageCallbacks caller) {
-        new ReadTask(null, path, caller);
+        new ReadTask(null, path, caller).executeOnExecutor(scheduler.getExecutor(Lane.VISIBLE_READ));
     }
 
     /**
@@ -460,8 +1102,18 @@ public final class StorageManager {
 
         @Override
         protected void onPostExecute(byte[] data) {
+            if (f != null) {
+                currentReads.remove(f.getID(), this);
+            }
             onCompleteItemRetrieved(f, data, caller);
         }
+
+        @Override
+        protected void onCancelled() {
+            if (f != null) {
+                currentReads.remove(f.getID(), this);
+            }
+        }
     }
 
     /**
@@ -506,14 +1158,18 @@ public final class StorageManager {
     /**
      * Store a FileItem in storage
      *
-     * @param f the FileItem to store
+     * @param f    the FileItem to store
+     * @param lane the lane of the writing, kept by its retries
      */
-    private void storeFile(FileItem f) {
-        if (f.getData().length != 0) {
-            WritingTask task = new WritingTask(f, 0);
+    private void storeFile(FileItem f, Lane lane) {
+        //A file of the same content is already stored or being written : the item shares it
+        if (f.getData().length != 0 && !new File(f.getPath()).exists() && currentWritingPaths.add(f.getPath())) {
+            //Kept until the file is written, even if the application is killed
+            app.addPendingWrite(f.getID());
+            WritingTask task = new WritingTask(f, 0, lane);
             currentWritingTasks.add(task);
             currentFilesID.add(f.getID());
-            task.execute();
+            task.executeOnExecutor(scheduler.getExecutor(lane));
         }
     }
 
@@ -557,9 +1213,10 @@ public final class StorageManager {
      */
     private void writeFile(FileItem f) throws IOException {
         if (f.getData() != null) {
+            File partial = new File(f.getPath() + PARTIAL_EXT);
             OutputStream stream = null;
             try {
-                stream = new BufferedOutputStream(new FileOutputStream(f.getPath()));
+                stream = new BufferedOutputStream(new FileOutputStream(partial));
                 byte[] toWrite = Compresser.decompress(f.getData());
                 if (toWrite != null) {
                     stream.write(toWrite);
@@ -569,48 +1226,128 @@ public final class StorageManager {
                     stream.close();
                 }
             }
+            //Published under the lock, so that a DeleteTask of the last item of the path doesn't miss it
+            synchronized (sharedFilesLock) {
+                if (dbHandler.countReferences(f.getPath(), -1) == 0) {
+                    //Its items were deleted while it was written
+                    if (!partial.delete()) {
+                        partial.deleteOnExit();
+                    }
+                    return;
+                }
+                if (!partial.renameTo(new File(f.getPath()))) {
+                    if (!partial.delete()) {
+                        partial.deleteOnExit();
+                    }
+                    throw new IOException(app.getString(R.string.error_file_rename, f.getPath()));
+                }
+            }
         }
     }
 
     /**
-     * Rename and changes the path of a FileItem which will be stored.
+     * Rename and changes the path of a FileItem which will be stored. The file is named by the hash
+     * of its content, so that the items having the same content share it.
      *
      * @param f The FileItem to "repath"
      * @return The repathed FileItem
      */
     private FileItem rePath(FileItem f) {
+        final String path = getStoredFile(f.getType(), getContentHash(Compresser.decompress(f.getData()))).getAbsolutePath();
         switch (f.getType()) {
             case FILEITEM:
-                File filePath = Environment.getExternalStoragePublicDirectory(FILE_FOLDER_NAME);
-                return new FileItem(f.getID(), f.getFrom(), f.getTo(), f.getDate(), f.getCondition(), f.getData(), filePath.getAbsolutePath() + '/' + FILENAME + app.getString(R.string.empty_string) + formatDate() + NAME_SUFFIX + app.getTodayFileCount());
+                return new FileItem(f.getID(), f.getFrom(), f.getTo(), f.getDate(), f.getCondition(), f.getData(), path);
+            case IMAGEITEM:
+                return new ImageItem(f.getID(), f.getFrom(), f.getTo(), f.getDate(), f.getCondition(), f.getData(), path);
+            default:
+                throw new IllegalArgumentException(app.getString(R.string.expected_fileitem));
+        }
+    }
+
+    /**
+     * Returns the stored file of a content : the items having the same content share it, whether they
+     * were received with their file or written from their data
+     *
+     * @param type the type of the item, FILEITEM or IMAGEITEM
+     * @param hash the hash of the content
+     * @return the file
+     */
+    private File getStoredFile(Item.Type type, String hash) {
+        switch (type) {
+            case FILEITEM:
+                return new File(Environment.getExternalStoragePublicDirectory(FILE_FOLDER_NAME), FILENAME + hash);
             case IMAGEITEM:
-                File imagePath = Environment.getExternalStoragePublicDirectory(IMAGE_FOLDER_NAME);
-                return new ImageItem(f.getID(), f.getFrom(), f.getTo(), f.getDate(), f.getCondition(), f.getData(), imagePath.getAbsolutePath() + '/' + IMAGENAME + app.getString(R.string.empty_string) + formatDate() + NAME_SUFFIX + app.getTodayImageCount() + IMAGE_EXT);
+                return new File(Environment.getExternalStoragePublicDirectory(IMAGE_FOLDER_NAME), IMAGENAME + hash + IMAGE_EXT);
             default:
                 throw new IllegalArgumentException(app.getString(R.string.expected_fileitem));
         }
     }
 
     /**
-     * Creates a String using the current Date
+     * Returns the hash naming a stored file
      *
-     * @return the String, used in rePath
+     * @param data the content of the file
+     * @return the hash, in hexadecimal
      */
-    private String formatDate() {
-        return calendar.get(Calendar.DAY_OF_MONTH) + app.getString(R.string.empty_string) + (calendar.get(Calendar.MONTH) + 1) + app.getString(R.string.empty_string) + calendar.get(Calendar.YEAR);
+    public static String getContentHash(byte[] data) {
+        return toHex(newDigest().digest(data));
     }
 
     /**
-     * An AsyncTask whose task is to write a FileItem to the storage. It will retry for ~30 min (20 times) before giving up
+     * Returns the hash naming a stored file, without loading it in memory
+     *
+     * @param file the file
+     * @return the hash of its content, in hexadecimal
+     * @throws IOException if the file can't be read
+     */
+    public static String getContentHash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[HASH_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            //Every platform has it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * An AsyncTask whose task is to write a FileItem to the storage. It will retry 20 times with an
+     * exponential backoff (or once the storage is mounted) before giving up, then the item is
+     * fetched again by {@link #retryFailedWriting()}
      */
     protected class WritingTask extends AsyncTask<Void, Void, Boolean> {
 
         private final int iterCount;
         private final FileItem f;
+        private final Lane lane;
 
-        protected WritingTask(FileItem f, int iterCount) {
+        protected WritingTask(FileItem f, int iterCount, Lane lane) {
             this.iterCount = iterCount;
             this.f = f;
+            this.lane = lane;
         }
 
         public int getIteration() {
@@ -694,31 +1431,41 @@ public final class StorageManager {
                 if (!isCancelled()) {
                     if (iterCount < MAX_ITER) {
                         Log.i(app.getString(R.string.storage), app.getString(R.string.retrying_write, f.getPath()));
-                        final WritingTask task = new WritingTask(f, iterCount + 1);
+                        final WritingTask task = new WritingTask(f, iterCount + 1, lane);
                         currentWritingTasks.add(task);
+                        if (!isExternalStorageWritable()) {
+                            //Retried once the storage is mounted, instead of waking up for nothing
+                            waitingForStorage.add(task);
+                            return;
+                        }
                         handler.postDelayed(new Runnable() {
                             @Override
                             public void run() {
                                 //TODO seems that task is executed twice in tests so it fails
                                 //I dont understand why.
                                 if (!(task.getStatus().equals(Status.FINISHED)) && !(task.getStatus().equals(Status.RUNNING))) {
-                                    task.execute();
+                                    task.executeOnExecutor(scheduler.getExecutor(lane));
                                 }
                             }
-                        }, RETRY_TIME * (iterCount + 1));
+                        }, getRetryDelay(iterCount));
                     } else {
+                        //Its id stays pending : the item will be fetched again by the next retryFailedWriting
+                        currentWritingPaths.remove(f.getPath());
                         showStorageStateToast();
                     }
                 }
             } else {
                 Log.i(app.getString(R.string.storage), app.getString(R.string.file_stored, f.getPath()));
+                currentWritingPaths.remove(f.getPath());
                 currentFilesID.remove(f.getID());
+                app.removePendingWrite(f.getID());
             }
         }
 
         @Override
         protected void onCancelled() {
             currentWritingTasks.remove(this);
+            currentWritingPaths.remove(f.getPath());
         }
     }
 
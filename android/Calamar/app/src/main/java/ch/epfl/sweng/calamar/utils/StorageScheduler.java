@@ -0,0 +1,170 @@
+package ch.epfl.sweng.calamar.utils;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the tasks of the {@link StorageManager} on a few threads of its own, by priority : reading
+ * the item the user is looking at doesn't wait behind the writes following a refresh, nor behind
+ * the tasks of the rest of the application on the default executor of AsyncTask.<br>
+ * The reads run on a few threads, the tasks writing or deleting files one at a time on a single
+ * thread, so that two of them never change the same file at once. The tasks of a lane run in the
+ * order they were scheduled, but a task changing files may run before one of a less urgent lane
+ * scheduled earlier. The time a task waited in the queue is recorded in the histogram of its lane,
+ * see {@link Lane#getWaitMetric()}.
+ */
+public final class StorageScheduler {
+
+    public static final String METRIC_CANCELLED = "storage.cancelled";
+    public static final String METRIC_QUEUED = "storage.queued";
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * The lanes, from the most urgent to the least urgent
+     */
+    public enum Lane {
+        VISIBLE_READ(false), USER_WRITE(true), BACKGROUND_WRITE(true), DELETE(true);
+
+        private final boolean changesFiles;
+
+        Lane(boolean changesFiles) {
+            this.changesFiles = changesFiles;
+        }
+
+        /**
+         * @return true if the tasks of this lane write or delete files, they run one at a time
+         */
+        public boolean changesFiles() {
+            return changesFiles;
+        }
+
+        /**
+         * @return the name of the histogram of the time waited in the queue, in microseconds
+         */
+        public String getWaitMetric() {
+            return "storage." + name().toLowerCase(Locale.US) + ".wait_us";
+        }
+    }
+
+    private final ThreadPoolExecutor readers;
+    //A single thread, the tasks changing files run one at a time
+    private final ThreadPoolExecutor writer;
+    private final Map<Lane, Executor> executors = new EnumMap<>(Lane.class);
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Creates a scheduler
+     *
+     * @param parallelism the number of reads running at the same time, the tasks changing files run
+     *                    one at a time on a thread of their own
+     */
+    StorageScheduler(int parallelism) {
+        readers = newExecutor(parallelism);
+        writer = newExecutor(1);
+        for (final Lane lane : Lane.values()) {
+            executors.put(lane, new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    schedule(lane, task);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the executor of a lane, e.g. for {@link android.os.AsyncTask#executeOnExecutor}
+     *
+     * @param lane the lane
+     * @return the executor scheduling its tasks in this lane
+     */
+    public Executor getExecutor(Lane lane) {
+        return executors.get(lane);
+    }
+
+    /**
+     * Schedules a task in a lane
+     *
+     * @param lane the lane
+     * @param task the task, skipped if it is a cancelled {@link Future} when its turn comes
+     */
+    public void schedule(Lane lane, Runnable task) {
+        (lane.changesFiles() ? writer : readers).execute(new Scheduled(lane, sequence.getAndIncrement(), task));
+    }
+
+    /**
+     * Removes the cancelled tasks from the queues, so that they don't hold their resources until
+     * their turn comes
+     */
+    public void purge() {
+        purge(readers);
+        purge(writer);
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueuedCount() {
+        return readers.getQueue().size() + writer.getQueue().size();
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static void purge(ThreadPoolExecutor executor) {
+        for (Runnable queued : executor.getQueue()) {
+            if (((Scheduled) queued).isCancelled() && executor.remove(queued)) {
+                MetricsRegistry.getInstance().counter(METRIC_CANCELLED).increment();
+            }
+        }
+    }
+
+    /**
+     * A task of a lane, ordered by lane then by scheduling order
+     */
+    private static final class Scheduled implements Runnable, Comparable<Scheduled> {
+        private final Lane lane;
+        private final long sequence;
+        private final Runnable task;
+        private final long scheduledAt = System.nanoTime();
+
+        private Scheduled(Lane lane, long sequence, Runnable task) {
+            this.lane = lane;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        private boolean isCancelled() {
+            return task instanceof Future && ((Future<?>) task).isCancelled();
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) {
+                MetricsRegistry.getInstance().counter(METRIC_CANCELLED).increment();
+                return;
+            }
+            MetricsRegistry.getInstance().histogram(lane.getWaitMetric()).record((System.nanoTime() - scheduledAt) / 1000);
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Scheduled other) {
+            if (lane != other.lane) {
+                return lane.compareTo(other.lane);
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
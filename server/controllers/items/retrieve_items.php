@@ -21,7 +21,9 @@ if (isset($params_array['latitudeMin'])
 		die($e->getMessage());
 	}
 } else if (isset($params_array['recipient']) && isset($params_array['lastRefresh'])) {
-	$items = get_all_private_items($params_array['recipient'], $params_array['lastRefresh']);
+	// Only the item of the given ID if any, e.g. to fetch again the file of an item
+	$id = isset($params_array['ID']) ? $params_array['ID'] : null;
+	$items = get_all_private_items($params_array['recipient'], $params_array['lastRefresh'], $id);
 } else {
 	// Malformed request
 	http_response_code(400);
@@ -26,12 +26,13 @@ define('LOCATION_FROM',', tb_metadata as mtd, tb_metadata_position as pos');
  * @param $query a prepared query that contains at least SELECT `from`
  * @return array of items (indexed by column name)
  */
-function get_items($recipient, $last_refresh, $type, $location_params = '') {
+function get_items($recipient, $last_refresh, $type, $location_params = '', $item_id = null) {
 	global $pdo;
 	
 	$location_where = '';
 	$location_from = '';
 	$to = 'itm.to = :to';
+	$id_where = $item_id === null ? '' : 'AND itm.ID = :item_id';
 
 	if ($location_params != '') {
 		$location_where = LOCATION_WHERE;
@@ -49,12 +50,16 @@ function get_items($recipient, $last_refresh, $type, $location_params = '') {
 			AND	itm.condition = cnd.ID
 			AND	'.$to.'
     		AND itm.date > :last_refresh
+			'.$id_where.'
 			'.$location_where);
 	
 	$id = $recipient['ID'];
 	
 	$query->bindParam(':to', $id, PDO::PARAM_INT);
 	$query->bindParam(':last_refresh', $last_refresh, PDO::PARAM_STR);
+	if ($item_id !== null) {
+		$query->bindParam(':item_id', $item_id, PDO::PARAM_INT);
+	}
 	
 	if ($location_params != '') {
 		$query->bindParam(':latitude_min', $location_params['latitude_min'], PDO::PARAM_STR);
@@ -112,14 +117,15 @@ function get_item_with_location($recipient, $last_refresh, $latitude_min, $latit
  * Retrieve all PRIVATE items sent to the specified recipient
  * @param int $recipient
  * @param float $last_refresh
+ * @param int $item_id the ID of the only item to retrieve, or null for all of them
  * @return array of items
  */
-function get_all_private_items($recipient, $last_refresh) {
+function get_all_private_items($recipient, $last_refresh, $item_id = null) {
 	global $types;
 	$ret = array();
 	
 	foreach ($types as $type) {
-		$ret = array_merge($ret,get_items($recipient, $last_refresh, $type));
+		$ret = array_merge($ret,get_items($recipient, $last_refresh, $type, '', $item_id));
 	}
 	return $ret;
 }
\ No newline at end of file